@@ -0,0 +1,184 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import smile.neighbor.KDTree;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the per-pixel functions in {@link OlciHarmonisationAlgorithm}, of their batched versions and of
+ * the polynomial replacements in {@link FastSurfaceTransmission},
+ * in ns per pixel. The nearest neighbour search of the batched desmile is also timed alone, with
+ * {@link DesmileKdTree} and with the smile KD tree, on the inputs of the batch normalised in advance.
+ *
+ * @author olafd
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AlgorithmBenchmark {
+
+    private static final int N = 1024;
+
+    private DesmileLut lut;
+    private DesmileKdTree tree;
+    private KDTree<double[]> smileTree;
+    private final double[] wo = new double[4];
+
+    private final double[] dwl = new double[N];
+    private final double[] fwhm = new double[N];
+    private final double[] amf = new double[N];
+    private final double[] trans = new double[N];
+    private final double[] press = new double[N];
+    private final double[] height = new double[N];
+    private final double[] slp = new double[N];
+    private final double[] result = new double[N];
+    private final double[][] normalised = new double[4][N];
+    private final double[][] queries = new double[N][4];
+
+    @Setup
+    public void setUp() throws Exception {
+        lut = OlciHarmonisationIO.createDesmileLut(BenchmarkSupport.getJsonLutPath(13));
+        tree = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(lut);
+        final Random random = new Random(42);
+        for (int i = 0; i < N; i++) {
+            dwl[i] = -0.5 + random.nextDouble();
+            fwhm[i] = 2.5 + 0.3 * random.nextDouble();
+            amf[i] = 2.0 + 4.0 * random.nextDouble();
+            trans[i] = 0.1 + 0.8 * random.nextDouble();
+            press[i] = 300.0 + 700.0 * random.nextDouble();
+            height[i] = 4000.0 * random.nextDouble();
+            slp[i] = 1013.25;
+        }
+        smileTree = new KDTree<>(lut.getX(), lut.getX());
+        // the normalised inputs of the batched desmile
+        final double[] mean = lut.getMEAN();
+        final double[] vari = lut.getVARI();
+        for (int i = 0; i < N; i++) {
+            queries[i][0] = (dwl[i] - mean[0]) / vari[0];
+            queries[i][1] = (fwhm[i] - mean[1]) / vari[1];
+            queries[i][2] = (trans[i] - mean[2]) / vari[2];
+            queries[i][3] = (amf[i] - mean[3]) / vari[3];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void desmileTransmission(Blackhole bh) {
+        for (int i = 0; i < N; i++) {
+            bh.consume(OlciHarmonisationAlgorithm.desmileTransmission(dwl[i], fwhm[i], amf[i], trans[i], tree, lut, wo));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void rectifyDesmiledTransmission(Blackhole bh) {
+        for (int i = 0; i < N; i++) {
+            bh.consume(OlciHarmonisationAlgorithm.rectifyDesmiledTransmission(trans[i], amf[i], 13));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void trans2Press(Blackhole bh) {
+        for (int i = 0; i < N; i++) {
+            bh.consume(OlciHarmonisationAlgorithm.trans2Press(trans[i], 13));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void press2Trans(Blackhole bh) {
+        for (int i = 0; i < N; i++) {
+            bh.consume(OlciHarmonisationAlgorithm.press2Trans(press[i], 13));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void height2press(Blackhole bh) {
+        for (int i = 0; i < N; i++) {
+            bh.consume(OlciHarmonisationAlgorithm.height2press(height[i], 1013.25));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public double[] desmileTransmissionBatched() {
+        OlciHarmonisationAlgorithm.desmileTransmission(dwl, fwhm, amf, trans, null, tree, lut, normalised, result, 0, N);
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void desmileNearest(Blackhole bh) {
+        for (double[] q : queries) {
+            bh.consume(tree.nearest(q));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void desmileNearestSmile(Blackhole bh) {
+        for (double[] q : queries) {
+            bh.consume(smileTree.knn(q, 1));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public double[] rectifyDesmiledTransmissionBatched() {
+        OlciHarmonisationAlgorithm.rectifyDesmiledTransmission(trans, amf, 13, result, 0, N);
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public double[] trans2PressBatched() {
+        OlciHarmonisationAlgorithm.trans2Press(trans, 13, result, 0, N);
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public double[] press2TransBatched() {
+        OlciHarmonisationAlgorithm.press2Trans(press, 13, result, 0, N);
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public double[] height2pressBatched() {
+        OlciHarmonisationAlgorithm.height2press(height, slp, result, 0, N);
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public double[] press2TransFast() {
+        FastSurfaceTransmission.press2Trans(press, 13, result, 0, N);
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public double[] height2pressFast() {
+        FastSurfaceTransmission.height2press(height, slp, result, 0, N);
+        return result;
+    }
+}
@@ -0,0 +1,190 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.datamodel.TiePointGrid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Provides LUTs and synthetic OLCI data for the benchmarks.
+ * <p/>
+ * By default, the small test LUT from the module resources is used for all bands. To benchmark with the
+ * production LUTs, set the system property {@link #LUT_DIR_PROPERTY} to a directory containing
+ * O2_desmile_lut_13.json etc. (or their binary versions).
+ *
+ * @author olafd
+ */
+class BenchmarkSupport {
+
+    static final String LUT_DIR_PROPERTY = "s3tbx.olci.harmonisation.benchmark.lutDir";
+
+    private static final String SMALL_TEST_LUT = "/auxdata/luts/O2_desmile_lut_SMALL_TEST.json";
+
+    /**
+     * @return a directory containing desmile LUTs for bands 13..15
+     * @throws IOException -
+     */
+    static Path getAuxdataPath() throws IOException {
+        final String lutDir = System.getProperty(LUT_DIR_PROPERTY);
+        if (lutDir != null) {
+            return Paths.get(lutDir);
+        }
+        final Path auxdataPath = Files.createTempDirectory("harmonisation-benchmark");
+        for (int band = 13; band <= 15; band++) {
+            try (InputStream in = BenchmarkSupport.class.getResourceAsStream(SMALL_TEST_LUT)) {
+                Files.copy(in, auxdataPath.resolve(OlciHarmonisationIO.DESMILE_LUT_FILE_PREFIX + band +
+                                                           OlciHarmonisationIO.DESMILE_LUT_JSON_EXTENSION),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return auxdataPath;
+    }
+
+    /**
+     * @param band - the band index (13, 14 or 15)
+     * @return the JSON desmile LUT for given band
+     * @throws IOException -
+     */
+    static Path getJsonLutPath(int band) throws IOException {
+        final String lutDir = System.getProperty(LUT_DIR_PROPERTY);
+        if (lutDir != null) {
+            return Paths.get(lutDir).resolve(OlciHarmonisationIO.DESMILE_LUT_FILE_PREFIX + band +
+                                                     OlciHarmonisationIO.DESMILE_LUT_JSON_EXTENSION);
+        }
+        try {
+            return Paths.get(BenchmarkSupport.class.getResource(SMALL_TEST_LUT).toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Creates source samples of a tile with plausible, random values. As in OLCI L1b, the spectral
+     * characterisation only depends on the detector index. The buffers of the single precision engine
+     * are filled as well.
+     *
+     * @param numSamples - the number of samples
+     * @param seed       - the random seed
+     * @return the source samples
+     */
+    static OlciHarmonisationKernel.SourceSamples createSourceSamples(int numSamples, long seed) {
+        final Random random = new Random(seed);
+        final double[][] detectorCwl = createDetectorCharacterisation(random);
+        final OlciHarmonisationKernel.SourceSamples src = new OlciHarmonisationKernel.SourceSamples();
+        src.qualityFlags = new int[numSamples];
+        src.sza = new double[numSamples];
+        src.oza = new double[numSamples];
+        src.altitude = new double[numSamples];
+        src.slp = new double[numSamples];
+        src.detectorIndex = new float[numSamples];
+        src.szaF = new float[numSamples];
+        src.ozaF = new float[numSamples];
+        src.altitudeF = new float[numSamples];
+        src.slpF = new float[numSamples];
+        for (int k = 0; k < 5; k++) {
+            src.radiance[k] = new double[numSamples];
+            src.radianceF[k] = new float[numSamples];
+            src.cwl[k] = new double[numSamples];
+            src.fwhm[k] = new double[numSamples];
+            src.solarFlux[k] = new double[numSamples];
+        }
+        for (int i = 0; i < numSamples; i++) {
+            final int detector = random.nextInt(DetectorSpectralTable.NUM_DETECTORS);
+            src.sza[i] = 20.0 + 50.0 * random.nextDouble();
+            src.oza[i] = 45.0 * random.nextDouble();
+            src.altitude[i] = 3000.0 * random.nextDouble();
+            src.slp[i] = 990.0 + 40.0 * random.nextDouble();
+            src.detectorIndex[i] = detector;
+            src.szaF[i] = (float) src.sza[i];
+            src.ozaF[i] = (float) src.oza[i];
+            src.altitudeF[i] = (float) src.altitude[i];
+            src.slpF[i] = (float) src.slp[i];
+            for (int k = 0; k < 5; k++) {
+                src.radianceF[k][i] = (float) ((k == 0 || k == 4 ? 80.0 : 30.0) + 20.0 * random.nextDouble());
+                src.radiance[k][i] = src.radianceF[k][i];
+                src.cwl[k][i] = detectorCwl[k][detector];
+                src.fwhm[k][i] = 2.6f;
+                src.solarFlux[k][i] = 1250.0f;
+            }
+        }
+        return src;
+    }
+
+    /**
+     * Creates an in-memory OLCI L1b product with the nodes used by the harmonisation, filled with plausible,
+     * random values.
+     *
+     * @param width  - the scene width
+     * @param height - the scene height
+     * @return the product
+     */
+    static Product createOlciProduct(int width, int height) {
+        final int numPixels = width * height;
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(numPixels, 4711L);
+        final Product product = new Product("synthetic_OL_1_EFR", "OL_1_EFR", width, height);
+
+        final Band qualityFlags = product.addBand("quality_flags", ProductData.TYPE_INT32);
+        qualityFlags.setRasterData(ProductData.createInstance(new int[numPixels]));
+        addBand(product, "altitude", src.altitude);
+        final short[] detectorIndex = new short[numPixels];
+        for (int i = 0; i < numPixels; i++) {
+            detectorIndex[i] = (short) src.detectorIndex[i];
+        }
+        final Band detectorIndexBand = product.addBand("detector_index", ProductData.TYPE_INT16);
+        detectorIndexBand.setRasterData(ProductData.createInstance(detectorIndex));
+        addBand(product, "Oa01_radiance", new double[numPixels]).setUnit("mW.m-2.sr-1.nm-1");
+        for (int k = 0; k < 5; k++) {
+            addBand(product, "Oa" + (k + 12) + "_radiance", src.radiance[k]);
+            addBand(product, "lambda0_band_" + (k + 12), src.cwl[k]);
+            addBand(product, "FWHM_band_" + (k + 12), src.fwhm[k]);
+            addBand(product, "solar_flux_band_" + (k + 12), src.solarFlux[k]);
+        }
+
+        final int gridWidth = (width - 1) / 64 + 2;
+        final int gridHeight = (height - 1) / 64 + 2;
+        final float[] sza = new float[gridWidth * gridHeight];
+        final float[] oza = new float[gridWidth * gridHeight];
+        final float[] slp = new float[gridWidth * gridHeight];
+        for (int j = 0; j < gridHeight; j++) {
+            for (int i = 0; i < gridWidth; i++) {
+                sza[j * gridWidth + i] = 30.0f + 0.05f * j + 0.01f * i;
+                oza[j * gridWidth + i] = Math.abs(i - gridWidth * 0.75f) * 0.7f;
+                slp[j * gridWidth + i] = 1013.0f;
+            }
+        }
+        product.addTiePointGrid(new TiePointGrid("SZA", gridWidth, gridHeight, 0.5, 0.5, 64.0, 64.0, sza));
+        product.addTiePointGrid(new TiePointGrid("OZA", gridWidth, gridHeight, 0.5, 0.5, 64.0, 64.0, oza));
+        product.addTiePointGrid(new TiePointGrid("sea_level_pressure", gridWidth, gridHeight, 0.5, 0.5, 64.0, 64.0, slp));
+        return product;
+    }
+
+    private static Band addBand(Product product, String name, double[] samples) {
+        final float[] data = new float[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            data[i] = (float) samples[i];
+        }
+        final Band band = product.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setRasterData(ProductData.createInstance(data));
+        return band;
+    }
+
+    private static double[][] createDetectorCharacterisation(Random random) {
+        final double[] cwlRef = {753.4, 761.7, 764.8, 767.9, 778.4};
+        final double[][] cwl = new double[5][DetectorSpectralTable.NUM_DETECTORS];
+        for (int k = 0; k < 5; k++) {
+            for (int d = 0; d < cwl[k].length; d++) {
+                cwl[k][d] = (float) (cwlRef[k] + 0.5 * random.nextDouble());
+            }
+        }
+        return cwl;
+    }
+}
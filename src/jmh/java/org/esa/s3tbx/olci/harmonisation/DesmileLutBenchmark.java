@@ -0,0 +1,118 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import smile.neighbor.KDTree;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the desmile auxdata of bands 13..15: reading the LUT (JSON and binary format), building the
+ * KD tree and the nearest neighbour query, compared to the smile KD tree formerly used. The queries are
+ * random inputs normalised with the LUT statistics, as in the desmile, and are timed in ns per query.
+ *
+ * @author olafd
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DesmileLutBenchmark {
+
+    private static final int NUM_QUERIES = 1024;
+
+    @Param({"13", "14", "15"})
+    private int band;
+
+    private Path jsonLutPath;
+    private Path binaryLutPath;
+    private DesmileLut lut;
+    private DesmileKdTree kdTree;
+    private KDTree<double[]> smileKdTree;
+    private double[][] queries;
+
+    @Setup
+    public void setUp() throws Exception {
+        jsonLutPath = BenchmarkSupport.getJsonLutPath(band);
+        lut = OlciHarmonisationIO.createDesmileLut(jsonLutPath);
+        binaryLutPath = Files.createTempFile("O2_desmile_lut_", OlciHarmonisationIO.DESMILE_LUT_BINARY_EXTENSION);
+        OlciHarmonisationIO.writeDesmileLutBinary(lut, binaryLutPath);
+        kdTree = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(lut);
+        smileKdTree = new KDTree<>(lut.getX(), lut.getX());
+        queries = createQueries(lut, new Random(42));
+    }
+
+    private static double[][] createQueries(DesmileLut lut, Random random) {
+        final double[] mean = lut.getMEAN();
+        final double[] vari = lut.getVARI();
+        final double[][] queries = new double[NUM_QUERIES][4];
+        for (double[] q : queries) {
+            // dwl, fwhm, trans, amf
+            q[0] = (-0.5 + random.nextDouble() - mean[0]) / vari[0];
+            q[1] = (2.5 + 0.3 * random.nextDouble() - mean[1]) / vari[1];
+            q[2] = (0.1 + 0.8 * random.nextDouble() - mean[2]) / vari[2];
+            q[3] = (2.0 + 4.0 * random.nextDouble() - mean[3]) / vari[3];
+        }
+        return queries;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(binaryLutPath);
+    }
+
+    @Benchmark
+    public DesmileLut parseJsonLut() throws Exception {
+        return OlciHarmonisationIO.createDesmileLut(jsonLutPath);
+    }
+
+    @Benchmark
+    public DesmileLut readBinaryLut() throws Exception {
+        return OlciHarmonisationIO.readDesmileLutBinary(binaryLutPath);
+    }
+
+    @Benchmark
+    public DesmileKdTree buildKdTree() {
+        return OlciHarmonisationIO.createKDTreeForDesmileInterpolation(lut);
+    }
+
+    @Benchmark
+    public KDTree<double[]> buildSmileKdTree() {
+        return new KDTree<>(lut.getX(), lut.getX());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_QUERIES)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void queryKdTree(Blackhole bh) {
+        for (double[] q : queries) {
+            bh.consume(kdTree.nearest(q));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_QUERIES)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void querySmileKdTree(Blackhole bh) {
+        for (double[] q : queries) {
+            bh.consume(smileKdTree.knn(q, 1));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the per-pixel harmonisation kernel on the primitive buffers of a tile, in ns per pixel.
+ * Source data reading is not included, see {@link OperatorTileBenchmark} for that.
+ *
+ * @author olafd
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class KernelBenchmark {
+
+    private static final int TILE_SIZE = 256;
+    private static final int NUM_PIXELS = TILE_SIZE * TILE_SIZE;
+
+    @Param({"1", "3"})
+    private int numBands;
+
+    @Param({"false", "true"})
+    private boolean useDetectorTable;
+
+    @Param({"false", "true"})
+    private boolean singlePrecision;
+
+    private OlciHarmonisationKernel.SourceSamples src;
+    private OlciHarmonisationKernel.TargetSamples tgt;
+    private OlciHarmonisationKernel kernel;
+
+    @Setup
+    public void setUp() throws Exception {
+        src = BenchmarkSupport.createSourceSamples(NUM_PIXELS, 4711L);
+        if (useDetectorTable) {
+            final DetectorSpectralTable table = new DetectorSpectralTable();
+            table.update(src, new boolean[]{true, true, true, true, true});
+            src.detectorTable = table.getSnapshot();
+        }
+
+        tgt = new OlciHarmonisationKernel.TargetSamples(numBands);
+        final DesmileLut[] luts = new DesmileLut[numBands];
+        final DesmileKdTree[] trees = new DesmileKdTree[numBands];
+        final FloatDesmileLut[] floatLuts = singlePrecision ? new FloatDesmileLut[numBands] : null;
+        for (int b = 0; b < numBands; b++) {
+            tgt.trans[b] = new float[NUM_PIXELS];
+            tgt.press[b] = new float[NUM_PIXELS];
+            tgt.surface[b] = new float[NUM_PIXELS];
+            tgt.radiance[b] = new float[NUM_PIXELS];
+            luts[b] = OlciHarmonisationIO.createDesmileLut(BenchmarkSupport.getJsonLutPath(b + 13));
+            trees[b] = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(luts[b]);
+            if (floatLuts != null) {
+                floatLuts[b] = new FloatDesmileLut(luts[b]);
+            }
+        }
+        kernel = new OlciHarmonisationKernel(luts, trees, new DesmileGrid[numBands], null, floatLuts);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_PIXELS)
+    public OlciHarmonisationKernel.TargetSamples computeTile() {
+        kernel.compute(src, tgt, 0, NUM_PIXELS);
+        return tgt;
+    }
+}
@@ -0,0 +1,79 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.Product;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.media.jai.JAI;
+import java.awt.image.Raster;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the computation of a full target tile (all target bands) by {@link OlciHarmonisationOp}
+ * on a synthetic in-memory OLCI L1b product, including the source data access, in ns per pixel.
+ * The JAI tile cache is flushed before every invocation, so that every tile is really computed.
+ *
+ * @author olafd
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class OperatorTileBenchmark {
+
+    private static final int TILE_SIZE = 256;
+
+    @Param({"true", "false"})
+    private boolean processOnlyBand13;
+
+    private Product sourceProduct;
+    private OlciHarmonisationOp operator;
+    private Product targetProduct;
+    private int tileIndex;
+
+    @Setup
+    public void setUp() throws Exception {
+        DesmileAuxdataRegistry.getInstance().setAuxdataPath(BenchmarkSupport.getAuxdataPath());
+        sourceProduct = BenchmarkSupport.createOlciProduct(4 * TILE_SIZE, 4 * TILE_SIZE);
+        sourceProduct.setPreferredTileSize(TILE_SIZE, TILE_SIZE);
+
+        operator = new OlciHarmonisationOp();
+        operator.setParameterDefaultValues();
+        operator.setSourceProduct("l1bProduct", sourceProduct);
+        operator.setParameter("processOnlyBand13", processOnlyBand13);
+        targetProduct = operator.getTargetProduct();
+    }
+
+    @Setup(Level.Invocation)
+    public void flushTileCache() {
+        JAI.getDefaultInstance().getTileCache().flush();
+    }
+
+    @TearDown
+    public void tearDown() {
+        operator.dispose();
+        sourceProduct.dispose();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TILE_SIZE * TILE_SIZE)
+    public Raster computeTile() {
+        // all target bands of the tile are computed in one pass, so requesting one of them is sufficient
+        tileIndex = (tileIndex + 1) % 16;
+        return targetProduct.getBand("trans_13").getSourceImage().getTile(tileIndex % 4, tileIndex / 4);
+    }
+}
@@ -0,0 +1,104 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.util.Locale;
+
+/**
+ * Reports the deviation of the single precision engine from the double precision engine of the
+ * {@link OlciHarmonisationKernel}, for all outputs of bands 13..15 of a synthetic tile (see
+ * {@link BenchmarkSupport}), and the memory of the double and float desmile LUTs. Run with
+ * <pre>
+ *     mvn -Pjmh test-compile exec:exec -Djmh.main=org.esa.s3tbx.olci.harmonisation.SinglePrecisionAccuracyReport -Djmh.args=
+ * </pre>
+ * By default the small test LUT is used (system property {@link BenchmarkSupport#LUT_DIR_PROPERTY} for the
+ * production LUTs).
+ *
+ * @author olafd
+ */
+public class SinglePrecisionAccuracyReport {
+
+    private static final int NUM_PIXELS = 512 * 512;
+    private static final String[] OUTPUTS = {"trans", "press", "surface", "radiance"};
+
+    public static void main(String[] args) throws Exception {
+        final OlciHarmonisationKernel.SourceSamples src = BenchmarkSupport.createSourceSamples(NUM_PIXELS, 4711L);
+        final DesmileLut[] luts = new DesmileLut[3];
+        final DesmileKdTree[] trees = new DesmileKdTree[3];
+        final FloatDesmileLut[] floatLuts = new FloatDesmileLut[3];
+        for (int b = 0; b < 3; b++) {
+            luts[b] = OlciHarmonisationIO.createDesmileLut(BenchmarkSupport.getJsonLutPath(b + 13));
+            trees[b] = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(luts[b]);
+            floatLuts[b] = new FloatDesmileLut(luts[b]);
+        }
+
+        final OlciHarmonisationKernel.TargetSamples expected = createTargetSamples();
+        final OlciHarmonisationKernel.TargetSamples actual = createTargetSamples();
+        new OlciHarmonisationKernel(luts, trees).compute(src, expected, 0, NUM_PIXELS);
+        new OlciHarmonisationKernel(new DesmileLut[3], new DesmileKdTree[3], new DesmileGrid[3], null, floatLuts)
+                .compute(src, actual, 0, NUM_PIXELS);
+
+        System.out.printf(Locale.ENGLISH, "Single vs. double precision, %d pixels%n", NUM_PIXELS);
+        System.out.printf(Locale.ENGLISH, "%-14s %12s %12s %12s %12s%n",
+                          "output", "max abs", "max rel", "RMS rel", "rel > 1e-5");
+        for (int b = 0; b < 3; b++) {
+            for (String output : OUTPUTS) {
+                report(output + "_" + (b + 13), getSamples(expected, output, b), getSamples(actual, output, b));
+            }
+        }
+        System.out.println();
+        for (int b = 0; b < 3; b++) {
+            // the single precision engine only holds the float LUT with its KD tree
+            final long numNodes = luts[b].getX().length;
+            System.out.printf(Locale.ENGLISH, "LUT band %d: %d nodes, double LUT values %d bytes, float LUT with KD tree %d bytes%n",
+                              b + 13, numNodes, 8L * numNodes * 9, floatLuts[b].getSizeInBytes());
+        }
+    }
+
+    private static void report(String name, float[] expected, float[] actual) {
+        double maxAbs = 0.0;
+        double maxRel = 0.0;
+        double sumRel2 = 0.0;
+        int numAbove = 0;
+        int n = 0;
+        for (int i = 0; i < expected.length; i++) {
+            if (Float.isNaN(expected[i]) || Float.isNaN(actual[i])) {
+                continue;
+            }
+            final double abs = Math.abs(actual[i] - expected[i]);
+            final double rel = abs / Math.max(Math.abs(expected[i]), Float.MIN_NORMAL);
+            maxAbs = Math.max(maxAbs, abs);
+            maxRel = Math.max(maxRel, rel);
+            sumRel2 += rel * rel;
+            if (rel > 1.0E-5) {
+                numAbove++;
+            }
+            n++;
+        }
+        System.out.printf(Locale.ENGLISH, "%-14s %12.3g %12.3g %12.3g %11.3f%%%n",
+                          name, maxAbs, maxRel, n > 0 ? Math.sqrt(sumRel2 / n) : 0.0,
+                          n > 0 ? 100.0 * numAbove / n : 0.0);
+    }
+
+    private static float[] getSamples(OlciHarmonisationKernel.TargetSamples tgt, String output, int b) {
+        switch (output) {
+            case "trans":
+                return tgt.trans[b];
+            case "press":
+                return tgt.press[b];
+            case "surface":
+                return tgt.surface[b];
+            default:
+                return tgt.radiance[b];
+        }
+    }
+
+    private static OlciHarmonisationKernel.TargetSamples createTargetSamples() {
+        final OlciHarmonisationKernel.TargetSamples tgt = new OlciHarmonisationKernel.TargetSamples(3);
+        for (int b = 0; b < 3; b++) {
+            tgt.trans[b] = new float[NUM_PIXELS];
+            tgt.press[b] = new float[NUM_PIXELS];
+            tgt.surface[b] = new float[NUM_PIXELS];
+            tgt.radiance[b] = new float[NUM_PIXELS];
+        }
+        return tgt;
+    }
+}
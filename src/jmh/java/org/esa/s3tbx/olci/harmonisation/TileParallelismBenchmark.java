@@ -0,0 +1,84 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling benchmark of the computation of a full-width stripe (OLCI FR width) with {@link KernelRowTask}s,
+ * in ns per pixel, for an increasing number of threads. The speedup for n threads is the score for 1 thread
+ * divided by the score for n threads. Thread counts above the number of available cores only show the
+ * overhead, restrict them e.g. with -Djmh.args="TileParallelismBenchmark -p numThreads=1,2,4,8".
+ *
+ * @author olafd
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TileParallelismBenchmark {
+
+    private static final int STRIPE_WIDTH = 4865;
+    private static final int STRIPE_HEIGHT = 64;
+    private static final int NUM_PIXELS = STRIPE_WIDTH * STRIPE_HEIGHT;
+    private static final int NUM_BANDS = 3;
+    private static final Runnable NO_ROW_CHECK = () -> {
+    };
+
+    @Param({"1", "2", "4", "8", "16", "32", "64"})
+    private int numThreads;
+
+    private OlciHarmonisationKernel.SourceSamples src;
+    private OlciHarmonisationKernel.TargetSamples tgt;
+    private DesmileLut[] luts;
+    private DesmileKdTree[] trees;
+    private ForkJoinPool pool;
+    private int blockRows;
+
+    @Setup
+    public void setUp() throws Exception {
+        src = BenchmarkSupport.createSourceSamples(NUM_PIXELS, 4711L);
+        tgt = new OlciHarmonisationKernel.TargetSamples(NUM_BANDS);
+        luts = new DesmileLut[NUM_BANDS];
+        trees = new DesmileKdTree[NUM_BANDS];
+        for (int b = 0; b < NUM_BANDS; b++) {
+            tgt.trans[b] = new float[NUM_PIXELS];
+            tgt.press[b] = new float[NUM_PIXELS];
+            tgt.surface[b] = new float[NUM_PIXELS];
+            tgt.radiance[b] = new float[NUM_PIXELS];
+            luts[b] = OlciHarmonisationIO.createDesmileLut(BenchmarkSupport.getJsonLutPath(b + 13));
+            trees[b] = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(luts[b]);
+        }
+        pool = new ForkJoinPool(numThreads);
+        blockRows = KernelRowTask.computeBlockRows(STRIPE_HEIGHT, numThreads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_PIXELS)
+    public OlciHarmonisationKernel.TargetSamples computeStripe() {
+        // a new kernel per block, as in the operator
+        pool.invoke(new KernelRowTask(() -> new OlciHarmonisationKernel(luts, trees), src, tgt, STRIPE_WIDTH, 0,
+                                      STRIPE_HEIGHT, blockRows, NO_ROW_CHECK));
+        return tgt;
+    }
+}
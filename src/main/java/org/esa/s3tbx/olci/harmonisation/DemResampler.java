@@ -0,0 +1,271 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.GeoCoding;
+import org.esa.snap.core.datamodel.GeoPos;
+import org.esa.snap.core.datamodel.PixelPos;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resamples the altitude band of a DEM product onto the pixel grid of the OLCI L1b product. This replaces a
+ * full collocation of the DEM product: only the altitude band is accessed, and instead of a collocation_flags
+ * band, a flag per pixel tells whether a valid DEM altitude was found.
+ * <p/>
+ * For a rectangle of L1b pixels, the DEM pixel positions are computed from the geocodings first (see
+ * {@link #locate(Rectangle)}), then the altitudes are taken from the DEM samples of the rectangles enclosing
+ * them (see {@link #resample}), which the operator gets as source tiles, cached by GPF like any other. For a
+ * global DEM, the positions of a rectangle crossing the antimeridian are enclosed by two DEM rectangles at the
+ * left and right DEM edge, instead of a single one spanning the full DEM width.
+ * <p/>
+ * The positions of the most recently located rectangles are cached, as the same rectangle is located once per
+ * target band if the target bands are computed one by one.
+ *
+ * @author olafd
+ */
+class DemResampler {
+
+    static final String NEAREST_NEIGHBOUR = "NEAREST_NEIGHBOUR";
+    static final String BILINEAR_INTERPOLATION = "BILINEAR_INTERPOLATION";
+
+    private final GeoCoding sourceGeoCoding;
+    private final GeoCoding demGeoCoding;
+    private final int demWidth;
+    private final int demHeight;
+    private final boolean bilinear;
+    private final Map<Rectangle, Positions> positionsCache;
+
+    /**
+     * @param sourceGeoCoding - the geocoding of the L1b product
+     * @param demGeoCoding    - the geocoding of the DEM product
+     * @param demWidth        - the scene width of the DEM product
+     * @param demHeight       - the scene height of the DEM product
+     * @param bilinear        - true for bilinear interpolation, false for nearest neighbour
+     */
+    DemResampler(GeoCoding sourceGeoCoding, GeoCoding demGeoCoding, int demWidth, int demHeight, boolean bilinear) {
+        this.sourceGeoCoding = sourceGeoCoding;
+        this.demGeoCoding = demGeoCoding;
+        this.demWidth = demWidth;
+        this.demHeight = demHeight;
+        this.bilinear = bilinear;
+        final int maxCachedPositions = 2 * Runtime.getRuntime().availableProcessors();
+        positionsCache = new LinkedHashMap<Rectangle, Positions>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Rectangle, Positions> eldest) {
+                return size() > maxCachedPositions;
+            }
+        };
+    }
+
+    /**
+     * Computes the DEM pixel positions of the pixel centres of given rectangle of the L1b product.
+     *
+     * @param sourceRectangle - the rectangle of the L1b product
+     * @return the DEM pixel positions, not to be modified
+     */
+    Positions locate(Rectangle sourceRectangle) {
+        synchronized (positionsCache) {
+            final Positions positions = positionsCache.get(sourceRectangle);
+            if (positions != null) {
+                return positions;
+            }
+        }
+        // computed outside of the lock, a rectangle located concurrently by two threads is just computed twice
+        final Positions positions = computePositions(sourceRectangle);
+        synchronized (positionsCache) {
+            positionsCache.put(new Rectangle(sourceRectangle), positions);
+        }
+        return positions;
+    }
+
+    private Positions computePositions(Rectangle sourceRectangle) {
+        final Positions positions = new Positions(sourceRectangle.width * sourceRectangle.height);
+        final PixelPos pixelPos = new PixelPos();
+        final GeoPos geoPos = new GeoPos();
+        int i = 0;
+        for (int y = sourceRectangle.y; y < sourceRectangle.y + sourceRectangle.height; y++) {
+            for (int x = sourceRectangle.x; x < sourceRectangle.x + sourceRectangle.width; x++) {
+                pixelPos.setLocation(x + 0.5, y + 0.5);
+                sourceGeoCoding.getGeoPos(pixelPos, geoPos);
+                if (geoPos.isValid()) {
+                    demGeoCoding.getPixelPos(geoPos, pixelPos);
+                    if (pixelPos.isValid()) {
+                        positions.set(i, pixelPos.x, pixelPos.y);
+                    }
+                }
+                i++;
+            }
+        }
+        positions.computeDemRectangles();
+        return positions;
+    }
+
+    /**
+     * Resamples the DEM altitudes at given positions.
+     *
+     * @param positions  - the DEM pixel positions
+     * @param demSamples - the DEM altitudes of every DEM rectangle of the positions, row by row
+     * @param demValid   - the validity of the DEM altitudes of every DEM rectangle, row by row
+     * @param altitude   - the resampled altitudes (output). NaN where no valid DEM altitude is found.
+     * @param flags      - 1 where a valid DEM altitude is found, 0 otherwise (output)
+     */
+    void resample(Positions positions, double[][] demSamples, boolean[][] demValid, double[] altitude,
+                  int[] flags) {
+        for (int i = 0; i < positions.x.length; i++) {
+            altitude[i] = Double.NaN;
+            flags[i] = 0;
+            final double x = positions.x[i];
+            final double y = positions.y[i];
+            if (Double.isNaN(x)) {
+                continue;
+            }
+            // the DEM pixels needed for a position are always in the same DEM rectangle
+            final int r = positions.getDemRectangleIndex((int) x);
+            final Rectangle demRectangle = positions.demRectangles[r];
+            final int xi = (int) x - demRectangle.x;
+            final int yi = (int) y - demRectangle.y;
+            if (bilinear) {
+                final double fx = x - 0.5;
+                final double fy = y - 0.5;
+                final int x0 = (int) Math.floor(fx);
+                final int y0 = (int) Math.floor(fy);
+                final double wx = fx - x0;
+                final double wy = fy - y0;
+                // replicate the DEM edges
+                final int i00 = index(demRectangle, clampX(x0), clampY(y0));
+                final int i10 = index(demRectangle, clampX(x0 + 1), clampY(y0));
+                final int i01 = index(demRectangle, clampX(x0), clampY(y0 + 1));
+                final int i11 = index(demRectangle, clampX(x0 + 1), clampY(y0 + 1));
+                if (demValid[r][i00] && demValid[r][i10] && demValid[r][i01] && demValid[r][i11]) {
+                    altitude[i] = (1.0 - wy) * ((1.0 - wx) * demSamples[r][i00] + wx * demSamples[r][i10]) +
+                            wy * ((1.0 - wx) * demSamples[r][i01] + wx * demSamples[r][i11]);
+                    flags[i] = 1;
+                    continue;
+                }
+                // next to invalid DEM samples, fall back to nearest neighbour
+            }
+            final int j = yi * demRectangle.width + xi;
+            if (demValid[r][j]) {
+                altitude[i] = demSamples[r][j];
+                flags[i] = 1;
+            }
+        }
+    }
+
+    private int clampX(int x) {
+        return Math.max(0, Math.min(demWidth - 1, x));
+    }
+
+    private int clampY(int y) {
+        return Math.max(0, Math.min(demHeight - 1, y));
+    }
+
+    private static int index(Rectangle demRectangle, int x, int y) {
+        return (y - demRectangle.y) * demRectangle.width + x - demRectangle.x;
+    }
+
+    /**
+     * DEM pixel positions of a rectangle of L1b pixels, stored row by row. Positions outside the DEM are NaN.
+     * The DEM rectangles enclose all DEM pixels needed to resample the positions, there is none if no position
+     * is inside the DEM, and two if the DEM columns of the positions are separated by a gap of more than half
+     * the DEM width, as for a global DEM and L1b pixels on both sides of the antimeridian.
+     */
+    class Positions {
+        final double[] x;
+        final double[] y;
+        Rectangle[] demRectangles;
+
+        Positions(int numPixels) {
+            x = new double[numPixels];
+            y = new double[numPixels];
+            Arrays.fill(x, Double.NaN);
+            Arrays.fill(y, Double.NaN);
+        }
+
+        void set(int i, double demX, double demY) {
+            if (demX >= 0.0 && demX < demWidth && demY >= 0.0 && demY < demHeight) {
+                x[i] = demX;
+                y[i] = demY;
+            }
+        }
+
+        /**
+         * @param demX - a DEM column of a position
+         * @return the index of the DEM rectangle containing the column
+         */
+        int getDemRectangleIndex(int demX) {
+            return demX < demRectangles[0].x + demRectangles[0].width ? 0 : demRectangles.length - 1;
+        }
+
+        void computeDemRectangles() {
+            final BitSet columns = new BitSet(demWidth);
+            for (int i = 0; i < x.length; i++) {
+                if (!Double.isNaN(x[i])) {
+                    columns.set(getMinX(x[i]), getMaxX(x[i]) + 1);
+                }
+            }
+            if (columns.isEmpty()) {
+                demRectangles = new Rectangle[0];
+                return;
+            }
+            final int minX = columns.nextSetBit(0);
+            final int maxX = columns.length() - 1;
+            // the widest gap of unused columns
+            int gapFrom = 0;
+            int gapTo = 0;
+            int from = columns.nextClearBit(minX);
+            while (from < maxX) {
+                final int to = columns.nextSetBit(from);
+                if (to - from > gapTo - gapFrom) {
+                    gapFrom = from;
+                    gapTo = to;
+                }
+                from = columns.nextClearBit(to);
+            }
+            if (gapTo - gapFrom > demWidth / 2) {
+                demRectangles = new Rectangle[]{
+                        new Rectangle(minX, 0, gapFrom - minX, 0),
+                        new Rectangle(gapTo, 0, maxX - gapTo + 1, 0)
+                };
+            } else {
+                demRectangles = new Rectangle[]{new Rectangle(minX, 0, maxX - minX + 1, 0)};
+            }
+
+            final int[] minY = new int[demRectangles.length];
+            final int[] maxY = new int[demRectangles.length];
+            Arrays.fill(minY, Integer.MAX_VALUE);
+            Arrays.fill(maxY, Integer.MIN_VALUE);
+            for (int i = 0; i < x.length; i++) {
+                if (Double.isNaN(x[i])) {
+                    continue;
+                }
+                final int r = getDemRectangleIndex((int) x[i]);
+                minY[r] = Math.min(minY[r], getMinY(y[i]));
+                maxY[r] = Math.max(maxY[r], getMaxY(y[i]));
+            }
+            for (int r = 0; r < demRectangles.length; r++) {
+                demRectangles[r].y = minY[r];
+                demRectangles[r].height = maxY[r] - minY[r] + 1;
+            }
+        }
+
+        private int getMinX(double demX) {
+            return bilinear ? Math.min((int) demX, clampX((int) Math.floor(demX - 0.5))) : (int) demX;
+        }
+
+        private int getMaxX(double demX) {
+            return bilinear ? Math.max((int) demX, clampX((int) Math.floor(demX - 0.5) + 1)) : (int) demX;
+        }
+
+        private int getMinY(double demY) {
+            return bilinear ? Math.min((int) demY, clampY((int) Math.floor(demY - 0.5))) : (int) demY;
+        }
+
+        private int getMaxY(double demY) {
+            return bilinear ? Math.max((int) demY, clampY((int) Math.floor(demY - 0.5) + 1)) : (int) demY;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of DEM altitude tiles, so that a static DEM (e.g. a global GeoTIFF) is read only once for
+ * all operator instances in this JVM, and not again for every OLCI granule covering the same region.
+ * <p/>
+ * The DEM is divided into tiles of {@value #TILE_SIZE} x {@value #TILE_SIZE} pixels, which are loaded on first
+ * request and kept as float arrays, with NaN for invalid samples. When the cache exceeds its maximum size
+ * (system property {@value #MAX_SIZE_PROPERTY} in MB, or {@link #setMaxSizeInBytes(long)}), the least recently
+ * used tiles are evicted.
+ *
+ * @author olafd
+ */
+public class DemTileCache {
+
+    public static final String MAX_SIZE_PROPERTY = "s3tbx.olci.harmonisation.demTileCacheMB";
+
+    static final int TILE_SIZE = 256;
+
+    private static final DemTileCache INSTANCE = new DemTileCache(Long.getLong(MAX_SIZE_PROPERTY, 256L) << 20);
+
+    private final Map<String, float[]> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private long sizeInBytes;
+    private long maxSizeInBytes;
+
+    /**
+     * Loads the samples of a rectangle of the DEM altitude band.
+     */
+    interface TileLoader {
+
+        /**
+         * @param demRectangle - the rectangle of the DEM
+         * @return the altitudes of the rectangle, row by row, with NaN for invalid samples
+         */
+        float[] load(Rectangle demRectangle);
+    }
+
+    DemTileCache(long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    public static DemTileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Provides the DEM altitudes of given rectangle, from the cached tiles or from the loader.
+     *
+     * @param demId        - identifies the DEM altitude band, including its version (e.g. file path, modification
+     *                     time and band name)
+     * @param demWidth     - the scene width of the DEM
+     * @param demHeight    - the scene height of the DEM
+     * @param demRectangle - the rectangle of the DEM
+     * @param loader       - the loader of tiles not yet cached
+     * @param samples      - the altitudes of the rectangle, row by row (output)
+     * @param valid        - the validity of the altitudes, row by row (output)
+     */
+    void read(String demId, int demWidth, int demHeight, Rectangle demRectangle, TileLoader loader,
+              double[] samples, boolean[] valid) {
+        final int firstTileX = demRectangle.x / TILE_SIZE;
+        final int firstTileY = demRectangle.y / TILE_SIZE;
+        final int lastTileX = (demRectangle.x + demRectangle.width - 1) / TILE_SIZE;
+        final int lastTileY = (demRectangle.y + demRectangle.height - 1) / TILE_SIZE;
+        for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+            for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+                final Rectangle tileRectangle = new Rectangle(tileX * TILE_SIZE, tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE)
+                        .intersection(new Rectangle(0, 0, demWidth, demHeight));
+                final float[] tile = getTile(demId + "/" + tileX + "/" + tileY, tileRectangle, loader);
+                final Rectangle part = tileRectangle.intersection(demRectangle);
+                for (int y = part.y; y < part.y + part.height; y++) {
+                    int i = (y - demRectangle.y) * demRectangle.width + part.x - demRectangle.x;
+                    int j = (y - tileRectangle.y) * tileRectangle.width + part.x - tileRectangle.x;
+                    for (int x = part.x; x < part.x + part.width; x++, i++, j++) {
+                        samples[i] = tile[j];
+                        valid[i] = !Float.isNaN(tile[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of tiles served from the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of tiles which had to be loaded
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Sets the maximum size of the cache. Tiles are evicted if needed.
+     *
+     * @param maxSizeInBytes - the maximum size in bytes. 0 disables the cache.
+     */
+    public synchronized void setMaxSizeInBytes(long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+        evict();
+    }
+
+    /**
+     * Removes all tiles and resets the hit and miss counts.
+     */
+    public synchronized void clear() {
+        tiles.clear();
+        sizeInBytes = 0;
+        hitCount.set(0);
+        missCount.set(0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DemTileCache[tiles=" + tiles.size() + ", size=" + (sizeInBytes >> 20) + " MB" +
+                ", hits=" + hitCount.get() + ", misses=" + missCount.get() + "]";
+    }
+
+    private float[] getTile(String key, Rectangle tileRectangle, TileLoader loader) {
+        synchronized (this) {
+            final float[] tile = tiles.get(key);
+            if (tile != null) {
+                hitCount.incrementAndGet();
+                return tile;
+            }
+        }
+        // loaded outside of the lock, concurrent requests of the same tile may load it twice
+        missCount.incrementAndGet();
+        final float[] tile = loader.load(tileRectangle);
+        synchronized (this) {
+            final float[] previous = tiles.put(key, tile);
+            sizeInBytes += 4L * tile.length - (previous != null ? 4L * previous.length : 0L);
+            evict();
+        }
+        return tile;
+    }
+
+    private void evict() {
+        final Iterator<float[]> iterator = tiles.values().iterator();
+        while (sizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+            sizeInBytes -= 4L * iterator.next().length;
+            iterator.remove();
+        }
+    }
+}
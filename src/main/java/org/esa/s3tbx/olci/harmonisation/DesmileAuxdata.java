@@ -0,0 +1,116 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.util.SystemUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holder for the auxdata needed to desmile the transmission of one band: the 'desmile' lookup table
+ * and the KD tree built on it. Both are immutable and can be shared between threads and operators.
+ * Optionally, a {@link DesmileGrid} and a {@link FloatDesmileLut} are created on first request and shared as well.
+ * <p/>
+ * Single precision auxdata only holds the {@link FloatDesmileLut} (with its own KD tree), the double
+ * precision lookup table, KD tree and grid are not available then.
+ *
+ * @author olafd
+ */
+public class DesmileAuxdata {
+
+    private final int bandIndex;
+    private final DesmileLut lut;
+    private final DesmileKdTree kdTree;
+    private final long lutReadNanos;
+    private final long kdTreeBuildNanos;
+    private final ConcurrentMap<Integer, DesmileGrid> grids = new ConcurrentHashMap<>();
+    private FloatDesmileLut floatLut;
+
+    DesmileAuxdata(int bandIndex, DesmileLut lut, DesmileKdTree kdTree) {
+        this(bandIndex, lut, kdTree, 0L, 0L);
+    }
+
+    DesmileAuxdata(int bandIndex, DesmileLut lut, DesmileKdTree kdTree, long lutReadNanos, long kdTreeBuildNanos) {
+        this.bandIndex = bandIndex;
+        this.lut = lut;
+        this.kdTree = kdTree;
+        this.lutReadNanos = lutReadNanos;
+        this.kdTreeBuildNanos = kdTreeBuildNanos;
+    }
+
+    DesmileAuxdata(int bandIndex, FloatDesmileLut floatLut, long lutReadNanos, long kdTreeBuildNanos) {
+        this(bandIndex, null, null, lutReadNanos, kdTreeBuildNanos);
+        this.floatLut = floatLut;
+    }
+
+    public int getBandIndex() {
+        return bandIndex;
+    }
+
+    /**
+     * @return the desmile LUT, or null for single precision auxdata
+     */
+    public DesmileLut getLut() {
+        return lut;
+    }
+
+    /**
+     * @return the KD tree built on the desmile LUT, or null for single precision auxdata
+     */
+    public DesmileKdTree getKdTree() {
+        return kdTree;
+    }
+
+    /**
+     * @return true, if only the single precision LUT is held
+     */
+    public boolean isSinglePrecision() {
+        return lut == null;
+    }
+
+    /**
+     * @return the time needed to read the lookup table, in nanoseconds
+     */
+    public long getLutReadNanos() {
+        return lutReadNanos;
+    }
+
+    /**
+     * @return the time needed to build the KD tree (including the conversion to single precision), in nanoseconds
+     */
+    public long getKdTreeBuildNanos() {
+        return kdTreeBuildNanos;
+    }
+
+    /**
+     * Provides the desmile grid with given resolution. The grid is created on first request, and kept for
+     * later requests. Grids of different resolutions are kept side by side, so operators using different
+     * resolutions share their grids instead of replacing each other's.
+     *
+     * @param resolution - the number of grid nodes per dimension
+     * @return the desmile grid
+     */
+    public DesmileGrid getGrid(int resolution) {
+        if (isSinglePrecision()) {
+            throw new IllegalStateException("No desmile grid for single precision auxdata of band " + bandIndex);
+        }
+        // only requests for the same resolution wait for a grid being created
+        return grids.computeIfAbsent(resolution, r -> {
+            final DesmileGrid grid = new DesmileGrid(lut, kdTree, r);
+            SystemUtils.LOG.info("Created desmile grid for band " + bandIndex + ": " + grid);
+            return grid;
+        });
+    }
+
+    /**
+     * Provides the single precision version of the desmile LUT. For double precision auxdata, it is created
+     * on first request.
+     *
+     * @return the single precision desmile LUT
+     */
+    public synchronized FloatDesmileLut getFloatLut() {
+        if (floatLut == null) {
+            floatLut = new FloatDesmileLut(lut);
+        }
+        return floatLut;
+    }
+}
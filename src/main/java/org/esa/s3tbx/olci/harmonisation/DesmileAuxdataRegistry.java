@@ -0,0 +1,219 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of {@link DesmileAuxdata}, so that the 'desmile' lookup tables are parsed and
+ * their KD trees are built only once per JVM, and not again for every operator instance.
+ * <p/>
+ * Entries are keyed by band, lookup table file and precision, and are reloaded if the file has been modified
+ * (last modified time or size changed). Optionally, entries are only softly referenced and may then be
+ * evicted by the garbage collector under memory pressure (system property
+ * {@value #SOFT_REFERENCES_PROPERTY}, or {@link #setSoftReferences(boolean)}).
+ *
+ * @author olafd
+ */
+public class DesmileAuxdataRegistry {
+
+    public static final String SOFT_REFERENCES_PROPERTY = "s3tbx.olci.harmonisation.softDesmileAuxdata";
+
+    private static final DesmileAuxdataRegistry INSTANCE = new DesmileAuxdataRegistry();
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private volatile boolean softReferences = Boolean.getBoolean(SOFT_REFERENCES_PROPERTY);
+    private volatile Path auxdataPath;
+
+    DesmileAuxdataRegistry() {
+    }
+
+    public static DesmileAuxdataRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Provides the path of the Harmonisation auxdata. The auxdata is installed only once per registry.
+     *
+     * @return the auxdata path
+     * @throws IOException -
+     */
+    public Path getAuxdataPath() throws IOException {
+        if (auxdataPath == null) {
+            synchronized (this) {
+                if (auxdataPath == null) {
+                    auxdataPath = OlciHarmonisationIO.installAuxdata();
+                }
+            }
+        }
+        return auxdataPath;
+    }
+
+    /**
+     * Sets the auxdata directory to be used instead of the installed one, e.g. for tests and benchmarks.
+     *
+     * @param auxdataPath - the auxdata directory containing the desmile LUTs
+     */
+    void setAuxdataPath(Path auxdataPath) {
+        this.auxdataPath = auxdataPath;
+    }
+
+    /**
+     * Provides the desmile auxdata for given band from the installed auxdata directory.
+     *
+     * @param bandIndex - the band index (13, 14 or 15)
+     * @return the desmile auxdata
+     * @throws IOException -
+     * @throws ParseException -
+     */
+    public DesmileAuxdata get(int bandIndex) throws IOException, ParseException {
+        return get(getAuxdataPath(), bandIndex, false);
+    }
+
+    /**
+     * Provides the desmile auxdata for given band from the installed auxdata directory.
+     *
+     * @param bandIndex       - the band index (13, 14 or 15)
+     * @param singlePrecision - true, if only the single precision LUT (see {@link DesmileAuxdata#isSinglePrecision()})
+     *                        is needed
+     * @return the desmile auxdata
+     * @throws IOException -
+     * @throws ParseException -
+     */
+    public DesmileAuxdata get(int bandIndex, boolean singlePrecision) throws IOException, ParseException {
+        return get(getAuxdataPath(), bandIndex, singlePrecision);
+    }
+
+    /**
+     * Provides the desmile auxdata for given band from given auxdata directory. The lookup table is
+     * read and the KD tree is built only if not yet done, or if the lookup table file has changed.
+     *
+     * @param auxdataPath - the auxdata directory
+     * @param bandIndex   - the band index (13, 14 or 15)
+     * @return the desmile auxdata
+     * @throws IOException -
+     * @throws ParseException -
+     */
+    public DesmileAuxdata get(Path auxdataPath, int bandIndex) throws IOException, ParseException {
+        return get(auxdataPath, bandIndex, false);
+    }
+
+    /**
+     * Provides the desmile auxdata for given band from given auxdata directory. The lookup table is
+     * read and the KD tree is built only if not yet done, or if the lookup table file has changed.
+     * For single precision, the lookup table is converted to a {@link FloatDesmileLut} right after reading,
+     * and only the converted table is kept.
+     *
+     * @param auxdataPath     - the auxdata directory
+     * @param bandIndex       - the band index (13, 14 or 15)
+     * @param singlePrecision - true, if only the single precision LUT is needed
+     * @return the desmile auxdata
+     * @throws IOException -
+     * @throws ParseException -
+     */
+    public DesmileAuxdata get(Path auxdataPath, int bandIndex, boolean singlePrecision)
+            throws IOException, ParseException {
+        final Path lutPath = OlciHarmonisationIO.getDesmileLutPath(auxdataPath, bandIndex).toAbsolutePath().normalize();
+        final BasicFileAttributes attributes = Files.readAttributes(lutPath, BasicFileAttributes.class);
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        final long size = attributes.size();
+
+        final String key = bandIndex + (singlePrecision ? "f" : "") + "@" + lutPath;
+        final Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+        synchronized (entry) {
+            DesmileAuxdata desmileAuxdata = entry.get(lastModified, size);
+            if (desmileAuxdata != null) {
+                hitCount.incrementAndGet();
+                return desmileAuxdata;
+            }
+            missCount.incrementAndGet();
+            final long startTime = System.nanoTime();
+            final DesmileLut lut = OlciHarmonisationIO.createDesmileLut(auxdataPath, bandIndex);
+            final long lutReadTime = System.nanoTime();
+            if (singlePrecision) {
+                final FloatDesmileLut floatLut = new FloatDesmileLut(lut);
+                desmileAuxdata = new DesmileAuxdata(bandIndex, floatLut,
+                                                    lutReadTime - startTime, System.nanoTime() - lutReadTime);
+            } else {
+                final DesmileKdTree kdTree = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(lut);
+                desmileAuxdata = new DesmileAuxdata(bandIndex, lut, kdTree,
+                                                    lutReadTime - startTime, System.nanoTime() - lutReadTime);
+            }
+            entry.set(desmileAuxdata, lastModified, size, softReferences);
+            return desmileAuxdata;
+        }
+    }
+
+    /**
+     * @return the number of requests served from the registry
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of requests which required to read a lookup table and to build its KD tree
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public boolean isSoftReferences() {
+        return softReferences;
+    }
+
+    /**
+     * Sets whether entries added from now on are only softly referenced.
+     *
+     * @param softReferences - true, if entries may be evicted under memory pressure
+     */
+    public void setSoftReferences(boolean softReferences) {
+        this.softReferences = softReferences;
+    }
+
+    /**
+     * Removes all entries and resets the hit and miss counts.
+     */
+    public void clear() {
+        entries.clear();
+        hitCount.set(0);
+        missCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "DesmileAuxdataRegistry[entries=" + entries.size() +
+                ", hits=" + hitCount.get() + ", misses=" + missCount.get() + "]";
+    }
+
+    private static class Entry {
+        private long lastModified;
+        private long size;
+        private Object reference;
+
+        DesmileAuxdata get(long lastModified, long size) {
+            if (reference == null || lastModified != this.lastModified || size != this.size) {
+                return null;
+            }
+            if (reference instanceof SoftReference) {
+                return (DesmileAuxdata) ((SoftReference) reference).get();
+            }
+            return (DesmileAuxdata) reference;
+        }
+
+        void set(DesmileAuxdata desmileAuxdata, long lastModified, long size, boolean softReference) {
+            this.reference = softReference ? new SoftReference<>(desmileAuxdata) : desmileAuxdata;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+}
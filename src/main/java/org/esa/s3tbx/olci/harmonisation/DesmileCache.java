@@ -0,0 +1,118 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of desmile factors (see {@link OlciHarmonisationAlgorithm#desmileFactor}), keyed on band,
+ * detector and the quantised transmission and air mass factor. For a given detector and band, dwl and fwhm are
+ * fixed, and transmission and air mass factor are smooth across a scene, so that most pixels of a detector
+ * fall into cells already computed.
+ * <p/>
+ * The factor of a cell is always computed at the cell centre, so that the results do not depend on the order
+ * in which pixels are processed. Compared to the exact computation, this gives a deviation in the order of the
+ * derivative of the factor times half of the quantisation steps.
+ * <p/>
+ * The cache is direct-mapped: an entry is replaced by any other entry mapped to the same slot. It is not
+ * thread-safe, use one instance per thread.
+ *
+ * @author olafd
+ */
+class DesmileCache {
+
+    private static final int MAX_DETECTOR = 1 << 13;
+    private static final int MAX_CELL = 1 << 24;
+
+    /**
+     * Computes the desmile factor of a band for given input.
+     */
+    interface FactorFunction {
+        double desmileFactor(int bandIndex, double dwl, double fwhm, double amf, double trans);
+    }
+
+    private final double transStep;
+    private final double amfStep;
+    private final int shift;
+
+    private final long[] keys;
+    private final double[] dwls;
+    private final double[] fwhms;
+    private final double[] factors;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity  - the maximum number of entries, rounded up to the next power of 2 (at least 2)
+     * @param transStep - the quantisation step of the transmission
+     * @param amfStep   - the quantisation step of the air mass factor
+     */
+    DesmileCache(int capacity, double transStep, double amfStep) {
+        if (capacity < 1 || capacity > (1 << 30) || !(transStep > 0.0) || !(amfStep > 0.0)) {
+            throw new IllegalArgumentException("Invalid desmile cache configuration: capacity " + capacity +
+                                                       ", trans step " + transStep + ", amf step " + amfStep);
+        }
+        final int size = Math.max(2, Integer.highestOneBit(capacity) == capacity ?
+                capacity : Integer.highestOneBit(capacity) << 1);
+        this.transStep = transStep;
+        this.amfStep = amfStep;
+        this.shift = 64 - Integer.numberOfTrailingZeros(size);
+        keys = new long[size];
+        Arrays.fill(keys, -1L);
+        dwls = new double[size];
+        fwhms = new double[size];
+        factors = new double[size];
+    }
+
+    /**
+     * Provides the desmile factor from the cache, or computes and caches it if not present. Inputs which
+     * cannot be cached (invalid detector index, NaN or out of range values) are computed directly.
+     *
+     * @param bandIndex - the band index 0..2 (bands 13..15)
+     * @param detector  - the detector index
+     * @param dwl       - central wavelength shift
+     * @param fwhm      - band width (full width at half maximum)
+     * @param amf       - air mass factor
+     * @param trans     - original transmission
+     * @param function  - computes the factor on cache misses
+     * @return the desmile factor
+     */
+    double desmileFactor(int bandIndex, float detector, double dwl, double fwhm, double amf, double trans,
+                         FactorFunction function) {
+        final double transCell = Math.floor(trans / transStep);
+        final double amfCell = Math.floor(amf / amfStep);
+        // also false for NaN
+        if (!(detector >= 0 && detector < MAX_DETECTOR && transCell >= 0 && transCell < MAX_CELL &&
+                amfCell >= 0 && amfCell < MAX_CELL)) {
+            return function.desmileFactor(bandIndex, dwl, fwhm, amf, trans);
+        }
+
+        final long key = ((((long) bandIndex << 13 | (int) detector) << 24 | (long) transCell) << 24) | (long) amfCell;
+        // Fibonacci hashing: the upper bits of the product depend on all bits of the key
+        final int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+        if (keys[slot] == key && dwls[slot] == dwl && fwhms[slot] == fwhm) {
+            hits++;
+            return factors[slot];
+        }
+
+        misses++;
+        final double factor = function.desmileFactor(bandIndex, dwl, fwhm,
+                                                     (amfCell + 0.5) * amfStep, (transCell + 0.5) * transStep);
+        keys[slot] = key;
+        dwls[slot] = dwl;
+        fwhms[slot] = fwhm;
+        factors[slot] = factor;
+        return factor;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    int getCapacity() {
+        return keys.length;
+    }
+}
@@ -0,0 +1,94 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Pool of {@link DesmileCache}s owned by an operator. A cache is not thread-safe, so it is borrowed for the
+ * computation of a tile (or a block of rows) and released afterwards, to be reused by the next tile of any
+ * thread. New caches are only created if all existing caches are in use, so the number of caches is the
+ * number of tiles (or blocks of rows) computed concurrently, but at most a maximum number: if all caches are in
+ * use, further borrowers wait until a cache is released. This bounds the cache memory independent of the number
+ * of threads. Unlike thread-local caches, the caches are not bound to the (long-lived) tile computing threads
+ * and are released together with the pool.
+ *
+ * @author olafd
+ */
+class DesmileCachePool {
+
+    private final int cacheSize;
+    private final double transStep;
+    private final double amfStep;
+    private final Semaphore available;
+
+    private final Queue<DesmileCache> idleCaches = new ConcurrentLinkedQueue<>();
+    private final Queue<DesmileCache> allCaches = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param cacheSize - the maximum number of entries of a cache
+     * @param transStep - the quantisation step of the transmission
+     * @param amfStep   - the quantisation step of the air mass factor
+     * @param maxCaches - the maximum number of caches
+     */
+    DesmileCachePool(int cacheSize, double transStep, double amfStep, int maxCaches) {
+        this.cacheSize = cacheSize;
+        this.transStep = transStep;
+        this.amfStep = amfStep;
+        available = new Semaphore(maxCaches);
+    }
+
+    /**
+     * Borrows a cache, waiting if the maximum number of caches is in use. As the caches are always released
+     * after a tile or block of rows, this only delays the caller.
+     *
+     * @return a cache for the exclusive use of the caller until it is released
+     */
+    DesmileCache borrow() {
+        available.acquireUninterruptibly();
+        final DesmileCache idleCache = idleCaches.poll();
+        if (idleCache != null) {
+            return idleCache;
+        }
+        final DesmileCache desmileCache = new DesmileCache(cacheSize, transStep, amfStep);
+        allCaches.add(desmileCache);
+        return desmileCache;
+    }
+
+    /**
+     * @param desmileCache - a cache borrowed from this pool
+     */
+    void release(DesmileCache desmileCache) {
+        idleCaches.add(desmileCache);
+        available.release();
+    }
+
+    /**
+     * @return the number of caches created
+     */
+    int getNumCaches() {
+        return allCaches.size();
+    }
+
+    /**
+     * @return the number of cache hits of all caches, complete once all caches are released
+     */
+    long getHits() {
+        long hits = 0;
+        for (DesmileCache desmileCache : allCaches) {
+            hits += desmileCache.getHits();
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of cache misses of all caches, complete once all caches are released
+     */
+    long getMisses() {
+        long misses = 0;
+        for (DesmileCache desmileCache : allCaches) {
+            misses += desmileCache.getMisses();
+        }
+        return misses;
+    }
+}
@@ -0,0 +1,199 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.util.Random;
+
+/**
+ * Alternative to the KD search for the desmile of transmissions: the desmile factor (see
+ * {@link OlciHarmonisationAlgorithm#desmileFactor}) is sampled once on a regular 4-D grid over the range of
+ * the LUT nodes in (dwl, fwhm, trans, amf), and evaluated by multilinear interpolation in constant time.
+ * Inputs outside of the grid are desmiled with the KD search as before.
+ * <p/>
+ * As the nearest-node function is only piecewise smooth, the interpolation deviates from the KD search.
+ * The maximum and RMS of the relative deviation are estimated at construction from random samples of the grid
+ * domain. The grid is immutable and can be shared between threads.
+ *
+ * @author olafd
+ */
+public class DesmileGrid {
+
+    private static final int NUM_DEVIATION_SAMPLES = 100000;
+
+    private final DesmileLut lut;
+    private final DesmileKdTree tree;
+    private final int resolution;
+
+    // grid origin and spacing per dimension (dwl, fwhm, trans, amf)
+    private final double[] min = new double[4];
+    private final double[] step = new double[4];
+    private final double[] max = new double[4];
+    // factors in row-major order, amf varying fastest
+    private final double[] factors;
+    private final int[] strides = new int[4];
+
+    private final double maxDeviation;
+    private final double rmsDeviation;
+
+    /**
+     * Creates the grid.
+     *
+     * @param lut        - the desmile LUT
+     * @param tree       - the KD tree built on the LUT
+     * @param resolution - the number of grid nodes per dimension (at least 2)
+     */
+    public DesmileGrid(DesmileLut lut, DesmileKdTree tree, int resolution) {
+        if (resolution < 2) {
+            throw new IllegalArgumentException("Desmile grid resolution must be at least 2, but is " + resolution);
+        }
+        this.lut = lut;
+        this.tree = tree;
+        this.resolution = resolution;
+
+        final double[][] x = lut.getX();
+        final double[] mean = lut.getMEAN();
+        final double[] vari = lut.getVARI();
+        for (int k = 0; k < 4; k++) {
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            for (double[] node : x) {
+                lo = Math.min(lo, node[k] * vari[k] + mean[k]);
+                hi = Math.max(hi, node[k] * vari[k] + mean[k]);
+            }
+            if (hi <= lo) {
+                // LUT does not vary in this dimension: cover one standard deviation around it
+                lo -= vari[k];
+                hi += vari[k];
+            }
+            min[k] = lo;
+            max[k] = hi;
+            step[k] = (hi - lo) / (resolution - 1);
+        }
+        strides[3] = 1;
+        for (int k = 2; k >= 0; k--) {
+            strides[k] = strides[k + 1] * resolution;
+        }
+
+        factors = new double[strides[0] * resolution];
+        final double[] wo = new double[4];
+        final int[] idx = new int[4];
+        for (int i = 0; i < factors.length; i++) {
+            int rest = i;
+            for (int k = 0; k < 4; k++) {
+                idx[k] = rest / strides[k];
+                rest -= idx[k] * strides[k];
+            }
+            factors[i] = OlciHarmonisationAlgorithm.desmileFactor(nodeValue(0, idx[0]), nodeValue(1, idx[1]),
+                                                                  nodeValue(3, idx[3]), nodeValue(2, idx[2]),
+                                                                  tree, lut, wo);
+        }
+
+        final double[] deviations = estimateDeviations(wo);
+        maxDeviation = deviations[0];
+        rmsDeviation = deviations[1];
+    }
+
+    /**
+     * Desmiles the transmission. Same as
+     * {@link OlciHarmonisationAlgorithm#desmileTransmission(double, double, double, double, DesmileKdTree, DesmileLut, double[])},
+     * but using the grid for inputs inside of it.
+     *
+     * @param dwl   - central wavelength
+     * @param fwhm  - band width (full width at half maximum)
+     * @param amf   - air mass factor
+     * @param trans - original transmission
+     * @param wo    - scratch array of length 4, used for inputs outside of the grid
+     * @return trans_desmiled
+     */
+    public double desmileTransmission(double dwl, double fwhm, double amf, double trans, double[] wo) {
+        return trans / desmileFactor(dwl, fwhm, amf, trans, wo);
+    }
+
+    /**
+     * @return the number of grid nodes per dimension
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * @return the estimated maximum relative deviation of the desmiled transmission from the KD search
+     */
+    public double getMaxDeviation() {
+        return maxDeviation;
+    }
+
+    /**
+     * @return the estimated RMS of the relative deviation of the desmiled transmission from the KD search
+     */
+    public double getRmsDeviation() {
+        return rmsDeviation;
+    }
+
+    double desmileFactor(double dwl, double fwhm, double amf, double trans, double[] wo) {
+        final double u0 = (dwl - min[0]) / step[0];
+        final double u1 = (fwhm - min[1]) / step[1];
+        final double u2 = (trans - min[2]) / step[2];
+        final double u3 = (amf - min[3]) / step[3];
+        final double last = resolution - 1;
+        // also false for NaN
+        if (!(u0 >= 0.0 && u0 <= last && u1 >= 0.0 && u1 <= last &&
+                u2 >= 0.0 && u2 <= last && u3 >= 0.0 && u3 <= last)) {
+            return OlciHarmonisationAlgorithm.desmileFactor(dwl, fwhm, amf, trans, tree, lut, wo);
+        }
+
+        final int i0 = Math.min((int) u0, resolution - 2);
+        final int i1 = Math.min((int) u1, resolution - 2);
+        final int i2 = Math.min((int) u2, resolution - 2);
+        final int i3 = Math.min((int) u3, resolution - 2);
+        final double t0 = u0 - i0;
+        final double t1 = u1 - i1;
+        final double t2 = u2 - i2;
+        final double t3 = u3 - i3;
+        final int base = i0 * strides[0] + i1 * strides[1] + i2 * strides[2] + i3;
+
+        double result = 0.0;
+        for (int c = 0; c < 16; c++) {
+            final int c0 = (c >> 3) & 1;
+            final int c1 = (c >> 2) & 1;
+            final int c2 = (c >> 1) & 1;
+            final int c3 = c & 1;
+            final double w = (c0 == 0 ? 1.0 - t0 : t0) * (c1 == 0 ? 1.0 - t1 : t1) *
+                    (c2 == 0 ? 1.0 - t2 : t2) * (c3 == 0 ? 1.0 - t3 : t3);
+            result += w * factors[base + c0 * strides[0] + c1 * strides[1] + c2 * strides[2] + c3];
+        }
+        return result;
+    }
+
+    private double nodeValue(int k, int i) {
+        // the last node is exactly the maximum, to avoid falling back to the KD search due to rounding
+        return i == resolution - 1 ? max[k] : min[k] + i * step[k];
+    }
+
+    private double[] estimateDeviations(double[] wo) {
+        final Random random = new Random(5678);
+        double maxDev = 0.0;
+        double sumDev2 = 0.0;
+        int n = 0;
+        for (int i = 0; i < NUM_DEVIATION_SAMPLES; i++) {
+            final double dwl = min[0] + random.nextDouble() * (max[0] - min[0]);
+            final double fwhm = min[1] + random.nextDouble() * (max[1] - min[1]);
+            final double trans = min[2] + random.nextDouble() * (max[2] - min[2]);
+            final double amf = min[3] + random.nextDouble() * (max[3] - min[3]);
+            final double expected = OlciHarmonisationAlgorithm.desmileFactor(dwl, fwhm, amf, trans, tree, lut, wo);
+            final double actual = desmileFactor(dwl, fwhm, amf, trans, wo);
+            // relative deviation of the factor is the relative deviation of the desmiled transmission (1st order)
+            final double dev = Math.abs(actual - expected) / Math.abs(expected);
+            if (Double.isFinite(dev)) {
+                maxDev = Math.max(maxDev, dev);
+                sumDev2 += dev * dev;
+                n++;
+            }
+        }
+        return new double[]{maxDev, n > 0 ? Math.sqrt(sumDev2 / n) : 0.0};
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DesmileGrid[%d^4 nodes, max relative deviation %.3g, RMS %.3g]",
+                             resolution, maxDeviation, rmsDeviation);
+    }
+}
@@ -0,0 +1,213 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.util.Arrays;
+
+/**
+ * KD tree for the nearest neighbour search in the 'desmile' lookup table (the 'X' coordinates of a
+ * {@link DesmileLut}), as done with scipy's cKDTree in the RP Python breadboard.
+ * <p/>
+ * Points and nodes are stored in flat primitive arrays: the coordinates are reordered such that the
+ * points of a leaf are contiguous in memory, and a query walks the tree without allocating any objects.
+ * The tree is immutable after construction and can be shared between threads.
+ *
+ * @author olafd
+ */
+public class DesmileKdTree {
+
+    private final int dim;
+    private final int leafsize;
+
+    // coordinates in leaf order, point-major: points[p * dim + k]
+    private final double[] points;
+    // original (LUT) index of point p
+    private final int[] indices;
+
+    // nodes: split dimension (-1 for leaf), split value, children, point range [start, end) of leaves
+    private int[] splitDims;
+    private double[] splitValues;
+    private int[] leftChildren;
+    private int[] rightChildren;
+    private int[] starts;
+    private int[] ends;
+    private int numNodes;
+
+    /**
+     * Creates the KD tree.
+     *
+     * @param coords   - the point coordinates, e.g. {@link DesmileLut#getX()}
+     * @param leafsize - the maximum number of points in a leaf, e.g. {@link DesmileLut#getLeafsize()}
+     */
+    public DesmileKdTree(double[][] coords, int leafsize) {
+        if (coords.length == 0) {
+            throw new IllegalArgumentException("Cannot create KD tree from empty coordinates.");
+        }
+        this.dim = coords[0].length;
+        this.leafsize = Math.max(1, leafsize);
+
+        final int n = coords.length;
+        // median splits never produce leaves with less than (leafsize + 1) / 2 points
+        final int maxNodes = 2 * (n / ((this.leafsize + 1) / 2) + 1);
+        splitDims = new int[maxNodes];
+        splitValues = new double[maxNodes];
+        leftChildren = new int[maxNodes];
+        rightChildren = new int[maxNodes];
+        starts = new int[maxNodes];
+        ends = new int[maxNodes];
+
+        indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = i;
+        }
+        buildNode(coords, 0, n);
+
+        splitDims = Arrays.copyOf(splitDims, numNodes);
+        splitValues = Arrays.copyOf(splitValues, numNodes);
+        leftChildren = Arrays.copyOf(leftChildren, numNodes);
+        rightChildren = Arrays.copyOf(rightChildren, numNodes);
+        starts = Arrays.copyOf(starts, numNodes);
+        ends = Arrays.copyOf(ends, numNodes);
+
+        points = new double[n * dim];
+        for (int p = 0; p < n; p++) {
+            System.arraycopy(coords[indices[p]], 0, points, p * dim, dim);
+        }
+    }
+
+    /**
+     * Finds the nearest neighbour (Euclidean distance) of given query point. Does not allocate any objects.
+     *
+     * @param q - the query point
+     * @return the index of the nearest point in the coordinates the tree was created from,
+     * or -1 if there is none, i.e. the query contains NaN or infinite values
+     */
+    public int nearest(double[] q) {
+        final int p = search(0, q, -1, Double.POSITIVE_INFINITY);
+        return p >= 0 ? indices[p] : -1;
+    }
+
+    /**
+     * @return the number of points in the tree
+     */
+    public int size() {
+        return indices.length;
+    }
+
+    /**
+     * @return the dimension of the points in the tree
+     */
+    public int getDimension() {
+        return dim;
+    }
+
+    /**
+     * @return the maximum number of points in a leaf
+     */
+    public int getLeafsize() {
+        return leafsize;
+    }
+
+    private int search(int node, double[] q, int best, double bestDist2) {
+        final int splitDim = splitDims[node];
+        if (splitDim < 0) {
+            final int end = ends[node];
+            for (int p = starts[node]; p < end; p++) {
+                final double d2 = distance2(q, p);
+                if (d2 < bestDist2) {
+                    bestDist2 = d2;
+                    best = p;
+                }
+            }
+            return best;
+        }
+
+        final double diff = q[splitDim] - splitValues[node];
+        final int nearChild = diff < 0.0 ? leftChildren[node] : rightChildren[node];
+        final int farChild = diff < 0.0 ? rightChildren[node] : leftChildren[node];
+
+        final int nearBest = search(nearChild, q, best, bestDist2);
+        if (nearBest != best) {
+            best = nearBest;
+            bestDist2 = distance2(q, best);
+        }
+        if (diff * diff < bestDist2) {
+            best = search(farChild, q, best, bestDist2);
+        }
+        return best;
+    }
+
+    private double distance2(double[] q, int p) {
+        final int offset = p * dim;
+        double d2 = 0.0;
+        for (int k = 0; k < dim; k++) {
+            final double d = q[k] - points[offset + k];
+            d2 += d * d;
+        }
+        return d2;
+    }
+
+    private int buildNode(double[][] coords, int start, int end) {
+        final int node = numNodes++;
+        starts[node] = start;
+        ends[node] = end;
+        if (end - start <= leafsize) {
+            splitDims[node] = -1;
+            return node;
+        }
+
+        // split at the median of the dimension with the largest spread
+        int splitDim = 0;
+        double maxSpread = -1.0;
+        for (int k = 0; k < dim; k++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                final double v = coords[indices[i]][k];
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (max - min > maxSpread) {
+                maxSpread = max - min;
+                splitDim = k;
+            }
+        }
+        final int mid = (start + end) >>> 1;
+        select(coords, splitDim, start, end - 1, mid);
+
+        splitDims[node] = splitDim;
+        splitValues[node] = coords[indices[mid]][splitDim];
+        leftChildren[node] = buildNode(coords, start, mid);
+        rightChildren[node] = buildNode(coords, mid, end);
+        return node;
+    }
+
+    // quickselect on the index array: afterwards coordinate k of indices[lo..nth-1] <= that of indices[nth] <= rest
+    private void select(double[][] coords, int k, int lo, int hi, int nth) {
+        while (hi > lo) {
+            final double pivot = coords[indices[(lo + hi) >>> 1]][k];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (coords[indices[i]][k] < pivot) {
+                    i++;
+                }
+                while (coords[indices[j]][k] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final int tmp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j) {
+                hi = j;
+            } else if (nth >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
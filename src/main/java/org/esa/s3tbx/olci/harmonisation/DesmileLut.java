@@ -1,24 +1,25 @@
 package org.esa.s3tbx.olci.harmonisation;
 
 /**
- * Holder for contents of 'desmile' lookup table (e.g. O2_desmile_lut_13.json)
+ * Holder for contents of 'desmile' lookup table (e.g. O2_desmile_lut_13.json).
+ * Instances are shared between operators (see {@link DesmileAuxdataRegistry}) and must not be modified.
  *
  * @author olafd
  */
 public class DesmileLut {
-    private long L;
-    private long M;
-    private long N;
+    private final long L;
+    private final long M;
+    private final long N;
 
-    private double[][] X;
-    private double[][] Y;
-    private double[][][] JACO;
-    private double[] MEAN;
-    private double[] VARI;
-    private double cwvl;
-    private double cbwd;
-    private long leafsize;
-    private String[] sequ;
+    private final double[][] X;
+    private final double[][] Y;
+    private final double[][][] JACO;
+    private final double[] MEAN;
+    private final double[] VARI;
+    private final double cwvl;
+    private final double cbwd;
+    private final long leafsize;
+    private final String[] sequ;
 
     DesmileLut(long l, long m, long n,
                double[][] x, double[][] y,
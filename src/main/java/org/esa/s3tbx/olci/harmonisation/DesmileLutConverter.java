@@ -0,0 +1,66 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.util.SystemUtils;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Converts 'desmile' lookup tables (e.g. O2_desmile_lut_13.json) to the binary format read by
+ * {@link OlciHarmonisationIO#readDesmileLutBinary(Path)}. The binary file is written next to the JSON file
+ * (e.g. O2_desmile_lut_13.bin), where it is preferred by {@link OlciHarmonisationIO#createDesmileLut(Path, int)}
+ * as long as it is not older than the JSON file.
+ * <p/>
+ * Usage: DesmileLutConverter &lt;JSON file or directory&gt; ...
+ *
+ * @author olafd
+ */
+public class DesmileLutConverter {
+
+    public static void main(String[] args) throws IOException, ParseException {
+        if (args.length == 0) {
+            System.out.println("Usage: DesmileLutConverter <JSON file or directory> ...");
+            System.exit(1);
+        }
+        for (String arg : args) {
+            final Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                final String glob = OlciHarmonisationIO.DESMILE_LUT_FILE_PREFIX + "*" +
+                        OlciHarmonisationIO.DESMILE_LUT_JSON_EXTENSION;
+                try (DirectoryStream<Path> jsonPaths = Files.newDirectoryStream(path, glob)) {
+                    for (Path jsonPath : jsonPaths) {
+                        convert(jsonPath);
+                    }
+                }
+            } else {
+                convert(path);
+            }
+        }
+    }
+
+    /**
+     * Converts a JSON 'desmile' lookup table to the binary format.
+     *
+     * @param jsonPath - the path of the JSON file
+     *
+     * @return the path of the binary file written next to the JSON file
+     * @throws IOException -
+     * @throws ParseException -
+     */
+    static Path convert(Path jsonPath) throws IOException, ParseException {
+        final String jsonFilename = jsonPath.getFileName().toString();
+        final String binaryFilename = jsonFilename.endsWith(OlciHarmonisationIO.DESMILE_LUT_JSON_EXTENSION) ?
+                jsonFilename.substring(0, jsonFilename.length() - OlciHarmonisationIO.DESMILE_LUT_JSON_EXTENSION.length()) :
+                jsonFilename;
+        final Path binaryPath = jsonPath.resolveSibling(binaryFilename + OlciHarmonisationIO.DESMILE_LUT_BINARY_EXTENSION);
+
+        final DesmileLut desmileLut = OlciHarmonisationIO.createDesmileLut(jsonPath);
+        OlciHarmonisationIO.writeDesmileLutBinary(desmileLut, binaryPath);
+        SystemUtils.LOG.info("Converted " + jsonPath + " -> " + binaryPath);
+        return binaryPath;
+    }
+}
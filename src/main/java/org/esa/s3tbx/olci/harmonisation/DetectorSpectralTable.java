@@ -0,0 +1,155 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.util.SystemUtils;
+
+/**
+ * Table of the spectral characterisation (central wavelength, FWHM, solar flux) of OLCI bands 12..16
+ * per detector. In OLCI L1b, lambda0_band_n, FWHM_band_n and solar_flux_band_n are functions of
+ * detector_index only, so once all detectors of a tile are known, the tiles of these 15 bands need not be
+ * read anymore. The table also holds the derived, 'overcorrected' wavelength shift (dwl) of bands 13..15
+ * as used for the desmile.
+ * <p/>
+ * The table is filled from the source samples of the first tiles computed for a product. Readers work on
+ * immutable {@link Snapshot}s, updates create a new snapshot (copy on write), as they are rare. If a
+ * detector turns out to have different characterisations at different pixels, the table is disabled.
+ *
+ * @author olafd
+ */
+class DetectorSpectralTable {
+
+    // OLCI FR: 5 cameras with 740 detectors each
+    static final int NUM_DETECTORS = 3700;
+
+    private volatile Snapshot snapshot = new Snapshot();
+    private volatile boolean disabled;
+
+    /**
+     * @return the current snapshot of the table, or null if the table is disabled
+     */
+    Snapshot getSnapshot() {
+        return disabled ? null : snapshot;
+    }
+
+    /**
+     * Adds the spectral characterisation of detectors not yet known from given source samples.
+     *
+     * @param src    - the source samples, detector index and quality flags and the spectral characterisation
+     *               of the needed bands must be present
+     * @param needed - needed[k] is true if band 12 + k is needed
+     */
+    synchronized void update(OlciHarmonisationKernel.SourceSamples src, boolean[] needed) {
+        if (disabled) {
+            return;
+        }
+        final Snapshot current = snapshot;
+        final Snapshot updated = new Snapshot(current);
+        boolean changed = false;
+        for (int i = 0; i < src.detectorIndex.length; i++) {
+            if (!OlciHarmonisationKernel.isValid(src.qualityFlags[i]) || !isInRange(src.detectorIndex[i])) {
+                continue;
+            }
+            final int det = (int) src.detectorIndex[i];
+            for (int k = 0; k < 5; k++) {
+                if (!needed[k]) {
+                    continue;
+                }
+                final double cwl = src.cwl[k][i];
+                final double fwhm = src.fwhm[k][i];
+                final double solarFlux = src.solarFlux[k][i];
+                if (updated.known[k][det]) {
+                    if (Double.compare(cwl, updated.cwl[k][det]) != 0 || Double.compare(fwhm, updated.fwhm[k][det]) != 0 ||
+                            Double.compare(solarFlux, updated.solarFlux[k][det]) != 0) {
+                        SystemUtils.LOG.warning("Spectral characterisation of band " + (k + 12) +
+                                                        " varies for detector " + det + " - reading it per pixel.");
+                        disabled = true;
+                        return;
+                    }
+                    continue;
+                }
+                updated.cwl[k][det] = cwl;
+                updated.fwhm[k][det] = fwhm;
+                updated.solarFlux[k][det] = solarFlux;
+                if (k >= 1 && k <= 3) {
+                    // same as in OlciHarmonisationKernel
+                    final double cwlCorrected = cwl + OlciHarmonisationAlgorithm.overcorrectLambda(
+                            src.detectorIndex[i], OlciHarmonisationConstants.DWL_CORR_OFFSET[k - 1]);
+                    updated.dwl[k - 1][det] = cwlCorrected - OlciHarmonisationConstants.cwvl[k - 1];
+                }
+                updated.known[k][det] = true;
+                changed = true;
+            }
+        }
+        if (changed) {
+            snapshot = updated;
+        }
+    }
+
+    private static boolean isInRange(float detectorIndex) {
+        return detectorIndex >= 0 && detectorIndex < NUM_DETECTORS && detectorIndex == (int) detectorIndex;
+    }
+
+    /**
+     * Immutable state of the table. Arrays are indexed [k][detector] with k = 0..4 for bands 12..16,
+     * except dwl, which is indexed [b][detector] with b = 0..2 for bands 13..15.
+     */
+    static class Snapshot {
+        final double[][] cwl;
+        final double[][] fwhm;
+        final double[][] solarFlux;
+        final double[][] dwl;
+        private final boolean[][] known;
+
+        private Snapshot() {
+            cwl = new double[5][NUM_DETECTORS];
+            fwhm = new double[5][NUM_DETECTORS];
+            solarFlux = new double[5][NUM_DETECTORS];
+            dwl = new double[3][NUM_DETECTORS];
+            known = new boolean[5][NUM_DETECTORS];
+        }
+
+        private Snapshot(Snapshot other) {
+            cwl = copy(other.cwl);
+            fwhm = copy(other.fwhm);
+            solarFlux = copy(other.solarFlux);
+            dwl = copy(other.dwl);
+            known = new boolean[5][];
+            for (int k = 0; k < 5; k++) {
+                known[k] = other.known[k].clone();
+            }
+        }
+
+        /**
+         * Checks whether the characterisation of the needed bands is known for the detectors of all valid pixels.
+         *
+         * @param detectorIndex - the detector index samples
+         * @param qualityFlags  - the quality flag samples
+         * @param needed        - needed[k] is true if band 12 + k is needed
+         * @return true, if the table can be used instead of the spectral characterisation bands
+         */
+        boolean containsAll(float[] detectorIndex, int[] qualityFlags, boolean[] needed) {
+            for (int i = 0; i < detectorIndex.length; i++) {
+                if (!OlciHarmonisationKernel.isValid(qualityFlags[i])) {
+                    continue;
+                }
+                if (!isInRange(detectorIndex[i])) {
+                    return false;
+                }
+                final int det = (int) detectorIndex[i];
+                for (int k = 0; k < 5; k++) {
+                    if (needed[k] && !known[k][det]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static double[][] copy(double[][] arrays) {
+            final double[][] copy = new double[arrays.length][];
+            for (int k = 0; k < arrays.length; k++) {
+                copy[k] = arrays[k].clone();
+            }
+            return copy;
+        }
+    }
+}
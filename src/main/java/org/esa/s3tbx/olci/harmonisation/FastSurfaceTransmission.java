@@ -0,0 +1,172 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Fast polynomial replacements of {@link OlciHarmonisationAlgorithm#height2press(double, double)} and
+ * {@link OlciHarmonisationAlgorithm#press2Trans(double, int)} for the surface_ outputs, avoiding Math.pow and
+ * Math.exp per pixel. Both functions are smooth on the range of physical inputs, and are interpolated there at
+ * Chebyshev nodes by polynomials in the normalised input, evaluated with the Horner scheme. The relative
+ * deviation from the exact functions is below {@value #TOLERANCE}. Outside of the range, the exact functions
+ * are used.
+ *
+ * @author olafd
+ */
+class FastSurfaceTransmission {
+
+    /**
+     * Maximum relative deviation from the exact functions.
+     */
+    static final double TOLERANCE = 1.0E-8;
+
+    static final double MIN_HEIGHT = -1000.0;
+    static final double MAX_HEIGHT = 9000.0;
+    static final double MIN_PRESS = 200.0;
+    static final double MAX_PRESS = 1200.0;
+
+    private static final int HEIGHT_DEGREE = 6;
+    private static final int PRESS_DEGREE = 8;
+
+    // polynomial coefficients in the normalised input, lowest order first
+    private static final double[] HEIGHT_COEFFS =
+            interpolate(h -> Math.pow((1.0 - (h * 0.0065 / 288.15)), 5.2555), MIN_HEIGHT, MAX_HEIGHT, HEIGHT_DEGREE);
+    private static final double[][] PRESS_COEFFS = new double[3][];
+
+    static {
+        for (int b = 0; b < 3; b++) {
+            final int bandIndex = b + 13;
+            PRESS_COEFFS[b] = interpolate(p -> OlciHarmonisationAlgorithm.press2Trans(p, bandIndex),
+                                          MIN_PRESS, MAX_PRESS, PRESS_DEGREE);
+        }
+    }
+
+    private FastSurfaceTransmission() {
+    }
+
+    /**
+     * Fast version of {@link OlciHarmonisationAlgorithm#height2press(double[], double[], double[], int, int)}.
+     *
+     * @param height - heights in m
+     * @param slp    - sea level pressures
+     * @param press  - output pressures in hPa
+     * @param from   - first index (inclusive)
+     * @param to     - last index (exclusive)
+     */
+    static void height2press(double[] height, double[] slp, double[] press, int from, int to) {
+        final double[] c = HEIGHT_COEFFS;
+        final double scale = 2.0 / (MAX_HEIGHT - MIN_HEIGHT);
+        for (int i = from; i < to; i++) {
+            final double h = height[i];
+            if (h >= MIN_HEIGHT && h <= MAX_HEIGHT) {
+                final double t = (h - MIN_HEIGHT) * scale - 1.0;
+                press[i] = slp[i] * (c[0] + t * (c[1] + t * (c[2] + t * (c[3] + t * (c[4] + t * (c[5] + t * c[6]))))));
+            } else {
+                press[i] = OlciHarmonisationAlgorithm.height2press(h, slp[i]);
+            }
+        }
+    }
+
+    /**
+     * Fast version of {@link OlciHarmonisationAlgorithm#press2Trans(double[], int, double[], int, int)}.
+     *
+     * @param press     - input pressures
+     * @param bandIndex - index of given band
+     * @param trans     - output rectified transmissions
+     * @param from      - first index (inclusive)
+     * @param to        - last index (exclusive)
+     */
+    static void press2Trans(double[] press, int bandIndex, double[] trans, int from, int to) {
+        final double[] c = PRESS_COEFFS[bandIndex - 13];
+        final double scale = 2.0 / (MAX_PRESS - MIN_PRESS);
+        for (int i = from; i < to; i++) {
+            final double p = press[i];
+            if (p >= MIN_PRESS && p <= MAX_PRESS) {
+                final double t = (p - MIN_PRESS) * scale - 1.0;
+                trans[i] = c[0] + t * (c[1] + t * (c[2] + t * (c[3] + t * (c[4] + t * (c[5] + t * (c[6] +
+                        t * (c[7] + t * c[8])))))));
+            } else {
+                trans[i] = OlciHarmonisationAlgorithm.press2Trans(p, bandIndex);
+            }
+        }
+    }
+
+    /**
+     * Single precision version of {@link #height2press(double[], double[], double[], int, int)}.
+     */
+    static void height2press(float[] height, float[] slp, float[] press, int from, int to) {
+        final double[] c = HEIGHT_COEFFS;
+        final float scale = (float) (2.0 / (MAX_HEIGHT - MIN_HEIGHT));
+        for (int i = from; i < to; i++) {
+            final float h = height[i];
+            if (h >= MIN_HEIGHT && h <= MAX_HEIGHT) {
+                final float t = (h - (float) MIN_HEIGHT) * scale - 1.0f;
+                press[i] = slp[i] * (float) (c[0] + t * (c[1] + t * (c[2] + t * (c[3] + t * (c[4] +
+                        t * (c[5] + t * c[6]))))));
+            } else {
+                press[i] = (float) OlciHarmonisationAlgorithm.height2press(h, slp[i]);
+            }
+        }
+    }
+
+    /**
+     * Single precision version of {@link #press2Trans(double[], int, double[], int, int)}.
+     */
+    static void press2Trans(float[] press, int bandIndex, float[] trans, int from, int to) {
+        final double[] c = PRESS_COEFFS[bandIndex - 13];
+        final float scale = (float) (2.0 / (MAX_PRESS - MIN_PRESS));
+        for (int i = from; i < to; i++) {
+            final float p = press[i];
+            if (p >= MIN_PRESS && p <= MAX_PRESS) {
+                final float t = (p - (float) MIN_PRESS) * scale - 1.0f;
+                trans[i] = (float) (c[0] + t * (c[1] + t * (c[2] + t * (c[3] + t * (c[4] + t * (c[5] +
+                        t * (c[6] + t * (c[7] + t * c[8]))))))));
+            } else {
+                trans[i] = (float) OlciHarmonisationAlgorithm.press2Trans(p, bandIndex);
+            }
+        }
+    }
+
+    /**
+     * Interpolates a function at the Chebyshev nodes of an interval.
+     *
+     * @param function - the function
+     * @param min      - the lower bound of the interval
+     * @param max      - the upper bound of the interval
+     * @param degree   - the degree of the polynomial
+     * @return the coefficients of the polynomial in t = 2 (x - min) / (max - min) - 1, lowest order first
+     */
+    static double[] interpolate(DoubleUnaryOperator function, double min, double max, int degree) {
+        final int n = degree + 1;
+        final double[] values = new double[n];
+        for (int k = 0; k < n; k++) {
+            final double t = Math.cos(Math.PI * (k + 0.5) / n);
+            values[k] = function.applyAsDouble(min + 0.5 * (t + 1.0) * (max - min));
+        }
+        // Chebyshev coefficients ...
+        final double[] chebyshev = new double[n];
+        for (int j = 0; j < n; j++) {
+            double sum = 0.0;
+            for (int k = 0; k < n; k++) {
+                sum += values[k] * Math.cos(Math.PI * j * (k + 0.5) / n);
+            }
+            chebyshev[j] = (j == 0 ? 1.0 : 2.0) * sum / n;
+        }
+        // ... converted to the monomial basis, with T_j+1 = 2 t T_j - T_j-1
+        final double[] coeffs = new double[n];
+        double[] previous = new double[n];
+        double[] current = new double[n];
+        current[0] = 1.0;
+        for (int j = 0; j < n; j++) {
+            for (int m = 0; m < n; m++) {
+                coeffs[m] += chebyshev[j] * current[m];
+            }
+            final double[] next = new double[n];
+            for (int m = 0; m < n; m++) {
+                next[m] = j == 0 ? (m == 1 ? 1.0 : 0.0) : (m > 0 ? 2.0 * current[m - 1] : 0.0) - previous[m];
+            }
+            previous = current;
+            current = next;
+        }
+        return coeffs;
+    }
+}
@@ -0,0 +1,236 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.util.Arrays;
+
+/**
+ * Single precision version of the {@link DesmileKdTree}, used by the {@link FloatDesmileLut}.
+ * <p/>
+ * In contrast to the {@link DesmileKdTree}, {@link #nearest(float[])} returns the position of the nearest point
+ * in leaf order, i.e. in {@link #getPoints()}. {@link #getIndex(int)} maps it to the index in the coordinates
+ * the tree was created from. This allows the owner to store its node data in leaf order as well, and to share
+ * the reordered coordinates instead of keeping a second copy.
+ * The tree is immutable after construction and can be shared between threads.
+ *
+ * @author olafd
+ */
+public class FloatDesmileKdTree {
+
+    private final int dim;
+    private final int leafsize;
+
+    // coordinates in leaf order, point-major: points[p * dim + k]
+    private final float[] points;
+    // original (LUT) index of point p
+    private final int[] indices;
+
+    // nodes: split dimension (-1 for leaf), split value, children, point range [start, end) of leaves
+    private int[] splitDims;
+    private float[] splitValues;
+    private int[] leftChildren;
+    private int[] rightChildren;
+    private int[] starts;
+    private int[] ends;
+    private int numNodes;
+
+    /**
+     * Creates the KD tree.
+     *
+     * @param coords   - the point coordinates, point-major: coords[i * dim + k]
+     * @param dim      - the dimension of the points
+     * @param leafsize - the maximum number of points in a leaf, e.g. {@link DesmileLut#getLeafsize()}
+     */
+    public FloatDesmileKdTree(float[] coords, int dim, int leafsize) {
+        if (coords.length == 0) {
+            throw new IllegalArgumentException("Cannot create KD tree from empty coordinates.");
+        }
+        this.dim = dim;
+        this.leafsize = Math.max(1, leafsize);
+
+        final int n = coords.length / dim;
+        // median splits never produce leaves with less than (leafsize + 1) / 2 points
+        final int maxNodes = 2 * (n / ((this.leafsize + 1) / 2) + 1);
+        splitDims = new int[maxNodes];
+        splitValues = new float[maxNodes];
+        leftChildren = new int[maxNodes];
+        rightChildren = new int[maxNodes];
+        starts = new int[maxNodes];
+        ends = new int[maxNodes];
+
+        indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = i;
+        }
+        buildNode(coords, 0, n);
+
+        splitDims = Arrays.copyOf(splitDims, numNodes);
+        splitValues = Arrays.copyOf(splitValues, numNodes);
+        leftChildren = Arrays.copyOf(leftChildren, numNodes);
+        rightChildren = Arrays.copyOf(rightChildren, numNodes);
+        starts = Arrays.copyOf(starts, numNodes);
+        ends = Arrays.copyOf(ends, numNodes);
+
+        points = new float[n * dim];
+        for (int p = 0; p < n; p++) {
+            System.arraycopy(coords, indices[p] * dim, points, p * dim, dim);
+        }
+    }
+
+    /**
+     * Finds the nearest neighbour (Euclidean distance) of given query point. Does not allocate any objects.
+     *
+     * @param q - the query point
+     * @return the position of the nearest point in leaf order (see {@link #getPoints()}),
+     * or -1 if there is none, i.e. the query contains NaN or infinite values
+     */
+    public int nearest(float[] q) {
+        return search(0, q, -1, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param p - the position of a point in leaf order
+     * @return the index of the point in the coordinates the tree was created from
+     */
+    public int getIndex(int p) {
+        return indices[p];
+    }
+
+    /**
+     * @return the point coordinates in leaf order, point-major: points[p * dim + k]. Must not be modified.
+     */
+    public float[] getPoints() {
+        return points;
+    }
+
+    /**
+     * @return the number of bytes of the arrays of the tree
+     */
+    public long getSizeInBytes() {
+        return 4L * (points.length + indices.length + 6L * numNodes);
+    }
+
+    /**
+     * @return the number of points in the tree
+     */
+    public int size() {
+        return indices.length;
+    }
+
+    /**
+     * @return the dimension of the points in the tree
+     */
+    public int getDimension() {
+        return dim;
+    }
+
+    /**
+     * @return the maximum number of points in a leaf
+     */
+    public int getLeafsize() {
+        return leafsize;
+    }
+
+    private int search(int node, float[] q, int best, float bestDist2) {
+        final int splitDim = splitDims[node];
+        if (splitDim < 0) {
+            final int end = ends[node];
+            for (int p = starts[node]; p < end; p++) {
+                final float d2 = distance2(q, p);
+                if (d2 < bestDist2) {
+                    bestDist2 = d2;
+                    best = p;
+                }
+            }
+            return best;
+        }
+
+        final float diff = q[splitDim] - splitValues[node];
+        final int nearChild = diff < 0.0f ? leftChildren[node] : rightChildren[node];
+        final int farChild = diff < 0.0f ? rightChildren[node] : leftChildren[node];
+
+        final int nearBest = search(nearChild, q, best, bestDist2);
+        if (nearBest != best) {
+            best = nearBest;
+            bestDist2 = distance2(q, best);
+        }
+        if (diff * diff < bestDist2) {
+            best = search(farChild, q, best, bestDist2);
+        }
+        return best;
+    }
+
+    private float distance2(float[] q, int p) {
+        final int offset = p * dim;
+        float d2 = 0.0f;
+        for (int k = 0; k < dim; k++) {
+            final float d = q[k] - points[offset + k];
+            d2 += d * d;
+        }
+        return d2;
+    }
+
+    private int buildNode(float[] coords, int start, int end) {
+        final int node = numNodes++;
+        starts[node] = start;
+        ends[node] = end;
+        if (end - start <= leafsize) {
+            splitDims[node] = -1;
+            return node;
+        }
+
+        // split at the median of the dimension with the largest spread
+        int splitDim = 0;
+        float maxSpread = -1.0f;
+        for (int k = 0; k < dim; k++) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                final float v = coords[indices[i] * dim + k];
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (max - min > maxSpread) {
+                maxSpread = max - min;
+                splitDim = k;
+            }
+        }
+        final int mid = (start + end) >>> 1;
+        select(coords, splitDim, start, end - 1, mid);
+
+        splitDims[node] = splitDim;
+        splitValues[node] = coords[indices[mid] * dim + splitDim];
+        leftChildren[node] = buildNode(coords, start, mid);
+        rightChildren[node] = buildNode(coords, mid, end);
+        return node;
+    }
+
+    // quickselect on the index array: afterwards coordinate k of indices[lo..nth-1] <= that of indices[nth] <= rest
+    private void select(float[] coords, int k, int lo, int hi, int nth) {
+        while (hi > lo) {
+            final float pivot = coords[indices[(lo + hi) >>> 1] * dim + k];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (coords[indices[i] * dim + k] < pivot) {
+                    i++;
+                }
+                while (coords[indices[j] * dim + k] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final int tmp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j) {
+                hi = j;
+            } else if (nth >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
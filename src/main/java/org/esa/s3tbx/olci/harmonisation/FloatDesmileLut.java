@@ -0,0 +1,111 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+/**
+ * Single precision version of the data of a {@link DesmileLut} which is needed to compute desmile factors
+ * (see {@link OlciHarmonisationAlgorithm#desmileFactor(float[], float[], float[], float[], boolean[], FloatDesmileLut, float[][], float[], int, int)}):
+ * node coordinates, values and Jacobians, stored in flat float arrays (node-major), and the
+ * {@link FloatDesmileKdTree} built on the coordinates.
+ * <p/>
+ * The nodes are stored in the leaf order of the tree, so the coordinates are shared with the tree and the
+ * position returned by {@link FloatDesmileKdTree#nearest(float[])} directly addresses the node data.
+ * The instance does not reference the original LUT, which can be dropped after the conversion.
+ * Instances are immutable and can be shared between threads.
+ *
+ * @author olafd
+ */
+public class FloatDesmileLut {
+
+    private final int numNodes;
+    private final FloatDesmileKdTree kdTree;
+    private final float[] x;
+    private final float[] y;
+    private final float[] jaco;
+    private final float[] mean;
+    private final float[] vari;
+
+    /**
+     * Creates the single precision version of given LUT and builds the KD tree on it.
+     *
+     * @param lut - the desmile LUT
+     */
+    public FloatDesmileLut(DesmileLut lut) {
+        final double[][] lutX = lut.getX();
+        final double[][] lutY = lut.getY();
+        final double[][][] lutJaco = lut.getJACO();
+        numNodes = lutX.length;
+        final float[] coords = new float[numNodes * 4];
+        for (int i = 0; i < numNodes; i++) {
+            for (int k = 0; k < 4; k++) {
+                coords[i * 4 + k] = (float) lutX[i][k];
+            }
+        }
+        kdTree = new FloatDesmileKdTree(coords, 4, (int) lut.getLeafsize());
+        x = kdTree.getPoints();
+        y = new float[numNodes];
+        jaco = new float[numNodes * 4];
+        for (int p = 0; p < numNodes; p++) {
+            final int i = kdTree.getIndex(p);
+            for (int k = 0; k < 4; k++) {
+                jaco[p * 4 + k] = (float) lutJaco[i][0][k];
+            }
+            y[p] = (float) lutY[i][0];
+        }
+        mean = toFloat(lut.getMEAN());
+        vari = toFloat(lut.getVARI());
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    /**
+     * @return the KD tree built on the node coordinates
+     */
+    public FloatDesmileKdTree getKdTree() {
+        return kdTree;
+    }
+
+    /**
+     * @return the normalised node coordinates in leaf order, x[p * 4 + k] for node p and dimension k
+     */
+    public float[] getX() {
+        return x;
+    }
+
+    /**
+     * @return the node values (desmile factors) in leaf order
+     */
+    public float[] getY() {
+        return y;
+    }
+
+    /**
+     * @return the node Jacobians in leaf order, jaco[p * 4 + k] for node p and dimension k
+     */
+    public float[] getJaco() {
+        return jaco;
+    }
+
+    public float[] getMean() {
+        return mean;
+    }
+
+    public float[] getVari() {
+        return vari;
+    }
+
+    /**
+     * @return the number of bytes of the arrays, including the KD tree (which holds the node coordinates)
+     */
+    public long getSizeInBytes() {
+        return 4L * (y.length + jaco.length + mean.length + vari.length) + kdTree.getSizeInBytes();
+    }
+
+    private static float[] toFloat(double[] values) {
+        final float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (float) values[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,116 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task computing the rows of a tile with {@link OlciHarmonisationKernel}s, for parallelism within
+ * large tiles (e.g. full-width stripes). The rows are split in halves down to blocks of a minimum number of rows,
+ * and every block is computed by its own kernel, as the scratch arrays of a kernel must not be shared between
+ * threads. The kernels are created in the computing thread, so they get the statistics accumulator of that
+ * thread, and released when the block is completed, e.g. to return their desmile cache. Source samples, LUTs
+ * and KD trees are only read, and the blocks write disjoint ranges of the target samples.
+ *
+ * @author olafd
+ */
+class KernelRowTask extends RecursiveAction {
+
+    // blocks per thread, so that threads finishing early can steal work
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    private final KernelFactory kernelFactory;
+    private final OlciHarmonisationKernel.SourceSamples src;
+    private final OlciHarmonisationKernel.TargetSamples tgt;
+    private final int width;
+    private final int fromRow;
+    private final int toRow;
+    private final int blockRows;
+    private final Runnable rowCheck;
+
+    /**
+     * Creates the kernels computing the blocks.
+     */
+    interface KernelFactory {
+
+        /**
+         * @return a kernel for the exclusive use of the current thread
+         */
+        OlciHarmonisationKernel createKernel();
+
+        /**
+         * Called when a kernel is no longer used.
+         *
+         * @param kernel - a kernel created by this factory
+         */
+        default void releaseKernel(OlciHarmonisationKernel kernel) {
+        }
+    }
+
+    /**
+     * @param kernelFactory - creates the kernels
+     * @param src           - the source samples
+     * @param tgt           - the target samples
+     * @param width         - the number of samples per row
+     * @param fromRow       - first row (inclusive)
+     * @param toRow         - last row (exclusive)
+     * @param blockRows     - the maximum number of rows computed by one kernel (see {@link #computeBlockRows})
+     * @param rowCheck      - called before every row, e.g. to check for cancellation
+     */
+    KernelRowTask(KernelFactory kernelFactory, OlciHarmonisationKernel.SourceSamples src,
+                  OlciHarmonisationKernel.TargetSamples tgt, int width, int fromRow, int toRow, int blockRows,
+                  Runnable rowCheck) {
+        this.kernelFactory = kernelFactory;
+        this.src = src;
+        this.tgt = tgt;
+        this.width = width;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        this.blockRows = blockRows;
+        this.rowCheck = rowCheck;
+    }
+
+    /**
+     * @param height      - the number of rows of the tile
+     * @param parallelism - the number of threads
+     * @return the maximum number of rows of a block, at least 1
+     */
+    static int computeBlockRows(int height, int parallelism) {
+        final int numBlocks = BLOCKS_PER_THREAD * parallelism;
+        return Math.max(1, (height + numBlocks - 1) / numBlocks);
+    }
+
+    /**
+     * Computes the rows in the current thread with a single kernel.
+     *
+     * @param kernelFactory - creates the kernel
+     * @param src           - the source samples
+     * @param tgt           - the target samples
+     * @param width         - the number of samples per row
+     * @param fromRow       - first row (inclusive)
+     * @param toRow         - last row (exclusive)
+     * @param rowCheck      - called before every row, e.g. to check for cancellation
+     */
+    static void computeRows(KernelFactory kernelFactory, OlciHarmonisationKernel.SourceSamples src,
+                            OlciHarmonisationKernel.TargetSamples tgt, int width, int fromRow, int toRow,
+                            Runnable rowCheck) {
+        final OlciHarmonisationKernel kernel = kernelFactory.createKernel();
+        try {
+            for (int y = fromRow; y < toRow; y++) {
+                rowCheck.run();
+                kernel.compute(src, tgt, y * width, (y + 1) * width);
+            }
+        } finally {
+            kernelFactory.releaseKernel(kernel);
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (toRow - fromRow <= blockRows) {
+            computeRows(kernelFactory, src, tgt, width, fromRow, toRow, rowCheck);
+        } else {
+            final int midRow = (fromRow + toRow) >>> 1;
+            invokeAll(new KernelRowTask(kernelFactory, src, tgt, width, fromRow, midRow, blockRows, rowCheck),
+                      new KernelRowTask(kernelFactory, src, tgt, width, midRow, toRow, blockRows, rowCheck));
+        }
+    }
+}
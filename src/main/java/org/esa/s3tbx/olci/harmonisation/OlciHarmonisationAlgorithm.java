@@ -1,7 +1,6 @@
 package org.esa.s3tbx.olci.harmonisation;
 
-import smile.neighbor.KDTree;
-import smile.neighbor.Neighbor;
+import org.esa.snap.core.util.math.MathUtils;
 
 /**
  * Class providing the algorithm for OLCI Harmonisation
@@ -49,6 +48,17 @@ public class OlciHarmonisationAlgorithm {
         return slp * Math.pow((1.0 - (height * 0.0065 / 288.15)), 5.2555);
     }
 
+    /**
+     * Provides the air mass factor for given sun and view zenith angles.
+     *
+     * @param sza - sun zenith angle in degrees
+     * @param oza - view zenith angle in degrees
+     * @return the air mass factor
+     */
+    public static double computeAmf(double sza, double oza) {
+        return (1.0 / Math.cos(sza * MathUtils.DTOR) + 1.0 / Math.cos(oza * MathUtils.DTOR));
+    }
+
     public static float overcorrectLambda(float cam, double[] dwvl) {
         double delta = 0.0;
         for (int i = 0; i < 5; i++) {
@@ -71,47 +81,68 @@ public class OlciHarmonisationAlgorithm {
      * @return trans_desmiled
      */
     public static double desmileTransmission(double dwl, double fwhm, double amf, double trans,
-                                             KDTree<double[]> tree, DesmileLut lut) {
-
-        double[] x = new double[]{dwl, fwhm, trans, amf};
-        final double[] wo = new double[lut.getVARI().length];
-        for (int i = 0; i < lut.getVARI().length; i++) {
-            wo[i] = (x[i] - lut.getMEAN()[i]) / lut.getVARI()[i];
-        }
-
-        final int nNearest = 1;   // see Python: func(x, 1) !!!
-        final Neighbor<double[], double[]>[] neighbors = tree.knn(wo, nNearest);
-        final double[] distances = new double[neighbors.length];
-        final int[] indices = new int[neighbors.length];
-        for (int i = 0; i < distances.length; i++) {
-            distances[i] = neighbors[i].distance;
-            indices[distances.length - i - 1] = neighbors[i].index;
-        }
-
-        double[] weight = new double[distances.length];
-        double norm = 0.0;
-        for (int i = 0; i < weight.length; i++) {
-            weight[i] = Double.isInfinite(distances[i]) ? 0.0 : 1.0;
-            norm += weight[i];
-        }
-
-        double temp = 0.0;
-        for (int j = 0; j < nNearest; j++) {
-            final boolean valid = !Double.isInfinite(distances[j]);
-            if (valid) {
-                double dxCrossJaco = 0.0;
-                for (int k = 0; k < wo.length; k++) {
-                    final double dx = (wo[k] - lut.getX()[indices[j]][k]) * lut.getVARI()[k];
-                    final double jaco = lut.getJACO()[indices[j]][0][k];
-                    dxCrossJaco += (dx * jaco);
-                }
-                temp += (lut.getY()[indices[j]][0] + dxCrossJaco * weight[j]);
-            }
+                                             DesmileKdTree tree, DesmileLut lut) {
+        return desmileTransmission(dwl, fwhm, amf, trans, tree, lut, new double[4]);
+    }
+
+    /**
+     * Desmile input transmission using interpolation of Desmile LUT, using KD search.
+     * Same as {@link #desmileTransmission(double, double, double, double, DesmileKdTree, DesmileLut)}, but
+     * working on a caller-provided scratch array, so that no objects are allocated per call.
+     * As in the Python breadboard (func(x, 1)), only the nearest LUT node is used.
+     *
+     * @param dwl   - central wavelength
+     * @param fwhm  - band width (full width at half maximum)
+     * @param amf   - air mass factor
+     * @param trans - original transmission
+     * @param tree  - the KD Tree. Should have been once initialized at earlier stage.
+     * @param lut   - the desmile LUT held in DesmileLut object. Should have been once initialized at earlier stage.
+     * @param wo    - scratch array of length 4, receives the normalised input vector
+     * @return trans_desmiled
+     */
+    public static double desmileTransmission(double dwl, double fwhm, double amf, double trans,
+                                             DesmileKdTree tree, DesmileLut lut, double[] wo) {
+        return trans / desmileFactor(dwl, fwhm, amf, trans, tree, lut, wo);
+    }
+
+    /**
+     * Provides the factor by which the transmission is divided in
+     * {@link #desmileTransmission(double, double, double, double, DesmileKdTree, DesmileLut, double[])}:
+     * the LUT value at the nearest LUT node plus the first order (Jacobian) correction.
+     *
+     * @param dwl   - central wavelength
+     * @param fwhm  - band width (full width at half maximum)
+     * @param amf   - air mass factor
+     * @param trans - original transmission
+     * @param tree  - the KD Tree. Should have been once initialized at earlier stage.
+     * @param lut   - the desmile LUT held in DesmileLut object. Should have been once initialized at earlier stage.
+     * @param wo    - scratch array of length 4, receives the normalised input vector
+     * @return the desmile factor
+     */
+    public static double desmileFactor(double dwl, double fwhm, double amf, double trans,
+                                       DesmileKdTree tree, DesmileLut lut, double[] wo) {
+        final double[] mean = lut.getMEAN();
+        final double[] vari = lut.getVARI();
+        wo[0] = (dwl - mean[0]) / vari[0];
+        wo[1] = (fwhm - mean[1]) / vari[1];
+        wo[2] = (trans - mean[2]) / vari[2];
+        wo[3] = (amf - mean[3]) / vari[3];
+
+        int index = tree.nearest(wo);
+        if (index < 0) {
+            // no neighbour found for NaN or infinite input: fall back to the first LUT entry (result is NaN anyway)
+            index = 0;
         }
 
-        double kdInterpolResult = temp / norm;
+        final double[] xNearest = lut.getX()[index];
+        final double[] jaco = lut.getJACO()[index][0];
+        double dxCrossJaco = 0.0;
+        for (int k = 0; k < 4; k++) {
+            final double dx = (wo[k] - xNearest[k]) * vari[k];
+            dxCrossJaco += (dx * jaco[k]);
+        }
 
-        return trans / kdInterpolResult;
+        return lut.getY()[index][0] + dxCrossJaco;
     }
 
     /**
@@ -133,4 +164,354 @@ public class OlciHarmonisationAlgorithm {
 
         return trans_desmiled / rectifyFactor;
     }
+
+    // Batched versions of the functions above, working on arrays of pixels (structure of arrays).
+    // They process the index range [from, to) of input and (preallocated) output arrays, with the same
+    // arithmetic per pixel as the scalar versions. The simple loops can be vectorised by the JIT.
+
+    /**
+     * Batched version of {@link #press2Trans(double, int)}.
+     *
+     * @param press     - input pressures
+     * @param bandIndex - index of given band
+     * @param trans     - output rectified transmissions
+     * @param from      - first index (inclusive)
+     * @param to        - last index (exclusive)
+     */
+    public static void press2Trans(double[] press, int bandIndex, double[] trans, int from, int to) {
+        final double[] p = OlciHarmonisationConstants.pCoeffsPress2Tra[bandIndex - 13];
+        final double p0 = p[0];
+        final double p1 = p[1];
+        final double p2 = p[2];
+        for (int i = from; i < to; i++) {
+            final double pr = press[i];
+            trans[i] = Math.exp(-(p0 + p1 * pr + p2 * pr * pr));
+        }
+    }
+
+    /**
+     * Batched version of {@link #trans2Press(double, int)}.
+     *
+     * @param trans_rectified - input rectified transmissions
+     * @param bandIndex       - index of given band
+     * @param press           - output pressures in hPa
+     * @param from            - first index (inclusive)
+     * @param to              - last index (exclusive)
+     */
+    public static void trans2Press(double[] trans_rectified, int bandIndex, double[] press, int from, int to) {
+        final double[] p = OlciHarmonisationConstants.pCoeffsTra2Press[bandIndex - 13];
+        final double p0 = p[0];
+        final double p1 = p[1];
+        final double p2 = p[2];
+        for (int i = from; i < to; i++) {
+            final double t = trans_rectified[i];
+            press[i] = p0 + p1 * t + p2 * t * t;
+        }
+    }
+
+    /**
+     * Batched version of {@link #height2press(double, double)}.
+     *
+     * @param height - heights in m
+     * @param slp    - sea level pressures
+     * @param press  - output pressures in hPa
+     * @param from   - first index (inclusive)
+     * @param to     - last index (exclusive)
+     */
+    public static void height2press(double[] height, double[] slp, double[] press, int from, int to) {
+        for (int i = from; i < to; i++) {
+            press[i] = slp[i] * Math.pow((1.0 - (height[i] * 0.0065 / 288.15)), 5.2555);
+        }
+    }
+
+    /**
+     * Batched version of {@link #computeAmf(double, double)}.
+     *
+     * @param sza  - sun zenith angles in degrees
+     * @param oza  - view zenith angles in degrees
+     * @param amf  - output air mass factors
+     * @param from - first index (inclusive)
+     * @param to   - last index (exclusive)
+     */
+    public static void computeAmf(double[] sza, double[] oza, double[] amf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            amf[i] = (1.0 / Math.cos(sza[i] * MathUtils.DTOR) + 1.0 / Math.cos(oza[i] * MathUtils.DTOR));
+        }
+    }
+
+    /**
+     * Batched version of {@link #rectifyDesmiledTransmission(double, double, int)}.
+     *
+     * @param trans_desmiled  - desmiled transmissions
+     * @param amf             - air mass factors
+     * @param bandIndex       - band index
+     * @param trans_rectified - output rectified transmissions
+     * @param from            - first index (inclusive)
+     * @param to              - last index (exclusive)
+     */
+    public static void rectifyDesmiledTransmission(double[] trans_desmiled, double[] amf, int bandIndex,
+                                                   double[] trans_rectified, int from, int to) {
+        final double[] p = OlciHarmonisationConstants.pCoeffsRectification[bandIndex - 13];
+        for (int i = from; i < to; i++) {
+            final double td = trans_desmiled[i];
+            final double tau = Math.log(td);
+            final double amfM = amf[i] - 2.0;
+            final double rectifyFactor = p[0] + p[1] * tau + p[2] * tau * tau + p[3] * amfM + p[4] * amfM * amfM +
+                    p[5] * tau * Math.sqrt(amfM) + p[7] * td;
+            trans_rectified[i] = td / rectifyFactor;
+        }
+    }
+
+    /**
+     * Batched version of {@link #desmileFactor(double, double, double, double, DesmileKdTree, DesmileLut, double[])}.
+     * The inputs are normalised in one pass over all pixels, then the nearest LUT nodes are searched and the
+     * Jacobian corrections are applied pixel by pixel.
+     *
+     * @param dwl           - central wavelengths
+     * @param fwhm          - band widths (full width at half maximum)
+     * @param amf           - air mass factors
+     * @param trans         - original transmissions
+     * @param valid         - pixels to process, or null for all. Factors of other pixels are set to NaN.
+     * @param tree          - the KD Tree
+     * @param lut           - the desmile LUT
+     * @param normalised    - scratch arrays [4][n] receiving the normalised inputs
+     * @param desmileFactor - output desmile factors
+     * @param from          - first index (inclusive)
+     * @param to            - last index (exclusive)
+     */
+    public static void desmileFactor(double[] dwl, double[] fwhm, double[] amf, double[] trans, boolean[] valid,
+                                     DesmileKdTree tree, DesmileLut lut, double[][] normalised,
+                                     double[] desmileFactor, int from, int to) {
+        final double[] mean = lut.getMEAN();
+        final double[] vari = lut.getVARI();
+        normalise(dwl, mean[0], vari[0], normalised[0], from, to);
+        normalise(fwhm, mean[1], vari[1], normalised[1], from, to);
+        normalise(trans, mean[2], vari[2], normalised[2], from, to);
+        normalise(amf, mean[3], vari[3], normalised[3], from, to);
+
+        final double[][] x = lut.getX();
+        final double[][] y = lut.getY();
+        final double[][][] jacobians = lut.getJACO();
+        final double[] q = new double[4];
+        for (int i = from; i < to; i++) {
+            if (valid != null && !valid[i]) {
+                desmileFactor[i] = Double.NaN;
+                continue;
+            }
+            for (int k = 0; k < 4; k++) {
+                q[k] = normalised[k][i];
+            }
+            int index = tree.nearest(q);
+            if (index < 0) {
+                // no neighbour found for NaN or infinite input: fall back to the first LUT entry (result is NaN anyway)
+                index = 0;
+            }
+            final double[] xNearest = x[index];
+            final double[] jaco = jacobians[index][0];
+            double dxCrossJaco = 0.0;
+            for (int k = 0; k < 4; k++) {
+                final double dx = (q[k] - xNearest[k]) * vari[k];
+                dxCrossJaco += (dx * jaco[k]);
+            }
+            desmileFactor[i] = y[index][0] + dxCrossJaco;
+        }
+    }
+
+    /**
+     * Batched version of {@link #desmileTransmission(double, double, double, double, DesmileKdTree, DesmileLut)}.
+     *
+     * @param dwl            - central wavelengths
+     * @param fwhm           - band widths (full width at half maximum)
+     * @param amf            - air mass factors
+     * @param trans          - original transmissions
+     * @param valid          - pixels to process, or null for all. Results of other pixels are set to NaN.
+     * @param tree           - the KD Tree
+     * @param lut            - the desmile LUT
+     * @param normalised     - scratch arrays [4][n] receiving the normalised inputs
+     * @param trans_desmiled - output desmiled transmissions
+     * @param from           - first index (inclusive)
+     * @param to             - last index (exclusive)
+     */
+    public static void desmileTransmission(double[] dwl, double[] fwhm, double[] amf, double[] trans, boolean[] valid,
+                                           DesmileKdTree tree, DesmileLut lut, double[][] normalised,
+                                           double[] trans_desmiled, int from, int to) {
+        desmileFactor(dwl, fwhm, amf, trans, valid, tree, lut, normalised, trans_desmiled, from, to);
+        for (int i = from; i < to; i++) {
+            trans_desmiled[i] = trans[i] / trans_desmiled[i];
+        }
+    }
+
+    // Single precision versions of the batched functions, used by the optional float engine.
+    // Coefficients and intermediates are float, only the transcendental functions are evaluated in double.
+
+    /**
+     * Single precision version of {@link #press2Trans(double[], int, double[], int, int)}.
+     */
+    public static void press2Trans(float[] press, int bandIndex, float[] trans, int from, int to) {
+        final double[] p = OlciHarmonisationConstants.pCoeffsPress2Tra[bandIndex - 13];
+        final float p0 = (float) p[0];
+        final float p1 = (float) p[1];
+        final float p2 = (float) p[2];
+        for (int i = from; i < to; i++) {
+            final float pr = press[i];
+            trans[i] = (float) Math.exp(-(p0 + p1 * pr + p2 * pr * pr));
+        }
+    }
+
+    /**
+     * Single precision version of {@link #trans2Press(double[], int, double[], int, int)}.
+     */
+    public static void trans2Press(float[] trans_rectified, int bandIndex, float[] press, int from, int to) {
+        final double[] p = OlciHarmonisationConstants.pCoeffsTra2Press[bandIndex - 13];
+        final float p0 = (float) p[0];
+        final float p1 = (float) p[1];
+        final float p2 = (float) p[2];
+        for (int i = from; i < to; i++) {
+            final float t = trans_rectified[i];
+            press[i] = p0 + p1 * t + p2 * t * t;
+        }
+    }
+
+    /**
+     * Single precision version of {@link #height2press(double[], double[], double[], int, int)}.
+     */
+    public static void height2press(float[] height, float[] slp, float[] press, int from, int to) {
+        for (int i = from; i < to; i++) {
+            press[i] = slp[i] * (float) Math.pow(1.0f - (height[i] * 0.0065f / 288.15f), 5.2555);
+        }
+    }
+
+    /**
+     * Single precision version of {@link #computeAmf(double[], double[], double[], int, int)}.
+     */
+    public static void computeAmf(float[] sza, float[] oza, float[] amf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            amf[i] = (float) (1.0 / Math.cos(sza[i] * MathUtils.DTOR) + 1.0 / Math.cos(oza[i] * MathUtils.DTOR));
+        }
+    }
+
+    /**
+     * Single precision version of {@link #rectifyDesmiledTransmission(double[], double[], int, double[], int, int)}.
+     */
+    public static void rectifyDesmiledTransmission(float[] trans_desmiled, float[] amf, int bandIndex,
+                                                   float[] trans_rectified, int from, int to) {
+        final double[] pd = OlciHarmonisationConstants.pCoeffsRectification[bandIndex - 13];
+        final float[] p = new float[pd.length];
+        for (int k = 0; k < p.length; k++) {
+            p[k] = (float) pd[k];
+        }
+        for (int i = from; i < to; i++) {
+            final float td = trans_desmiled[i];
+            final float tau = (float) Math.log(td);
+            final float amfM = amf[i] - 2.0f;
+            final float rectifyFactor = p[0] + p[1] * tau + p[2] * tau * tau + p[3] * amfM + p[4] * amfM * amfM +
+                    p[5] * tau * (float) Math.sqrt(amfM) + p[7] * td;
+            trans_rectified[i] = td / rectifyFactor;
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #desmileFactor(double, double, double, double, DesmileKdTree, DesmileLut, double[])}.
+     * The nearest LUT node is searched with the KD tree of the single precision LUT.
+     *
+     * @param dwl   - central wavelength
+     * @param fwhm  - band width (full width at half maximum)
+     * @param amf   - air mass factor
+     * @param trans - original transmission
+     * @param lut   - the single precision desmile LUT
+     * @param wo    - scratch array of length 4, receives the normalised input vector
+     * @return the desmile factor
+     */
+    public static float desmileFactor(float dwl, float fwhm, float amf, float trans, FloatDesmileLut lut, float[] wo) {
+        final float[] mean = lut.getMean();
+        final float[] vari = lut.getVari();
+        wo[0] = (dwl - mean[0]) / vari[0];
+        wo[1] = (fwhm - mean[1]) / vari[1];
+        wo[2] = (trans - mean[2]) / vari[2];
+        wo[3] = (amf - mean[3]) / vari[3];
+        return interpolate(lut, wo);
+    }
+
+    /**
+     * Single precision version of
+     * {@link #desmileFactor(double[], double[], double[], double[], boolean[], DesmileKdTree, DesmileLut, double[][], double[], int, int)}.
+     * The nearest LUT node is searched with the KD tree of the single precision LUT.
+     *
+     * @param dwl           - central wavelengths
+     * @param fwhm          - band widths (full width at half maximum)
+     * @param amf           - air mass factors
+     * @param trans         - original transmissions
+     * @param valid         - pixels to process, or null for all. Factors of other pixels are set to NaN.
+     * @param lut           - the single precision desmile LUT
+     * @param normalised    - scratch arrays [4][n] receiving the normalised inputs
+     * @param desmileFactor - output desmile factors
+     * @param from          - first index (inclusive)
+     * @param to            - last index (exclusive)
+     */
+    public static void desmileFactor(float[] dwl, float[] fwhm, float[] amf, float[] trans, boolean[] valid,
+                                     FloatDesmileLut lut, float[][] normalised,
+                                     float[] desmileFactor, int from, int to) {
+        final float[] mean = lut.getMean();
+        final float[] vari = lut.getVari();
+        normalise(dwl, mean[0], vari[0], normalised[0], from, to);
+        normalise(fwhm, mean[1], vari[1], normalised[1], from, to);
+        normalise(trans, mean[2], vari[2], normalised[2], from, to);
+        normalise(amf, mean[3], vari[3], normalised[3], from, to);
+
+        final float[] q = new float[4];
+        for (int i = from; i < to; i++) {
+            if (valid != null && !valid[i]) {
+                desmileFactor[i] = Float.NaN;
+                continue;
+            }
+            for (int k = 0; k < 4; k++) {
+                q[k] = normalised[k][i];
+            }
+            desmileFactor[i] = interpolate(lut, q);
+        }
+    }
+
+    /**
+     * Single precision version of
+     * {@link #desmileTransmission(double[], double[], double[], double[], boolean[], DesmileKdTree, DesmileLut, double[][], double[], int, int)}.
+     */
+    public static void desmileTransmission(float[] dwl, float[] fwhm, float[] amf, float[] trans, boolean[] valid,
+                                           FloatDesmileLut lut, float[][] normalised,
+                                           float[] trans_desmiled, int from, int to) {
+        desmileFactor(dwl, fwhm, amf, trans, valid, lut, normalised, trans_desmiled, from, to);
+        for (int i = from; i < to; i++) {
+            trans_desmiled[i] = trans[i] / trans_desmiled[i];
+        }
+    }
+
+    // LUT value at the node nearest to the normalised input q, plus the first order (Jacobian) correction
+    private static float interpolate(FloatDesmileLut lut, float[] q) {
+        int p = lut.getKdTree().nearest(q);
+        if (p < 0) {
+            // no neighbour found for NaN or infinite input: fall back to the first LUT entry (result is NaN anyway)
+            p = 0;
+        }
+        final float[] x = lut.getX();
+        final float[] jaco = lut.getJaco();
+        final float[] vari = lut.getVari();
+        float dxCrossJaco = 0.0f;
+        for (int k = 0; k < 4; k++) {
+            final float dx = (q[k] - x[p * 4 + k]) * vari[k];
+            dxCrossJaco += (dx * jaco[p * 4 + k]);
+        }
+        return lut.getY()[p] + dxCrossJaco;
+    }
+
+    private static void normalise(double[] values, double mean, double vari, double[] normalised, int from, int to) {
+        for (int i = from; i < to; i++) {
+            normalised[i] = (values[i] - mean) / vari;
+        }
+    }
+
+    private static void normalise(float[] values, float mean, float vari, float[] normalised, int from, int to) {
+        for (int i = from; i < to; i++) {
+            normalised[i] = (values[i] - mean) / vari;
+        }
+    }
 }
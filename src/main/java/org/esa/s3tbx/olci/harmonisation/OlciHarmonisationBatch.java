@@ -0,0 +1,637 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import com.bc.ceres.binding.Property;
+import com.bc.ceres.binding.PropertyContainer;
+import com.bc.ceres.binding.PropertySet;
+import com.bc.ceres.binding.ValidationException;
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.snap.core.dataio.ProductIO;
+import org.esa.snap.core.dataio.ProductWriter;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.gpf.GPF;
+import org.esa.snap.core.gpf.annotations.ParameterDescriptorFactory;
+import org.esa.snap.core.util.SystemUtils;
+import org.json.simple.parser.ParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Processes many OLCI L1b products with {@link OlciHarmonisationOp} in one JVM, so that the SNAP runtime, the
+ * auxdata installation, the desmile LUTs and KD trees ({@link DesmileAuxdataRegistry}) and the DEM tiles
+ * ({@link DemTileCache}) are initialised only once for all products, and not again for every GPT invocation.
+ * <p/>
+ * Up to a given number of products are processed concurrently, each of them with the usual tile parallelism of
+ * GPF. To bound the memory, every product reserves a share of a memory budget according to its size before it
+ * is processed (see {@link #estimateMemory(int, int)}). A report with the timing of every product is written
+ * as CSV file.
+ * <p/>
+ * Usage: OlciHarmonisationBatch -o &lt;output directory&gt; [options] &lt;input&gt; ...
+ *
+ * @author olafd
+ */
+public class OlciHarmonisationBatch {
+
+    static final String REPORT_FILE_NAME = "harmonisation_batch_report.csv";
+    static final String OUTPUT_SUFFIX = "_harmonised";
+    static final String STAGING_DIR_NAME = ".staging";
+    static final String REPORT_HEADER =
+            "product,status,width,height,read_ms,wait_ms,process_ms,pixels_per_s,output,message";
+
+    // source samples of the bands read and target samples of all outputs, per pixel (coarse estimate)
+    private static final long ESTIMATED_BYTES_PER_PIXEL = 64;
+
+    private static final String USAGE =
+            "Usage: OlciHarmonisationBatch -o <output directory> [options] <input> ...\n" +
+                    "  <input>          an OLCI L1b product (e.g. *.SEN3 or *.zip), a directory containing such\n" +
+                    "                   products, or a list file (*.txt, *.list) with one product path per line\n" +
+                    "Options:\n" +
+                    "  -f <format>      the output format (default BEAM-DIMAP)\n" +
+                    "  -p <number>      the number of products processed concurrently (default 1)\n" +
+                    "  -m <MB>          the memory budget for the products processed concurrently\n" +
+                    "                   (default 70% of the maximum heap size)\n" +
+                    "  -dem <file>      an optional DEM product used for all products\n" +
+                    "  -stream <MB>     process every product in stripes from top to bottom, using at most the\n" +
+                    "                   given memory, instead of the GPF tile scheduling\n" +
+                    "  -r <file>        the report file (default <output directory>/" + REPORT_FILE_NAME + ")\n" +
+                    "  -w <directory>   watch the directory and process products as soon as they arrive, until\n" +
+                    "                   the JVM is stopped, instead of processing given inputs\n" +
+                    "  -q <number>      the number of arrived products waiting for processing (default 4)\n" +
+                    "  -s <seconds>     the time a product in the watch directory must remain unchanged before\n" +
+                    "                   it is processed (default 5)\n" +
+                    "  -P<name>=<value> a parameter of the OlciHarmonisation operator, e.g. -PprocessOnlyBand13=false";
+
+    /**
+     * The processing status of a product.
+     */
+    enum Status {
+        OK,
+        FAILED
+    }
+
+    /**
+     * The result of processing a product, as written to the report.
+     */
+    static class ProductResult {
+        final Path input;
+        File output;
+        Status status = Status.FAILED;
+        int width;
+        int height;
+        long readMillis;
+        long waitMillis;
+        long processMillis;
+        String message = "";
+
+        ProductResult(Path input) {
+            this.input = input;
+        }
+
+        double getPixelsPerSecond() {
+            return processMillis > 0 ? 1000.0 * width * height / processMillis : 0.0;
+        }
+    }
+
+    private final Path outputDir;
+    private final String formatName;
+    private final Map<String, Object> parameters;
+    private final Product demProduct;
+    private final int numParallelProducts;
+    private final int memoryBudgetMB;
+    private final Semaphore memory;
+    private int streamingMemoryMB;
+
+    /**
+     * @param outputDir           - the directory of the target products
+     * @param formatName          - the format of the target products
+     * @param parameters          - the parameters of the operator (see {@link #createParameters(Map)})
+     * @param demProduct          - an optional DEM product used for all products, or null
+     * @param numParallelProducts - the maximum number of products processed concurrently
+     * @param memoryBudgetMB      - the memory budget for the products processed concurrently, in MB
+     */
+    OlciHarmonisationBatch(Path outputDir, String formatName, Map<String, Object> parameters, Product demProduct,
+                           int numParallelProducts, int memoryBudgetMB) {
+        this.outputDir = outputDir;
+        this.formatName = formatName;
+        this.parameters = parameters;
+        this.demProduct = demProduct;
+        this.numParallelProducts = numParallelProducts;
+        this.memoryBudgetMB = memoryBudgetMB;
+        this.memory = new Semaphore(memoryBudgetMB);
+    }
+
+    /**
+     * Sets the streaming mode, see {@link StripeWriter}.
+     *
+     * @param streamingMemoryMB - the memory used per product in streaming mode in MB, 0 for GPF tile scheduling
+     */
+    void setStreamingMemoryMB(int streamingMemoryMB) {
+        this.streamingMemoryMB = streamingMemoryMB;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path outputDir = null;
+        String formatName = "BEAM-DIMAP";
+        int numParallelProducts = 1;
+        int memoryBudgetMB = (int) (0.7 * Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        Path demPath = null;
+        Path reportPath = null;
+        Path watchDir = null;
+        int queueCapacity = 4;
+        double settleSeconds = 5.0;
+        int streamingMemoryMB = 0;
+        final Map<String, String> parameterTexts = new LinkedHashMap<>();
+        final List<String> inputArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.startsWith("-P") && arg.contains("=")) {
+                parameterTexts.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("-") && i + 1 < args.length) {
+                final String value = args[++i];
+                switch (arg) {
+                    case "-o":
+                        outputDir = Paths.get(value);
+                        break;
+                    case "-f":
+                        formatName = value;
+                        break;
+                    case "-p":
+                        numParallelProducts = Integer.parseInt(value);
+                        break;
+                    case "-m":
+                        memoryBudgetMB = Integer.parseInt(value);
+                        break;
+                    case "-dem":
+                        demPath = Paths.get(value);
+                        break;
+                    case "-stream":
+                        streamingMemoryMB = Integer.parseInt(value);
+                        break;
+                    case "-r":
+                        reportPath = Paths.get(value);
+                        break;
+                    case "-w":
+                        watchDir = Paths.get(value);
+                        break;
+                    case "-q":
+                        queueCapacity = Integer.parseInt(value);
+                        break;
+                    case "-s":
+                        settleSeconds = Double.parseDouble(value);
+                        break;
+                    default:
+                        exitWithUsage("Unknown option " + arg);
+                }
+            } else if (arg.startsWith("-")) {
+                exitWithUsage("Missing value of option " + arg);
+            } else {
+                inputArgs.add(arg);
+            }
+        }
+        if (outputDir == null || inputArgs.isEmpty() == (watchDir == null) || numParallelProducts < 1 ||
+                memoryBudgetMB < 1 || queueCapacity < 1 || streamingMemoryMB < 0) {
+            exitWithUsage(null);
+        }
+
+        SystemUtils.init3rdPartyLibs(OlciHarmonisationBatch.class);
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        final Map<String, Object> parameters = createParameters(parameterTexts);
+        Files.createDirectories(outputDir);
+        if (reportPath == null) {
+            reportPath = outputDir.resolve(REPORT_FILE_NAME);
+        }
+        final Product demProduct = demPath != null ? ProductIO.readProduct(demPath.toFile()) : null;
+        if (demPath != null && demProduct == null) {
+            throw new IOException("Cannot read DEM product " + demPath);
+        }
+
+        final OlciHarmonisationBatch batch =
+                new OlciHarmonisationBatch(outputDir, formatName, parameters, demProduct,
+                                           numParallelProducts, memoryBudgetMB);
+        batch.setStreamingMemoryMB(streamingMemoryMB);
+        final List<ProductResult> results;
+        try {
+            if (watchDir != null) {
+                final OlciHarmonisationHotFolder hotFolder =
+                        new OlciHarmonisationHotFolder(batch, watchDir, reportPath, numParallelProducts,
+                                                       queueCapacity, (long) (1000 * settleSeconds));
+                // finish the products in process when the JVM is stopped
+                Runtime.getRuntime().addShutdownHook(new Thread(hotFolder::stop));
+                hotFolder.run();
+                return;
+            }
+            results = batch.run(collectInputs(inputArgs));
+        } finally {
+            if (demProduct != null) {
+                demProduct.dispose();
+            }
+        }
+        try (Writer writer = Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8)) {
+            writeReport(writer, results);
+        }
+        System.out.println("Report written to " + reportPath);
+        System.exit(results.stream().allMatch(result -> result.status == Status.OK) ? 0 : 2);
+    }
+
+    /**
+     * Processes given products.
+     *
+     * @param inputs - the paths of the OLCI L1b products
+     * @return the results, in the order of the inputs
+     * @throws IOException - if the desmile auxdata cannot be initialised
+     */
+    List<ProductResult> run(List<Path> inputs) throws IOException {
+        final long startTime = System.nanoTime();
+        warmUp();
+        final ExecutorService executorService = Executors.newFixedThreadPool(numParallelProducts);
+        final List<ProductResult> results = new ArrayList<>();
+        try {
+            final List<Future<ProductResult>> futures = new ArrayList<>();
+            for (Path input : inputs) {
+                futures.add(executorService.submit(() -> processInput(input)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                results.add(getResult(inputs.get(i), futures.get(i)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch processing interrupted.");
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        final long numFailed = results.stream().filter(result -> result.status != Status.OK).count();
+        SystemUtils.LOG.info(String.format(Locale.ENGLISH,
+                                           "OLCI Harmonisation batch: %d products processed in %.1f s, %d failed.",
+                                           results.size(), (System.nanoTime() - startTime) / 1.0E9, numFailed));
+        SystemUtils.LOG.info(DesmileAuxdataRegistry.getInstance().toString());
+        SystemUtils.LOG.info(DemTileCache.getInstance().toString());
+        return results;
+    }
+
+    /**
+     * Reads the desmile LUTs and builds their KD trees before the first product is processed, so that the
+     * concurrently processed products do not wait for each other on the first tiles.
+     *
+     * @throws IOException -
+     */
+    void warmUp() throws IOException {
+        final int lastBandToProcess = Boolean.FALSE.equals(parameters.get("processOnlyBand13")) ? 15 : 13;
+        final long startTime = System.nanoTime();
+        try {
+            for (int bandIndex = 13; bandIndex <= lastBandToProcess; bandIndex++) {
+                DesmileAuxdataRegistry.getInstance().get(bandIndex);
+            }
+        } catch (ParseException e) {
+            throw new IOException("Cannot initialize auxdata for desmile of transmissions.", e);
+        }
+        SystemUtils.LOG.info(String.format(Locale.ENGLISH, "OLCI Harmonisation batch: desmile auxdata ready in %.1f s.",
+                                           (System.nanoTime() - startTime) / 1.0E9));
+    }
+
+    /**
+     * Reads an OLCI L1b product.
+     *
+     * @param input - the path of the product
+     * @return the product
+     * @throws IOException -
+     */
+    Product readProduct(Path input) throws IOException {
+        final Product product = ProductIO.readProduct(input.toFile());
+        if (product == null) {
+            throw new IOException("No reader found for " + input);
+        }
+        return product;
+    }
+
+    /**
+     * Processes an OLCI L1b product and writes the target product.
+     *
+     * @param l1bProduct - the OLCI L1b product
+     * @param outputFile - the target file
+     * @throws IOException -
+     */
+    void process(Product l1bProduct, File outputFile) throws IOException {
+        final OlciHarmonisationOp operator = new OlciHarmonisationOp();
+        operator.setParameterDefaultValues();
+        operator.setSourceProduct("l1bProduct", l1bProduct);
+        if (demProduct != null) {
+            operator.setSourceProduct("demProduct", demProduct);
+        }
+        parameters.forEach((name, value) -> {
+            if (value != null) {
+                operator.setParameter(name, value);
+            }
+        });
+        // initialises the operator
+        final Product targetProduct = operator.getTargetProduct();
+        try {
+            if (streamingMemoryMB > 0) {
+                StripeWriter.write(operator, outputFile, formatName, (long) streamingMemoryMB << 20);
+            } else {
+                GPF.writeProduct(targetProduct, outputFile, formatName, false, ProgressMonitor.NULL);
+            }
+            writeStatisticsMetadata(operator, outputFile);
+        } finally {
+            targetProduct.dispose();
+        }
+    }
+
+    // the header is written before the target samples are computed, so it is written again with the statistics
+    private void writeStatisticsMetadata(OlciHarmonisationOp operator, File outputFile) throws IOException {
+        if (!operator.writeStatisticsMetadata()) {
+            return;
+        }
+        if (!ProductIO.DEFAULT_FORMAT_NAME.equals(formatName)) {
+            // other writers may not support writing the header of a written product again
+            SystemUtils.LOG.info("OLCI Harmonisation batch: processing statistics are not written to " +
+                                         formatName + " products.");
+            return;
+        }
+        final ProductWriter productWriter = ProductIO.getProductWriter(formatName);
+        try {
+            productWriter.writeProductNodes(operator.getTargetProduct(), outputFile);
+        } finally {
+            productWriter.close();
+        }
+    }
+
+    private static ProductResult getResult(Path input, Future<ProductResult> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // processInput reports all errors in the result, but e.g. the cleanup may still fail
+            final ProductResult result = new ProductResult(input);
+            result.message = getMessage(e.getCause());
+            SystemUtils.LOG.warning("OLCI Harmonisation batch: processing of " + input + " failed: " + result.message);
+            return result;
+        }
+    }
+
+    private static String getMessage(Throwable e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    /**
+     * Processes an OLCI L1b product, if the memory budget allows. The target product is written to a staging
+     * directory and then published atomically in the output directory. Errors are not thrown, but reported in
+     * the result.
+     *
+     * @param input - the path of the product
+     * @return the result
+     */
+    ProductResult processInput(Path input) {
+        final ProductResult result = new ProductResult(input);
+        final String outputName = getOutputName(input);
+        result.output = outputDir.resolve(outputName).toFile();
+        final Path stagingDir = outputDir.resolve(STAGING_DIR_NAME).resolve(outputName);
+        Product l1bProduct = null;
+        int permits = 0;
+        try {
+            long startTime = System.nanoTime();
+            l1bProduct = readProduct(input);
+            result.width = l1bProduct.getSceneRasterWidth();
+            result.height = l1bProduct.getSceneRasterHeight();
+            result.readMillis = (System.nanoTime() - startTime) / 1000000;
+
+            startTime = System.nanoTime();
+            final long estimatedMB = streamingMemoryMB > 0 ? streamingMemoryMB :
+                    estimateMemory(result.width, result.height) >> 20;
+            permits = (int) Math.max(1, Math.min(memoryBudgetMB, estimatedMB));
+            memory.acquire(permits);
+            result.waitMillis = (System.nanoTime() - startTime) / 1000000;
+
+            startTime = System.nanoTime();
+            // leftovers of an interrupted run are removed
+            deleteTree(stagingDir);
+            Files.createDirectories(stagingDir);
+            process(l1bProduct, stagingDir.resolve(outputName).toFile());
+            publish(stagingDir, outputDir);
+            result.processMillis = (System.nanoTime() - startTime) / 1000000;
+            result.status = Status.OK;
+            SystemUtils.LOG.info(String.format(Locale.ENGLISH, "OLCI Harmonisation batch: %s processed in %.1f s.",
+                                               input.getFileName(), result.processMillis / 1000.0));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permits = 0;
+            result.message = "interrupted";
+        } catch (Throwable e) {
+            // also errors, e.g. an OutOfMemoryError, only fail this product
+            result.message = getMessage(e);
+            SystemUtils.LOG.warning("OLCI Harmonisation batch: processing of " + input + " failed: " + result.message);
+        } finally {
+            if (permits > 0) {
+                memory.release(permits);
+            }
+            if (l1bProduct != null) {
+                l1bProduct.dispose();
+            }
+            if (result.status != Status.OK) {
+                try {
+                    deleteTree(stagingDir);
+                } catch (IOException e) {
+                    SystemUtils.LOG.warning("OLCI Harmonisation batch: cannot delete " + stagingDir + ": " + e.getMessage());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves the files written to a staging directory into the output directory, replacing files of the same
+     * names. Directories (e.g. the DIMAP data directory) are moved before files (e.g. the DIMAP header), so that
+     * a product appears complete as soon as its header file appears. Every move is atomic, as the staging
+     * directory is on the same file system as the output directory.
+     *
+     * @param stagingDir - the staging directory, deleted afterwards
+     * @param outputDir  - the output directory
+     * @throws IOException -
+     */
+    static void publish(Path stagingDir, Path outputDir) throws IOException {
+        final List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(stagingDir)) {
+            paths.forEach(entries::add);
+        }
+        entries.sort((entry1, entry2) -> Boolean.compare(!Files.isDirectory(entry1), !Files.isDirectory(entry2)));
+        for (Path entry : entries) {
+            final Path target = outputDir.resolve(entry.getFileName().toString());
+            deleteTree(target);
+            Files.move(entry, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.delete(stagingDir);
+    }
+
+    /**
+     * Deletes a file or a directory with all its contents, if existing.
+     *
+     * @param path - the file or directory
+     * @throws IOException -
+     */
+    static void deleteTree(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            final List<Path> all = paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            for (Path p : all) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * @param fileName - the name of a file or directory
+     * @return true, if the name is the one of an OLCI L1b product (*.SEN3 or *.zip)
+     */
+    static boolean isProductName(String fileName) {
+        return fileName.endsWith(".SEN3") || fileName.endsWith(".zip");
+    }
+
+    /**
+     * Estimates the memory needed to process a product, i.e. its source and target samples as they may be held
+     * in the tile cache. This is a coarse upper bound, as tiles are usually released after they were written.
+     *
+     * @param width  - the scene width
+     * @param height - the scene height
+     * @return the estimated memory in bytes
+     */
+    static long estimateMemory(int width, int height) {
+        return ESTIMATED_BYTES_PER_PIXEL * width * height;
+    }
+
+    /**
+     * Converts the parameters of the operator given as text (as on the GPT command line) to their values.
+     * Parameters not given get their default values.
+     *
+     * @param parameterTexts - the parameter values as text, by parameter name
+     * @return the parameter values, by parameter name
+     * @throws ValidationException - if a value is invalid
+     */
+    static Map<String, Object> createParameters(Map<String, String> parameterTexts) throws ValidationException {
+        final Map<String, Object> parameters = new HashMap<>();
+        final PropertySet parameterSet =
+                PropertyContainer.createMapBacked(parameters, OlciHarmonisationOp.class, new ParameterDescriptorFactory());
+        parameterSet.setDefaultValues();
+        for (Map.Entry<String, String> entry : parameterTexts.entrySet()) {
+            final Property property = parameterSet.getProperty(entry.getKey());
+            if (property == null) {
+                throw new IllegalArgumentException("Unknown parameter '" + entry.getKey() + "'.");
+            }
+            property.setValueFromText(entry.getValue());
+        }
+        return parameters;
+    }
+
+    /**
+     * Collects the products to be processed.
+     *
+     * @param inputArgs - products (e.g. *.SEN3 directories or *.zip files), directories containing products,
+     *                  or list files (*.txt, *.list) with one product path per line, relative to the list file
+     *                  (empty lines and lines starting with '#' are ignored)
+     * @return the paths of the products
+     * @throws IOException -
+     */
+    static List<Path> collectInputs(List<String> inputArgs) throws IOException {
+        final List<Path> inputs = new ArrayList<>();
+        for (String inputArg : inputArgs) {
+            final Path path = Paths.get(inputArg);
+            final String fileName = path.getFileName().toString();
+            if (Files.isDirectory(path) && !fileName.endsWith(".SEN3")) {
+                final List<Path> products = new ArrayList<>();
+                try (DirectoryStream<Path> paths =
+                             Files.newDirectoryStream(path, entry -> isProductName(entry.getFileName().toString()))) {
+                    paths.forEach(products::add);
+                }
+                products.sort(null);
+                inputs.addAll(products);
+            } else if (fileName.endsWith(".txt") || fileName.endsWith(".list")) {
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        inputs.add(path.toAbsolutePath().resolveSibling(line).normalize());
+                    }
+                }
+            } else {
+                inputs.add(path);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @param input - the path of an OLCI L1b product
+     * @return the name of the target file, without the extension of the format
+     */
+    static String getOutputName(Path input) {
+        Path path = input.toAbsolutePath().normalize();
+        if (path.getFileName().toString().equals("xfdumanifest.xml") && path.getParent() != null) {
+            path = path.getParent();
+        }
+        String name = path.getFileName().toString();
+        for (String extension : new String[]{".zip", ".SEN3"}) {
+            if (name.endsWith(extension)) {
+                name = name.substring(0, name.length() - extension.length());
+            }
+        }
+        return name + OUTPUT_SUFFIX;
+    }
+
+    /**
+     * Writes the results as CSV with the columns product, status, width, height, read_ms, wait_ms,
+     * process_ms, pixels_per_s, output and message. Product, output and message are quoted, with quotes doubled
+     * (see {@link OlciHarmonisationIO#quoteCsv(String)}).
+     *
+     * @param writer  - the writer
+     * @param results - the results
+     * @throws IOException -
+     */
+    static void writeReport(Writer writer, List<ProductResult> results) throws IOException {
+        writer.write(REPORT_HEADER + "\n");
+        for (ProductResult result : results) {
+            writer.write(formatReportLine(result) + "\n");
+        }
+    }
+
+    /**
+     * @param result - the result of a product
+     * @return the line of the report for the result (see {@link #writeReport(Writer, List)})
+     */
+    static String formatReportLine(ProductResult result) {
+        return String.format(Locale.ENGLISH, "%s,%s,%d,%d,%d,%d,%d,%.0f,%s,%s",
+                             OlciHarmonisationIO.quoteCsv(result.input.getFileName().toString()), result.status,
+                             result.width, result.height, result.readMillis, result.waitMillis, result.processMillis,
+                             result.getPixelsPerSecond(), OlciHarmonisationIO.quoteCsv(String.valueOf(result.output)),
+                             OlciHarmonisationIO.quoteCsv(result.message));
+    }
+
+    private static void exitWithUsage(String message) {
+        if (message != null) {
+            System.out.println(message);
+        }
+        System.out.println(USAGE);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,256 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.util.SystemUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches a directory and processes OLCI L1b products with an {@link OlciHarmonisationBatch} as soon as they
+ * have arrived, for near-real-time processing. The desmile auxdata is initialised once when the service starts.
+ * <p/>
+ * A product (*.SEN3 directory or *.zip file) is considered arrived when it has not changed for a settle time,
+ * and, for a *.SEN3 directory, contains its manifest. Arrived products are queued for a fixed number of processing
+ * threads. If the queue is full, further products stay in the watch directory until there is room again, and
+ * products wait for their share of the memory budget before they are processed. Target products are published
+ * atomically (see {@link OlciHarmonisationBatch#processInput(java.nio.file.Path)}).
+ * <p/>
+ * Every result is appended to the report file and synced to disk. Products reported as processed are skipped
+ * when the service is restarted, products which arrived while it was not running are processed on start.
+ *
+ * @author olafd
+ */
+class OlciHarmonisationHotFolder {
+
+    private static final long POLL_MILLIS = 200;
+
+    private final OlciHarmonisationBatch batch;
+    private final Path watchDir;
+    private final Path reportPath;
+    private final long settleMillis;
+    private final ThreadPoolExecutor executor;
+
+    // products seen, but not yet arrived completely, by file name
+    private final Map<String, Candidate> candidates = new LinkedHashMap<>();
+    // products processed or queued, by file name
+    private final Set<String> handled = new HashSet<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean running = true;
+
+    private static class Candidate {
+        final Path path;
+        String signature;
+        long changeTime;
+
+        Candidate(Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * @param batch               - processes the products
+     * @param watchDir            - the directory to watch
+     * @param reportPath          - the report file, also recording the products already processed
+     * @param numParallelProducts - the number of products processed concurrently
+     * @param queueCapacity       - the number of arrived products waiting for processing
+     * @param settleMillis        - the time a product must remain unchanged before it is processed
+     */
+    OlciHarmonisationHotFolder(OlciHarmonisationBatch batch, Path watchDir, Path reportPath, int numParallelProducts,
+                               int queueCapacity, long settleMillis) {
+        this.batch = batch;
+        this.watchDir = watchDir;
+        this.reportPath = reportPath;
+        this.settleMillis = settleMillis;
+        executor = new ThreadPoolExecutor(numParallelProducts, numParallelProducts, 0L, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<>(queueCapacity));
+    }
+
+    /**
+     * Watches the directory and processes the arriving products until {@link #stop()} is called. Products in
+     * process are completed before this method returns.
+     *
+     * @throws IOException - if the directory cannot be watched or the auxdata cannot be initialised
+     */
+    void run() throws IOException {
+        try (WatchService watchService = watchDir.getFileSystem().newWatchService()) {
+            handled.addAll(readProcessed(reportPath));
+            batch.warmUp();
+            watchDir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+            // products which arrived while the service was not running
+            scan();
+            SystemUtils.LOG.info("OLCI Harmonisation hot folder: watching " + watchDir + " (" + handled.size() +
+                                         " products already processed).");
+            while (running) {
+                final WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            scan();
+                        } else {
+                            addCandidate(watchDir.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        throw new IOException("Watch directory is no longer accessible: " + watchDir);
+                    }
+                }
+                submitArrived();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            SystemUtils.LOG.info("OLCI Harmonisation hot folder: stopped.");
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Stops the service and waits until the products in process are completed. Queued products which are not
+     * yet in process are processed again on restart.
+     */
+    void stop() {
+        running = false;
+        executor.getQueue().clear();
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scan() throws IOException {
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(watchDir)) {
+            paths.forEach(this::addCandidate);
+        }
+    }
+
+    private void addCandidate(Path path) {
+        final String fileName = path.getFileName().toString();
+        if (OlciHarmonisationBatch.isProductName(fileName) && !handled.contains(fileName)) {
+            candidates.computeIfAbsent(fileName, name -> new Candidate(path));
+        }
+    }
+
+    private void submitArrived() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Candidate> iterator = candidates.values().iterator();
+        while (iterator.hasNext()) {
+            final Candidate candidate = iterator.next();
+            final String signature;
+            try {
+                signature = getSignature(candidate.path);
+            } catch (IOException e) {
+                // removed or renamed again
+                iterator.remove();
+                continue;
+            }
+            if (signature == null || !signature.equals(candidate.signature)) {
+                candidate.signature = signature;
+                candidate.changeTime = now;
+            } else if (now - candidate.changeTime >= settleMillis) {
+                try {
+                    executor.execute(() -> record(batch.processInput(candidate.path)));
+                } catch (RejectedExecutionException e) {
+                    // queue is full, the product is submitted later
+                    return;
+                }
+                iterator.remove();
+                handled.add(candidate.path.getFileName().toString());
+            }
+        }
+    }
+
+    /**
+     * @param path - a product file or directory
+     * @return a signature changing whenever the product is modified, or null if it is incomplete
+     * @throws IOException -
+     */
+    static String getSignature(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.size() + "@" + attributes.lastModifiedTime().toMillis();
+        }
+        if (!Files.isRegularFile(path.resolve("xfdumanifest.xml"))) {
+            return null;
+        }
+        long count = 0;
+        long size = 0;
+        long lastModified = 0;
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Iterator<Path> iterator = paths.iterator(); iterator.hasNext(); ) {
+                final BasicFileAttributes attributes = Files.readAttributes(iterator.next(), BasicFileAttributes.class);
+                count++;
+                size += attributes.size();
+                lastModified = Math.max(lastModified, attributes.lastModifiedTime().toMillis());
+            }
+        }
+        return count + ":" + size + "@" + lastModified;
+    }
+
+    private synchronized void record(OlciHarmonisationBatch.ProductResult result) {
+        try (FileChannel channel = FileChannel.open(reportPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.APPEND)) {
+            final String header = channel.size() == 0 ? OlciHarmonisationBatch.REPORT_HEADER + "\n" : "";
+            final String line = header + OlciHarmonisationBatch.formatReportLine(result) + "\n";
+            channel.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        } catch (IOException e) {
+            SystemUtils.LOG.severe("OLCI Harmonisation hot folder: cannot record result of " + result.input +
+                                           " in " + reportPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the products processed successfully from a report.
+     *
+     * @param reportPath - the report file
+     * @return the file names of the products, empty if there is no report yet
+     * @throws IOException -
+     */
+    static Set<String> readProcessed(Path reportPath) throws IOException {
+        final Set<String> processed = new HashSet<>();
+        if (Files.isRegularFile(reportPath)) {
+            final List<String> lines = Files.readAllLines(reportPath, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                // the product names are quoted, as they may contain commas
+                final String[] columns = OlciHarmonisationIO.splitCsvLine(line, ',');
+                if (columns.length > 2 && OlciHarmonisationBatch.Status.OK.name().equals(columns[1])) {
+                    processed.add(columns[0]);
+                }
+            }
+        }
+        return processed;
+    }
+}
@@ -10,11 +10,21 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
-import smile.neighbor.KDTree;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -25,6 +35,13 @@ import java.util.stream.Collectors;
  */
 public class OlciHarmonisationIO {
 
+    static final String DESMILE_LUT_FILE_PREFIX = "O2_desmile_lut_";
+    static final String DESMILE_LUT_JSON_EXTENSION = ".json";
+    static final String DESMILE_LUT_BINARY_EXTENSION = ".bin";
+
+    private static final int DESMILE_LUT_BINARY_MAGIC = 0x4F32444C;   // 'O2DL'
+    private static final int DESMILE_LUT_BINARY_VERSION = 1;
+
     /**
      * Validates the OLCI L1b source product.
      *
@@ -165,19 +182,19 @@ public class OlciHarmonisationIO {
     }
 
     /**
-     * Creates a KDTree object from a given {@link DesmileLut} lookup table object.
+     * Creates a KD tree object from a given {@link DesmileLut} lookup table object.
      *
      * @param desmileLut - the lookup table for desmiling
      *
-     * @return the KDTree object
+     * @return the KD tree object
      */
-    public static KDTree<double[]> createKDTreeForDesmileInterpolation(DesmileLut desmileLut) {
-        return new KDTree<>(desmileLut.getX(), desmileLut.getX());
+    public static DesmileKdTree createKDTreeForDesmileInterpolation(DesmileLut desmileLut) {
+        return new DesmileKdTree(desmileLut.getX(), (int) desmileLut.getLeafsize());
     }
 
     /**
-     * Creates a {@link DesmileLut} lookup table object for given band
-     *
+     * Creates a {@link DesmileLut} lookup table object for given band. A binary lookup table file
+     * (see {@link #writeDesmileLutBinary(DesmileLut, Path)}) is used if it exists next to the JSON file.
      *
      * @param auxdataPath - the path where the auxdata was installed before
      * @param bandIndex - the band index
@@ -187,10 +204,55 @@ public class OlciHarmonisationIO {
      * @throws ParseException -
      */
     public static DesmileLut createDesmileLut(Path auxdataPath, int bandIndex) throws IOException, ParseException {
-        final String jsonFilename = "O2_desmile_lut_" + bandIndex + ".json";
-        final Path jsonPath =  auxdataPath.resolve(jsonFilename);
+        final Path lutPath = getDesmileLutPath(auxdataPath, bandIndex);
+        if (lutPath.getFileName().toString().endsWith(DESMILE_LUT_BINARY_EXTENSION)) {
+            return readDesmileLutBinary(lutPath);
+        }
+        return createDesmileLut(lutPath);
+    }
+
+    /**
+     * Provides the path of the {@link DesmileLut} lookup table file for given band, which is the binary
+     * file if it exists and is at least as new as the JSON file, otherwise the JSON file. So a JSON file updated
+     * after the conversion is not shadowed by the outdated binary file.
+     *
+     * @param auxdataPath - the path where the auxdata was installed before
+     * @param bandIndex - the band index
+     *
+     * @return the lookup table file path
+     */
+    static Path getDesmileLutPath(Path auxdataPath, int bandIndex) {
+        final Path binaryPath = auxdataPath.resolve(DESMILE_LUT_FILE_PREFIX + bandIndex + DESMILE_LUT_BINARY_EXTENSION);
+        final Path jsonPath = auxdataPath.resolve(DESMILE_LUT_FILE_PREFIX + bandIndex + DESMILE_LUT_JSON_EXTENSION);
+        if (Files.isRegularFile(binaryPath)) {
+            try {
+                if (!Files.isRegularFile(jsonPath) ||
+                        Files.getLastModifiedTime(binaryPath).compareTo(Files.getLastModifiedTime(jsonPath)) >= 0) {
+                    // preferred, much faster to read than the JSON
+                    return binaryPath;
+                }
+            } catch (IOException e) {
+                // the JSON file is used
+            }
+        }
+        return jsonPath;
+    }
+
+    /**
+     * Creates a {@link DesmileLut} lookup table object from given JSON file
+     *
+     * @param jsonPath - the path of the JSON lookup table file
+     *
+     * @return the DesmileLut object
+     * @throws IOException -
+     * @throws ParseException -
+     */
+    public static DesmileLut createDesmileLut(Path jsonPath) throws IOException, ParseException {
         JSONParser jsonParser = new JSONParser();
-        JSONObject jsonObject = (JSONObject) jsonParser.parse(new FileReader(jsonPath.toString()));
+        JSONObject jsonObject;
+        try (FileReader reader = new FileReader(jsonPath.toString())) {
+            jsonObject = (JSONObject) jsonParser.parse(reader);
+        }
 
         // parse JSON file...
         final long L = OlciHarmonisationIO.parseJSONInt(jsonObject, "L");
@@ -209,6 +271,185 @@ public class OlciHarmonisationIO {
         return new DesmileLut(L, M, N, X, Y, jacobians, MEAN, VARI, cwvl, cbwd, leafsize, sequ);
     }
 
+    /**
+     * Writes a {@link DesmileLut} lookup table object to a binary file. The layout (big endian) is:
+     * <ul>
+     * <li>header: magic number 'O2DL' (int), format version (int), L, M, N, leafsize (long), cwvl, cbwd (double),
+     * number of 'sequ' strings (int) followed by each string as length (int) and UTF-8 bytes,
+     * zero-padded to a multiple of 8 bytes</li>
+     * <li>X (L*N), Y (L*M), JACO (L*M*N), MEAN (N) and VARI (N) as contiguous blocks of doubles</li>
+     * </ul>
+     * The file is written to a temporary file in the same directory first, which is then moved to the binary path,
+     * so that readers never see a partially written file.
+     *
+     * @param desmileLut - the lookup table
+     * @param binaryPath - the path of the binary file to write
+     *
+     * @throws IOException -
+     */
+    public static void writeDesmileLutBinary(DesmileLut desmileLut, Path binaryPath) throws IOException {
+        final Path absoluteBinaryPath = binaryPath.toAbsolutePath();
+        final Path tmpPath = Files.createTempFile(absoluteBinaryPath.getParent(),
+                                                  absoluteBinaryPath.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+                writeDesmileLutBinary(desmileLut, out);
+            }
+            Files.move(tmpPath, absoluteBinaryPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    private static void writeDesmileLutBinary(DesmileLut desmileLut, DataOutputStream out) throws IOException {
+        out.writeInt(DESMILE_LUT_BINARY_MAGIC);
+        out.writeInt(DESMILE_LUT_BINARY_VERSION);
+        out.writeLong(desmileLut.getL());
+        out.writeLong(desmileLut.getM());
+        out.writeLong(desmileLut.getN());
+        out.writeLong(desmileLut.getLeafsize());
+        out.writeDouble(desmileLut.getCwvl());
+        out.writeDouble(desmileLut.getCbwd());
+        out.writeInt(desmileLut.getSequ().length);
+        for (String sequ : desmileLut.getSequ()) {
+            final byte[] bytes = sequ.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        while (out.size() % 8 != 0) {
+            out.writeByte(0);
+        }
+
+        for (double[] x : desmileLut.getX()) {
+            writeDoubles(out, x);
+        }
+        for (double[] y : desmileLut.getY()) {
+            writeDoubles(out, y);
+        }
+        for (double[][] jaco : desmileLut.getJACO()) {
+            for (double[] jacoRow : jaco) {
+                writeDoubles(out, jacoRow);
+            }
+        }
+        writeDoubles(out, desmileLut.getMEAN());
+        writeDoubles(out, desmileLut.getVARI());
+    }
+
+    /**
+     * Reads a {@link DesmileLut} lookup table object from a binary file written by
+     * {@link #writeDesmileLutBinary(DesmileLut, Path)}. The file is memory-mapped.
+     *
+     * @param binaryPath - the path of the binary file
+     *
+     * @return the DesmileLut object
+     * @throws IOException -
+     */
+    public static DesmileLut readDesmileLutBinary(Path binaryPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(binaryPath, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != DESMILE_LUT_BINARY_MAGIC) {
+                throw new IOException("Not a binary desmile lookup table: " + binaryPath);
+            }
+            final int version = buffer.getInt();
+            if (version != DESMILE_LUT_BINARY_VERSION) {
+                throw new IOException("Unsupported binary desmile lookup table version " + version + ": " + binaryPath);
+            }
+            final long L = buffer.getLong();
+            final long M = buffer.getLong();
+            final long N = buffer.getLong();
+            final long leafsize = buffer.getLong();
+            final double cwvl = buffer.getDouble();
+            final double cbwd = buffer.getDouble();
+            final String[] sequ = new String[buffer.getInt()];
+            for (int i = 0; i < sequ.length; i++) {
+                final byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                sequ[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            buffer.position((buffer.position() + 7) / 8 * 8);
+
+            final DoubleBuffer doubles = buffer.asDoubleBuffer();
+            final double[][] X = new double[(int) L][(int) N];
+            for (double[] x : X) {
+                doubles.get(x);
+            }
+            final double[][] Y = new double[(int) L][(int) M];
+            for (double[] y : Y) {
+                doubles.get(y);
+            }
+            final double[][][] jacobians = new double[(int) L][(int) M][(int) N];
+            for (double[][] jaco : jacobians) {
+                for (double[] jacoRow : jaco) {
+                    doubles.get(jacoRow);
+                }
+            }
+            final double[] MEAN = new double[(int) N];
+            doubles.get(MEAN);
+            final double[] VARI = new double[(int) N];
+            doubles.get(VARI);
+
+            return new DesmileLut(L, M, N, X, Y, jacobians, MEAN, VARI, cwvl, cbwd, leafsize, sequ);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated binary desmile lookup table: " + binaryPath, e);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    /**
+     * Quotes a free text value for a CSV file (RFC 4180): the value is enclosed in quotes, and quotes are doubled.
+     * Line breaks are replaced by blanks, so that every record stays on one line.
+     *
+     * @param value - the value
+     * @return the quoted value
+     */
+    static String quoteCsv(String value) {
+        return "\"" + value.replace("\"", "\"\"").replace('\r', ' ').replace('\n', ' ') + "\"";
+    }
+
+    /**
+     * Splits a line of a CSV file into its fields. Fields may be quoted as done by {@link #quoteCsv(String)},
+     * i.e. enclosed in quotes, with quotes doubled. Separators within quoted fields do not split the field.
+     * Quotes within unquoted fields are kept.
+     *
+     * @param line      - the line
+     * @param separator - the field separator
+     * @return the fields, unquoted but not trimmed
+     */
+    static String[] splitCsvLine(String line, char separator) {
+        final List<String> fields = new ArrayList<>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"' && field.toString().trim().isEmpty()) {
+                // only a quote at the start of a field opens a quoted field, other quotes are kept as they are
+                quoted = true;
+                field.setLength(0);
+            } else if (c == separator) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
     /**
      * Installs auxiliary data (i.e. lookup tables for desmiling).
      *
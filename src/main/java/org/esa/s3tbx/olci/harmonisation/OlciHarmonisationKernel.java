@@ -0,0 +1,643 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import java.util.Arrays;
+
+/**
+ * Kernel of the OLCI Harmonisation, working on primitive sample buffers of a tile.
+ * The samples are processed in batches (typically a tile row): the inputs of a batch are gathered into
+ * scratch arrays (structure of arrays), which are then processed stage by stage with the batched functions
+ * of {@link OlciHarmonisationAlgorithm}, so that the simple loops can be vectorised by the JIT. Invalid
+ * pixels are masked and only excluded from the desmile, the other stages compute them anyway.
+ * Optionally (single precision engine), the stages work on float source buffers and float instead of double
+ * scratch arrays, using the single precision functions of {@link OlciHarmonisationAlgorithm} and
+ * {@link FloatDesmileLut}s.
+ * The scratch arrays are reused for every batch. An instance must therefore not be shared between threads.
+ * The surface_ outputs only need altitude (or DEM altitude) and sea level pressure, optionally with the fast
+ * polynomial functions of {@link FastSurfaceTransmission}.
+ * If a statistics accumulator is set, the desmile and rectification stages are timed and the invalid pixels
+ * and KD queries are counted.
+ *
+ * @author olafd
+ */
+class OlciHarmonisationKernel {
+
+    private static final int INVALID_MASK = 1 << OlciHarmonisationConstants.OLCI_INVALID_BIT;
+
+    private final DesmileLut[] desmileLuts;
+    private final DesmileKdTree[] desmileKdTrees;
+    private final DesmileGrid[] desmileGrids;
+    private final DesmileCache desmileCache;
+    private final FloatDesmileLut[] floatDesmileLuts;
+    private final DesmileCache.FactorFunction desmileFactorFunction = this::computeDesmileFactor;
+    private final double[] wo = new double[4];
+    private final float[] woF = new float[4];
+    private OlciHarmonisationStatistics.Accumulator statistics;
+    private boolean countInvalidPixels = true;
+    private boolean fastSurfaceTransmission;
+    private int numValid;
+
+    // scratch arrays of a batch, grown on demand
+    private int capacity;
+    private boolean[] valid;
+    private double[] altitude;
+    private double[] slp;
+    private double[] surfacePress;
+    private double[] sza;
+    private double[] oza;
+    private double[] amf;
+    private double[] cwl0;
+    private double[] r0;
+    private double[] grad;
+    private double[] solarFlux;
+    private double[] fwhm;
+    private double[] dwl;
+    private double[] radianceAbsFree;
+    private double[] trans;
+    private double[] desmileFactor;
+    private double[] transRectified;
+    private double[] result;
+    private double[][] normalised;
+
+    // scratch arrays of the single precision engine
+    private float[] altitudeF;
+    private float[] slpF;
+    private float[] surfacePressF;
+    private float[] szaF;
+    private float[] ozaF;
+    private float[] amfF;
+    private float[] cwl0F;
+    private float[] r0F;
+    private float[] gradF;
+    private float[] solarFluxF;
+    private float[] fwhmF;
+    private float[] dwlF;
+    private float[] radianceAbsFreeF;
+    private float[] transF;
+    private float[] desmileFactorF;
+    private float[] transRectifiedF;
+    private float[] resultF;
+    private float[][] normalisedF;
+
+    /**
+     * @param desmileLuts    - the desmile LUTs of bands 13..15. May contain null for bands without spectral outputs.
+     * @param desmileKdTrees - the KD trees of bands 13..15. May contain null for bands without spectral outputs.
+     */
+    OlciHarmonisationKernel(DesmileLut[] desmileLuts, DesmileKdTree[] desmileKdTrees) {
+        this(desmileLuts, desmileKdTrees, new DesmileGrid[desmileLuts.length], null);
+    }
+
+    /**
+     * @param desmileLuts    - the desmile LUTs of bands 13..15. May contain null for bands without spectral outputs.
+     * @param desmileKdTrees - the KD trees of bands 13..15. May contain null for bands without spectral outputs.
+     * @param desmileGrids   - the desmile grids of bands 13..15, to be used instead of the KD search.
+     *                       May contain null for bands to be desmiled with the KD search.
+     * @param desmileCache   - the cache of desmile factors, or null if the factors shall always be computed
+     */
+    OlciHarmonisationKernel(DesmileLut[] desmileLuts, DesmileKdTree[] desmileKdTrees, DesmileGrid[] desmileGrids,
+                            DesmileCache desmileCache) {
+        this(desmileLuts, desmileKdTrees, desmileGrids, desmileCache, null);
+    }
+
+    /**
+     * @param desmileLuts      - the desmile LUTs of bands 13..15. May contain null for bands without spectral outputs.
+     * @param desmileKdTrees   - the KD trees of bands 13..15. May contain null for bands without spectral outputs.
+     * @param desmileGrids     - the desmile grids of bands 13..15, to be used instead of the KD search.
+     *                         May contain null for bands to be desmiled with the KD search.
+     * @param desmileCache     - the cache of desmile factors, or null if the factors shall always be computed
+     * @param floatDesmileLuts - the single precision desmile LUTs of bands 13..15 if the single precision engine
+     *                         shall be used, null otherwise. The desmile LUTs and KD trees are then only needed
+     *                         for bands without single precision LUT.
+     */
+    OlciHarmonisationKernel(DesmileLut[] desmileLuts, DesmileKdTree[] desmileKdTrees, DesmileGrid[] desmileGrids,
+                            DesmileCache desmileCache, FloatDesmileLut[] floatDesmileLuts) {
+        this.desmileLuts = desmileLuts;
+        this.desmileKdTrees = desmileKdTrees;
+        this.desmileGrids = desmileGrids;
+        this.desmileCache = desmileCache;
+        this.floatDesmileLuts = floatDesmileLuts;
+    }
+
+    /**
+     * @return the cache of desmile factors, or null if the factors are always computed
+     */
+    DesmileCache getDesmileCache() {
+        return desmileCache;
+    }
+
+    /**
+     * @param statistics - the statistics accumulator of the current thread, or null if no statistics are collected
+     */
+    void setStatistics(OlciHarmonisationStatistics.Accumulator statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @param countInvalidPixels - false, if the invalid pixels shall not be counted by the statistics accumulator,
+     *                           e.g. as the pixels are also computed for other target bands, and counted there
+     */
+    void setCountInvalidPixels(boolean countInvalidPixels) {
+        this.countInvalidPixels = countInvalidPixels;
+    }
+
+    /**
+     * @param fastSurfaceTransmission - true, if the surface_ outputs shall be computed with the polynomial
+     *                                replacements of Math.pow and Math.exp (see {@link FastSurfaceTransmission})
+     */
+    void setFastSurfaceTransmission(boolean fastSurfaceTransmission) {
+        this.fastSurfaceTransmission = fastSurfaceTransmission;
+    }
+
+    /**
+     * @return true, if the single precision engine is used
+     */
+    boolean isSinglePrecision() {
+        return floatDesmileLuts != null;
+    }
+
+    /**
+     * Computes the requested target samples for the sample indices in [from, to) as one batch.
+     * Only the source buffers needed for the requested outputs are accessed (see {@link SourceSamples}).
+     *
+     * @param src  - the source samples
+     * @param tgt  - the target samples. Outputs which are not requested are null.
+     * @param from - first source sample index (inclusive)
+     * @param to   - last source sample index (exclusive)
+     */
+    void compute(SourceSamples src, TargetSamples tgt, int from, int to) {
+        final int n = to - from;
+        if (n <= 0) {
+            return;
+        }
+        ensureCapacity(n);
+
+        numValid = 0;
+        for (int p = 0; p < n; p++) {
+            valid[p] = isValid(src.qualityFlags[from + p]);
+            numValid += valid[p] ? 1 : 0;
+        }
+        if (statistics != null && countInvalidPixels) {
+            statistics.count(OlciHarmonisationStatistics.Counter.INVALID_PIXELS, n - numValid);
+        }
+        if (numValid == 0) {
+            tgt.setInvalid(from + tgt.offset, to + tgt.offset);
+            return;
+        }
+
+        if (isSinglePrecision()) {
+            if (tgt.isSurfaceRequested()) {
+                computeSurfaceFloat(src, tgt, from, n);
+            }
+            if (tgt.isSpectralRequested()) {
+                computeSpectralFloat(src, tgt, from, n);
+            }
+        } else {
+            if (tgt.isSurfaceRequested()) {
+                computeSurface(src, tgt, from, n);
+            }
+            if (tgt.isSpectralRequested()) {
+                computeSpectral(src, tgt, from, n);
+            }
+        }
+    }
+
+    /**
+     * @param qualityFlags - the quality_flags sample of a pixel
+     * @return true, if the OLCI invalid bit is not set
+     */
+    static boolean isValid(int qualityFlags) {
+        return (qualityFlags & INVALID_MASK) == 0;
+    }
+
+    private void computeSurface(SourceSamples src, TargetSamples tgt, int from, int n) {
+        final boolean useDem = src.demAltitude != null && src.collocationFlags != null;
+        for (int p = 0; p < n; p++) {
+            final int i = from + p;
+            // if all info from DEM is present, use DEM altitude:
+            altitude[p] = useDem && src.collocationFlags[i] == 1 ? src.demAltitude[i] : src.altitude[i];
+            slp[p] = src.slp[i];
+        }
+        if (fastSurfaceTransmission) {
+            FastSurfaceTransmission.height2press(altitude, slp, surfacePress, 0, n);
+        } else {
+            OlciHarmonisationAlgorithm.height2press(altitude, slp, surfacePress, 0, n);
+        }
+        for (int b = 0; b < tgt.surface.length; b++) {
+            if (tgt.surface[b] != null) {
+                if (fastSurfaceTransmission) {
+                    FastSurfaceTransmission.press2Trans(surfacePress, b + 13, result, 0, n);
+                } else {
+                    OlciHarmonisationAlgorithm.press2Trans(surfacePress, b + 13, result, 0, n);
+                }
+                store(result, tgt.surface[b], from + tgt.offset, n);
+            }
+        }
+    }
+
+    private void computeSpectral(SourceSamples src, TargetSamples tgt, int from, int n) {
+        // Preparing input data...
+        if (src.amf != null) {
+            System.arraycopy(src.amf, from, amf, 0, n);
+        } else {
+            System.arraycopy(src.sza, from, sza, 0, n);
+            System.arraycopy(src.oza, from, oza, 0, n);
+            OlciHarmonisationAlgorithm.computeAmf(sza, oza, amf, 0, n);
+        }
+
+        // spectral characterisation per detector if available, per pixel otherwise
+        final DetectorSpectralTable.Snapshot table = src.detectorTable;
+
+        // bands 12 and 16 are always needed for the absorption-free interpolation
+        for (int p = 0; p < n; p++) {
+            final int i = from + p;
+            // the table only covers the detectors of valid pixels
+            final int det = table != null && valid[p] ? (int) src.detectorIndex[i] : 0;
+            final double cwlLeft = table != null ? table.cwl[0][det] : src.cwl[0][i];
+            final double cwlRight = table != null ? table.cwl[4][det] : src.cwl[4][i];
+            final double rLeft = src.radiance[0][i] / (table != null ? table.solarFlux[0][det] : src.solarFlux[0][i]);
+            final double rRight = src.radiance[4][i] / (table != null ? table.solarFlux[4][det] : src.solarFlux[4][i]);
+            final double dlam = cwlRight - cwlLeft;
+            cwl0[p] = cwlLeft;
+            r0[p] = rLeft;
+            grad[p] = dlam > 0.0001 ? (rRight - rLeft) / dlam : Double.NaN;
+        }
+
+        // Processing data...
+        for (int b = 0; b < tgt.trans.length; b++) {   // 13, 14, 15 !!
+            if (!tgt.isSpectralRequested(b)) {
+                continue;
+            }
+            final int k = b + 1;
+            for (int p = 0; p < n; p++) {
+                final int i = from + p;
+                final int det = table != null && valid[p] ? (int) src.detectorIndex[i] : 0;
+                final double cwl = table != null ? table.cwl[k][det] : src.cwl[k][i];
+                solarFlux[p] = table != null ? table.solarFlux[k][det] : src.solarFlux[k][i];
+                fwhm[p] = table != null ? table.fwhm[k][det] : src.fwhm[k][i];
+                radianceAbsFree[p] = r0[p] + grad[p] * (cwl - cwl0[p]);
+                trans[p] = src.radiance[k][i] / solarFlux[p] / radianceAbsFree[p];
+                if (table != null) {
+                    dwl[p] = table.dwl[b][det];
+                } else {
+                    dwl[p] = (cwl + OlciHarmonisationAlgorithm.overcorrectLambda(
+                            src.detectorIndex[i], OlciHarmonisationConstants.DWL_CORR_OFFSET[b])) -
+                            OlciHarmonisationConstants.cwvl[b];
+                }
+            }
+
+            final long desmileStart = statistics != null ? System.nanoTime() : 0L;
+            computeDesmileFactors(src, b, from, n);
+            final long rectificationStart = statistics != null ?
+                    statistics.addSince(OlciHarmonisationStatistics.Stage.DESMILE, desmileStart) : 0L;
+            for (int p = 0; p < n; p++) {
+                result[p] = trans[p] / desmileFactor[p];
+            }
+            OlciHarmonisationAlgorithm.rectifyDesmiledTransmission(result, amf, b + 13, transRectified, 0, n);
+
+            final int j = from + tgt.offset;
+            if (tgt.trans[b] != null) {
+                store(transRectified, tgt.trans[b], j, n);
+            }
+            if (tgt.press[b] != null) {
+                OlciHarmonisationAlgorithm.trans2Press(transRectified, b + 13, result, 0, n);
+                store(result, tgt.press[b], j, n);
+            }
+            if (tgt.radiance[b] != null) {
+                for (int p = 0; p < n; p++) {
+                    result[p] = radianceAbsFree[p] * solarFlux[p] * transRectified[p];
+                }
+                store(result, tgt.radiance[b], j, n);
+            }
+            if (statistics != null) {
+                statistics.addSince(OlciHarmonisationStatistics.Stage.RECTIFICATION, rectificationStart);
+            }
+        }
+    }
+
+    private void computeDesmileFactors(SourceSamples src, int b, int from, int n) {
+        if (desmileCache == null && desmileGrids[b] == null) {
+            OlciHarmonisationAlgorithm.desmileFactor(dwl, fwhm, amf, trans, valid, desmileKdTrees[b], desmileLuts[b],
+                                                     normalised, desmileFactor, 0, n);
+            countKdQueries(numValid);
+            return;
+        }
+        for (int p = 0; p < n; p++) {
+            if (!valid[p]) {
+                desmileFactor[p] = Double.NaN;
+            } else if (desmileCache != null) {
+                desmileFactor[p] = desmileCache.desmileFactor(b, src.detectorIndex[from + p], dwl[p], fwhm[p],
+                                                              amf[p], trans[p], desmileFactorFunction);
+            } else {
+                desmileFactor[p] = computeDesmileFactor(b, dwl[p], fwhm[p], amf[p], trans[p]);
+            }
+        }
+    }
+
+    private void computeSurfaceFloat(SourceSamples src, TargetSamples tgt, int from, int n) {
+        final boolean useDem = src.demAltitude != null && src.collocationFlags != null;
+        for (int p = 0; p < n; p++) {
+            final int i = from + p;
+            altitudeF[p] = useDem && src.collocationFlags[i] == 1 ? (float) src.demAltitude[i] : src.altitudeF[i];
+        }
+        System.arraycopy(src.slpF, from, slpF, 0, n);
+        if (fastSurfaceTransmission) {
+            FastSurfaceTransmission.height2press(altitudeF, slpF, surfacePressF, 0, n);
+        } else {
+            OlciHarmonisationAlgorithm.height2press(altitudeF, slpF, surfacePressF, 0, n);
+        }
+        for (int b = 0; b < tgt.surface.length; b++) {
+            if (tgt.surface[b] != null) {
+                if (fastSurfaceTransmission) {
+                    FastSurfaceTransmission.press2Trans(surfacePressF, b + 13, resultF, 0, n);
+                } else {
+                    OlciHarmonisationAlgorithm.press2Trans(surfacePressF, b + 13, resultF, 0, n);
+                }
+                store(resultF, tgt.surface[b], from + tgt.offset, n);
+            }
+        }
+    }
+
+    private void computeSpectralFloat(SourceSamples src, TargetSamples tgt, int from, int n) {
+        if (src.amfF != null) {
+            System.arraycopy(src.amfF, from, amfF, 0, n);
+        } else {
+            System.arraycopy(src.szaF, from, szaF, 0, n);
+            System.arraycopy(src.ozaF, from, ozaF, 0, n);
+            OlciHarmonisationAlgorithm.computeAmf(szaF, ozaF, amfF, 0, n);
+        }
+
+        final DetectorSpectralTable.Snapshot table = src.detectorTable;
+        for (int p = 0; p < n; p++) {
+            final int i = from + p;
+            final int det = table != null && valid[p] ? (int) src.detectorIndex[i] : 0;
+            final float cwlLeft = (float) (table != null ? table.cwl[0][det] : src.cwl[0][i]);
+            final float cwlRight = (float) (table != null ? table.cwl[4][det] : src.cwl[4][i]);
+            final float rLeft = src.radianceF[0][i] /
+                    (float) (table != null ? table.solarFlux[0][det] : src.solarFlux[0][i]);
+            final float rRight = src.radianceF[4][i] /
+                    (float) (table != null ? table.solarFlux[4][det] : src.solarFlux[4][i]);
+            final float dlam = cwlRight - cwlLeft;
+            cwl0F[p] = cwlLeft;
+            r0F[p] = rLeft;
+            gradF[p] = dlam > 0.0001f ? (rRight - rLeft) / dlam : Float.NaN;
+        }
+
+        for (int b = 0; b < tgt.trans.length; b++) {   // 13, 14, 15 !!
+            if (!tgt.isSpectralRequested(b)) {
+                continue;
+            }
+            final int k = b + 1;
+            for (int p = 0; p < n; p++) {
+                final int i = from + p;
+                final int det = table != null && valid[p] ? (int) src.detectorIndex[i] : 0;
+                final float cwl = (float) (table != null ? table.cwl[k][det] : src.cwl[k][i]);
+                solarFluxF[p] = (float) (table != null ? table.solarFlux[k][det] : src.solarFlux[k][i]);
+                fwhmF[p] = (float) (table != null ? table.fwhm[k][det] : src.fwhm[k][i]);
+                radianceAbsFreeF[p] = r0F[p] + gradF[p] * (cwl - cwl0F[p]);
+                transF[p] = src.radianceF[k][i] / solarFluxF[p] / radianceAbsFreeF[p];
+                if (table != null) {
+                    dwlF[p] = (float) table.dwl[b][det];
+                } else {
+                    dwlF[p] = (float) ((cwl + OlciHarmonisationAlgorithm.overcorrectLambda(
+                            src.detectorIndex[i], OlciHarmonisationConstants.DWL_CORR_OFFSET[b])) -
+                            OlciHarmonisationConstants.cwvl[b]);
+                }
+            }
+
+            final long desmileStart = statistics != null ? System.nanoTime() : 0L;
+            computeDesmileFactorsFloat(src, b, from, n);
+            final long rectificationStart = statistics != null ?
+                    statistics.addSince(OlciHarmonisationStatistics.Stage.DESMILE, desmileStart) : 0L;
+            for (int p = 0; p < n; p++) {
+                resultF[p] = transF[p] / desmileFactorF[p];
+            }
+            OlciHarmonisationAlgorithm.rectifyDesmiledTransmission(resultF, amfF, b + 13, transRectifiedF, 0, n);
+
+            final int j = from + tgt.offset;
+            if (tgt.trans[b] != null) {
+                store(transRectifiedF, tgt.trans[b], j, n);
+            }
+            if (tgt.press[b] != null) {
+                OlciHarmonisationAlgorithm.trans2Press(transRectifiedF, b + 13, resultF, 0, n);
+                store(resultF, tgt.press[b], j, n);
+            }
+            if (tgt.radiance[b] != null) {
+                for (int p = 0; p < n; p++) {
+                    resultF[p] = radianceAbsFreeF[p] * solarFluxF[p] * transRectifiedF[p];
+                }
+                store(resultF, tgt.radiance[b], j, n);
+            }
+            if (statistics != null) {
+                statistics.addSince(OlciHarmonisationStatistics.Stage.RECTIFICATION, rectificationStart);
+            }
+        }
+    }
+
+    private void computeDesmileFactorsFloat(SourceSamples src, int b, int from, int n) {
+        if (desmileCache == null && desmileGrids[b] == null) {
+            OlciHarmonisationAlgorithm.desmileFactor(dwlF, fwhmF, amfF, transF, valid, floatDesmileLuts[b],
+                                                     normalisedF, desmileFactorF, 0, n);
+            countKdQueries(numValid);
+            return;
+        }
+        // the grid works in double precision, the cache stores the factors in double
+        for (int p = 0; p < n; p++) {
+            if (!valid[p]) {
+                desmileFactorF[p] = Float.NaN;
+            } else if (desmileCache != null) {
+                desmileFactorF[p] = (float) desmileCache.desmileFactor(b, src.detectorIndex[from + p], dwlF[p],
+                                                                       fwhmF[p], amfF[p], transF[p],
+                                                                       desmileFactorFunction);
+            } else {
+                desmileFactorF[p] = (float) computeDesmileFactor(b, dwlF[p], fwhmF[p], amfF[p], transF[p]);
+            }
+        }
+    }
+
+    private double computeDesmileFactor(int b, double dwl, double fwhm, double amf, double trans) {
+        if (desmileGrids[b] != null) {
+            return desmileGrids[b].desmileFactor(dwl, fwhm, amf, trans, wo);
+        }
+        countKdQueries(1);
+        if (isSinglePrecision()) {
+            return OlciHarmonisationAlgorithm.desmileFactor((float) dwl, (float) fwhm, (float) amf, (float) trans,
+                                                            floatDesmileLuts[b], woF);
+        }
+        return OlciHarmonisationAlgorithm.desmileFactor(dwl, fwhm, amf, trans, desmileKdTrees[b], desmileLuts[b], wo);
+    }
+
+    private void countKdQueries(int numQueries) {
+        if (statistics != null) {
+            statistics.count(OlciHarmonisationStatistics.Counter.KD_QUERIES, numQueries);
+        }
+    }
+
+    private void store(double[] values, float[] samples, int offset, int n) {
+        for (int p = 0; p < n; p++) {
+            samples[offset + p] = valid[p] ? (float) values[p] : Float.NaN;
+        }
+    }
+
+    private void store(float[] values, float[] samples, int offset, int n) {
+        for (int p = 0; p < n; p++) {
+            samples[offset + p] = valid[p] ? values[p] : Float.NaN;
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= capacity) {
+            return;
+        }
+        capacity = n;
+        valid = new boolean[n];
+        if (isSinglePrecision()) {
+            altitudeF = new float[n];
+            slpF = new float[n];
+            surfacePressF = new float[n];
+            szaF = new float[n];
+            ozaF = new float[n];
+            amfF = new float[n];
+            cwl0F = new float[n];
+            r0F = new float[n];
+            gradF = new float[n];
+            solarFluxF = new float[n];
+            fwhmF = new float[n];
+            dwlF = new float[n];
+            radianceAbsFreeF = new float[n];
+            transF = new float[n];
+            desmileFactorF = new float[n];
+            transRectifiedF = new float[n];
+            resultF = new float[n];
+            normalisedF = new float[4][n];
+            return;
+        }
+        altitude = new double[n];
+        slp = new double[n];
+        surfacePress = new double[n];
+        sza = new double[n];
+        oza = new double[n];
+        amf = new double[n];
+        cwl0 = new double[n];
+        r0 = new double[n];
+        grad = new double[n];
+        solarFlux = new double[n];
+        fwhm = new double[n];
+        dwl = new double[n];
+        radianceAbsFree = new double[n];
+        trans = new double[n];
+        desmileFactor = new double[n];
+        transRectified = new double[n];
+        result = new double[n];
+        normalised = new double[4][n];
+    }
+
+    /**
+     * Primitive source sample buffers of a tile, stored row by row. Index 0..4 of the spectral
+     * buffers stands for bands 12..16. DEM altitude and collocation flags (1 where a valid DEM altitude
+     * is available) are null if no DEM is used.
+     * <p/>
+     * Quality flags are always needed. Altitude, DEM and SLP are only needed for surface_ outputs.
+     * Geometry, detector index and the spectral buffers of bands 12 and 16 are needed for any
+     * trans_, press_ or radiance_ output, those of bands 13..15 only for the outputs of that band.
+     * If a detector table is given, it covers the detectors of all valid pixels, and the cwl, fwhm and
+     * solarFlux buffers are not accessed. If the air mass factor is given, the geometry is not accessed.
+     * <p/>
+     * The single precision engine reads the float buffers (suffix F) of geometry, air mass factor, altitude,
+     * SLP and radiances instead of the double ones. DEM altitude and the cwl, fwhm and solarFlux buffers, which
+     * are only read until the detector table is complete, are always double.
+     */
+    static class SourceSamples {
+        DetectorSpectralTable.Snapshot detectorTable;
+        int[] qualityFlags;
+        double[] sza;
+        double[] oza;
+        double[] amf;
+        double[] altitude;
+        double[] demAltitude;
+        int[] collocationFlags;
+        double[] slp;
+        float[] detectorIndex;
+        final double[][] radiance = new double[5][];
+        final double[][] cwl = new double[5][];
+        final double[][] fwhm = new double[5][];
+        final double[][] solarFlux = new double[5][];
+        float[] szaF;
+        float[] ozaF;
+        float[] amfF;
+        float[] altitudeF;
+        float[] slpF;
+        final float[][] radianceF = new float[5][];
+    }
+
+    /**
+     * Primitive target sample buffers of a tile, stored row by row. Index 0..2 stands for bands 13..15.
+     * Buffers of outputs which are not requested are null. If the source samples only cover a part of
+     * the tile, the offset is the target sample index of source sample 0.
+     */
+    static class TargetSamples {
+        final float[][] trans;
+        final float[][] press;
+        final float[][] surface;
+        final float[][] radiance;
+        int offset;
+
+        TargetSamples(int numBands) {
+            trans = new float[numBands][];
+            press = new float[numBands][];
+            surface = new float[numBands][];
+            radiance = new float[numBands][];
+        }
+
+        /**
+         * @return true, if any output requiring the desmiled transmission is requested
+         */
+        boolean isSpectralRequested() {
+            for (int b = 0; b < trans.length; b++) {
+                if (isSpectralRequested(b)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param b - band index 0..2 (bands 13..15)
+         * @return true, if any output of given band requiring the desmiled transmission is requested
+         */
+        boolean isSpectralRequested(int b) {
+            return trans[b] != null || press[b] != null || radiance[b] != null;
+        }
+
+        /**
+         * @return true, if any surface_ output is requested
+         */
+        boolean isSurfaceRequested() {
+            for (float[] samples : surface) {
+                if (samples != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Sets all requested outputs to NaN for the target sample indices in [from, to).
+         *
+         * @param from - first target sample index (inclusive)
+         * @param to   - last target sample index (exclusive)
+         */
+        void setInvalid(int from, int to) {
+            for (int b = 0; b < trans.length; b++) {
+                fillNaN(trans[b], from, to);
+                fillNaN(press[b], from, to);
+                fillNaN(surface[b], from, to);
+                fillNaN(radiance[b], from, to);
+            }
+        }
+
+        private static void fillNaN(float[] samples, int from, int to) {
+            if (samples != null) {
+                Arrays.fill(samples, from, to, Float.NaN);
+            }
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package org.esa.s3tbx.olci.harmonisation;
 
+import com.bc.ceres.binding.converters.RectangleConverter;
 import com.bc.ceres.core.ProgressMonitor;
-import org.esa.snap.collocation.CollocateOp;
+import com.vividsolutions.jts.geom.Geometry;
 import org.esa.snap.core.datamodel.*;
 import org.esa.snap.core.gpf.Operator;
 import org.esa.snap.core.gpf.OperatorException;
@@ -11,15 +12,29 @@ import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
 import org.esa.snap.core.gpf.annotations.TargetProduct;
+import org.esa.snap.core.gpf.common.SubsetOp;
 import org.esa.snap.core.util.ProductUtils;
-import org.esa.snap.core.util.math.MathUtils;
+import org.esa.snap.core.util.SystemUtils;
+import org.esa.snap.core.util.converters.JtsGeometryConverter;
 import org.json.simple.parser.ParseException;
-import smile.neighbor.KDTree;
 
 import java.awt.*;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * Performs Harmonisation on OLCI L1b product.
@@ -35,6 +50,11 @@ import java.util.regex.Pattern;
         description = "Performs Harmonisation on OLCI L1b product.")
 public class OlciHarmonisationOp extends Operator {
 
+    private static final String DESMILE_ENGINE_GRID = "GRID";
+    // parameters not affecting the target samples, not part of the checkpoint manifest
+    private static final Set<String> CHECKPOINT_INDEPENDENT_PARAMETERS =
+            new HashSet<>(Arrays.asList("checkpointDir", "collectStatistics", "numTileThreads"));
+
     @SourceProduct(description = "OLCI L1b product",
             label = "OLCI L1b product")
     private Product l1bProduct;
@@ -51,6 +71,13 @@ public class OlciHarmonisationOp extends Operator {
             label = "Name of DEM altitude band")
     private String demAltitudeBandName;
 
+    @Parameter(defaultValue = DemResampler.NEAREST_NEIGHBOUR,
+            valueSet = {DemResampler.NEAREST_NEIGHBOUR, DemResampler.BILINEAR_INTERPOLATION},
+            label = "DEM resampling method",
+            description = "The method to resample the DEM altitude onto the OLCI pixels, if the DEM product is not " +
+                    "pixel-aligned with the OLCI L1b product.")
+    private String demResamplingMethod;
+
     @Parameter(defaultValue = "true",
             description = "If set to true, only band 13 needed for cloud detection will be processed, otherwise bands 13-15.",
             label = "Only process OLCI band 13 (761.25 nm)")
@@ -61,14 +88,107 @@ public class OlciHarmonisationOp extends Operator {
             description = "If set to true, harmonised radiances of processed band(s) will be written to target product.")
     private boolean writeHarmonisedRadiances;
 
+    @Parameter(defaultValue = "true",
+            label = "Compute all target bands in one pass",
+            description = "If set to true, all target bands of a tile are computed together from one pass over the " +
+                    "source data, otherwise every target band is computed separately.")
+    private boolean computeAllBandsInOnePass;
+
+    @Parameter(defaultValue = "false",
+            label = "Compute air mass factor on tie-point grid",
+            description = "If set to true, the air mass factor is computed on the SZA/OZA tie-point grid and " +
+                    "interpolated per pixel (relative deviation from the per-pixel computation < 1.0E-3), " +
+                    "and written as tie-point grid 'amf' to the target product.")
+    private boolean computeAmfOnTiePointGrid;
+
+    @Parameter(defaultValue = "KD_TREE", valueSet = {"KD_TREE", "GRID"},
+            label = "Desmile engine",
+            description = "The method to evaluate the desmile LUT: KD_TREE searches the nearest LUT node (reference), " +
+                    "GRID interpolates on a regular 4-D grid precomputed from it (faster, with a small deviation).")
+    private String desmileEngine;
+
+    @Parameter(defaultValue = "16", interval = "[2,40]",
+            label = "Desmile grid resolution",
+            description = "The number of nodes per dimension of the desmile grid (only used with desmile engine GRID).")
+    private int desmileGridResolution;
+
+    @Parameter(defaultValue = "0", interval = "[0,16777216]",
+            label = "Desmile cache size",
+            description = "The number of desmile results per cache, keyed on band, detector and quantised " +
+                    "transmission and air mass factor. There is one cache per tile (or block of rows) computed " +
+                    "concurrently, but at most one per processor core. 0 disables the cache.")
+    private int desmileCacheSize;
+
+    @Parameter(defaultValue = "0.001",
+            label = "Desmile cache transmission step",
+            description = "The quantisation step of the transmission for the desmile cache.")
+    private double desmileCacheTransStep;
+
+    @Parameter(defaultValue = "0.01",
+            label = "Desmile cache air mass factor step",
+            description = "The quantisation step of the air mass factor for the desmile cache.")
+    private double desmileCacheAmfStep;
+
+    @Parameter(defaultValue = "false",
+            label = "Compute in single precision",
+            description = "If set to true, the transmissions are computed in single precision (float) from float " +
+                    "source samples, with float desmile LUTs and KD trees instead of the double ones. Faster and " +
+                    "less memory, with a relative deviation in the order of 1.0E-6.")
+    private boolean computeInSinglePrecision;
+
+    @Parameter(defaultValue = "false",
+            label = "Fast surface transmission",
+            description = "If set to true, the surface_ outputs are computed with polynomial approximations of the " +
+                    "pressure and transmission functions (relative deviation < 1.0E-8).")
+    private boolean fastSurfaceTransmission;
+
+    @Parameter(converter = RectangleConverter.class,
+            label = "Pixel region",
+            description = "The region of the source product to be processed, in pixel coordinates (x,y,width,height). " +
+                    "If neither a pixel nor a geographic region is given, the full scene is processed.")
+    private Rectangle region;
+
+    @Parameter(converter = JtsGeometryConverter.class,
+            label = "Geographic region",
+            description = "The region of the source product to be processed, as WKT polygon in geographic " +
+                    "coordinates. Takes precedence over the pixel region.")
+    private Geometry geoRegion;
+
+    @Parameter(defaultValue = "1", interval = "[1,100]",
+            label = "Sub-sampling step",
+            description = "Only every n-th pixel in x and y direction is processed, e.g. for quick-looks.")
+    private int subSamplingStep;
+
+    @Parameter(defaultValue = "false",
+            label = "Collect processing statistics",
+            description = "If set to true, the processing stages are timed and pixels, invalid pixels, KD queries and " +
+                    "NaN outputs are counted. The statistics are available via JMX during processing, and are " +
+                    "written to the metadata element 'Processing_Statistics' of the target product after " +
+                    "processing. The batch processing writes them into BEAM-DIMAP products.")
+    private boolean collectStatistics;
+
+    @Parameter(label = "Checkpoint directory",
+            description = "If given, computed target tiles are stored in this directory, so that an interrupted " +
+                    "processing with the same source product and parameters only computes the missing tiles.")
+    private File checkpointDir;
+
+    @Parameter(defaultValue = "1", interval = "[1,256]",
+            label = "Threads per tile",
+            description = "The number of threads computing the rows of a tile in parallel. Only useful for large " +
+                    "tiles, e.g. full-width stripes, which would otherwise be computed by a single thread. The " +
+                    "threads share the desmile caches of the operator, at most one per processor core.")
+    private int numTileThreads;
+
     private int lastBandToProcess;
     private int numBandsToProcess;
 
     private TiePointGrid szaBand;
     private TiePointGrid ozaBand;
+    private TiePointGrid amfGrid;
 
     private RasterDataNode demAltitudeBand;
-    private RasterDataNode collocationFlagsBand;
+    private DemResampler demResampler;
+    private String demTileCacheId;
     private RasterDataNode altitudeBand;
     private RasterDataNode slpBand;
     private Band detectorIndexBand;
@@ -78,41 +198,70 @@ public class OlciHarmonisationOp extends Operator {
     private Band[] fwhmBands;
     private Band[] solarFluxBands;
 
-    private KDTree<double[]>[] desmileKdTrees;
-    private DesmileLut[] desmileLuts;
+    private Band[] transBands;
+    private Band[] pressBands;
+    private Band[] surfaceBands;
+    private Band[] harmonisedRadianceBands;
 
-    private Product collocatedDemProduct;
+    private DesmileAuxdata[] desmileAuxdata;
+    private DesmileGrid[] bandDesmileGrids;
+    private DetectorSpectralTable detectorSpectralTable;
+    private DesmileCachePool desmileCachePool;
+
+    private final AtomicLong numComputedTiles = new AtomicLong();
+    private final AtomicLong numInvalidTiles = new AtomicLong();
+
+    private OlciHarmonisationStatistics statistics;
+    private TileCheckpointStore checkpointStore;
+    // the source products as read, and the region processed, if subsets are processed instead
+    private Product[] readerSourceProducts;
+    private Rectangle sourceRegion;
+    private ForkJoinPool tileRowPool;
 
     @Override
     public void initialize() throws OperatorException {
+        statistics = collectStatistics ? new OlciHarmonisationStatistics() : null;
         lastBandToProcess = processOnlyBand13 ? 13 : 15;
         numBandsToProcess = lastBandToProcess - 13 + 1;
 
         OlciHarmonisationIO.validateSourceProduct(l1bProduct);
+        if (region != null || geoRegion != null || subSamplingStep > 1) {
+            createSourceSubsets();
+        }
 
         try {
-            initDesmileAuxdata();
-        } catch (IOException | ParseException e) {
-            e.printStackTrace();
-            throw new OperatorException("Cannit initialize auxdata for desmile of transmissions - exiting.");
+            final long startTime = System.nanoTime();
+            checkDesmileAuxdata();
+            addStageTime(OlciHarmonisationStatistics.Stage.AUXDATA_INSTALL, startTime);
+        } catch (IOException e) {
+            throw new OperatorException("Cannot initialize auxdata for desmile of transmissions - exiting.", e);
         }
 
         szaBand = l1bProduct.getTiePointGrid("SZA");
         ozaBand = l1bProduct.getTiePointGrid("OZA");
         slpBand = l1bProduct.getTiePointGrid("sea_level_pressure");
         detectorIndexBand = l1bProduct.getBand("detector_index");
+        if (computeAmfOnTiePointGrid) {
+            amfGrid = createAmfTiePointGrid(szaBand, ozaBand);
+        }
 
         altitudeBand = l1bProduct.getBand("altitude");
         if (demProduct != null) {
             OlciHarmonisationIO.validateDemProduct(demProduct, demAltitudeBandName);
-            collocatedDemProduct = demProduct;
+            demAltitudeBand = demProduct.getRasterDataNode(demAltitudeBandName);
             if (!isDemProductCollocated()) {
-                collocatedDemProduct = collocateDemProduct();
+                // only the altitude band is resampled, per tile (see readDemSamples)
+                demResampler = new DemResampler(l1bProduct.getSceneGeoCoding(), demProduct.getSceneGeoCoding(),
+                                                demProduct.getSceneRasterWidth(), demProduct.getSceneRasterHeight(),
+                                                DemResampler.BILINEAR_INTERPOLATION.equals(demResamplingMethod));
+                // DEM files are shared by all operator instances via the DEM tile cache
+                final File demFile = demProduct.getFileLocation();
+                if (demFile != null) {
+                    demTileCacheId = demFile.getAbsolutePath() + "@" + demFile.lastModified() + "#" +
+                            demAltitudeBandName;
+                }
             }
-            demAltitudeBand = collocatedDemProduct.getRasterDataNode(demAltitudeBandName);
-            collocationFlagsBand = collocatedDemProduct.getRasterDataNode("collocation_flags");
         }
-//        setTargetProduct(collocatedDemProduct);  //  test
 
         radianceBands = new Band[5];
         cwlBands = new Band[5];
@@ -125,134 +274,617 @@ public class OlciHarmonisationOp extends Operator {
             solarFluxBands[i - 12] = l1bProduct.getBand("solar_flux_band_" + i);
         }
 
+        detectorSpectralTable = new DetectorSpectralTable();
+        if (desmileCacheSize > 0) {
+            if (!(desmileCacheTransStep > 0.0) || !(desmileCacheAmfStep > 0.0)) {
+                throw new OperatorException("Quantisation steps of the desmile cache must be positive.");
+            }
+            // one cache per tile or block of rows computed concurrently, kept over all tiles of the product, but
+            // not more than can be used by the available cores, also with many GPF and tile threads
+            desmileCachePool = new DesmileCachePool(desmileCacheSize, desmileCacheTransStep, desmileCacheAmfStep,
+                                                    Runtime.getRuntime().availableProcessors());
+        }
+
         createTargetProduct();
+        if (statistics != null) {
+            statistics.registerMBean(l1bProduct.getName());
+        }
+        if (checkpointDir != null) {
+            try {
+                checkpointStore = new TileCheckpointStore(checkpointDir.toPath(), l1bProduct.getName(),
+                                                          createCheckpointManifest());
+            } catch (IOException e) {
+                throw new OperatorException("Cannot open checkpoint store in " + checkpointDir, e);
+            }
+            SystemUtils.LOG.info("OLCI Harmonisation: storing computed tiles in " + checkpointStore.getStoreDir());
+        }
+
+        if (numTileThreads > 1) {
+            tileRowPool = new ForkJoinPool(numTileThreads);
+        }
+
+        setRequiresAllBands(computeAllBandsInOnePass);
+    }
+
+    @Override
+    public void dispose() {
+        if (numComputedTiles.get() > 0) {
+            SystemUtils.LOG.info("OLCI Harmonisation: " + numInvalidTiles.get() + " of " + numComputedTiles.get() +
+                                         " computed tiles were completely invalid and skipped.");
+        }
+        if (desmileCachePool != null) {
+            if (desmileCachePool.getNumCaches() > 0) {
+                final long hits = desmileCachePool.getHits();
+                final long misses = desmileCachePool.getMisses();
+                final double hitRate = hits + misses > 0 ? 100.0 * hits / (hits + misses) : 0.0;
+                SystemUtils.LOG.info(String.format("OLCI Harmonisation: desmile cache hit rate %.1f%% (%d hits, %d misses, %d caches)",
+                                                   hitRate, hits, misses, desmileCachePool.getNumCaches()));
+            }
+            // the caches are released with the pool
+            desmileCachePool = null;
+        }
+        if (demTileCacheId != null) {
+            SystemUtils.LOG.fine(DemTileCache.getInstance().toString());
+        }
+        if (tileRowPool != null) {
+            tileRowPool.shutdown();
+            tileRowPool = null;
+        }
+        if (checkpointStore != null) {
+            SystemUtils.LOG.info(checkpointStore.toString());
+        }
+        if (statistics != null) {
+            writeStatisticsMetadata();
+            SystemUtils.LOG.info(statistics.getReport());
+            statistics.unregisterMBean();
+        }
+        super.dispose();
+    }
+
+    /**
+     * @return the number of tiles computed so far in which all pixels were invalid, so that no source
+     * data except the quality flags was read
+     */
+    long getNumInvalidTiles() {
+        return numInvalidTiles.get();
+    }
+
+    /**
+     * @return the number of tiles computed so far. Tiles computed band by band are counted once.
+     */
+    long getNumComputedTiles() {
+        return numComputedTiles.get();
+    }
+
+    /**
+     * Writes the processing statistics into the metadata of the target product. This is done on dispose, and
+     * should only be done before, once all target samples are computed and written, but before the product
+     * header is written for the last time. Not from the tile computing threads, while a writer may serialise
+     * the metadata.
+     *
+     * @return true, if statistics are collected and have been written
+     */
+    boolean writeStatisticsMetadata() {
+        if (statistics == null) {
+            return false;
+        }
+        statistics.writeMetadata(targetProduct.getMetadataRoot());
+        return true;
+    }
+
+    /**
+     * @return the processing statistics, or null if not collected
+     */
+    OlciHarmonisationStatistics getStatistics() {
+        return statistics;
     }
 
     @Override
     public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
-        final Rectangle targetRectangle = targetTile.getRectangle();
-        final String targetBandName = targetBand.getName();
-
-        final Tile szaTile = getSourceTile(szaBand, targetRectangle);
-        final Tile ozaTile = getSourceTile(ozaBand, targetRectangle);
-        final Tile altitudeTile = getSourceTile(altitudeBand, targetRectangle);
-        Tile demAltitudeTile = null;
-        Tile collocationFlagsTile = null;
-        if (demAltitudeBand != null) {
-            demAltitudeTile = getSourceTile(demAltitudeBand, targetRectangle);
-            collocationFlagsTile = getSourceTile(collocationFlagsBand, targetRectangle);
-        }
-        final Tile slpTile = getSourceTile(slpBand, targetRectangle);
-        final Tile detectorIndexTile = getSourceTile(detectorIndexBand, targetRectangle);
-        final Tile l1FlagsTile = getSourceTile(l1bProduct.getRasterDataNode("quality_flags"), targetRectangle);
-
-        Tile[] radianceTiles = new Tile[5];
-        Tile[] cwlTiles = new Tile[5];
-        Tile[] fwhmTiles = new Tile[5];
-        Tile[] solarFluxTiles = new Tile[5];
-        for (int i = 0; i < 5; i++) {
-            radianceTiles[i] = getSourceTile(radianceBands[i], targetRectangle);
-            cwlTiles[i] = getSourceTile(cwlBands[i], targetRectangle);
-            fwhmTiles[i] = getSourceTile(fwhmBands[i], targetRectangle);
-            solarFluxTiles[i] = getSourceTile(solarFluxBands[i], targetRectangle);
-        }
-
-        for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
-            checkForCancellation();
-            for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; x++) {
-                final boolean pixelIsValid = !l1FlagsTile.getSampleBit(x, y, OlciHarmonisationConstants.OLCI_INVALID_BIT);
-                if (pixelIsValid) {
-                    // Preparing input data...
-                    final double sza = szaTile.getSampleDouble(x, y);
-                    final double oza = ozaTile.getSampleDouble(x, y);
-                    double altitude = altitudeTile.getSampleDouble(x, y);
-                    // if all info from DEM is present, use DEM altitude:
-                    if (demAltitudeTile != null && collocationFlagsTile != null &&
-                            collocationFlagsTile.getSampleInt(x, y) == 1) {
-                        altitude = demAltitudeTile.getSampleDouble(x, y);
-                    }
+        computeTargetTiles(Collections.singletonMap(targetBand, targetTile), targetTile.getRectangle());
+    }
 
-                    final double slp = slpTile.getSampleDouble(x, y);
-                    double surfacePress = OlciHarmonisationAlgorithm.height2press(altitude, slp);
-                    final float detectorIndex = detectorIndexTile.getSampleFloat(x, y);
-
-                    final double amf = (1.0 / Math.cos(sza * MathUtils.DTOR) + 1.0 / Math.cos(oza * MathUtils.DTOR));
-
-                    double[] radiance = new double[5];
-                    double[] r = new double[5];
-                    double[] cwl = new double[5];
-                    double[] fwhm = new double[5];
-                    double[] solarFlux = new double[5];
-                    for (int i = 0; i < 5; i++) {    // 12, 13, 14, 15, 16
-                        radiance[i] = radianceTiles[i].getSampleDouble(x, y);
-                        cwl[i] = cwlTiles[i].getSampleDouble(x, y);
-                        fwhm[i] = fwhmTiles[i].getSampleDouble(x, y);
-                        solarFlux[i] = solarFluxTiles[i].getSampleDouble(x, y);
-                        r[i] = radiance[i] / solarFlux[i];
-                    }
+    @Override
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws OperatorException {
+        computeTargetTiles(targetTiles, targetRectangle);
+    }
+
+    private void computeTargetTiles(Map<Band, Tile> targetTiles, Rectangle targetRectangle) {
+        computeTargetSamples(targetTiles.keySet(), targetRectangle,
+                             (targetBand, samples) -> targetTiles.get(targetBand).setSamples(samples));
+    }
+
+    /**
+     * Computes all target samples of a rectangle without GPF target tiles, e.g. for a stripe of the scene in
+     * streaming mode (see {@link StripeWriter}).
+     *
+     * @param targetRectangle - the rectangle
+     * @return the samples of all target bands
+     */
+    Map<Band, float[]> computeTargetSamples(Rectangle targetRectangle) {
+        final Map<Band, float[]> targetSamples = new LinkedHashMap<>();
+        computeTargetSamples(Arrays.asList(targetProduct.getBands()), targetRectangle, targetSamples::put);
+        return targetSamples;
+    }
+
+    /**
+     * @return the source products from which the source samples are read, and whose rows are the target rows:
+     * the L1b product and a pixel-aligned DEM product, i.e. their subsets if a region or sub-sampling is given
+     */
+    Product[] getRowAlignedSourceProducts() {
+        return demProduct != null && demResampler == null ?
+                new Product[]{l1bProduct, demProduct} : new Product[]{l1bProduct};
+    }
+
+    /**
+     * @return the source products as read, of which the products of {@link #getRowAlignedSourceProducts()} are
+     * subsets, or null if no subsets are processed
+     */
+    Product[] getReaderSourceProducts() {
+        return readerSourceProducts;
+    }
+
+    /**
+     * @return the region of the products of {@link #getReaderSourceProducts()} processed, or null if no subsets
+     * are processed
+     */
+    Rectangle getSourceRegion() {
+        return sourceRegion;
+    }
+
+    /**
+     * @return the sub-sampling step
+     */
+    int getSubSamplingStep() {
+        return Math.max(1, subSamplingStep);
+    }
+
+    /**
+     * @return the DEM altitude band which is resampled onto the L1b grid, or null if there is none
+     */
+    RasterDataNode getResampledDemBand() {
+        return demResampler != null ? demAltitudeBand : null;
+    }
+
+    private void computeTargetSamples(Collection<Band> targetBands, Rectangle targetRectangle,
+                                      BiConsumer<Band, float[]> targetSink) {
+        final OlciHarmonisationStatistics.Accumulator accumulator =
+                statistics != null ? statistics.getAccumulator() : null;
+        final long tileStart = accumulator != null ? System.nanoTime() : 0L;
+        // if the bands are computed one by one, a rectangle is computed once per band but counted only once
+        final boolean countRectangle = targetBands.contains(transBands[0]);
+        if (checkpointStore != null && restoreTargetSamples(targetBands, targetRectangle, targetSink)) {
+            if (accumulator != null && countRectangle) {
+                accumulator.count(OlciHarmonisationStatistics.Counter.RESTORED_TILES, 1);
+            }
+            return;
+        }
+        // target bands which are not requested in this call get no samples and are simply skipped
+        final OlciHarmonisationKernel.TargetSamples tgt = new OlciHarmonisationKernel.TargetSamples(numBandsToProcess);
+        final int numSamples = targetRectangle.width * targetRectangle.height;
+        for (int i = 0; i < numBandsToProcess; i++) {
+            tgt.trans[i] = createTargetSamples(targetBands, transBands[i], numSamples);
+            tgt.press[i] = createTargetSamples(targetBands, pressBands[i], numSamples);
+            tgt.surface[i] = createTargetSamples(targetBands, surfaceBands[i], numSamples);
+            tgt.radiance[i] = createTargetSamples(targetBands, harmonisedRadianceBands[i], numSamples);
+        }
+
+        // check the quality flags first: completely invalid tiles (e.g. at night or beyond the swath edge) and
+        // invalid rows at the top and bottom of a tile are just set to NaN, no other source data is read for them
+        if (countRectangle) {
+            numComputedTiles.incrementAndGet();
+        }
+        final int[] qualityFlags =
+                getSourceTile(l1bProduct.getRasterDataNode("quality_flags"), targetRectangle).getSamplesInt();
+        final Rectangle sourceRectangle = getValidRowsRectangle(qualityFlags, targetRectangle);
+        long numSkippedSamples = numSamples;
+        if (sourceRectangle == null) {
+            if (countRectangle) {
+                numInvalidTiles.incrementAndGet();
+            }
+            tgt.setInvalid(0, numSamples);
+            addStageTime(accumulator, OlciHarmonisationStatistics.Stage.SOURCE_READ, tileStart);
+        } else {
+            final int validFrom = (sourceRectangle.y - targetRectangle.y) * targetRectangle.width;
+            final int validTo = validFrom + sourceRectangle.width * sourceRectangle.height;
+            tgt.setInvalid(0, validFrom);
+            tgt.setInvalid(validTo, numSamples);
+            tgt.offset = validFrom;
+            numSkippedSamples -= validTo - validFrom;
+
+            final OlciHarmonisationKernel.SourceSamples src = new OlciHarmonisationKernel.SourceSamples();
+            src.qualityFlags = validFrom == 0 && validTo == numSamples ?
+                    qualityFlags : Arrays.copyOfRange(qualityFlags, validFrom, validTo);
+            final KernelRowTask.KernelFactory kernelFactory = readSourceSamples(src, tgt, sourceRectangle,
+                                                                                countRectangle);
+            final long kernelStart = addStageTime(accumulator, OlciHarmonisationStatistics.Stage.SOURCE_READ, tileStart);
+            if (tileRowPool != null && sourceRectangle.height > 1) {
+                final int blockRows = KernelRowTask.computeBlockRows(sourceRectangle.height, numTileThreads);
+                tileRowPool.invoke(new KernelRowTask(kernelFactory, src, tgt, sourceRectangle.width, 0,
+                                                     sourceRectangle.height, blockRows, this::checkForCancellation));
+            } else {
+                KernelRowTask.computeRows(kernelFactory, src, tgt, sourceRectangle.width, 0,
+                                          sourceRectangle.height, this::checkForCancellation);
+            }
+            addStageTime(accumulator, OlciHarmonisationStatistics.Stage.KERNEL, kernelStart);
+        }
+
+        final long writeStart = accumulator != null ? System.nanoTime() : 0L;
+        for (int i = 0; i < numBandsToProcess; i++) {
+            setTargetSamples(targetSink, transBands[i], tgt.trans[i]);
+            setTargetSamples(targetSink, pressBands[i], tgt.press[i]);
+            setTargetSamples(targetSink, surfaceBands[i], tgt.surface[i]);
+            setTargetSamples(targetSink, harmonisedRadianceBands[i], tgt.radiance[i]);
+        }
+        if (checkpointStore != null) {
+            for (int i = 0; i < numBandsToProcess; i++) {
+                storeTargetSamples(transBands[i], targetRectangle, tgt.trans[i]);
+                storeTargetSamples(pressBands[i], targetRectangle, tgt.press[i]);
+                storeTargetSamples(surfaceBands[i], targetRectangle, tgt.surface[i]);
+                storeTargetSamples(harmonisedRadianceBands[i], targetRectangle, tgt.radiance[i]);
+            }
+        }
+        if (accumulator != null) {
+            final long tileEnd = accumulator.addSince(OlciHarmonisationStatistics.Stage.TARGET_WRITE, writeStart);
+            accumulator.add(OlciHarmonisationStatistics.Stage.TILE_TOTAL, tileEnd - tileStart);
+            if (countRectangle) {
+                accumulator.count(OlciHarmonisationStatistics.Counter.TILES, 1);
+                accumulator.count(OlciHarmonisationStatistics.Counter.PIXELS, numSamples);
+                accumulator.count(OlciHarmonisationStatistics.Counter.INVALID_PIXELS, numSkippedSamples);
+            }
+            // only the target samples of the requested bands are computed, so NaN outputs are never counted twice
+            accumulator.count(OlciHarmonisationStatistics.Counter.NAN_OUTPUTS, countNaN(tgt));
+            statistics.recordTileInterval(tileStart, tileEnd);
+        }
+    }
 
-                    final double dlam = cwl[4] - cwl[0];
-                    final double drad = r[4] - r[0];
-                    double[] trans = new double[5];
-                    double[] radianceAbsFree = new double[5];
-                    for (int i = 0; i < 3; i++) {   // 13, 14, 15 !!
-                        if (dlam > 0.0001) {
-                            final double grad = drad / dlam;
-                            radianceAbsFree[i + 1] = r[0] + grad * (cwl[i + 1] - cwl[0]);
-                        } else {
-                            radianceAbsFree[i + 1] = Float.NaN;
+    private boolean restoreTargetSamples(Collection<Band> targetBands, Rectangle targetRectangle,
+                                         BiConsumer<Band, float[]> targetSink) {
+        // all requested tiles must be stored, otherwise they are computed together
+        final Map<Band, float[]> restoredSamples = new HashMap<>();
+        for (Band targetBand : targetBands) {
+            final float[] samples = new float[targetRectangle.width * targetRectangle.height];
+            if (!checkpointStore.read(targetBand.getName(), targetRectangle, samples)) {
+                return false;
+            }
+            restoredSamples.put(targetBand, samples);
+        }
+        restoredSamples.forEach(targetSink);
+        return true;
+    }
+
+    private void storeTargetSamples(Band targetBand, Rectangle targetRectangle, float[] samples) {
+        if (samples != null) {
+            checkpointStore.write(targetBand.getName(), targetRectangle, samples);
+        }
+    }
+
+    /**
+     * Creates the manifest of the checkpoint store, describing everything the target samples depend on: the
+     * operator version, the source products, the parameters and the desmile LUT files.
+     *
+     * @return the manifest
+     */
+    String createCheckpointManifest() {
+        final StringBuilder manifest = new StringBuilder();
+        manifest.append("operator=OlciHarmonisation ")
+                .append(getClass().getAnnotation(OperatorMetadata.class).version()).append('\n');
+        manifest.append("l1bProduct=").append(l1bProduct.getName()).append(' ')
+                .append(l1bProduct.getSceneRasterWidth()).append('x').append(l1bProduct.getSceneRasterHeight())
+                .append(' ').append(l1bProduct.getStartTime()).append('\n');
+        if (demProduct != null) {
+            manifest.append("demProduct=").append(demProduct.getName()).append(' ')
+                    .append(demProduct.getFileLocation()).append('\n');
+        }
+        for (Field field : OlciHarmonisationOp.class.getDeclaredFields()) {
+            if (field.isAnnotationPresent(Parameter.class) &&
+                    !CHECKPOINT_INDEPENDENT_PARAMETERS.contains(field.getName())) {
+                try {
+                    manifest.append(field.getName()).append('=').append(field.get(this)).append('\n');
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        try {
+            final Path auxdataPath = DesmileAuxdataRegistry.getInstance().getAuxdataPath();
+            for (int i = 13; i <= lastBandToProcess; i++) {
+                final Path lutPath = OlciHarmonisationIO.getDesmileLutPath(auxdataPath, i);
+                manifest.append("lut_").append(i).append('=').append(lutPath.getFileName()).append(' ')
+                        .append(Files.size(lutPath)).append(' ')
+                        .append(Files.getLastModifiedTime(lutPath).toMillis()).append('\n');
+            }
+        } catch (IOException e) {
+            throw new OperatorException("Cannot read desmile lookup tables.", e);
+        }
+        return manifest.toString();
+    }
+
+    private void addStageTime(OlciHarmonisationStatistics.Stage stage, long startTime) {
+        if (statistics != null) {
+            addStageTime(statistics.getAccumulator(), stage, startTime);
+        }
+    }
+
+    private static long addStageTime(OlciHarmonisationStatistics.Accumulator accumulator,
+                                     OlciHarmonisationStatistics.Stage stage, long startTime) {
+        return accumulator != null ? accumulator.addSince(stage, startTime) : 0L;
+    }
+
+    private static long countNaN(OlciHarmonisationKernel.TargetSamples tgt) {
+        long count = 0;
+        for (float[][] outputs : new float[][][]{tgt.trans, tgt.press, tgt.surface, tgt.radiance}) {
+            for (float[] samples : outputs) {
+                if (samples != null) {
+                    for (float sample : samples) {
+                        if (Float.isNaN(sample)) {
+                            count++;
                         }
-                        trans[i + 1] = r[i + 1] / radianceAbsFree[i + 1];
-                        cwl[i + 1] += OlciHarmonisationAlgorithm.overcorrectLambda(detectorIndex,
-                                                                                   OlciHarmonisationConstants.DWL_CORR_OFFSET[i]);
                     }
+                }
+            }
+        }
+        return count;
+    }
 
-                    // Processing data...
-
-                    //  bands 13, 14, or 15 will get bandIndex 0, 1 or 2
-                    final int bandIndex = Integer.parseInt(targetBandName.split(Pattern.quote("_"))[1]) - 13;
-                    final double dwl = cwl[bandIndex + 1] - OlciHarmonisationConstants.cwvl[bandIndex];
-                    final double transDesmiled = OlciHarmonisationAlgorithm.desmileTransmission(dwl, fwhm[bandIndex + 1],
-                                                                                                amf,
-                                                                                                trans[bandIndex + 1],
-                                                                                                desmileKdTrees[bandIndex],
-                                                                                                desmileLuts[bandIndex]);
-                    final double transDesmiledRectified =
-                            OlciHarmonisationAlgorithm.rectifyDesmiledTransmission(transDesmiled, amf, bandIndex + 13);
-
-                    if (targetBandName.startsWith("trans")) {
-                        targetTile.setSample(x, y, transDesmiledRectified);
-                    } else if (targetBandName.startsWith("press")) {
-                        final double transPress = OlciHarmonisationAlgorithm.trans2Press(transDesmiledRectified, bandIndex + 13);
-                        targetTile.setSample(x, y, transPress);
-                    } else if (targetBandName.startsWith("surface")) {
-                        final double transSurface = OlciHarmonisationAlgorithm.press2Trans(surfacePress, bandIndex + 13);
-                        targetTile.setSample(x, y, transSurface);
-                    } else if (targetBandName.startsWith("radiance")) {
-                        // radiance
-                        final double harmonisedRadiance =
-                                radianceAbsFree[bandIndex + 1] * solarFlux[bandIndex + 1] * transDesmiledRectified;
-                        targetTile.setSample(x, y, harmonisedRadiance);
-                    } else {
-                        throw new OperatorException("Unexpected target band name: '" +
-                                                            targetBandName + "' - exiting.");
+    private KernelRowTask.KernelFactory readSourceSamples(OlciHarmonisationKernel.SourceSamples src,
+                                                          OlciHarmonisationKernel.TargetSamples tgt,
+                                                          Rectangle sourceRectangle, boolean countPixels) {
+        // pull the source data needed for the requested outputs once into primitive buffers...
+        if (tgt.isSurfaceRequested()) {
+            if (computeInSinglePrecision) {
+                src.altitudeF = getSourceTile(altitudeBand, sourceRectangle).getSamplesFloat();
+            } else {
+                src.altitude = getSourceTile(altitudeBand, sourceRectangle).getSamplesDouble();
+            }
+            if (demAltitudeBand != null) {
+                final long startTime = System.nanoTime();
+                readDemSamples(src, sourceRectangle);
+                addStageTime(OlciHarmonisationStatistics.Stage.DEM_COLLOCATION, startTime);
+            }
+            if (computeInSinglePrecision) {
+                src.slpF = getSourceTile(slpBand, sourceRectangle).getSamplesFloat();
+            } else {
+                src.slp = getSourceTile(slpBand, sourceRectangle).getSamplesDouble();
+            }
+        }
+        final DesmileLut[] desmileLuts = new DesmileLut[numBandsToProcess];
+        final DesmileKdTree[] desmileKdTrees = new DesmileKdTree[numBandsToProcess];
+        final DesmileGrid[] desmileGrids = new DesmileGrid[numBandsToProcess];
+        final FloatDesmileLut[] floatDesmileLuts = computeInSinglePrecision ? new FloatDesmileLut[numBandsToProcess] : null;
+        if (tgt.isSpectralRequested()) {
+            final int numSamples = sourceRectangle.width * sourceRectangle.height;
+            if (computeInSinglePrecision && amfGrid != null) {
+                src.amfF = amfGrid.getPixels(sourceRectangle.x, sourceRectangle.y,
+                                             sourceRectangle.width, sourceRectangle.height,
+                                             new float[numSamples], ProgressMonitor.NULL);
+            } else if (amfGrid != null) {
+                src.amf = amfGrid.getPixels(sourceRectangle.x, sourceRectangle.y,
+                                            sourceRectangle.width, sourceRectangle.height,
+                                            new double[numSamples], ProgressMonitor.NULL);
+            } else if (computeInSinglePrecision) {
+                src.szaF = getSourceTile(szaBand, sourceRectangle).getSamplesFloat();
+                src.ozaF = getSourceTile(ozaBand, sourceRectangle).getSamplesFloat();
+            } else {
+                src.sza = getSourceTile(szaBand, sourceRectangle).getSamplesDouble();
+                src.oza = getSourceTile(ozaBand, sourceRectangle).getSamplesDouble();
+            }
+            src.detectorIndex = getSourceTile(detectorIndexBand, sourceRectangle).getSamplesFloat();
+            final boolean[] neededBands = new boolean[5];
+            neededBands[0] = true;
+            neededBands[4] = true;
+            for (int i = 0; i < numBandsToProcess; i++) {
+                if (tgt.isSpectralRequested(i)) {
+                    neededBands[i + 1] = true;
+                    final DesmileAuxdata bandDesmileAuxdata = getDesmileAuxdata(i);
+                    desmileLuts[i] = bandDesmileAuxdata.getLut();
+                    desmileKdTrees[i] = bandDesmileAuxdata.getKdTree();
+                    desmileGrids[i] = getDesmileGrid(i);
+                    if (bandDesmileAuxdata.isSinglePrecision()) {
+                        floatDesmileLuts[i] = bandDesmileAuxdata.getFloatLut();
                     }
-                } else {
-                    targetTile.setSample(x, y, Float.NaN);
                 }
             }
+            readSpectralSamples(src, neededBands, sourceRectangle);
+        }
+        // ... to be processed by the kernels, which are created in the computing thread for its statistics
+        // accumulator, and borrow a desmile cache while they are used
+        final DesmileCachePool kernelCachePool = tgt.isSpectralRequested() ? desmileCachePool : null;
+        return new KernelRowTask.KernelFactory() {
+            @Override
+            public OlciHarmonisationKernel createKernel() {
+                final DesmileCache desmileCache = kernelCachePool != null ? kernelCachePool.borrow() : null;
+                final OlciHarmonisationKernel kernel = new OlciHarmonisationKernel(desmileLuts, desmileKdTrees,
+                                                                                  desmileGrids, desmileCache,
+                                                                                  floatDesmileLuts);
+                kernel.setStatistics(statistics != null ? statistics.getAccumulator() : null);
+                kernel.setCountInvalidPixels(countPixels);
+                kernel.setFastSurfaceTransmission(fastSurfaceTransmission);
+                return kernel;
+            }
+
+            @Override
+            public void releaseKernel(OlciHarmonisationKernel kernel) {
+                if (kernel.getDesmileCache() != null) {
+                    kernelCachePool.release(kernel.getDesmileCache());
+                }
+            }
+        };
+    }
+
+    /**
+     * Provides the part of a tile containing valid pixels, i.e. without its leading and trailing rows
+     * in which all pixels have the OLCI invalid bit set.
+     *
+     * @param qualityFlags    - the quality flag samples of the tile
+     * @param targetRectangle - the tile rectangle
+     * @return the rectangle of the valid rows, or null if all pixels of the tile are invalid
+     */
+    static Rectangle getValidRowsRectangle(int[] qualityFlags, Rectangle targetRectangle) {
+        final int width = targetRectangle.width;
+        int firstValid = -1;
+        int lastValid = -1;
+        for (int i = 0; i < qualityFlags.length; i++) {
+            if (OlciHarmonisationKernel.isValid(qualityFlags[i])) {
+                firstValid = i;
+                break;
+            }
+        }
+        if (firstValid < 0) {
+            return null;
         }
+        for (int i = qualityFlags.length - 1; i >= firstValid; i--) {
+            if (OlciHarmonisationKernel.isValid(qualityFlags[i])) {
+                lastValid = i;
+                break;
+            }
+        }
+        final int firstRow = firstValid / width;
+        final int lastRow = lastValid / width;
+        return new Rectangle(targetRectangle.x, targetRectangle.y + firstRow, width, lastRow - firstRow + 1);
+    }
 
+    private static float[] createTargetSamples(Collection<Band> targetBands, Band targetBand, int numSamples) {
+        return targetBand != null && targetBands.contains(targetBand) ? new float[numSamples] : null;
     }
 
-    private void initDesmileAuxdata() throws IOException, ParseException {
-        final Path auxdataPath = OlciHarmonisationIO.installAuxdata();
-        desmileLuts = new DesmileLut[numBandsToProcess];
-        desmileKdTrees = new KDTree[numBandsToProcess];
+    private static void setTargetSamples(BiConsumer<Band, float[]> targetSink, Band targetBand, float[] samples) {
+        if (samples != null) {
+            targetSink.accept(targetBand, samples);
+        }
+    }
+
+    private void readDemSamples(OlciHarmonisationKernel.SourceSamples src, Rectangle sourceRectangle) {
+        final int numSamples = sourceRectangle.width * sourceRectangle.height;
+        src.collocationFlags = new int[numSamples];
+        if (demResampler == null) {
+            // pixel-aligned DEM: its valid samples are used as they are
+            final Tile demTile = getSourceTile(demAltitudeBand, sourceRectangle);
+            src.demAltitude = demTile.getSamplesDouble();
+            int i = 0;
+            for (int y = sourceRectangle.y; y < sourceRectangle.y + sourceRectangle.height; y++) {
+                for (int x = sourceRectangle.x; x < sourceRectangle.x + sourceRectangle.width; x++) {
+                    src.collocationFlags[i++] = demTile.isSampleValid(x, y) ? 1 : 0;
+                }
+            }
+            return;
+        }
+        src.demAltitude = new double[numSamples];
+        final DemResampler.Positions positions = demResampler.locate(sourceRectangle);
+        // no DEM rectangle if the rectangle is not covered by the DEM, then the L1b altitude is used
+        final int numDemRectangles = positions.demRectangles.length;
+        final double[][] demSamples = new double[numDemRectangles][];
+        final boolean[][] demValid = new boolean[numDemRectangles][];
+        for (int r = 0; r < numDemRectangles; r++) {
+            final Rectangle demRectangle = positions.demRectangles[r];
+            demValid[r] = new boolean[demRectangle.width * demRectangle.height];
+            if (demTileCacheId != null) {
+                demSamples[r] = new double[demValid[r].length];
+                DemTileCache.getInstance().read(demTileCacheId, demProduct.getSceneRasterWidth(),
+                                                demProduct.getSceneRasterHeight(), demRectangle, this::loadDemTile,
+                                                demSamples[r], demValid[r]);
+            } else {
+                final Tile demTile = getSourceTile(demAltitudeBand, demRectangle);
+                demSamples[r] = demTile.getSamplesDouble();
+                int i = 0;
+                for (int y = demRectangle.y; y < demRectangle.y + demRectangle.height; y++) {
+                    for (int x = demRectangle.x; x < demRectangle.x + demRectangle.width; x++) {
+                        demValid[r][i++] = demTile.isSampleValid(x, y);
+                    }
+                }
+            }
+        }
+        demResampler.resample(positions, demSamples, demValid, src.demAltitude, src.collocationFlags);
+    }
+
+    private float[] loadDemTile(Rectangle demRectangle) {
+        final Tile demTile = getSourceTile(demAltitudeBand, demRectangle);
+        final float[] samples = demTile.getSamplesFloat();
+        int i = 0;
+        for (int y = demRectangle.y; y < demRectangle.y + demRectangle.height; y++) {
+            for (int x = demRectangle.x; x < demRectangle.x + demRectangle.width; x++) {
+                if (!demTile.isSampleValid(x, y)) {
+                    samples[i] = Float.NaN;
+                }
+                i++;
+            }
+        }
+        return samples;
+    }
+
+    private void readSpectralSamples(OlciHarmonisationKernel.SourceSamples src, boolean[] neededBands,
+                                     Rectangle targetRectangle) {
+        // the spectral characterisation only depends on the detector: once all detectors of the tile are known,
+        // it is taken from the table, otherwise it is read and the table is completed
+        final DetectorSpectralTable.Snapshot table = detectorSpectralTable.getSnapshot();
+        final boolean useTable = table != null && table.containsAll(src.detectorIndex, src.qualityFlags, neededBands);
+        for (int k = 0; k < 5; k++) {
+            // k = 0..4 stands for bands 12..16
+            if (neededBands[k]) {
+                if (computeInSinglePrecision) {
+                    src.radianceF[k] = getSourceTile(radianceBands[k], targetRectangle).getSamplesFloat();
+                } else {
+                    src.radiance[k] = getSourceTile(radianceBands[k], targetRectangle).getSamplesDouble();
+                }
+                if (!useTable) {
+                    src.cwl[k] = getSourceTile(cwlBands[k], targetRectangle).getSamplesDouble();
+                    src.fwhm[k] = getSourceTile(fwhmBands[k], targetRectangle).getSamplesDouble();
+                    src.solarFlux[k] = getSourceTile(solarFluxBands[k], targetRectangle).getSamplesDouble();
+                }
+            }
+        }
+        if (useTable) {
+            src.detectorTable = table;
+        } else {
+            detectorSpectralTable.update(src, neededBands);
+        }
+    }
+
+    private void checkDesmileAuxdata() throws IOException {
+        // the LUTs are loaded on first use (see getDesmileAuxdata), here we only make sure that they exist
+        final Path auxdataPath = DesmileAuxdataRegistry.getInstance().getAuxdataPath();
         for (int i = 13; i <= lastBandToProcess; i++) {
-            desmileLuts[i - 13] = OlciHarmonisationIO.createDesmileLut(auxdataPath, i);
-            desmileKdTrees[i - 13] = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(desmileLuts[i - 13]);
+            final Path lutPath = OlciHarmonisationIO.getDesmileLutPath(auxdataPath, i);
+            if (!Files.isRegularFile(lutPath)) {
+                throw new IOException("Desmile lookup table not found: " + lutPath);
+            }
         }
+        desmileAuxdata = new DesmileAuxdata[numBandsToProcess];
+        bandDesmileGrids = new DesmileGrid[numBandsToProcess];
+    }
+
+    private synchronized DesmileAuxdata getDesmileAuxdata(int bandIndex) {
+        // LUTs and KD trees are shared by all operator instances in this JVM
+        if (desmileAuxdata[bandIndex] == null) {
+            final DesmileAuxdataRegistry registry = DesmileAuxdataRegistry.getInstance();
+            try {
+                // the single precision KD search only needs the float LUT, the grid is built from the double LUT
+                final boolean singlePrecision = computeInSinglePrecision && !DESMILE_ENGINE_GRID.equals(desmileEngine);
+                desmileAuxdata[bandIndex] = registry.get(bandIndex + 13, singlePrecision);
+                if (statistics != null) {
+                    // the times of the original read and build, possibly by an earlier operator sharing the auxdata
+                    final OlciHarmonisationStatistics.Accumulator accumulator = statistics.getAccumulator();
+                    accumulator.add(OlciHarmonisationStatistics.Stage.LUT_READ,
+                                    desmileAuxdata[bandIndex].getLutReadNanos());
+                    accumulator.add(OlciHarmonisationStatistics.Stage.KD_TREE_BUILD,
+                                    desmileAuxdata[bandIndex].getKdTreeBuildNanos());
+                }
+            } catch (IOException | ParseException e) {
+                throw new OperatorException("Cannot initialize auxdata for desmile of transmissions of band " +
+                                                    (bandIndex + 13) + " - exiting.", e);
+            }
+            SystemUtils.LOG.fine(registry.toString());
+            if (DESMILE_ENGINE_GRID.equals(desmileEngine)) {
+                // looked up once, as the shared auxdata may hold grids of other resolutions as well
+                bandDesmileGrids[bandIndex] = desmileAuxdata[bandIndex].getGrid(desmileGridResolution);
+            }
+        }
+        return desmileAuxdata[bandIndex];
+    }
+
+    private synchronized DesmileGrid getDesmileGrid(int bandIndex) {
+        getDesmileAuxdata(bandIndex);
+        return bandDesmileGrids[bandIndex];
     }
 
     private void createTargetProduct() {
@@ -262,17 +894,25 @@ public class OlciHarmonisationOp extends Operator {
         targetProduct.setStartTime(l1bProduct.getStartTime());
         targetProduct.setEndTime(l1bProduct.getEndTime());
 
+        transBands = new Band[numBandsToProcess];
+        pressBands = new Band[numBandsToProcess];
+        surfaceBands = new Band[numBandsToProcess];
+        harmonisedRadianceBands = new Band[numBandsToProcess];
         for (int i = 13; i <= lastBandToProcess; i++) {
             Band transBand = targetProduct.addBand("trans_" + i, ProductData.TYPE_FLOAT32);
             transBand.setUnit("dl");
+            transBands[i - 13] = transBand;
             Band pressBand = targetProduct.addBand("press_" + i, ProductData.TYPE_FLOAT32);
             pressBand.setUnit("hPa");
+            pressBands[i - 13] = pressBand;
             Band surfaceBand = targetProduct.addBand("surface_" + i, ProductData.TYPE_FLOAT32);
             surfaceBand.setUnit("dl");
+            surfaceBands[i - 13] = surfaceBand;
             if (writeHarmonisedRadiances) {
                 Band radianceBand = targetProduct.addBand("radiance_" + i, ProductData.TYPE_FLOAT32);
                 final String unit = l1bProduct.getBand("OA01_radiance").getUnit();
                 radianceBand.setUnit(unit);
+                harmonisedRadianceBands[i - 13] = radianceBand;
             }
         }
 
@@ -281,11 +921,46 @@ public class OlciHarmonisationOp extends Operator {
             targetProduct.getBandAt(i).setNoDataValueUsed(true);
         }
         ProductUtils.copyTiePointGrids(l1bProduct, targetProduct);
+        if (amfGrid != null) {
+            targetProduct.addTiePointGrid(amfGrid);
+        }
         ProductUtils.copyGeoCoding(l1bProduct, targetProduct);
 
         setTargetProduct(targetProduct);
     }
 
+    /**
+     * Creates a tie-point grid holding the air mass factor at the tie points of the SZA and OZA grids.
+     * Interpolating it instead of the angles avoids the trigonometry per pixel. As the air mass factor is
+     * smooth in the angles, the bilinear interpolation deviates from the per-pixel computation by less than
+     * 1.0E-3 (relative) for the OLCI tie-point sampling and sun zenith angles up to 80 degrees.
+     *
+     * @param szaGrid - the SZA tie-point grid
+     * @param ozaGrid - the OZA tie-point grid, with the same geometry as the SZA grid
+     * @return the amf tie-point grid
+     */
+    static TiePointGrid createAmfTiePointGrid(TiePointGrid szaGrid, TiePointGrid ozaGrid) {
+        if (szaGrid.getGridWidth() != ozaGrid.getGridWidth() || szaGrid.getGridHeight() != ozaGrid.getGridHeight() ||
+                szaGrid.getOffsetX() != ozaGrid.getOffsetX() || szaGrid.getOffsetY() != ozaGrid.getOffsetY() ||
+                szaGrid.getSubSamplingX() != ozaGrid.getSubSamplingX() ||
+                szaGrid.getSubSamplingY() != ozaGrid.getSubSamplingY()) {
+            throw new OperatorException("SZA and OZA tie-point grids differ in geometry - cannot compute amf grid.");
+        }
+        final float[] szaTiePoints = szaGrid.getTiePoints();
+        final float[] ozaTiePoints = ozaGrid.getTiePoints();
+        final float[] amfTiePoints = new float[szaTiePoints.length];
+        for (int i = 0; i < amfTiePoints.length; i++) {
+            amfTiePoints[i] = (float) OlciHarmonisationAlgorithm.computeAmf(szaTiePoints[i], ozaTiePoints[i]);
+        }
+        final TiePointGrid amfGrid = new TiePointGrid("amf", szaGrid.getGridWidth(), szaGrid.getGridHeight(),
+                                                      szaGrid.getOffsetX(), szaGrid.getOffsetY(),
+                                                      szaGrid.getSubSamplingX(), szaGrid.getSubSamplingY(),
+                                                      amfTiePoints);
+        amfGrid.setUnit("dl");
+        amfGrid.setDescription("Air mass factor");
+        return amfGrid;
+    }
+
     private boolean isDemProductCollocated() {
         final int w1 = l1bProduct.getSceneRasterWidth();
         final int h1 = l1bProduct.getSceneRasterHeight();
@@ -313,16 +988,46 @@ public class OlciHarmonisationOp extends Operator {
         return true;
     }
 
-    private Product collocateDemProduct() {
-        CollocateOp op = new CollocateOp();
-        op.setParameterDefaultValues();
-        op.setMasterProduct(l1bProduct);
-        op.setSlaveProduct(demProduct);
-        op.setParameter("renameMasterComponents", false);
-        op.setParameter("renameSlaveComponents", false);
-        return op.getTargetProduct();
+    private void createSourceSubsets() {
+        final Rectangle pixelRegion = geoRegion != null ? SubsetOp.computePixelRegion(l1bProduct, geoRegion, 0) :
+                region != null ? region :
+                        new Rectangle(0, 0, l1bProduct.getSceneRasterWidth(), l1bProduct.getSceneRasterHeight());
+        if (pixelRegion == null || pixelRegion.isEmpty()) {
+            throw new OperatorException("Region to be processed does not intersect the source product.");
+        }
+        // a DEM already collocated with the full scene gets the same subset, otherwise it is resampled onto the subset
+        final boolean demProductCollocated = demProduct != null && isDemProductCollocated();
+        readerSourceProducts = demProductCollocated ? new Product[]{l1bProduct, demProduct} : new Product[]{l1bProduct};
+        sourceRegion = pixelRegion;
+        // the subsets replace the source products, only their data is requested from now on
+        l1bProduct = createSubset(l1bProduct, pixelRegion, subSamplingStep);
+        if (demProductCollocated) {
+            demProduct = createSubset(demProduct, pixelRegion, subSamplingStep);
+        }
+        SystemUtils.LOG.info("OLCI Harmonisation: processing region " + pixelRegion + " with sub-sampling step " +
+                                     subSamplingStep + " (" + l1bProduct.getSceneRasterWidth() + " x " +
+                                     l1bProduct.getSceneRasterHeight() + " pixels).");
     }
 
+    /**
+     * Creates a subset of given product.
+     *
+     * @param product         - the product
+     * @param pixelRegion     - the region in pixel coordinates
+     * @param subSamplingStep - the sub-sampling step in x and y direction
+     * @return the subset
+     */
+    static Product createSubset(Product product, Rectangle pixelRegion, int subSamplingStep) {
+        final SubsetOp subsetOp = new SubsetOp();
+        subsetOp.setSourceProduct(product);
+        subsetOp.setRegion(pixelRegion);
+        subsetOp.setSubSamplingX(subSamplingStep);
+        subsetOp.setSubSamplingY(subSamplingStep);
+        subsetOp.setCopyMetadata(true);
+        return subsetOp.getTargetProduct();
+    }
+
+
 
     public static class Spi extends OperatorSpi {
 
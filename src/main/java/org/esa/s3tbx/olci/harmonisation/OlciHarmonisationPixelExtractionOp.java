@@ -0,0 +1,333 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.GeoCoding;
+import org.esa.snap.core.datamodel.GeoPos;
+import org.esa.snap.core.datamodel.PixelPos;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.gpf.Operator;
+import org.esa.snap.core.gpf.OperatorException;
+import org.esa.snap.core.gpf.OperatorSpi;
+import org.esa.snap.core.gpf.Tile;
+import org.esa.snap.core.gpf.annotations.OperatorMetadata;
+import org.esa.snap.core.gpf.annotations.Parameter;
+import org.esa.snap.core.gpf.annotations.SourceProduct;
+import org.esa.snap.core.gpf.annotations.TargetProduct;
+import org.esa.snap.core.util.SystemUtils;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Extracts the values of the harmonisation target bands (trans_, press_, surface_ and radiance_) at a list of
+ * pixel or geographic coordinates into a CSV file, e.g. for match-ups with in-situ data.
+ * <p/>
+ * The source product is the target product of {@link OlciHarmonisationOp}, which is computed lazily: only the
+ * tiles covering the given coordinates are computed, instead of the full scene. In a graph, the operator follows
+ * the OlciHarmonisation node. The extraction is done in {@link #initialize()}, the (unchanged) source product
+ * is the target product, and is not written.
+ * <p/>
+ * The coordinates file is a CSV file (separated by comma, semicolon or tab) with a header line and the columns
+ * 'lat' and 'lon' (geographic coordinates) or 'x' and 'y' (pixel coordinates, the pixel centre of pixel (0,0)
+ * is at (0.5,0.5)), and an optional column 'name'. Lines starting with '#' are ignored.
+ *
+ * @author olafd
+ */
+@OperatorMetadata(alias = "OlciHarmonisationPixelExtraction", version = "1.1",
+        authors = "R.Preusker, O.Danne",
+        category = "Optical/Preprocessing",
+        copyright = "Copyright (C) 2018 by Brockmann Consult",
+        description = "Extracts the OLCI Harmonisation results at given coordinates into a CSV file.",
+        autoWriteDisabled = true)
+public class OlciHarmonisationPixelExtractionOp extends Operator {
+
+    static final String[] BAND_PREFIXES = {"trans_", "press_", "surface_", "radiance_"};
+
+    @SourceProduct(description = "Harmonised OLCI product (target product of OlciHarmonisation)",
+            label = "Harmonised OLCI product")
+    private Product harmonisedProduct;
+
+    @TargetProduct
+    private Product targetProduct;
+
+    @Parameter(notNull = true,
+            label = "Coordinates file",
+            description = "CSV file with header and columns 'lat' and 'lon' or 'x' and 'y', and optional 'name'.")
+    private File coordinatesFile;
+
+    @Parameter(notNull = true,
+            label = "Output file",
+            description = "The CSV file to write the extracted values to.")
+    private File outputFile;
+
+    @Override
+    public void initialize() throws OperatorException {
+        final List<Coordinate> coordinates;
+        try (Reader reader = Files.newBufferedReader(coordinatesFile.toPath(), StandardCharsets.UTF_8)) {
+            coordinates = readCoordinates(reader);
+        } catch (IOException e) {
+            throw new OperatorException("Cannot read coordinates file '" + coordinatesFile + "': " + e.getMessage(), e);
+        }
+        final Band[] bands = getHarmonisationBands(harmonisedProduct);
+        if (bands.length == 0) {
+            throw new OperatorException("Source product does not contain any OLCI Harmonisation bands.");
+        }
+
+        locate(coordinates, harmonisedProduct);
+        final float[][] values = extract(coordinates, bands);
+        try (Writer writer = Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8)) {
+            writeCsv(writer, coordinates, bands, values);
+        } catch (IOException e) {
+            throw new OperatorException("Cannot write output file '" + outputFile + "': " + e.getMessage(), e);
+        }
+        SystemUtils.LOG.info("Extracted " + bands.length + " bands at " + coordinates.size() +
+                                     " coordinates to '" + outputFile + "'.");
+
+        targetProduct = harmonisedProduct;
+    }
+
+    /**
+     * Reads the coordinates from a CSV file with header line. Fields may be quoted (with quotes doubled),
+     * so that the CSV files written by {@link #writeCsv(Writer, List, Band[], float[][])} can be read again.
+     *
+     * @param reader - the reader of the CSV file
+     * @return the coordinates, not yet located
+     * @throws IOException - if the file cannot be read or has no valid header or values
+     */
+    static List<Coordinate> readCoordinates(Reader reader) throws IOException {
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        final List<Coordinate> coordinates = new ArrayList<>();
+        String[] header = null;
+        char separator = ',';
+        int nameColumn = -1;
+        int latColumn = -1;
+        int lonColumn = -1;
+        int xColumn = -1;
+        int yColumn = -1;
+        String line;
+        int lineNumber = 0;
+        while ((line = bufferedReader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (header == null) {
+                separator = line.contains("\t") ? '\t' : line.contains(";") ? ';' : ',';
+                header = OlciHarmonisationIO.splitCsvLine(line, separator);
+                for (int i = 0; i < header.length; i++) {
+                    final String column = header[i].trim().toLowerCase(Locale.ENGLISH);
+                    if (column.equals("name") || column.equals("id")) {
+                        nameColumn = i;
+                    } else if (column.equals("lat") || column.equals("latitude")) {
+                        latColumn = i;
+                    } else if (column.equals("lon") || column.equals("long") || column.equals("longitude")) {
+                        lonColumn = i;
+                    } else if (column.equals("x") || column.equals("pixel_x")) {
+                        xColumn = i;
+                    } else if (column.equals("y") || column.equals("pixel_y")) {
+                        yColumn = i;
+                    }
+                }
+                if ((latColumn < 0 || lonColumn < 0) && (xColumn < 0 || yColumn < 0)) {
+                    throw new IOException("Header must contain columns 'lat' and 'lon' or 'x' and 'y': " + line);
+                }
+                continue;
+            }
+            final String[] values = OlciHarmonisationIO.splitCsvLine(line, separator);
+            try {
+                final String name = nameColumn >= 0 && nameColumn < values.length ?
+                        values[nameColumn].trim() : String.valueOf(coordinates.size() + 1);
+                if (latColumn >= 0 && lonColumn >= 0) {
+                    coordinates.add(Coordinate.geo(name, Double.parseDouble(values[latColumn].trim()),
+                                                   Double.parseDouble(values[lonColumn].trim())));
+                } else {
+                    coordinates.add(Coordinate.pixel(name, Double.parseDouble(values[xColumn].trim()),
+                                                     Double.parseDouble(values[yColumn].trim())));
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid coordinate in line " + lineNumber + ": " + line, e);
+            }
+        }
+        if (header == null) {
+            throw new IOException("Missing header line.");
+        }
+        return coordinates;
+    }
+
+    /**
+     * @param product - the harmonised product
+     * @return the trans_, press_, surface_ and radiance_ bands of the product, in product order
+     */
+    static Band[] getHarmonisationBands(Product product) {
+        final List<Band> bands = new ArrayList<>();
+        for (Band band : product.getBands()) {
+            for (String prefix : BAND_PREFIXES) {
+                if (band.getName().startsWith(prefix)) {
+                    bands.add(band);
+                    break;
+                }
+            }
+        }
+        return bands.toArray(new Band[0]);
+    }
+
+    /**
+     * Sets the pixel coordinates of geographic coordinates and vice versa, as far as possible.
+     * Coordinates outside of the product get pixel coordinates -1.
+     *
+     * @param coordinates - the coordinates
+     * @param product     - the product
+     */
+    static void locate(List<Coordinate> coordinates, Product product) {
+        final GeoCoding geoCoding = product.getSceneGeoCoding();
+        for (Coordinate coordinate : coordinates) {
+            if (coordinate.geographic) {
+                if (geoCoding == null || !geoCoding.canGetPixelPos()) {
+                    throw new OperatorException("Source product has no geo-coding to locate geographic coordinates.");
+                }
+                final PixelPos pixelPos = geoCoding.getPixelPos(new GeoPos(coordinate.lat, coordinate.lon), null);
+                if (pixelPos != null && pixelPos.isValid()) {
+                    coordinate.setPixel(pixelPos.x, pixelPos.y, product.getSceneRasterWidth(),
+                                        product.getSceneRasterHeight());
+                }
+            } else {
+                coordinate.setPixel(coordinate.pixelX, coordinate.pixelY, product.getSceneRasterWidth(),
+                                    product.getSceneRasterHeight());
+                if (coordinate.x >= 0 && geoCoding != null && geoCoding.canGetGeoPos()) {
+                    final GeoPos geoPos = geoCoding.getGeoPos(new PixelPos(coordinate.x + 0.5, coordinate.y + 0.5), null);
+                    coordinate.lat = geoPos.lat;
+                    coordinate.lon = geoPos.lon;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the extracted values as CSV. The names are quoted, with quotes doubled.
+     *
+     * @param writer      - the writer
+     * @param coordinates - the located coordinates
+     * @param bands       - the extracted bands
+     * @param values      - the values [coordinate][band], NaN for coordinates outside of the product
+     * @throws IOException -
+     */
+    static void writeCsv(Writer writer, List<Coordinate> coordinates, Band[] bands, float[][] values)
+            throws IOException {
+        writer.write("name,lat,lon,pixel_x,pixel_y");
+        for (Band band : bands) {
+            writer.write("," + band.getName());
+        }
+        writer.write("\n");
+        for (int c = 0; c < coordinates.size(); c++) {
+            final Coordinate coordinate = coordinates.get(c);
+            // quoted, as the name is free text
+            writer.write(OlciHarmonisationIO.quoteCsv(coordinate.name));
+            writer.write(String.format(Locale.ENGLISH, ",%.6f,%.6f,%d,%d",
+                                       coordinate.lat, coordinate.lon, coordinate.x, coordinate.y));
+            for (int b = 0; b < bands.length; b++) {
+                writer.write("," + values[c][b]);
+            }
+            writer.write("\n");
+        }
+    }
+
+    // reads the band values, requesting the union of the coordinates per image tile at once
+    private float[][] extract(List<Coordinate> coordinates, Band[] bands) {
+        final float[][] values = new float[coordinates.size()][bands.length];
+        final RenderedImage image = bands[0].getSourceImage();
+        final int tileWidth = image.getTileWidth();
+        final int tileHeight = image.getTileHeight();
+
+        final Map<Long, List<Integer>> coordinatesPerTile = new LinkedHashMap<>();
+        for (int c = 0; c < coordinates.size(); c++) {
+            final Coordinate coordinate = coordinates.get(c);
+            if (coordinate.x < 0) {
+                for (int b = 0; b < bands.length; b++) {
+                    values[c][b] = Float.NaN;
+                }
+                continue;
+            }
+            final long tileKey = ((long) (coordinate.y / tileHeight) << 32) | (coordinate.x / tileWidth);
+            coordinatesPerTile.computeIfAbsent(tileKey, key -> new ArrayList<>()).add(c);
+        }
+
+        for (List<Integer> tileCoordinates : coordinatesPerTile.values()) {
+            checkForCancellation();
+            Rectangle rectangle = null;
+            for (int c : tileCoordinates) {
+                final Rectangle pixel = new Rectangle(coordinates.get(c).x, coordinates.get(c).y, 1, 1);
+                rectangle = rectangle == null ? pixel : rectangle.union(pixel);
+            }
+            for (int b = 0; b < bands.length; b++) {
+                final Tile tile = getSourceTile(bands[b], rectangle);
+                for (int c : tileCoordinates) {
+                    values[c][b] = tile.getSampleFloat(coordinates.get(c).x, coordinates.get(c).y);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * A coordinate to extract, given as geographic or pixel coordinate.
+     */
+    static class Coordinate {
+        final String name;
+        final boolean geographic;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        double pixelX = Double.NaN;
+        double pixelY = Double.NaN;
+        // the pixel containing the coordinate, -1 if outside of the product
+        int x = -1;
+        int y = -1;
+
+        private Coordinate(String name, boolean geographic) {
+            this.name = name;
+            this.geographic = geographic;
+        }
+
+        static Coordinate geo(String name, double lat, double lon) {
+            final Coordinate coordinate = new Coordinate(name, true);
+            coordinate.lat = lat;
+            coordinate.lon = lon;
+            return coordinate;
+        }
+
+        static Coordinate pixel(String name, double pixelX, double pixelY) {
+            final Coordinate coordinate = new Coordinate(name, false);
+            coordinate.pixelX = pixelX;
+            coordinate.pixelY = pixelY;
+            return coordinate;
+        }
+
+        void setPixel(double pixelX, double pixelY, int width, int height) {
+            // also false for NaN
+            if (pixelX >= 0 && pixelX < width && pixelY >= 0 && pixelY < height) {
+                this.pixelX = pixelX;
+                this.pixelY = pixelY;
+                x = (int) pixelX;
+                y = (int) pixelY;
+            }
+        }
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(OlciHarmonisationPixelExtractionOp.class);
+        }
+    }
+}
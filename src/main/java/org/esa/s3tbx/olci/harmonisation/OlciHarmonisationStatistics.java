@@ -0,0 +1,309 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.MetadataAttribute;
+import org.esa.snap.core.datamodel.MetadataElement;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.util.SystemUtils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stage timers and counters of an {@link OlciHarmonisationOp}. Every tile computing thread accumulates into its
+ * own {@link Accumulator} without any synchronisation, the accumulators are only summed up when the statistics
+ * are read (JMX, metadata, log). Values read while tiles are computed may therefore be slightly outdated.
+ *
+ * @author olafd
+ */
+public class OlciHarmonisationStatistics implements OlciHarmonisationStatisticsMBean {
+
+    static final String METADATA_ELEMENT_NAME = "Processing_Statistics";
+
+    /**
+     * The timed processing stages. Auxdata stages are timed once per operator, the others per tile.
+     */
+    enum Stage {
+        /** installation of the auxdata */
+        AUXDATA_INSTALL,
+        /** reading of the desmile LUTs used (possibly by an earlier operator, see {@link DesmileAuxdataRegistry}) */
+        LUT_READ,
+        /** building of the KD trees used (possibly by an earlier operator) */
+        KD_TREE_BUILD,
+        /** resampling of the DEM altitude onto the L1b pixels, part of {@link #SOURCE_READ} */
+        DEM_COLLOCATION,
+        /** fetching of source tiles into the sample buffers */
+        SOURCE_READ,
+        /** the kernel, including desmile and rectification */
+        KERNEL,
+        /** computation of the desmile factors */
+        DESMILE,
+        /** rectification and computation of the outputs from the desmiled transmissions */
+        RECTIFICATION,
+        /** copying of the sample buffers into the target tiles */
+        TARGET_WRITE,
+        /** the complete tile computation */
+        TILE_TOTAL
+    }
+
+    /**
+     * The counters.
+     */
+    enum Counter {
+        TILES,
+        PIXELS,
+        INVALID_PIXELS,
+        /** desmile factors computed with the KD search */
+        KD_QUERIES,
+        /** NaN values written to target tiles */
+        NAN_OUTPUTS,
+        /** tile stacks restored from the checkpoint store instead of being computed */
+        RESTORED_TILES
+    }
+
+    /**
+     * Timers and counters of one thread.
+     */
+    static class Accumulator {
+        private final long[] nanos = new long[Stage.values().length];
+        private final long[] counts = new long[Counter.values().length];
+
+        void add(Stage stage, long nanos) {
+            this.nanos[stage.ordinal()] += nanos;
+        }
+
+        /**
+         * Adds the time from given start (see {@link System#nanoTime()}) until now.
+         *
+         * @param stage     - the stage
+         * @param startTime - the start time of the stage
+         * @return the current time, e.g. as start of the next stage
+         */
+        long addSince(Stage stage, long startTime) {
+            final long now = System.nanoTime();
+            nanos[stage.ordinal()] += now - startTime;
+            return now;
+        }
+
+        void count(Counter counter, long n) {
+            counts[counter.ordinal()] += n;
+        }
+    }
+
+    private final Queue<Accumulator> accumulators = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Accumulator> threadAccumulators = ThreadLocal.withInitial(() -> {
+        final Accumulator accumulator = new Accumulator();
+        accumulators.add(accumulator);
+        return accumulator;
+    });
+    private final AtomicLong firstTileStart = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong lastTileEnd = new AtomicLong(Long.MIN_VALUE);
+    private ObjectName objectName;
+
+    /**
+     * @return the accumulator of the current thread
+     */
+    Accumulator getAccumulator() {
+        return threadAccumulators.get();
+    }
+
+    /**
+     * Records the wall-clock interval of a tile computation.
+     *
+     * @param startTime - the start time (see {@link System#nanoTime()})
+     * @param endTime   - the end time
+     */
+    void recordTileInterval(long startTime, long endTime) {
+        firstTileStart.accumulateAndGet(startTime, Math::min);
+        lastTileEnd.accumulateAndGet(endTime, Math::max);
+    }
+
+    long getNanos(Stage stage) {
+        long sum = 0;
+        for (Accumulator accumulator : accumulators) {
+            sum += accumulator.nanos[stage.ordinal()];
+        }
+        return sum;
+    }
+
+    long getCount(Counter counter) {
+        long sum = 0;
+        for (Accumulator accumulator : accumulators) {
+            sum += accumulator.counts[counter.ordinal()];
+        }
+        return sum;
+    }
+
+    @Override
+    public long getPixelCount() {
+        return getCount(Counter.PIXELS);
+    }
+
+    @Override
+    public long getInvalidPixelCount() {
+        return getCount(Counter.INVALID_PIXELS);
+    }
+
+    @Override
+    public long getKdQueryCount() {
+        return getCount(Counter.KD_QUERIES);
+    }
+
+    @Override
+    public long getNanOutputCount() {
+        return getCount(Counter.NAN_OUTPUTS);
+    }
+
+    @Override
+    public long getTileCount() {
+        return getCount(Counter.TILES);
+    }
+
+    @Override
+    public long getRestoredTileCount() {
+        return getCount(Counter.RESTORED_TILES);
+    }
+
+    @Override
+    public double getAuxdataInstallMillis() {
+        return getMillis(Stage.AUXDATA_INSTALL);
+    }
+
+    @Override
+    public double getLutReadMillis() {
+        return getMillis(Stage.LUT_READ);
+    }
+
+    @Override
+    public double getKdTreeBuildMillis() {
+        return getMillis(Stage.KD_TREE_BUILD);
+    }
+
+    @Override
+    public double getDemCollocationMillis() {
+        return getMillis(Stage.DEM_COLLOCATION);
+    }
+
+    @Override
+    public double getSourceReadMillis() {
+        return getMillis(Stage.SOURCE_READ);
+    }
+
+    @Override
+    public double getKernelMillis() {
+        return getMillis(Stage.KERNEL);
+    }
+
+    @Override
+    public double getDesmileMillis() {
+        return getMillis(Stage.DESMILE);
+    }
+
+    @Override
+    public double getRectificationMillis() {
+        return getMillis(Stage.RECTIFICATION);
+    }
+
+    @Override
+    public double getTargetWriteMillis() {
+        return getMillis(Stage.TARGET_WRITE);
+    }
+
+    @Override
+    public double getTileTotalMillis() {
+        return getMillis(Stage.TILE_TOTAL);
+    }
+
+    @Override
+    public double getPixelsPerSecond() {
+        final long wallNanos = lastTileEnd.get() - firstTileStart.get();
+        return wallNanos > 0 ? getPixelCount() * 1.0E9 / wallNanos : 0.0;
+    }
+
+    @Override
+    public String getReport() {
+        final StringBuilder report = new StringBuilder("OLCI Harmonisation statistics:");
+        for (Stage stage : Stage.values()) {
+            report.append(String.format(Locale.ENGLISH, "%n  %-16s %12.1f ms", stage, getMillis(stage)));
+        }
+        for (Counter counter : Counter.values()) {
+            report.append(String.format(Locale.ENGLISH, "%n  %-16s %12d", counter, getCount(counter)));
+        }
+        report.append(String.format(Locale.ENGLISH, "%n  %-16s %12.0f", "PIXELS_PER_S", getPixelsPerSecond()));
+        return report.toString();
+    }
+
+    /**
+     * Writes the current statistics into an element {@value #METADATA_ELEMENT_NAME} of given metadata root,
+     * replacing an existing one.
+     *
+     * @param metadataRoot - the metadata root of the target product
+     */
+    void writeMetadata(MetadataElement metadataRoot) {
+        final MetadataElement element = new MetadataElement(METADATA_ELEMENT_NAME);
+        for (Stage stage : Stage.values()) {
+            element.addAttribute(new MetadataAttribute(stage.name().toLowerCase(Locale.ENGLISH) + "_ms",
+                                                       ProductData.createInstance(new double[]{getMillis(stage)}),
+                                                       true));
+        }
+        for (Counter counter : Counter.values()) {
+            element.addAttribute(new MetadataAttribute(counter.name().toLowerCase(Locale.ENGLISH),
+                                                       ProductData.createInstance(new long[]{getCount(counter)}),
+                                                       true));
+        }
+        element.addAttribute(new MetadataAttribute("pixels_per_s",
+                                                   ProductData.createInstance(new double[]{getPixelsPerSecond()}),
+                                                   true));
+        synchronized (metadataRoot) {
+            final MetadataElement existing = metadataRoot.getElement(METADATA_ELEMENT_NAME);
+            if (existing != null) {
+                metadataRoot.removeElement(existing);
+            }
+            metadataRoot.addElement(element);
+        }
+    }
+
+    /**
+     * Registers the statistics at the platform MBean server. Failures are only logged.
+     *
+     * @param name - the name of the MBean, e.g. the target product name
+     */
+    synchronized void registerMBean(String name) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("org.esa.s3tbx.olci.harmonisation:type=OlciHarmonisationStatistics,name=" +
+                                                ObjectName.quote(name + "@" + Integer.toHexString(hashCode())));
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            SystemUtils.LOG.warning("Cannot register OLCI Harmonisation statistics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Unregisters the statistics from the platform MBean server, if registered.
+     */
+    synchronized void unregisterMBean() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                SystemUtils.LOG.warning("Cannot unregister OLCI Harmonisation statistics MBean: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    private double getMillis(Stage stage) {
+        return getNanos(stage) * 1.0E-6;
+    }
+}
@@ -0,0 +1,53 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+/**
+ * JMX interface of {@link OlciHarmonisationStatistics}. Times are given in milliseconds, summed over all
+ * tile computing threads.
+ *
+ * @author olafd
+ */
+public interface OlciHarmonisationStatisticsMBean {
+
+    long getPixelCount();
+
+    long getInvalidPixelCount();
+
+    long getKdQueryCount();
+
+    long getNanOutputCount();
+
+    long getTileCount();
+
+    long getRestoredTileCount();
+
+    double getAuxdataInstallMillis();
+
+    double getLutReadMillis();
+
+    double getKdTreeBuildMillis();
+
+    double getDemCollocationMillis();
+
+    double getSourceReadMillis();
+
+    double getKernelMillis();
+
+    double getDesmileMillis();
+
+    double getRectificationMillis();
+
+    double getTargetWriteMillis();
+
+    double getTileTotalMillis();
+
+    /**
+     * @return the number of pixels per second of wall-clock time between the start of the first and the end of
+     * the last tile computation
+     */
+    double getPixelsPerSecond();
+
+    /**
+     * @return a human readable summary of all timers and counters
+     */
+    String getReport();
+}
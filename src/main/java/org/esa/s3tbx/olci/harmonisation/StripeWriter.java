@@ -0,0 +1,177 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.snap.core.dataio.ProductIO;
+import org.esa.snap.core.dataio.ProductWriter;
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.datamodel.RasterDataNode;
+import org.esa.snap.core.util.SystemUtils;
+
+import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming execution of an {@link OlciHarmonisationOp} for full-orbit products, as alternative to GPF tile
+ * scheduling. The scene is processed in horizontal stripes of full width from top to bottom: the source samples of
+ * a stripe are read once, all target samples are computed and written with the product writer, and the source
+ * tiles above the next stripe are removed from the tile cache. The memory needed is therefore bounded by the
+ * stripe height, which is derived from a memory limit, independent of the scene height.
+ * <p/>
+ * The tiles are removed from the images of the L1b product and a pixel-aligned DEM product, and, if a region or
+ * sub-sampling is processed, also from the images of the products as read, with the rows mapped accordingly.
+ * The rows of a DEM product which is resampled onto the L1b grid are not related to the stripe rows: all its
+ * tiles are removed after every stripe, as the DEM samples are kept in the {@link DemTileCache}, whose memory
+ * is bounded by its own limit and not included in the memory limit of the stripes.
+ *
+ * @author olafd
+ */
+class StripeWriter {
+
+    // source samples in the kernel buffers, per pixel: radiance, cwl, fwhm and solar flux of bands 12..16,
+    // SZA, OZA, altitude, DEM altitude and sea level pressure as double, quality flags, detector index and
+    // DEM collocation flags as int or float
+    static final long KERNEL_BYTES_PER_PIXEL = 25 * 8 + 3 * 4;
+    // source samples in the tile cache, per pixel and image level (subset or as read): the 27 rasters read for
+    // the kernel buffers, with at most 4 bytes per sample
+    static final long SOURCE_TILE_BYTES_PER_PIXEL = 27 * 4;
+    // target samples, per pixel: trans_, press_, surface_ and radiance_ of bands 13..15 as float
+    static final long TARGET_BYTES_PER_PIXEL = 12 * 4;
+
+    private StripeWriter() {
+    }
+
+    /**
+     * Computes and writes the target product of an initialised operator.
+     *
+     * @param operator    - the operator
+     * @param file        - the target file
+     * @param formatName  - the format of the target product
+     * @param memoryLimit - the memory available for a stripe in bytes
+     * @throws IOException -
+     */
+    static void write(OlciHarmonisationOp operator, File file, String formatName, long memoryLimit) throws IOException {
+        final Product targetProduct = operator.getTargetProduct();
+        final int width = targetProduct.getSceneRasterWidth();
+        final int height = targetProduct.getSceneRasterHeight();
+        final Product[] readerProducts = operator.getReaderSourceProducts();
+        final int stripeHeight = computeStripeHeight(width, height, getBytesPerPixel(readerProducts != null),
+                                                     memoryLimit);
+        final List<RenderedImage> sourceImages = getSourceImages(operator.getRowAlignedSourceProducts());
+        final List<RenderedImage> readerImages =
+                readerProducts != null ? getSourceImages(readerProducts) : Collections.emptyList();
+        final Rectangle sourceRegion = operator.getSourceRegion();
+        final int step = operator.getSubSamplingStep();
+        final RasterDataNode resampledDemBand = operator.getResampledDemBand();
+
+        final ProductWriter productWriter = ProductIO.getProductWriter(formatName);
+        if (productWriter == null) {
+            throw new IOException("No writer found for format " + formatName);
+        }
+        SystemUtils.LOG.info("OLCI Harmonisation: streaming " + width + " x " + height + " pixels in stripes of " +
+                                     stripeHeight + " rows to " + file);
+        productWriter.writeProductNodes(targetProduct, file);
+        try {
+            for (int y = 0; y < height; y += stripeHeight) {
+                final Rectangle stripe = new Rectangle(0, y, width, Math.min(stripeHeight, height - y));
+                final Map<Band, float[]> targetSamples = operator.computeTargetSamples(stripe);
+                for (Map.Entry<Band, float[]> entry : targetSamples.entrySet()) {
+                    productWriter.writeBandRasterData(entry.getKey(), stripe.x, stripe.y, stripe.width, stripe.height,
+                                                      ProductData.createInstance(entry.getValue()),
+                                                      ProgressMonitor.NULL);
+                }
+                // after the last stripe, all tiles are removed
+                final boolean last = stripe.y + stripe.height >= height;
+                final int endY = last ? Integer.MAX_VALUE : stripe.y + stripe.height;
+                final TileCache tileCache = JAI.getDefaultInstance().getTileCache();
+                removeTiles(tileCache, sourceImages, stripe.y, endY);
+                if (!readerImages.isEmpty()) {
+                    // rows of the products as read, of which the subsets are computed
+                    removeTiles(tileCache, readerImages, sourceRegion.y + stripe.y * step,
+                                last ? Integer.MAX_VALUE : sourceRegion.y + endY * step);
+                }
+                if (resampledDemBand != null && tileCache != null) {
+                    tileCache.removeTiles(resampledDemBand.getSourceImage().getImage(0));
+                }
+            }
+        } finally {
+            productWriter.flush();
+            productWriter.close();
+        }
+    }
+
+    /**
+     * @param withReaderImages - true, if subsets are processed, so that the source tiles are cached for the
+     *                         subsets and for the products as read
+     * @return the memory needed for a pixel of a stripe in bytes
+     */
+    static long getBytesPerPixel(boolean withReaderImages) {
+        return KERNEL_BYTES_PER_PIXEL + TARGET_BYTES_PER_PIXEL +
+                (withReaderImages ? 2 : 1) * SOURCE_TILE_BYTES_PER_PIXEL;
+    }
+
+    /**
+     * @param width         - the scene width
+     * @param height        - the scene height
+     * @param bytesPerPixel - the memory needed for a pixel of a stripe in bytes
+     * @param memoryLimit   - the memory available for a stripe in bytes
+     * @return the number of rows of a stripe, at least 1
+     */
+    static int computeStripeHeight(int width, int height, long bytesPerPixel, long memoryLimit) {
+        final long rows = memoryLimit / (bytesPerPixel * width);
+        return (int) Math.max(1, Math.min(height, rows));
+    }
+
+    private static List<RenderedImage> getSourceImages(Product[] sourceProducts) {
+        final List<RenderedImage> sourceImages = new ArrayList<>();
+        for (Product sourceProduct : sourceProducts) {
+            final List<RasterDataNode> rasters = new ArrayList<>(Arrays.asList(sourceProduct.getBands()));
+            rasters.addAll(Arrays.asList(sourceProduct.getTiePointGrids()));
+            for (RasterDataNode raster : rasters) {
+                // source tiles are requested from the full resolution level of the source images, which are
+                // created here if not yet done, as they would be on the first request
+                sourceImages.add(raster.getSourceImage().getImage(0));
+            }
+        }
+        return sourceImages;
+    }
+
+    /**
+     * Removes the tiles of given images from the tile cache which are completely above the end of a stripe and
+     * not yet removed after the previous stripe, as they are not needed for the next stripes.
+     *
+     * @param tileCache - the tile cache
+     * @param images    - the images
+     * @param startY    - the first row of the stripe
+     * @param endY      - the row following the stripe
+     */
+    static void removeTiles(TileCache tileCache, List<RenderedImage> images, int startY, int endY) {
+        if (tileCache == null) {
+            return;
+        }
+        for (RenderedImage image : images) {
+            final int firstTileY = Math.max(image.getMinTileY(), getLastTileAbove(image, startY) + 1);
+            final int lastTileY = Math.min(image.getMinTileY() + image.getNumYTiles() - 1,
+                                           getLastTileAbove(image, endY));
+            for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+                for (int tileX = image.getMinTileX(); tileX < image.getMinTileX() + image.getNumXTiles(); tileX++) {
+                    tileCache.removeTile(image, tileX, tileY);
+                }
+            }
+        }
+    }
+
+    private static int getLastTileAbove(RenderedImage image, int y) {
+        return (int) Math.floorDiv((long) y - image.getTileGridYOffset(), image.getTileHeight()) - 1;
+    }
+}
@@ -0,0 +1,172 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.util.SystemUtils;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local store of computed target tiles, so that an interrupted run of {@link OlciHarmonisationOp} can be resumed
+ * by computing only the missing tiles.
+ * <p/>
+ * A store is a directory below a checkpoint directory, named after the source product and a hash of a manifest.
+ * The manifest describes everything the target samples depend on (source product, parameters, LUT versions) and
+ * is written as {@value #MANIFEST_FILE_NAME} into the store. Every target tile is a file of raw floats named
+ * after band and tile rectangle. Tiles are written to a temporary file first and then renamed, so a tile file
+ * is always complete.
+ *
+ * @author olafd
+ */
+class TileCheckpointStore {
+
+    static final String MANIFEST_FILE_NAME = "manifest.txt";
+
+    private static final String TILE_EXTENSION = ".tile";
+
+    private final Path storeDir;
+    private final AtomicLong numRead = new AtomicLong();
+    private final AtomicLong numWritten = new AtomicLong();
+    private final AtomicBoolean writeFailed = new AtomicBoolean();
+
+    /**
+     * Opens the store for given manifest, creating it if not yet existing.
+     *
+     * @param checkpointDir - the checkpoint directory containing the stores
+     * @param productName   - the name of the source product
+     * @param manifest      - the manifest
+     * @throws IOException -
+     */
+    TileCheckpointStore(Path checkpointDir, String productName, String manifest) throws IOException {
+        storeDir = checkpointDir.resolve(productName + "_" + createKey(manifest));
+        final Path manifestPath = storeDir.resolve(MANIFEST_FILE_NAME);
+        if (Files.isRegularFile(manifestPath)) {
+            final String existingManifest = new String(Files.readAllBytes(manifestPath), StandardCharsets.UTF_8);
+            if (existingManifest.equals(manifest)) {
+                return;
+            }
+            // hash collision, the tiles are of another product
+            OlciHarmonisationBatch.deleteTree(storeDir);
+        }
+        Files.createDirectories(storeDir);
+        final Path tmpPath = storeDir.resolve(MANIFEST_FILE_NAME + ".tmp");
+        Files.write(tmpPath, manifest.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpPath, manifestPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param manifest - the manifest
+     * @return the hex encoded SHA-256 hash of the manifest, shortened to 16 characters
+     */
+    static String createKey(String manifest) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(manifest.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder key = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                key.append(String.format("%02x", hash[i] & 0xff));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Path getStoreDir() {
+        return storeDir;
+    }
+
+    /**
+     * Reads the samples of a stored tile.
+     *
+     * @param bandName  - the name of the target band
+     * @param rectangle - the tile rectangle
+     * @param samples   - the samples of the tile (output)
+     * @return true, if the tile was stored and has been read
+     */
+    boolean read(String bandName, Rectangle rectangle, float[] samples) {
+        final Path tilePath = getTilePath(bandName, rectangle);
+        if (!Files.isRegularFile(tilePath)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(tilePath, StandardOpenOption.READ)) {
+            if (channel.size() != 4L * samples.length) {
+                return false;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(4 * samples.length).order(ByteOrder.nativeOrder());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read the complete file
+            }
+            buffer.flip();
+            buffer.asFloatBuffer().get(samples);
+        } catch (IOException e) {
+            SystemUtils.LOG.warning("Cannot read checkpoint tile " + tilePath + ": " + e.getMessage());
+            return false;
+        }
+        numRead.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stores the samples of a tile. Failures are logged once and otherwise ignored, as they only affect
+     * resuming the processing.
+     *
+     * @param bandName  - the name of the target band
+     * @param rectangle - the tile rectangle
+     * @param samples   - the samples of the tile
+     */
+    void write(String bandName, Rectangle rectangle, float[] samples) {
+        final Path tilePath = getTilePath(bandName, rectangle);
+        final Path tmpPath = tilePath.resolveSibling(tilePath.getFileName() + "." + Thread.currentThread().getId());
+        final ByteBuffer buffer = ByteBuffer.allocate(4 * samples.length).order(ByteOrder.nativeOrder());
+        buffer.asFloatBuffer().put(samples);
+        try {
+            try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(tmpPath, tilePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            numWritten.incrementAndGet();
+        } catch (IOException e) {
+            if (writeFailed.compareAndSet(false, true)) {
+                SystemUtils.LOG.warning("Cannot write checkpoint tile " + tilePath + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the number of tiles read from the store
+     */
+    long getNumRead() {
+        return numRead.get();
+    }
+
+    /**
+     * @return the number of tiles written to the store
+     */
+    long getNumWritten() {
+        return numWritten.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TileCheckpointStore[" + storeDir + ", read=" + numRead.get() + ", written=" + numWritten.get() + "]";
+    }
+
+    private Path getTilePath(String bandName, Rectangle rectangle) {
+        return storeDir.resolve(bandName + "_" + rectangle.x + "_" + rectangle.y + "_" + rectangle.width + "_" +
+                                        rectangle.height + TILE_EXTENSION);
+    }
+}
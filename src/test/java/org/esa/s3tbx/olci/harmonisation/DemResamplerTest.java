@@ -0,0 +1,173 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.GeoCoding;
+import org.esa.snap.core.datamodel.GeoPos;
+import org.esa.snap.core.datamodel.PixelPos;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DemResamplerTest {
+
+    private static final int DEM_WIDTH = 10;
+    private static final int DEM_HEIGHT = 8;
+
+    // altitude linear in x and y, so that the bilinear interpolation is exact
+    private static double altitude(double x, double y) {
+        return 100.0 * x + 10.0 * y;
+    }
+
+    @Test
+    public void testNearestNeighbour() {
+        final DemResampler resampler = new DemResampler(null, null, DEM_WIDTH, DEM_HEIGHT, false);
+        final DemResampler.Positions positions = createPositions(resampler, new double[][]{
+                {1.75, 2.75}, {3.2, 2.1}, {-0.1, 3.0}, {10.0, 3.0}, {9.99, 7.99}});
+
+        assertArrayEquals(new Rectangle[]{new Rectangle(1, 2, 9, 6)}, positions.demRectangles);
+        final double[] altitude = new double[5];
+        final int[] flags = new int[5];
+        resampler.resample(positions, getDemSamples(positions.demRectangles),
+                           getDemValid(positions.demRectangles, -1, -1), altitude, flags);
+
+        assertEquals(altitude(1, 2), altitude[0], 0.0);
+        assertEquals(altitude(3, 2), altitude[1], 0.0);
+        // outside of the DEM
+        assertEquals(0, flags[2]);
+        assertTrue(Double.isNaN(altitude[2]));
+        assertEquals(0, flags[3]);
+        assertEquals(altitude(9, 7), altitude[4], 0.0);
+        assertEquals(1, flags[4]);
+    }
+
+    @Test
+    public void testBilinear() {
+        final DemResampler resampler = new DemResampler(null, null, DEM_WIDTH, DEM_HEIGHT, true);
+        final DemResampler.Positions positions = createPositions(resampler, new double[][]{
+                {1.75, 2.75}, {0.25, 0.25}, {5.5, 4.5}, {7.0, 6.0}});
+
+        assertArrayEquals(new Rectangle[]{new Rectangle(0, 0, 8, 7)}, positions.demRectangles);
+        final double[] altitude = new double[4];
+        final int[] flags = new int[4];
+        // DEM pixel (6, 5) is invalid
+        resampler.resample(positions, getDemSamples(positions.demRectangles),
+                           getDemValid(positions.demRectangles, 6, 5), altitude, flags);
+
+        assertEquals(altitude(1.25, 2.25), altitude[0], 1.0E-10);
+        // the edge is replicated
+        assertEquals(altitude(0, 0), altitude[1], 1.0E-10);
+        assertEquals(altitude(5, 4), altitude[2], 1.0E-10);
+        // next to the invalid pixel, nearest neighbour
+        assertEquals(altitude(7, 6), altitude[3], 0.0);
+        for (int flag : flags) {
+            assertEquals(1, flag);
+        }
+    }
+
+    @Test
+    public void testNoPositionInDem() {
+        final DemResampler resampler = new DemResampler(null, null, DEM_WIDTH, DEM_HEIGHT, true);
+        final DemResampler.Positions positions = createPositions(resampler, new double[][]{{-1.0, 2.0}, {2.0, 8.0}});
+        assertEquals(0, positions.demRectangles.length);
+    }
+
+    @Test
+    public void testAntimeridian_demRectangleIsSplit() {
+        // positions at the left and right edge of a global DEM
+        final DemResampler resampler = new DemResampler(null, null, DEM_WIDTH, DEM_HEIGHT, false);
+        final DemResampler.Positions positions = createPositions(resampler, new double[][]{
+                {0.5, 1.5}, {8.7, 1.5}, {1.2, 2.5}, {9.5, 3.5}});
+
+        assertArrayEquals(new Rectangle[]{new Rectangle(0, 1, 2, 2), new Rectangle(8, 1, 2, 3)},
+                          positions.demRectangles);
+        final double[] altitude = new double[4];
+        final int[] flags = new int[4];
+        resampler.resample(positions, getDemSamples(positions.demRectangles),
+                           getDemValid(positions.demRectangles, -1, -1), altitude, flags);
+
+        assertEquals(altitude(0, 1), altitude[0], 0.0);
+        assertEquals(altitude(8, 1), altitude[1], 0.0);
+        assertEquals(altitude(1, 2), altitude[2], 0.0);
+        assertEquals(altitude(9, 3), altitude[3], 0.0);
+        for (int flag : flags) {
+            assertEquals(1, flag);
+        }
+    }
+
+    @Test
+    public void testLocate_positionsAreCached() {
+        // geographic coordinates equal to the pixel coordinates in both products
+        final AtomicInteger numGeoPos = new AtomicInteger();
+        final GeoCoding geoCoding = (GeoCoding) Proxy.newProxyInstance(
+                GeoCoding.class.getClassLoader(), new Class[]{GeoCoding.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getGeoPos")) {
+                        numGeoPos.incrementAndGet();
+                        final GeoPos geoPos = (GeoPos) args[1];
+                        geoPos.lat = ((PixelPos) args[0]).y;
+                        geoPos.lon = ((PixelPos) args[0]).x;
+                        return geoPos;
+                    }
+                    if (method.getName().equals("getPixelPos")) {
+                        final PixelPos pixelPos = (PixelPos) args[1];
+                        pixelPos.setLocation(((GeoPos) args[0]).lon, ((GeoPos) args[0]).lat);
+                        return pixelPos;
+                    }
+                    return null;
+                });
+        final DemResampler resampler = new DemResampler(geoCoding, geoCoding, DEM_WIDTH, DEM_HEIGHT, false);
+
+        final DemResampler.Positions positions = resampler.locate(new Rectangle(2, 1, 3, 2));
+        assertEquals(6, numGeoPos.get());
+        assertArrayEquals(new Rectangle[]{new Rectangle(2, 1, 3, 2)}, positions.demRectangles);
+
+        assertSame(positions, resampler.locate(new Rectangle(2, 1, 3, 2)));
+        assertEquals(6, numGeoPos.get());
+        resampler.locate(new Rectangle(2, 3, 3, 2));
+        assertEquals(12, numGeoPos.get());
+    }
+
+    private static DemResampler.Positions createPositions(DemResampler resampler, double[][] xy) {
+        final DemResampler.Positions positions = resampler.new Positions(xy.length);
+        for (int i = 0; i < xy.length; i++) {
+            positions.set(i, xy[i][0], xy[i][1]);
+        }
+        positions.computeDemRectangles();
+        return positions;
+    }
+
+    private static double[][] getDemSamples(Rectangle[] demRectangles) {
+        final double[][] samples = new double[demRectangles.length][];
+        for (int r = 0; r < demRectangles.length; r++) {
+            final Rectangle demRectangle = demRectangles[r];
+            samples[r] = new double[demRectangle.width * demRectangle.height];
+            int i = 0;
+            for (int y = demRectangle.y; y < demRectangle.y + demRectangle.height; y++) {
+                for (int x = demRectangle.x; x < demRectangle.x + demRectangle.width; x++) {
+                    samples[r][i++] = altitude(x, y);
+                }
+            }
+        }
+        return samples;
+    }
+
+    private static boolean[][] getDemValid(Rectangle[] demRectangles, int invalidX, int invalidY) {
+        final boolean[][] valid = new boolean[demRectangles.length][];
+        for (int r = 0; r < demRectangles.length; r++) {
+            final Rectangle demRectangle = demRectangles[r];
+            valid[r] = new boolean[demRectangle.width * demRectangle.height];
+            int i = 0;
+            for (int y = demRectangle.y; y < demRectangle.y + demRectangle.height; y++) {
+                for (int x = demRectangle.x; x < demRectangle.x + demRectangle.width; x++) {
+                    valid[r][i++] = x != invalidX || y != invalidY;
+                }
+            }
+        }
+        return valid;
+    }
+}
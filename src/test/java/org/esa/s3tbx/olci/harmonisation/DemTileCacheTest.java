@@ -0,0 +1,109 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DemTileCacheTest {
+
+    private static final int DEM_WIDTH = 600;
+    private static final int DEM_HEIGHT = 300;
+    private static final int TILE_SIZE = DemTileCache.TILE_SIZE;
+
+    // records the loaded rectangles; altitude depends on x and y, pixel (100, 260) is invalid
+    private final List<Rectangle> loaded = new ArrayList<>();
+    private final DemTileCache.TileLoader loader = rectangle -> {
+        loaded.add(rectangle);
+        final float[] samples = new float[rectangle.width * rectangle.height];
+        int i = 0;
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                samples[i++] = x == 100 && y == 260 ? Float.NaN : altitude(x, y);
+            }
+        }
+        return samples;
+    };
+
+    private static float altitude(int x, int y) {
+        return x + 1000.0f * y;
+    }
+
+    @Test
+    public void testReadAcrossTilesAndFromCache() {
+        final DemTileCache cache = new DemTileCache(1L << 20);
+        final Rectangle demRectangle = new Rectangle(250, 250, 20, 20);
+        final double[] samples = new double[400];
+        final boolean[] valid = new boolean[400];
+
+        cache.read("dem", DEM_WIDTH, DEM_HEIGHT, demRectangle, loader, samples, valid);
+        assertEquals(4, loaded.size());
+        assertEquals(new Rectangle(0, 0, TILE_SIZE, TILE_SIZE), loaded.get(0));
+        // tiles are clipped at the DEM border
+        assertEquals(new Rectangle(TILE_SIZE, TILE_SIZE, TILE_SIZE, DEM_HEIGHT - TILE_SIZE), loaded.get(3));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        assertSamples(demRectangle, samples, valid);
+
+        final Rectangle otherRectangle = new Rectangle(95, 255, 10, 10);
+        final double[] otherSamples = new double[100];
+        final boolean[] otherValid = new boolean[100];
+        cache.read("dem", DEM_WIDTH, DEM_HEIGHT, otherRectangle, loader, otherSamples, otherValid);
+        assertEquals(4, loaded.size());
+        assertEquals(2, cache.getHitCount());
+        assertSamples(otherRectangle, otherSamples, otherValid);
+        assertFalse(otherValid[5 * 10 + 5]);
+
+        // another DEM
+        cache.read("other_dem", DEM_WIDTH, DEM_HEIGHT, otherRectangle, loader, otherSamples, otherValid);
+        assertEquals(6, loaded.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTilesAreEvicted() {
+        // no tiles clipped at the DEM border
+        final int demSize = 4 * TILE_SIZE;
+        final long tileBytes = 4L * TILE_SIZE * TILE_SIZE;
+        final DemTileCache cache = new DemTileCache(2 * tileBytes);
+        final double[] samples = new double[1];
+        final boolean[] valid = new boolean[1];
+
+        cache.read("dem", demSize, demSize, new Rectangle(0, 0, 1, 1), loader, samples, valid);
+        cache.read("dem", demSize, demSize, new Rectangle(TILE_SIZE, 0, 1, 1), loader, samples, valid);
+        // tile (0, 0) is used again, so tile (1, 0) is the least recently used
+        cache.read("dem", demSize, demSize, new Rectangle(0, 0, 1, 1), loader, samples, valid);
+        cache.read("dem", demSize, demSize, new Rectangle(0, TILE_SIZE, 1, 1), loader, samples, valid);
+        assertEquals(3, loaded.size());
+        assertEquals(2 * tileBytes, cache.getSizeInBytes());
+
+        cache.read("dem", demSize, demSize, new Rectangle(0, 0, 1, 1), loader, samples, valid);
+        assertEquals(3, loaded.size());
+        cache.read("dem", demSize, demSize, new Rectangle(TILE_SIZE, 0, 1, 1), loader, samples, valid);
+        assertEquals(4, loaded.size());
+
+        cache.setMaxSizeInBytes(0);
+        assertEquals(0, cache.getSizeInBytes());
+        cache.clear();
+        assertEquals(0, cache.getMissCount());
+    }
+
+    private static void assertSamples(Rectangle demRectangle, double[] samples, boolean[] valid) {
+        int i = 0;
+        for (int y = demRectangle.y; y < demRectangle.y + demRectangle.height; y++) {
+            for (int x = demRectangle.x; x < demRectangle.x + demRectangle.width; x++) {
+                if (x == 100 && y == 260) {
+                    assertFalse(valid[i]);
+                } else {
+                    assertTrue(valid[i]);
+                    assertEquals(altitude(x, y), samples[i], 0.0);
+                }
+                i++;
+            }
+        }
+    }
+}
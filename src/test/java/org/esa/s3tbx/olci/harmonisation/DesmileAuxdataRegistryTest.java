@@ -0,0 +1,107 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class DesmileAuxdataRegistryTest {
+
+    private Path tmpDir;
+    private Path lutPath;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = Files.createTempDirectory("harmonisation");
+        lutPath = tmpDir.resolve("O2_desmile_lut_13.json");
+        Files.copy(OlciHarmonisationIO.installAuxdata().resolve("O2_desmile_lut_SMALL_TEST.json"), lutPath);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(lutPath);
+        Files.delete(tmpDir);
+    }
+
+    @Test
+    public void testGet_isCached() throws Exception {
+        final DesmileAuxdataRegistry registry = new DesmileAuxdataRegistry();
+
+        final DesmileAuxdata desmileAuxdata = registry.get(tmpDir, 13);
+        assertNotNull(desmileAuxdata);
+        assertEquals(13, desmileAuxdata.getBandIndex());
+        assertEquals(3, desmileAuxdata.getLut().getL());
+        assertEquals(3, desmileAuxdata.getKdTree().size());
+        assertEquals(0, registry.getHitCount());
+        assertEquals(1, registry.getMissCount());
+
+        assertSame(desmileAuxdata, registry.get(tmpDir, 13));
+        assertSame(desmileAuxdata, registry.get(tmpDir.resolve("../" + tmpDir.getFileName()), 13));
+        assertEquals(2, registry.getHitCount());
+        assertEquals(1, registry.getMissCount());
+
+        registry.clear();
+        assertEquals(0, registry.getHitCount());
+        assertNotSame(desmileAuxdata, registry.get(tmpDir, 13));
+        assertEquals(1, registry.getMissCount());
+    }
+
+    @Test
+    public void testGet_singlePrecision() throws Exception {
+        final DesmileAuxdataRegistry registry = new DesmileAuxdataRegistry();
+
+        final DesmileAuxdata desmileAuxdata = registry.get(tmpDir, 13, true);
+        assertTrue(desmileAuxdata.isSinglePrecision());
+        assertNull(desmileAuxdata.getLut());
+        assertNull(desmileAuxdata.getKdTree());
+        assertEquals(3, desmileAuxdata.getFloatLut().getNumNodes());
+        assertEquals(3, desmileAuxdata.getFloatLut().getKdTree().size());
+        assertSame(desmileAuxdata, registry.get(tmpDir, 13, true));
+
+        // double precision auxdata is a separate entry
+        final DesmileAuxdata doubleAuxdata = registry.get(tmpDir, 13);
+        assertFalse(doubleAuxdata.isSinglePrecision());
+        assertNotNull(doubleAuxdata.getLut());
+        assertEquals(1, registry.getHitCount());
+        assertEquals(2, registry.getMissCount());
+    }
+
+    @Test
+    public void testGet_reloadsModifiedLut() throws Exception {
+        final DesmileAuxdataRegistry registry = new DesmileAuxdataRegistry();
+
+        final DesmileAuxdata desmileAuxdata = registry.get(tmpDir, 13);
+        Files.setLastModifiedTime(lutPath, FileTime.fromMillis(Files.getLastModifiedTime(lutPath).toMillis() - 10000));
+        final DesmileAuxdata reloadedAuxdata = registry.get(tmpDir, 13);
+        assertNotSame(desmileAuxdata, reloadedAuxdata);
+        assertEquals(0, registry.getHitCount());
+        assertEquals(2, registry.getMissCount());
+
+        assertSame(reloadedAuxdata, registry.get(tmpDir, 13));
+        assertEquals(1, registry.getHitCount());
+    }
+
+    @Test
+    public void testGet_softReferences() throws Exception {
+        final DesmileAuxdataRegistry registry = new DesmileAuxdataRegistry();
+        registry.setSoftReferences(true);
+        assertTrue(registry.isSoftReferences());
+
+        final DesmileAuxdata desmileAuxdata = registry.get(tmpDir, 13);
+        // strongly reachable from here, hence cannot have been evicted
+        assertSame(desmileAuxdata, registry.get(tmpDir, 13));
+        assertEquals(1, registry.getHitCount());
+    }
+}
@@ -0,0 +1,54 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class DesmileCachePoolTest {
+
+    private final DesmileCache.FactorFunction function = (bandIndex, dwl, fwhm, amf, trans) -> 1.0;
+
+    @Test
+    public void testBorrowAndRelease() {
+        final DesmileCachePool pool = new DesmileCachePool(64, 0.01, 0.1, 4);
+
+        final DesmileCache cache1 = pool.borrow();
+        final DesmileCache cache2 = pool.borrow();
+        assertNotSame(cache1, cache2);
+        assertEquals(64, cache1.getCapacity());
+        assertEquals(2, pool.getNumCaches());
+
+        // a released cache is reused by the next tile, also of another thread
+        pool.release(cache1);
+        assertSame(cache1, pool.borrow());
+        assertEquals(2, pool.getNumCaches());
+
+        cache1.desmileFactor(0, 17.0f, 0.2, 2.6, 3.04, 0.456, function);
+        cache1.desmileFactor(0, 17.0f, 0.2, 2.6, 3.04, 0.456, function);
+        cache2.desmileFactor(0, 17.0f, 0.2, 2.6, 3.04, 0.456, function);
+        pool.release(cache1);
+        pool.release(cache2);
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void testBorrow_waitsIfMaximumNumberOfCachesIsInUse() throws Exception {
+        final DesmileCachePool pool = new DesmileCachePool(64, 0.01, 0.1, 1);
+        final DesmileCache cache = pool.borrow();
+
+        final CompletableFuture<DesmileCache> borrowed = CompletableFuture.supplyAsync(pool::borrow);
+        Thread.sleep(100);
+        assertFalse(borrowed.isDone());
+
+        pool.release(cache);
+        assertSame(cache, borrowed.get(10, TimeUnit.SECONDS));
+        assertEquals(1, pool.getNumCaches());
+    }
+}
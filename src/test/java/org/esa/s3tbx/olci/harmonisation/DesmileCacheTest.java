@@ -0,0 +1,92 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DesmileCacheTest {
+
+    // records the calls, factor depends on all inputs
+    private final List<double[]> calls = new ArrayList<>();
+    private final DesmileCache.FactorFunction function = (bandIndex, dwl, fwhm, amf, trans) -> {
+        calls.add(new double[]{bandIndex, dwl, fwhm, amf, trans});
+        return 1.0 + 0.1 * bandIndex + 0.01 * dwl + 0.001 * fwhm + 0.2 * amf + 0.3 * trans;
+    };
+
+    @Test
+    public void testFactorIsComputedAtCellCentreAndCached() {
+        final DesmileCache cache = new DesmileCache(1024, 0.01, 0.1);
+
+        final double factor = cache.desmileFactor(0, 17.0f, 0.2, 2.6, 3.04, 0.456, function);
+        assertEquals(1, calls.size());
+        assertEquals(3.05, calls.get(0)[3], 1.0E-12);
+        assertEquals(0.455, calls.get(0)[4], 1.0E-12);
+        assertEquals(1.0 + 0.002 + 0.0026 + 0.2 * 3.05 + 0.3 * 0.455, factor, 1.0E-12);
+
+        // same cell
+        assertEquals(factor, cache.desmileFactor(0, 17.0f, 0.2, 2.6, 3.01, 0.459, function), 0.0);
+        assertEquals(1, calls.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // other band, detector, cell, dwl or fwhm
+        cache.desmileFactor(1, 17.0f, 0.2, 2.6, 3.04, 0.456, function);
+        cache.desmileFactor(0, 18.0f, 0.2, 2.6, 3.04, 0.456, function);
+        cache.desmileFactor(0, 17.0f, 0.2, 2.6, 3.14, 0.456, function);
+        cache.desmileFactor(0, 17.0f, 0.2, 2.6, 3.04, 0.466, function);
+        cache.desmileFactor(0, 17.0f, 0.3, 2.6, 3.04, 0.456, function);
+        cache.desmileFactor(0, 17.0f, 0.3, 2.7, 3.04, 0.456, function);
+        assertEquals(7, calls.size());
+        assertEquals(7, cache.getMisses());
+    }
+
+    @Test
+    public void testResultsDoNotDependOnOrder() {
+        final DesmileCache cache1 = new DesmileCache(4, 0.01, 0.1);
+        final DesmileCache cache2 = new DesmileCache(4, 0.01, 0.1);
+        final double[][] inputs = new double[50][];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new double[]{i % 3, i % 7, 2.0 + 0.037 * i, 0.3 + 0.0031 * i};
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            final double[] in1 = inputs[i];
+            final double[] in2 = inputs[inputs.length - 1 - i];
+            final double f1 = cache1.desmileFactor((int) in1[0], (float) in1[1], 0.1, 2.6, in1[2], in1[3], function);
+            final double f2 = cache2.desmileFactor((int) in2[0], (float) in2[1], 0.1, 2.6, in2[2], in2[3], function);
+            assertEquals(f1, cache2.desmileFactor((int) in1[0], (float) in1[1], 0.1, 2.6, in1[2], in1[3], function), 0.0);
+            assertEquals(f2, cache1.desmileFactor((int) in2[0], (float) in2[1], 0.1, 2.6, in2[2], in2[3], function), 0.0);
+        }
+    }
+
+    @Test
+    public void testInputsOutOfRangeAreNotCached() {
+        final DesmileCache cache = new DesmileCache(16, 0.01, 0.1);
+        final double[][] inputs = {{Float.NaN, 3.0, 0.5}, {-1.0, 3.0, 0.5}, {9000.0, 3.0, 0.5},
+                {5.0, Double.NaN, 0.5}, {5.0, 3.0, -0.5}, {5.0, 3.0, Double.POSITIVE_INFINITY}};
+        for (double[] in : inputs) {
+            cache.desmileFactor(0, (float) in[0], 0.1, 2.6, in[1], in[2], function);
+            final double[] call = calls.get(calls.size() - 1);
+            // computed with the original input
+            assertEquals(in[1], call[3], 0.0);
+            assertEquals(in[2], call[4], 0.0);
+        }
+        assertEquals(inputs.length, calls.size());
+        assertEquals(0, cache.getHits() + cache.getMisses());
+    }
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1024, new DesmileCache(1000, 0.01, 0.1).getCapacity());
+        assertEquals(1024, new DesmileCache(1024, 0.01, 0.1).getCapacity());
+        try {
+            new DesmileCache(1024, 0.0, 0.1);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DesmileGridTest {
+
+    private DesmileLut lut;
+    private DesmileKdTree tree;
+
+    @Before
+    public void setUp() throws Exception {
+        final Path installAuxdataPath = OlciHarmonisationIO.installAuxdata();
+        lut = OlciHarmonisationIO.createDesmileLut(installAuxdataPath.resolve("O2_desmile_lut_SMALL_TEST.json"));
+        tree = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(lut);
+    }
+
+    @Test
+    public void testAffineFactorIsInterpolatedExactly() {
+        // with a single LUT node, the desmile factor is an affine function of the inputs
+        final double[][] x = {{0.1, -0.2, 0.3, 0.4}};
+        final double[][] y = {{0.9}};
+        final double[][][] jaco = {{{0.05, -0.02, 0.3, 0.01}}};
+        final double[] mean = {0.0, 2.65, 0.35, 6.0};
+        final double[] vari = {0.6, 0.1, 0.2, 2.6};
+        final DesmileLut singleNodeLut = new DesmileLut(1, 1, 4, x, y, jaco, mean, vari, 761.726, 2.65, 4,
+                                                        new String[]{"dwvl,bwd,tra,amf", "tra/zero"});
+        final DesmileKdTree singleNodeTree = new DesmileKdTree(x, 4);
+        final DesmileGrid grid = new DesmileGrid(singleNodeLut, singleNodeTree, 5);
+
+        assertEquals(0.0, grid.getMaxDeviation(), 1.0E-12);
+        final Random random = new Random(123);
+        final double[] wo = new double[4];
+        for (int i = 0; i < 1000; i++) {
+            // within one standard deviation around the node
+            final double dwl = 0.06 + 1.2 * (random.nextDouble() - 0.5);
+            final double fwhm = 2.63 + 0.2 * (random.nextDouble() - 0.5);
+            final double trans = 0.41 + 0.4 * (random.nextDouble() - 0.5);
+            final double amf = 7.04 + 5.2 * (random.nextDouble() - 0.5);
+            final double expected = OlciHarmonisationAlgorithm.desmileTransmission(dwl, fwhm, amf, trans,
+                                                                                   singleNodeTree, singleNodeLut, wo);
+            assertEquals(expected, grid.desmileTransmission(dwl, fwhm, amf, trans, wo), 1.0E-12 * Math.abs(expected));
+        }
+    }
+
+    @Test
+    public void testOutsideOfGridSameAsKdSearch() {
+        final DesmileGrid grid = new DesmileGrid(lut, tree, 8);
+        final double[] wo = new double[4];
+        final double[][] inputs = {{100.0, 2.6, 3.0, 0.5}, {0.0, 100.0, 3.0, 0.5}, {0.0, 2.6, 100.0, 0.5},
+                {0.0, 2.6, 3.0, 100.0}, {-100.0, -100.0, -100.0, -100.0}};
+        for (double[] in : inputs) {
+            final double expected = OlciHarmonisationAlgorithm.desmileTransmission(in[0], in[1], in[2], in[3],
+                                                                                   tree, lut, wo);
+            final double actual = grid.desmileTransmission(in[0], in[1], in[2], in[3], wo);
+            assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+        }
+        assertTrue(Double.isNaN(grid.desmileTransmission(Double.NaN, 2.6, 3.0, 0.5, wo)));
+        assertTrue(Double.isNaN(grid.desmileTransmission(0.0, 2.6, 3.0, Double.NaN, wo)));
+    }
+
+    @Test
+    public void testDeviationFromKdSearch() {
+        final DesmileGrid coarseGrid = new DesmileGrid(lut, tree, 4);
+        final DesmileGrid fineGrid = new DesmileGrid(lut, tree, 24);
+        assertEquals(24, fineGrid.getResolution());
+        for (DesmileGrid grid : new DesmileGrid[]{coarseGrid, fineGrid}) {
+            assertTrue(grid.getRmsDeviation() >= 0.0);
+            assertTrue(grid.getRmsDeviation() <= grid.getMaxDeviation());
+            assertTrue(Double.isFinite(grid.getMaxDeviation()));
+        }
+        assertTrue(fineGrid.getRmsDeviation() <= coarseGrid.getRmsDeviation());
+    }
+
+    @Test
+    public void testInvalidResolution() {
+        try {
+            new DesmileGrid(lut, tree, 1);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testAuxdataProvidesSharedGrid() {
+        final DesmileAuxdata auxdata = new DesmileAuxdata(13, lut, tree);
+        final DesmileGrid grid = auxdata.getGrid(6);
+        assertTrue(grid == auxdata.getGrid(6));
+        final DesmileGrid otherGrid = auxdata.getGrid(7);
+        assertEquals(7, otherGrid.getResolution());
+        // grids of different resolutions are kept side by side
+        assertTrue(grid == auxdata.getGrid(6));
+        assertTrue(otherGrid == auxdata.getGrid(7));
+    }
+}
@@ -0,0 +1,98 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Test;
+import smile.neighbor.KDTree;
+import smile.neighbor.Neighbor;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class DesmileKdTreeTest {
+
+    @Test
+    public void testNearest_sameAsSmileKDTree() {
+        final Random random = new Random(42);
+        final double[][] coords = createRandomCoords(random, 5000, 4);
+        for (int leafsize : new int[]{1, 4, 16, 100}) {
+            final DesmileKdTree tree = new DesmileKdTree(coords, leafsize);
+            assertEquals(5000, tree.size());
+            assertEquals(4, tree.getDimension());
+            assertEquals(leafsize, tree.getLeafsize());
+
+            final KDTree<double[]> smileTree = new KDTree<>(coords, coords);
+            for (int i = 0; i < 2000; i++) {
+                final double[] q = {3.0 * random.nextGaussian(), 3.0 * random.nextGaussian(),
+                        3.0 * random.nextGaussian(), 3.0 * random.nextGaussian()};
+                final Neighbor<double[], double[]>[] expected = smileTree.knn(q, 1);
+                assertEquals(expected[0].index, tree.nearest(q));
+            }
+        }
+    }
+
+    @Test
+    public void testNearest_bruteForceWithDuplicateCoordinates() {
+        // coarse grid with many duplicate coordinate values, as in the desmile LUTs
+        final Random random = new Random(17);
+        final double[][] coords = new double[1000][4];
+        for (int i = 0; i < coords.length; i++) {
+            for (int k = 0; k < 4; k++) {
+                coords[i][k] = random.nextInt(5);
+            }
+        }
+        final DesmileKdTree tree = new DesmileKdTree(coords, 4);
+        for (int i = 0; i < 2000; i++) {
+            final double[] q = {5.0 * random.nextDouble(), 5.0 * random.nextDouble(),
+                    5.0 * random.nextDouble(), 5.0 * random.nextDouble()};
+            final int nearest = tree.nearest(q);
+            assertEquals(minDistance2(coords, q), distance2(coords[nearest], q), 0.0);
+        }
+    }
+
+    @Test
+    public void testNearest_smallTestLut() throws Exception {
+        final DesmileLut lut =
+                OlciHarmonisationIO.createDesmileLut(OlciHarmonisationIO.installAuxdata().resolve("O2_desmile_lut_SMALL_TEST.json"));
+        final DesmileKdTree tree = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(lut);
+        assertEquals(3, tree.size());
+        assertEquals(4, tree.getLeafsize());
+
+        assertEquals(0, tree.nearest(new double[]{-1.6, -1.5, -0.3, -1.5}));
+        assertEquals(1, tree.nearest(new double[]{-5.0, -6.0, -7.0, -8.0}));
+        assertEquals(2, tree.nearest(new double[]{1.6, 1.5, 2.0, 1.5}));
+    }
+
+    @Test
+    public void testNearest_invalidQuery() {
+        final DesmileKdTree tree = new DesmileKdTree(createRandomCoords(new Random(1), 100, 4), 4);
+        assertEquals(-1, tree.nearest(new double[]{Double.NaN, 0.0, 0.0, 0.0}));
+        assertEquals(-1, tree.nearest(new double[]{0.0, Double.POSITIVE_INFINITY, 0.0, 0.0}));
+    }
+
+    private static double[][] createRandomCoords(Random random, int n, int dim) {
+        final double[][] coords = new double[n][dim];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < dim; k++) {
+                coords[i][k] = random.nextGaussian();
+            }
+        }
+        return coords;
+    }
+
+    private static double minDistance2(double[][] coords, double[] q) {
+        double min = Double.POSITIVE_INFINITY;
+        for (double[] coord : coords) {
+            min = Math.min(min, distance2(coord, q));
+        }
+        return min;
+    }
+
+    private static double distance2(double[] coord, double[] q) {
+        double d2 = 0.0;
+        for (int k = 0; k < q.length; k++) {
+            d2 += (coord[k] - q[k]) * (coord[k] - q[k]);
+        }
+        return d2;
+    }
+}
@@ -0,0 +1,81 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DetectorSpectralTableTest {
+
+    private static final int INVALID = 1 << OlciHarmonisationConstants.OLCI_INVALID_BIT;
+
+    private boolean[] band13Only;
+    private OlciHarmonisationKernel.SourceSamples src;
+
+    @Before
+    public void setUp() {
+        band13Only = new boolean[]{true, true, false, false, true};
+        src = new OlciHarmonisationKernel.SourceSamples();
+        src.detectorIndex = new float[]{3.0f, 7.0f, 3.0f, 5.0f};
+        src.qualityFlags = new int[]{0, 0, 0, INVALID};
+        for (int k = 0; k < 5; k++) {
+            src.cwl[k] = new double[]{760.0 + k, 761.0 + k, 760.0 + k, 762.0 + k};
+            src.fwhm[k] = new double[]{2.6, 2.7, 2.6, 2.8};
+            src.solarFlux[k] = new double[]{1250.0, 1251.0, 1250.0, 1252.0};
+        }
+    }
+
+    @Test
+    public void testUpdate() {
+        final DetectorSpectralTable table = new DetectorSpectralTable();
+        assertFalse(table.getSnapshot().containsAll(src.detectorIndex, src.qualityFlags, band13Only));
+
+        table.update(src, band13Only);
+        final DetectorSpectralTable.Snapshot snapshot = table.getSnapshot();
+        assertTrue(snapshot.containsAll(src.detectorIndex, src.qualityFlags, band13Only));
+        // bands 14 and 15 were not read
+        assertFalse(snapshot.containsAll(src.detectorIndex, src.qualityFlags, new boolean[]{true, true, true, true, true}));
+        // detector 5 only occurs at an invalid pixel
+        assertFalse(snapshot.containsAll(new float[]{5.0f}, new int[]{0}, band13Only));
+        assertTrue(snapshot.containsAll(new float[]{5.0f}, new int[]{INVALID}, band13Only));
+
+        assertEquals(761.0, snapshot.cwl[1][3], 0.0);
+        assertEquals(762.0, snapshot.cwl[1][7], 0.0);
+        assertEquals(2.7, snapshot.fwhm[4][7], 0.0);
+        assertEquals(1251.0, snapshot.solarFlux[0][7], 0.0);
+        assertEquals(761.0 - OlciHarmonisationConstants.cwvl[0], snapshot.dwl[0][3], 0.0);
+    }
+
+    @Test
+    public void testDetectorIndexOutOfRange() {
+        final DetectorSpectralTable table = new DetectorSpectralTable();
+        src.detectorIndex[1] = DetectorSpectralTable.NUM_DETECTORS;
+        table.update(src, band13Only);
+        assertFalse(table.getSnapshot().containsAll(src.detectorIndex, src.qualityFlags, band13Only));
+        assertFalse(table.getSnapshot().containsAll(new float[]{Float.NaN}, new int[]{0}, band13Only));
+        assertFalse(table.getSnapshot().containsAll(new float[]{-1.0f}, new int[]{0}, band13Only));
+    }
+
+    @Test
+    public void testDisabledIfCharacterisationVariesForDetector() {
+        final DetectorSpectralTable table = new DetectorSpectralTable();
+        src.fwhm[4][2] = 2.65;
+        table.update(src, band13Only);
+        assertNull(table.getSnapshot());
+    }
+
+    @Test
+    public void testSnapshotsAreImmutable() {
+        final DetectorSpectralTable table = new DetectorSpectralTable();
+        final DetectorSpectralTable.Snapshot before = table.getSnapshot();
+        table.update(src, band13Only);
+        final DetectorSpectralTable.Snapshot after = table.getSnapshot();
+        assertNotNull(after);
+        assertFalse(before.containsAll(src.detectorIndex, src.qualityFlags, band13Only));
+        assertTrue(after.containsAll(src.detectorIndex, src.qualityFlags, band13Only));
+    }
+}
@@ -0,0 +1,84 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FastSurfaceTransmissionTest {
+
+    @Test
+    public void testHeight2press_withinTolerance() {
+        final int n = 100001;
+        final double[] height = new double[n];
+        final double[] slp = new double[n];
+        final Random random = new Random(4711);
+        for (int i = 0; i < n; i++) {
+            height[i] = FastSurfaceTransmission.MIN_HEIGHT +
+                    (FastSurfaceTransmission.MAX_HEIGHT - FastSurfaceTransmission.MIN_HEIGHT) * i / (n - 1);
+            slp[i] = 950.0 + 100.0 * random.nextDouble();
+        }
+        final double[] expected = new double[n];
+        final double[] actual = new double[n];
+        OlciHarmonisationAlgorithm.height2press(height, slp, expected, 0, n);
+        FastSurfaceTransmission.height2press(height, slp, actual, 0, n);
+
+        for (int i = 0; i < n; i++) {
+            assertEquals(expected[i], actual[i], FastSurfaceTransmission.TOLERANCE * expected[i]);
+        }
+    }
+
+    @Test
+    public void testPress2Trans_withinTolerance() {
+        final int n = 100001;
+        final double[] press = new double[n];
+        for (int i = 0; i < n; i++) {
+            press[i] = FastSurfaceTransmission.MIN_PRESS +
+                    (FastSurfaceTransmission.MAX_PRESS - FastSurfaceTransmission.MIN_PRESS) * i / (n - 1);
+        }
+        final double[] expected = new double[n];
+        final double[] actual = new double[n];
+        for (int bandIndex = 13; bandIndex <= 15; bandIndex++) {
+            OlciHarmonisationAlgorithm.press2Trans(press, bandIndex, expected, 0, n);
+            FastSurfaceTransmission.press2Trans(press, bandIndex, actual, 0, n);
+            for (int i = 0; i < n; i++) {
+                assertEquals(expected[i], actual[i], FastSurfaceTransmission.TOLERANCE * expected[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testOutsideOfRange_exactFunctionsAreUsed() {
+        final double[] height = {-5000.0, 9500.0, Double.NaN};
+        final double[] slp = {1013.0, 1013.0, 1013.0};
+        final double[] press = new double[3];
+        FastSurfaceTransmission.height2press(height, slp, press, 0, 3);
+        assertEquals(OlciHarmonisationAlgorithm.height2press(-5000.0, 1013.0), press[0], 0.0);
+        assertEquals(OlciHarmonisationAlgorithm.height2press(9500.0, 1013.0), press[1], 0.0);
+        assertEquals(Double.NaN, press[2], 0.0);
+
+        final double[] outsidePress = {1500.0, 150.0, Double.NaN};
+        final double[] trans = new double[3];
+        FastSurfaceTransmission.press2Trans(outsidePress, 14, trans, 0, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(OlciHarmonisationAlgorithm.press2Trans(outsidePress[i], 14), trans[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testSinglePrecision() {
+        final float[] height = {-400.0f, 0.0f, 1234.5f, 4807.0f, 8848.0f};
+        final float[] slp = {1013.25f, 1020.0f, 990.5f, 1005.0f, 1013.25f};
+        final float[] press = new float[5];
+        final float[] trans = new float[5];
+        FastSurfaceTransmission.height2press(height, slp, press, 0, 5);
+        FastSurfaceTransmission.press2Trans(press, 13, trans, 0, 5);
+        for (int i = 0; i < 5; i++) {
+            final double expectedPress = OlciHarmonisationAlgorithm.height2press(height[i], slp[i]);
+            assertEquals(expectedPress, press[i], 1.0E-6 * expectedPress);
+            final double expectedTrans = OlciHarmonisationAlgorithm.press2Trans(expectedPress, 13);
+            assertEquals(expectedTrans, trans[i], 1.0E-6 * expectedTrans);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class KernelRowTaskTest {
+
+    private static final int WIDTH = 60;
+    private static final int HEIGHT = 45;
+
+    private DesmileLut[] luts;
+    private DesmileKdTree[] trees;
+
+    @Before
+    public void setUp() throws Exception {
+        final Path installAuxdataPath = OlciHarmonisationIO.installAuxdata();
+        final DesmileLut lut = OlciHarmonisationIO.createDesmileLut(installAuxdataPath.resolve("O2_desmile_lut_SMALL_TEST.json"));
+        final DesmileKdTree tree = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(lut);
+        luts = new DesmileLut[]{lut, lut, lut};
+        trees = new DesmileKdTree[]{tree, tree, tree};
+    }
+
+    @Test
+    public void testComputeBlockRows() {
+        assertEquals(1, KernelRowTask.computeBlockRows(1, 8));
+        assertEquals(1, KernelRowTask.computeBlockRows(32, 8));
+        assertEquals(2, KernelRowTask.computeBlockRows(33, 8));
+        assertEquals(64, KernelRowTask.computeBlockRows(1024, 4));
+        assertEquals(256, KernelRowTask.computeBlockRows(1024, 1));
+    }
+
+    @Test
+    public void testCompute_isIdenticalToSequentialComputation() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(4711));
+
+        final OlciHarmonisationKernel.TargetSamples expected = createTargetSamples();
+        final AtomicInteger numRows = new AtomicInteger();
+        KernelRowTask.computeRows(() -> new OlciHarmonisationKernel(luts, trees), src, expected, WIDTH, 0, HEIGHT,
+                                  numRows::incrementAndGet);
+        assertEquals(HEIGHT, numRows.get());
+
+        final OlciHarmonisationKernel.TargetSamples actual = createTargetSamples();
+        final AtomicInteger numKernels = new AtomicInteger();
+        final AtomicInteger numReleased = new AtomicInteger();
+        final KernelRowTask.KernelFactory kernelFactory = new KernelRowTask.KernelFactory() {
+            @Override
+            public OlciHarmonisationKernel createKernel() {
+                numKernels.incrementAndGet();
+                return new OlciHarmonisationKernel(luts, trees);
+            }
+
+            @Override
+            public void releaseKernel(OlciHarmonisationKernel kernel) {
+                numReleased.incrementAndGet();
+            }
+        };
+        numRows.set(0);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final int blockRows = KernelRowTask.computeBlockRows(HEIGHT, 4);
+            pool.invoke(new KernelRowTask(kernelFactory, src, actual, WIDTH, 0, HEIGHT, blockRows,
+                                          numRows::incrementAndGet));
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(HEIGHT, numRows.get());
+        // one kernel per block of at most 3 rows
+        assertEquals(16, numKernels.get());
+        assertEquals(16, numReleased.get());
+        for (int b = 0; b < 3; b++) {
+            assertArrayEquals(expected.trans[b], actual.trans[b], 0.0f);
+            assertArrayEquals(expected.press[b], actual.press[b], 0.0f);
+            assertArrayEquals(expected.surface[b], actual.surface[b], 0.0f);
+            assertArrayEquals(expected.radiance[b], actual.radiance[b], 0.0f);
+        }
+    }
+
+    private static OlciHarmonisationKernel.SourceSamples createSourceSamples(Random random) {
+        final int numSamples = WIDTH * HEIGHT;
+        final double[] cwlRef = {753.4, 761.7, 764.8, 767.9, 778.4};
+        final OlciHarmonisationKernel.SourceSamples src = new OlciHarmonisationKernel.SourceSamples();
+        src.qualityFlags = new int[numSamples];
+        src.sza = new double[numSamples];
+        src.oza = new double[numSamples];
+        src.altitude = new double[numSamples];
+        src.slp = new double[numSamples];
+        src.detectorIndex = new float[numSamples];
+        for (int k = 0; k < 5; k++) {
+            src.radiance[k] = new double[numSamples];
+            src.cwl[k] = new double[numSamples];
+            src.fwhm[k] = new double[numSamples];
+            src.solarFlux[k] = new double[numSamples];
+        }
+        for (int i = 0; i < numSamples; i++) {
+            // some completely invalid rows
+            final boolean invalidRow = (i / WIDTH) % 10 == 3;
+            src.qualityFlags[i] = invalidRow || random.nextInt(10) == 0 ? 1 << OlciHarmonisationConstants.OLCI_INVALID_BIT : 0;
+            src.sza[i] = 20.0 + 50.0 * random.nextDouble();
+            src.oza[i] = 45.0 * random.nextDouble();
+            src.altitude[i] = 3000.0 * random.nextDouble();
+            src.slp[i] = 990.0 + 40.0 * random.nextDouble();
+            src.detectorIndex[i] = random.nextInt(3700);
+            for (int k = 0; k < 5; k++) {
+                src.radiance[k][i] = 20.0 + 80.0 * random.nextDouble();
+                src.cwl[k][i] = cwlRef[k] + 0.5 * random.nextDouble();
+                src.fwhm[k][i] = 2.5 + 0.3 * random.nextDouble();
+                src.solarFlux[k][i] = 1200.0 + 100.0 * random.nextDouble();
+            }
+        }
+        return src;
+    }
+
+    private static OlciHarmonisationKernel.TargetSamples createTargetSamples() {
+        final OlciHarmonisationKernel.TargetSamples tgt = new OlciHarmonisationKernel.TargetSamples(3);
+        for (int b = 0; b < 3; b++) {
+            tgt.trans[b] = new float[WIDTH * HEIGHT];
+            tgt.press[b] = new float[WIDTH * HEIGHT];
+            tgt.surface[b] = new float[WIDTH * HEIGHT];
+            tgt.radiance[b] = new float[WIDTH * HEIGHT];
+        }
+        return tgt;
+    }
+}
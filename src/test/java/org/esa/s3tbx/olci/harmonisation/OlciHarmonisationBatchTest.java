@@ -0,0 +1,194 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.dataio.ProductIO;
+import org.esa.snap.core.datamodel.MetadataElement;
+import org.esa.snap.core.datamodel.Product;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class OlciHarmonisationBatchTest {
+
+    @Test
+    public void testCollectInputs() throws IOException {
+        final Path tmpDir = Files.createTempDirectory("harmonisation");
+        final Path productDir = Files.createDirectories(tmpDir.resolve("products"));
+        Files.createDirectory(productDir.resolve("S3A_OL_1_ERR_2.SEN3"));
+        Files.createFile(productDir.resolve("S3A_OL_1_ERR_1.zip"));
+        Files.createFile(productDir.resolve("readme.txt"));
+        final Path listFile = tmpDir.resolve("products.list");
+        Files.write(listFile, Arrays.asList("# granules of the day", "", "products/S3B_OL_1_EFR_3.SEN3 "),
+                    StandardCharsets.UTF_8);
+
+        final List<Path> inputs = OlciHarmonisationBatch.collectInputs(
+                Arrays.asList(productDir.toString(), listFile.toString(), "S3A_OL_1_EFR_4.SEN3"));
+
+        assertEquals(4, inputs.size());
+        assertEquals(productDir.resolve("S3A_OL_1_ERR_1.zip"), inputs.get(0));
+        assertEquals(productDir.resolve("S3A_OL_1_ERR_2.SEN3"), inputs.get(1));
+        assertEquals(productDir.toAbsolutePath().resolve("S3B_OL_1_EFR_3.SEN3"), inputs.get(2));
+        assertEquals(Paths.get("S3A_OL_1_EFR_4.SEN3"), inputs.get(3));
+    }
+
+    @Test
+    public void testGetOutputName() {
+        assertEquals("S3A_OL_1_ERR_1_harmonised",
+                     OlciHarmonisationBatch.getOutputName(Paths.get("in", "S3A_OL_1_ERR_1.SEN3")));
+        assertEquals("S3A_OL_1_ERR_1_harmonised",
+                     OlciHarmonisationBatch.getOutputName(Paths.get("in", "S3A_OL_1_ERR_1.SEN3.zip")));
+        assertEquals("S3A_OL_1_ERR_1_harmonised",
+                     OlciHarmonisationBatch.getOutputName(Paths.get("in", "S3A_OL_1_ERR_1.SEN3", "xfdumanifest.xml")));
+    }
+
+    @Test
+    public void testRun_memoryBudgetAndReport() throws IOException {
+        // each product needs the complete budget, so the products are processed one after the other
+        final Path outputDir = Files.createTempDirectory("harmonisation");
+        final int productSize = 1024;
+        final int budgetMB = (int) (OlciHarmonisationBatch.estimateMemory(productSize, productSize) >> 20);
+        final AtomicInteger numRunning = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final OlciHarmonisationBatch batch =
+                new OlciHarmonisationBatch(outputDir, "BEAM-DIMAP", Collections.emptyMap(), null, 3, budgetMB) {
+                    @Override
+                    void warmUp() {
+                    }
+
+                    @Override
+                    Product readProduct(Path input) throws IOException {
+                        if (input.toString().contains("corrupt")) {
+                            throw new IOException("Cannot read \"corrupt\" product");
+                        }
+                        return new Product(input.toString(), "OL_1_ERR", productSize, productSize);
+                    }
+
+                    @Override
+                    void process(Product l1bProduct, File outputFile) {
+                        try {
+                            Files.createFile(Paths.get(outputFile.getPath() + ".dim"));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        maxRunning.accumulateAndGet(numRunning.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        numRunning.decrementAndGet();
+                    }
+                };
+
+        final List<OlciHarmonisationBatch.ProductResult> results =
+                batch.run(Arrays.asList(Paths.get("a.SEN3"), Paths.get("corrupt.SEN3"), Paths.get("b.SEN3"),
+                                        Paths.get("c.SEN3")));
+
+        assertEquals(1, maxRunning.get());
+        assertEquals(4, results.size());
+        assertEquals(OlciHarmonisationBatch.Status.OK, results.get(0).status);
+        assertEquals(OlciHarmonisationBatch.Status.FAILED, results.get(1).status);
+        assertEquals(OlciHarmonisationBatch.Status.OK, results.get(3).status);
+        assertEquals(productSize, results.get(3).width);
+        assertTrue(results.get(3).processMillis >= 20);
+        assertEquals(outputDir.resolve("c_harmonised").toFile(), results.get(3).output);
+        // published from the staging directory
+        assertTrue(Files.isRegularFile(outputDir.resolve("c_harmonised.dim")));
+        assertFalse(Files.exists(outputDir.resolve(OlciHarmonisationBatch.STAGING_DIR_NAME).resolve("c_harmonised")));
+        assertFalse(Files.exists(outputDir.resolve("corrupt_harmonised.dim")));
+
+        final StringWriter writer = new StringWriter();
+        OlciHarmonisationBatch.writeReport(writer, results);
+        final String[] lines = writer.toString().split("\n");
+        assertEquals(5, lines.length);
+        assertTrue(lines[0].startsWith("product,status,width,height,read_ms,wait_ms,process_ms,pixels_per_s"));
+        assertTrue(lines[1].startsWith("\"a.SEN3\",OK,1024,1024,"));
+        assertTrue(lines[1].contains(",\"" + outputDir.resolve("a_harmonised") + "\","));
+        assertTrue(lines[2].startsWith("\"corrupt.SEN3\",FAILED,0,0,"));
+        assertTrue(lines[2].endsWith(",\"Cannot read \"\"corrupt\"\" product\""));
+    }
+
+    @Test
+    public void testRun_errorOnlyFailsItsProduct() throws IOException {
+        final Path outputDir = Files.createTempDirectory("harmonisation");
+        final OlciHarmonisationBatch batch =
+                new OlciHarmonisationBatch(outputDir, "BEAM-DIMAP", Collections.emptyMap(), null, 2, 1024) {
+                    @Override
+                    void warmUp() {
+                    }
+
+                    @Override
+                    Product readProduct(Path input) {
+                        return new Product(input.toString(), "OL_1_ERR", 16, 16);
+                    }
+
+                    @Override
+                    void process(Product l1bProduct, File outputFile) {
+                        if (l1bProduct.getName().contains("huge")) {
+                            throw new OutOfMemoryError("Java heap space");
+                        }
+                        try {
+                            Files.createFile(Paths.get(outputFile.getPath() + ".dim"));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+
+        final List<OlciHarmonisationBatch.ProductResult> results =
+                batch.run(Arrays.asList(Paths.get("a.SEN3"), Paths.get("huge.SEN3"), Paths.get("b.SEN3")));
+
+        assertEquals(3, results.size());
+        assertEquals(OlciHarmonisationBatch.Status.OK, results.get(0).status);
+        assertEquals(OlciHarmonisationBatch.Status.FAILED, results.get(1).status);
+        assertEquals("Java heap space", results.get(1).message);
+        assertEquals(OlciHarmonisationBatch.Status.OK, results.get(2).status);
+        assertFalse(Files.exists(outputDir.resolve(OlciHarmonisationBatch.STAGING_DIR_NAME).resolve("huge_harmonised")));
+    }
+
+    @Test
+    public void testRun_statisticsAreWrittenToProduct() throws IOException {
+        final DesmileAuxdataRegistry registry = DesmileAuxdataRegistry.getInstance();
+        registry.setAuxdataPath(OlciTestProducts.createAuxdataPath());
+        final Path outputDir = Files.createTempDirectory("harmonisation");
+        final OlciHarmonisationBatch batch =
+                new OlciHarmonisationBatch(outputDir, "BEAM-DIMAP", Collections.singletonMap("collectStatistics", true),
+                                           null, 1, 1024) {
+                    @Override
+                    Product readProduct(Path input) {
+                        return OlciTestProducts.createL1bProduct(24, 16);
+                    }
+                };
+        try {
+            final List<OlciHarmonisationBatch.ProductResult> results =
+                    batch.run(Collections.singletonList(Paths.get("a.SEN3")));
+            assertEquals(OlciHarmonisationBatch.Status.OK, results.get(0).status);
+
+            final Product product = ProductIO.readProduct(outputDir.resolve("a_harmonised.dim").toFile());
+            try {
+                final MetadataElement element =
+                        product.getMetadataRoot().getElement(OlciHarmonisationStatistics.METADATA_ELEMENT_NAME);
+                assertNotNull(element);
+                assertEquals("384", element.getAttributeString("pixels"));
+            } finally {
+                product.dispose();
+            }
+        } finally {
+            registry.setAuxdataPath(null);
+        }
+    }
+}
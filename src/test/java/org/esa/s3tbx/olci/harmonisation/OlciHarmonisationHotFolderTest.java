@@ -0,0 +1,131 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.Product;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OlciHarmonisationHotFolderTest {
+
+    @Test
+    public void testGetSignature() throws IOException {
+        final Path tmpDir = Files.createTempDirectory("harmonisation");
+        final Path productDir = Files.createDirectory(tmpDir.resolve("S3A_OL_1_ERR_1.SEN3"));
+        Files.write(productDir.resolve("Oa01_radiance.nc"), new byte[10]);
+        // incomplete without manifest
+        assertNull(OlciHarmonisationHotFolder.getSignature(productDir));
+
+        Files.write(productDir.resolve("xfdumanifest.xml"), new byte[5]);
+        final String signature = OlciHarmonisationHotFolder.getSignature(productDir);
+        Files.write(productDir.resolve("Oa02_radiance.nc"), new byte[10]);
+        assertNotEquals(signature, OlciHarmonisationHotFolder.getSignature(productDir));
+    }
+
+    @Test
+    public void testReadProcessed() throws IOException {
+        final Path reportPath = Files.createTempFile("harmonisation", ".csv");
+        Files.write(reportPath, Arrays.asList(OlciHarmonisationBatch.REPORT_HEADER,
+                                              "a.zip,OK,1217,15000,1,0,2,3,/out/a_harmonised,\"\"",
+                                              "b.zip,FAILED,0,0,1,0,0,0,/out/b_harmonised,\"Cannot read b, c\"",
+                                              "\"c, \"\"d\"\".zip\",OK,1217,15000,1,0,2,3,\"/out/c, d_harmonised\",\"\""),
+                    StandardCharsets.UTF_8);
+        final Set<String> processed = OlciHarmonisationHotFolder.readProcessed(reportPath);
+        assertEquals(new HashSet<>(Arrays.asList("a.zip", "c, \"d\".zip")), processed);
+
+        assertTrue(OlciHarmonisationHotFolder.readProcessed(reportPath.resolveSibling("missing.csv")).isEmpty());
+    }
+
+    @Test
+    public void testRun_processesArrivingProductsAndRestarts() throws Exception {
+        final Path tmpDir = Files.createTempDirectory("harmonisation");
+        final Path watchDir = Files.createDirectory(tmpDir.resolve("in"));
+        final Path outputDir = Files.createDirectory(tmpDir.resolve("out"));
+        final Path reportPath = outputDir.resolve(OlciHarmonisationBatch.REPORT_FILE_NAME);
+        final Queue<String> processed = new ConcurrentLinkedQueue<>();
+        // arrived while the service was not running
+        Files.write(watchDir.resolve("a.zip"), new byte[100]);
+
+        OlciHarmonisationHotFolder hotFolder = startHotFolder(watchDir, outputDir, reportPath, processed);
+        Files.write(watchDir.resolve("b.zip"), new byte[100]);
+        Files.write(watchDir.resolve("readme.txt"), new byte[100]);
+        waitForReportLines(reportPath, 3);
+        hotFolder.stop();
+        assertEquals(Arrays.asList("a.zip", "b.zip"), processed.stream().sorted().collect(Collectors.toList()));
+        assertTrue(Files.isRegularFile(outputDir.resolve("b_harmonised.dim")));
+
+        // a and b are not processed again
+        processed.clear();
+        hotFolder = startHotFolder(watchDir, outputDir, reportPath, processed);
+        Files.write(watchDir.resolve("c.zip"), new byte[100]);
+        waitForReportLines(reportPath, 4);
+        hotFolder.stop();
+        assertEquals(Collections.singletonList("c.zip"), Arrays.asList(processed.toArray(new String[0])));
+    }
+
+    private static OlciHarmonisationHotFolder startHotFolder(Path watchDir, Path outputDir, Path reportPath,
+                                                             Queue<String> processed) {
+        final OlciHarmonisationBatch batch =
+                new OlciHarmonisationBatch(outputDir, "BEAM-DIMAP", Collections.emptyMap(), null, 2, 1024) {
+                    @Override
+                    void warmUp() {
+                    }
+
+                    @Override
+                    Product readProduct(Path input) {
+                        return new Product(input.getFileName().toString(), "OL_1_ERR", 10, 10);
+                    }
+
+                    @Override
+                    void process(Product l1bProduct, File outputFile) {
+                        processed.add(l1bProduct.getName());
+                        try {
+                            Files.createFile(Paths.get(outputFile.getPath() + ".dim"));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+        final OlciHarmonisationHotFolder hotFolder =
+                new OlciHarmonisationHotFolder(batch, watchDir, reportPath, 2, 4, 100);
+        final Thread thread = new Thread(() -> {
+            try {
+                hotFolder.run();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        return hotFolder;
+    }
+
+    private static void waitForReportLines(Path reportPath, int numLines) throws Exception {
+        for (int i = 0; i < 200; i++) {
+            if (Files.isRegularFile(reportPath)) {
+                final List<String> lines = Files.readAllLines(reportPath, StandardCharsets.UTF_8);
+                if (lines.size() >= numLines) {
+                    return;
+                }
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Products not processed in time.");
+    }
+}
@@ -6,7 +6,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 
 import static org.junit.Assert.*;
 
@@ -181,6 +185,116 @@ public class OlciHarmonisationIOTest {
         assertArrayEquals(expectedMEAN, MEAN, 1e-8);
     }
 
+    @Test
+    public void testWriteAndReadDesmileLutBinary() throws Exception {
+        final DesmileLut jsonLut = OlciHarmonisationIO.createDesmileLut(installAuxdataPath.resolve("O2_desmile_lut_SMALL_TEST.json"));
+
+        final Path tmpDir = Files.createTempDirectory("harmonisation");
+        final Path binaryPath = tmpDir.resolve("O2_desmile_lut_SMALL_TEST.bin");
+        try {
+            OlciHarmonisationIO.writeDesmileLutBinary(jsonLut, binaryPath);
+            // header with 2 'sequ' strings, padded: 96 bytes; X, Y, JACO, MEAN, VARI: (12 + 3 + 12 + 4 + 4) doubles
+            assertEquals(96 + 35 * 8, Files.size(binaryPath));
+
+            final DesmileLut lut = OlciHarmonisationIO.readDesmileLutBinary(binaryPath);
+            assertJSONParsedObjects(lut.getL(), lut.getM(), lut.getN(), lut.getJACO(), lut.getX(), lut.getY(), lut.getVARI(),
+                                    lut.getCbwd(), lut.getCwvl(), lut.getLeafsize(), lut.getSequ(), lut.getMEAN());
+        } finally {
+            Files.deleteIfExists(binaryPath);
+            Files.delete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testWriteDesmileLutBinary_replacesExistingFile() throws Exception {
+        final DesmileLut jsonLut = OlciHarmonisationIO.createDesmileLut(installAuxdataPath.resolve("O2_desmile_lut_SMALL_TEST.json"));
+
+        final Path tmpDir = Files.createTempDirectory("harmonisation");
+        final Path binaryPath = tmpDir.resolve("O2_desmile_lut_13.bin");
+        try {
+            Files.write(binaryPath, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            OlciHarmonisationIO.writeDesmileLutBinary(jsonLut, binaryPath);
+            assertEquals(96 + 35 * 8, Files.size(binaryPath));
+            assertEquals(3, OlciHarmonisationIO.readDesmileLutBinary(binaryPath).getL());
+            // the temporary file has been moved to the binary path
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(tmpDir)) {
+                for (Path path : paths) {
+                    assertEquals(binaryPath, path);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(binaryPath);
+            Files.delete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testCreateDesmileLut_prefersBinary() throws Exception {
+        final Path tmpDir = Files.createTempDirectory("harmonisation");
+        final Path jsonPath = tmpDir.resolve("O2_desmile_lut_13.json");
+        final Path binaryPath = tmpDir.resolve("O2_desmile_lut_13.bin");
+        try {
+            Files.copy(installAuxdataPath.resolve("O2_desmile_lut_SMALL_TEST.json"), jsonPath);
+            DesmileLut lut = OlciHarmonisationIO.createDesmileLut(tmpDir, 13);
+            assertEquals(3, lut.getL());
+
+            assertEquals(binaryPath, DesmileLutConverter.convert(jsonPath));
+            // without the JSON, the binary file must be used
+            Files.delete(jsonPath);
+            lut = OlciHarmonisationIO.createDesmileLut(tmpDir, 13);
+            assertJSONParsedObjects(lut.getL(), lut.getM(), lut.getN(), lut.getJACO(), lut.getX(), lut.getY(), lut.getVARI(),
+                                    lut.getCbwd(), lut.getCwvl(), lut.getLeafsize(), lut.getSequ(), lut.getMEAN());
+        } finally {
+            Files.deleteIfExists(jsonPath);
+            Files.deleteIfExists(binaryPath);
+            Files.delete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testGetDesmileLutPath_binaryOnlyIfNotOlderThanJson() throws Exception {
+        final Path tmpDir = Files.createTempDirectory("harmonisation");
+        final Path jsonPath = Files.createFile(tmpDir.resolve("O2_desmile_lut_13.json"));
+        final Path binaryPath = Files.createFile(tmpDir.resolve("O2_desmile_lut_13.bin"));
+        try {
+            final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+            Files.setLastModifiedTime(jsonPath, now);
+            Files.setLastModifiedTime(binaryPath, now);
+            assertEquals(binaryPath, OlciHarmonisationIO.getDesmileLutPath(tmpDir, 13));
+
+            // the JSON is updated after the conversion
+            Files.setLastModifiedTime(binaryPath, FileTime.fromMillis(now.toMillis() - 10000));
+            assertEquals(jsonPath, OlciHarmonisationIO.getDesmileLutPath(tmpDir, 13));
+
+            Files.delete(jsonPath);
+            assertEquals(binaryPath, OlciHarmonisationIO.getDesmileLutPath(tmpDir, 13));
+        } finally {
+            Files.deleteIfExists(jsonPath);
+            Files.deleteIfExists(binaryPath);
+            Files.delete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testQuoteAndSplitCsv() {
+        assertEquals("\"a \"\"b\"\", c\"", OlciHarmonisationIO.quoteCsv("a \"b\", c"));
+        assertArrayEquals(new String[]{"x", "a \"b\", c", "", " 1.0"},
+                          OlciHarmonisationIO.splitCsvLine("x," + OlciHarmonisationIO.quoteCsv("a \"b\", c") + ",, 1.0", ','));
+        assertArrayEquals(new String[]{"a;b", "c"}, OlciHarmonisationIO.splitCsvLine(" \"a;b\";c", ';'));
+        assertArrayEquals(new String[]{"site \"B\"", "2"}, OlciHarmonisationIO.splitCsvLine("site \"B\",2", ','));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadDesmileLutBinary_invalidFile() throws Exception {
+        final Path tmpFile = Files.createTempFile("harmonisation", ".bin");
+        try {
+            Files.write(tmpFile, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            OlciHarmonisationIO.readDesmileLutBinary(tmpFile);
+        } finally {
+            Files.delete(tmpFile);
+        }
+    }
+
     @Test
 //    @Ignore
     public void testInstallAuxdata() throws Exception {
@@ -0,0 +1,630 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.util.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+import smile.neighbor.KDTree;
+import smile.neighbor.Neighbor;
+
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class OlciHarmonisationKernelTest {
+
+    private static final int NUM_SAMPLES = 500;
+
+    private DesmileLut[] luts;
+    private DesmileKdTree[] trees;
+    private KDTree<double[]>[] smileTrees;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        final Path installAuxdataPath = OlciHarmonisationIO.installAuxdata();
+        final DesmileLut lut = OlciHarmonisationIO.createDesmileLut(installAuxdataPath.resolve("O2_desmile_lut_SMALL_TEST.json"));
+        luts = new DesmileLut[]{lut, lut, lut};
+        trees = new DesmileKdTree[3];
+        smileTrees = new KDTree[3];
+        for (int i = 0; i < 3; i++) {
+            trees[i] = OlciHarmonisationIO.createKDTreeForDesmileInterpolation(lut);
+            smileTrees[i] = new KDTree<>(lut.getX(), lut.getX());
+        }
+    }
+
+    @Test
+    public void testDesmileTransmission_allocationFreeIsBitIdentical() {
+        final Random random = new Random(4711);
+        final double[] wo = new double[4];
+        for (int i = 0; i < 10000; i++) {
+            final double dwl = -0.5 + random.nextDouble();
+            final double fwhm = 2.5 + 0.3 * random.nextDouble();
+            final double amf = 2.0 + 4.0 * random.nextDouble();
+            final double trans = 0.1 + 0.8 * random.nextDouble();
+            final double expected = desmileTransmissionReference(dwl, fwhm, amf, trans, smileTrees[0], luts[0]);
+            final double actual = OlciHarmonisationAlgorithm.desmileTransmission(dwl, fwhm, amf, trans, trees[0], luts[0], wo);
+            assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+        }
+    }
+
+    @Test
+    public void testDesmileTransmission_allocationFreeWithNaNInput() {
+        final double[] wo = new double[4];
+        final double expected = desmileTransmissionReference(0.1, 2.6, 3.0, Double.NaN, smileTrees[0], luts[0]);
+        final double actual = OlciHarmonisationAlgorithm.desmileTransmission(0.1, 2.6, 3.0, Double.NaN, trees[0], luts[0], wo);
+        assertTrue(Double.isNaN(expected));
+        assertTrue(Double.isNaN(actual));
+    }
+
+    @Test
+    public void testDesmileTransmission_batchedIsBitIdentical() {
+        final Random random = new Random(815);
+        final int n = 1000;
+        final double[] dwl = new double[n];
+        final double[] fwhm = new double[n];
+        final double[] amf = new double[n];
+        final double[] trans = new double[n];
+        final boolean[] valid = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            dwl[i] = -0.5 + random.nextDouble();
+            fwhm[i] = 2.5 + 0.3 * random.nextDouble();
+            amf[i] = 2.0 + 4.0 * random.nextDouble();
+            trans[i] = i % 97 == 0 ? Double.NaN : 0.1 + 0.8 * random.nextDouble();
+            valid[i] = i % 10 != 3;
+        }
+        final double[] actual = new double[n];
+        actual[0] = 42.0;
+        OlciHarmonisationAlgorithm.desmileTransmission(dwl, fwhm, amf, trans, valid, trees[0], luts[0],
+                                                       new double[4][n], actual, 1, n);
+
+        final double[] wo = new double[4];
+        assertEquals(42.0, actual[0], 0.0);
+        for (int i = 1; i < n; i++) {
+            final double expected = valid[i] ?
+                    OlciHarmonisationAlgorithm.desmileTransmission(dwl[i], fwhm[i], amf[i], trans[i], trees[0], luts[0], wo) :
+                    Double.NaN;
+            assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual[i]));
+        }
+    }
+
+    @Test
+    public void testBatchedFunctions_areBitIdentical() {
+        final Random random = new Random(4712);
+        final int n = 200;
+        final double[] height = new double[n];
+        final double[] slp = new double[n];
+        final double[] sza = new double[n];
+        final double[] oza = new double[n];
+        final double[] trans = new double[n];
+        for (int i = 0; i < n; i++) {
+            height[i] = 3000.0 * random.nextDouble();
+            slp[i] = 980.0 + 50.0 * random.nextDouble();
+            sza[i] = 80.0 * random.nextDouble();
+            oza[i] = 50.0 * random.nextDouble();
+            trans[i] = 0.1 + 0.8 * random.nextDouble();
+        }
+        final double[] press = new double[n];
+        final double[] amf = new double[n];
+        final double[] result = new double[n];
+        OlciHarmonisationAlgorithm.height2press(height, slp, press, 0, n);
+        OlciHarmonisationAlgorithm.computeAmf(sza, oza, amf, 0, n);
+        for (int i = 0; i < n; i++) {
+            assertBitIdentical(OlciHarmonisationAlgorithm.height2press(height[i], slp[i]), press[i]);
+            assertBitIdentical(OlciHarmonisationAlgorithm.computeAmf(sza[i], oza[i]), amf[i]);
+        }
+        for (int bandIndex = 13; bandIndex <= 15; bandIndex++) {
+            OlciHarmonisationAlgorithm.press2Trans(press, bandIndex, result, 0, n);
+            for (int i = 0; i < n; i++) {
+                assertBitIdentical(OlciHarmonisationAlgorithm.press2Trans(press[i], bandIndex), result[i]);
+            }
+            OlciHarmonisationAlgorithm.trans2Press(trans, bandIndex, result, 0, n);
+            for (int i = 0; i < n; i++) {
+                assertBitIdentical(OlciHarmonisationAlgorithm.trans2Press(trans[i], bandIndex), result[i]);
+            }
+            OlciHarmonisationAlgorithm.rectifyDesmiledTransmission(trans, amf, bandIndex, result, 0, n);
+            for (int i = 0; i < n; i++) {
+                assertBitIdentical(OlciHarmonisationAlgorithm.rectifyDesmiledTransmission(trans[i], amf[i], bandIndex),
+                                   result[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testCompute_isBitIdenticalToPixelByPixelComputation() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(1234), true);
+        final OlciHarmonisationKernel.TargetSamples tgt = createTargetSamples(true);
+
+        new OlciHarmonisationKernel(luts, trees).compute(src, tgt, 0, NUM_SAMPLES);
+
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            for (int b = 0; b < 3; b++) {
+                assertBitIdentical(computeReference(src, i, b, "trans"), tgt.trans[b][i]);
+                assertBitIdentical(computeReference(src, i, b, "press"), tgt.press[b][i]);
+                assertBitIdentical(computeReference(src, i, b, "surface"), tgt.surface[b][i]);
+                assertBitIdentical(computeReference(src, i, b, "radiance"), tgt.radiance[b][i]);
+            }
+        }
+    }
+
+    @Test
+    public void testCompute_withoutDemAndOnlySomeOutputs() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(5678), false);
+        final OlciHarmonisationKernel.TargetSamples tgt = createTargetSamples(false);
+
+        // samples outside the given range must not be touched
+        new OlciHarmonisationKernel(luts, trees).compute(src, tgt, 10, NUM_SAMPLES - 10);
+
+        assertNull(tgt.radiance[0]);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            for (int b = 0; b < 3; b++) {
+                final boolean inRange = i >= 10 && i < NUM_SAMPLES - 10;
+                assertBitIdentical(inRange ? computeReference(src, i, b, "trans") : 0.0, tgt.trans[b][i]);
+                assertBitIdentical(inRange ? computeReference(src, i, b, "surface") : 0.0, tgt.surface[b][i]);
+            }
+        }
+    }
+
+    @Test
+    public void testCompute_onlyNeededSourcesAndLuts() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(91), true);
+        final OlciHarmonisationKernel.SourceSamples reducedSrc = createSourceSamples(new Random(91), true);
+        // only trans_13 requested: no altitude, DEM, SLP, bands 14 and 15 and their LUTs needed
+        reducedSrc.altitude = null;
+        reducedSrc.demAltitude = null;
+        reducedSrc.collocationFlags = null;
+        reducedSrc.slp = null;
+        for (int k = 2; k < 4; k++) {
+            reducedSrc.radiance[k] = null;
+            reducedSrc.cwl[k] = null;
+            reducedSrc.fwhm[k] = null;
+            reducedSrc.solarFlux[k] = null;
+        }
+        final OlciHarmonisationKernel.TargetSamples tgt = new OlciHarmonisationKernel.TargetSamples(3);
+        tgt.trans[0] = new float[NUM_SAMPLES];
+
+        new OlciHarmonisationKernel(new DesmileLut[]{luts[0], null, null}, new DesmileKdTree[]{trees[0], null, null})
+                .compute(reducedSrc, tgt, 0, NUM_SAMPLES);
+
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            assertBitIdentical(computeReference(src, i, 0, "trans"), tgt.trans[0][i]);
+        }
+    }
+
+    @Test
+    public void testCompute_onlySurface() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(92), false);
+        final OlciHarmonisationKernel.SourceSamples reducedSrc = createSourceSamples(new Random(92), false);
+        // only surface_ requested: no geometry, detector index, spectral data and LUTs needed
+        reducedSrc.sza = null;
+        reducedSrc.oza = null;
+        reducedSrc.detectorIndex = null;
+        for (int k = 0; k < 5; k++) {
+            reducedSrc.radiance[k] = null;
+            reducedSrc.cwl[k] = null;
+            reducedSrc.fwhm[k] = null;
+            reducedSrc.solarFlux[k] = null;
+        }
+        final OlciHarmonisationKernel.TargetSamples tgt = new OlciHarmonisationKernel.TargetSamples(3);
+        for (int b = 0; b < 3; b++) {
+            tgt.surface[b] = new float[NUM_SAMPLES];
+        }
+
+        new OlciHarmonisationKernel(new DesmileLut[3], new DesmileKdTree[3]).compute(reducedSrc, tgt, 0, NUM_SAMPLES);
+
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            for (int b = 0; b < 3; b++) {
+                assertBitIdentical(computeReference(src, i, b, "surface"), tgt.surface[b][i]);
+            }
+        }
+    }
+
+    @Test
+    public void testCompute_withDetectorSpectralTable() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(93), true);
+        makeSpectralCharacterisationPerDetector(src);
+        final boolean[] allBands = {true, true, true, true, true};
+        final DetectorSpectralTable table = new DetectorSpectralTable();
+        table.update(src, allBands);
+        final DetectorSpectralTable.Snapshot snapshot = table.getSnapshot();
+        assertTrue(snapshot.containsAll(src.detectorIndex, src.qualityFlags, allBands));
+
+        // spectral characterisation is taken from the table only
+        final OlciHarmonisationKernel.SourceSamples reducedSrc = createSourceSamples(new Random(93), true);
+        makeSpectralCharacterisationPerDetector(reducedSrc);
+        reducedSrc.detectorTable = snapshot;
+        for (int k = 0; k < 5; k++) {
+            reducedSrc.cwl[k] = null;
+            reducedSrc.fwhm[k] = null;
+            reducedSrc.solarFlux[k] = null;
+        }
+        final OlciHarmonisationKernel.TargetSamples tgt = createTargetSamples(true);
+
+        new OlciHarmonisationKernel(luts, trees).compute(reducedSrc, tgt, 0, NUM_SAMPLES);
+
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            for (int b = 0; b < 3; b++) {
+                assertBitIdentical(computeReference(src, i, b, "trans"), tgt.trans[b][i]);
+                assertBitIdentical(computeReference(src, i, b, "press"), tgt.press[b][i]);
+                assertBitIdentical(computeReference(src, i, b, "surface"), tgt.surface[b][i]);
+                assertBitIdentical(computeReference(src, i, b, "radiance"), tgt.radiance[b][i]);
+            }
+        }
+    }
+
+    @Test
+    public void testCompute_withTargetOffset() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(94), true);
+        final OlciHarmonisationKernel.TargetSamples tgt = new OlciHarmonisationKernel.TargetSamples(3);
+        tgt.trans[0] = new float[NUM_SAMPLES + 100];
+        tgt.surface[2] = new float[NUM_SAMPLES + 100];
+        tgt.offset = 60;
+        tgt.setInvalid(0, 60);
+        tgt.setInvalid(NUM_SAMPLES + 60, NUM_SAMPLES + 100);
+
+        new OlciHarmonisationKernel(luts, trees).compute(src, tgt, 0, NUM_SAMPLES);
+
+        for (int j = 0; j < NUM_SAMPLES + 100; j++) {
+            final int i = j - 60;
+            final boolean covered = i >= 0 && i < NUM_SAMPLES;
+            assertBitIdentical(covered ? computeReference(src, i, 0, "trans") : Double.NaN, tgt.trans[0][j]);
+            assertBitIdentical(covered ? computeReference(src, i, 2, "surface") : Double.NaN, tgt.surface[2][j]);
+        }
+    }
+
+    @Test
+    public void testCompute_withDesmileCache() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(95), false);
+        final DesmileCache desmileCache = new DesmileCache(1 << 16, 0.01, 0.1);
+        final OlciHarmonisationKernel kernel =
+                new OlciHarmonisationKernel(luts, trees, new DesmileGrid[3], desmileCache);
+        final OlciHarmonisationKernel.TargetSamples tgt1 = createTargetSamples(true);
+        final OlciHarmonisationKernel.TargetSamples tgt2 = createTargetSamples(true);
+
+        kernel.compute(src, tgt1, 0, NUM_SAMPLES);
+        final long misses = desmileCache.getMisses();
+        kernel.compute(src, tgt2, 0, NUM_SAMPLES);
+
+        // nearly all inputs are known in the second pass (except for replaced entries), and give the same results
+        assertTrue(desmileCache.getMisses() - misses < misses / 20);
+        assertTrue(desmileCache.getHits() > 0);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            for (int b = 0; b < 3; b++) {
+                assertEquals(Float.floatToIntBits(tgt1.trans[b][i]), Float.floatToIntBits(tgt2.trans[b][i]));
+                assertEquals(Float.floatToIntBits(tgt1.radiance[b][i]), Float.floatToIntBits(tgt2.radiance[b][i]));
+                assertBitIdentical(computeReference(src, i, b, "surface"), tgt1.surface[b][i]);
+            }
+        }
+    }
+
+    @Test
+    public void testCompute_singlePrecisionWithinTolerance() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(2468), true);
+        addFloatSamples(src);
+        final OlciHarmonisationKernel.TargetSamples expected = createTargetSamples(true);
+        final OlciHarmonisationKernel.TargetSamples actual = createTargetSamples(true);
+        final FloatDesmileLut floatLut = new FloatDesmileLut(luts[0]);
+        final FloatDesmileLut[] floatLuts = {floatLut, floatLut, floatLut};
+
+        new OlciHarmonisationKernel(luts, trees).compute(src, expected, 0, NUM_SAMPLES);
+        // the single precision engine does not need the double LUTs and trees
+        new OlciHarmonisationKernel(new DesmileLut[3], new DesmileKdTree[3], new DesmileGrid[3], null, floatLuts)
+                .compute(src, actual, 0, NUM_SAMPLES);
+
+        // the deviation is mostly ~1.0E-6, larger where the nearest LUT node changes or the polynomials cancel out
+        for (int b = 0; b < 3; b++) {
+            assertWithinTolerance(expected.trans[b], actual.trans[b], 1.0E-3);
+            assertWithinTolerance(expected.press[b], actual.press[b], 1.0E-3);
+            assertWithinTolerance(expected.surface[b], actual.surface[b], 1.0E-5);
+            assertWithinTolerance(expected.radiance[b], actual.radiance[b], 1.0E-3);
+        }
+    }
+
+    @Test
+    public void testCompute_withStatistics() {
+        final OlciHarmonisationKernel.SourceSamples src = createSourceSamples(new Random(1357), false);
+        final OlciHarmonisationKernel.TargetSamples expected = createTargetSamples(true);
+        final OlciHarmonisationKernel.TargetSamples actual = createTargetSamples(true);
+        final OlciHarmonisationStatistics statistics = new OlciHarmonisationStatistics();
+
+        new OlciHarmonisationKernel(luts, trees).compute(src, expected, 0, NUM_SAMPLES);
+        final OlciHarmonisationKernel kernel = new OlciHarmonisationKernel(luts, trees);
+        kernel.setStatistics(statistics.getAccumulator());
+        kernel.compute(src, actual, 0, NUM_SAMPLES / 2);
+        kernel.compute(src, actual, NUM_SAMPLES / 2, NUM_SAMPLES);
+
+        int numInvalid = 0;
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            numInvalid += OlciHarmonisationKernel.isValid(src.qualityFlags[i]) ? 0 : 1;
+        }
+        assertEquals(numInvalid, statistics.getInvalidPixelCount());
+        // one KD query per valid pixel and band
+        assertEquals(3L * (NUM_SAMPLES - numInvalid), statistics.getKdQueryCount());
+        assertTrue(statistics.getDesmileMillis() > 0.0);
+        assertTrue(statistics.getRectificationMillis() > 0.0);
+        for (int b = 0; b < 3; b++) {
+            for (int i = 0; i < NUM_SAMPLES; i++) {
+                assertEquals(Float.floatToIntBits(expected.trans[b][i]), Float.floatToIntBits(actual.trans[b][i]));
+                assertEquals(Float.floatToIntBits(expected.radiance[b][i]), Float.floatToIntBits(actual.radiance[b][i]));
+            }
+        }
+    }
+
+    @Test
+    public void testFloatDesmileLut() {
+        final FloatDesmileLut floatLut = new FloatDesmileLut(luts[0]);
+        final FloatDesmileKdTree floatTree = floatLut.getKdTree();
+        final int numNodes = luts[0].getX().length;
+        assertEquals(numNodes, floatLut.getNumNodes());
+        assertSame(floatTree.getPoints(), floatLut.getX());
+        // the node data is stored in leaf order of the tree
+        for (int p = 0; p < numNodes; p++) {
+            final int i = floatTree.getIndex(p);
+            assertEquals((float) luts[0].getY()[i][0], floatLut.getY()[p], 0.0f);
+            for (int k = 0; k < 4; k++) {
+                assertEquals((float) luts[0].getX()[i][k], floatLut.getX()[p * 4 + k], 0.0f);
+                assertEquals((float) luts[0].getJACO()[i][0][k], floatLut.getJaco()[p * 4 + k], 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void testFloatDesmileLut_nearestNodeAsWithDoubleTree() {
+        final FloatDesmileLut floatLut = new FloatDesmileLut(luts[0]);
+        final Random random = new Random(1234);
+        final double[] q = new double[4];
+        final float[] qF = new float[4];
+        for (int j = 0; j < 1000; j++) {
+            for (int k = 0; k < 4; k++) {
+                qF[k] = (float) (4.0 * random.nextDouble() - 2.0);
+                q[k] = qF[k];
+            }
+            final int p = floatLut.getKdTree().nearest(qF);
+            final int i = trees[0].nearest(q);
+            assertEquals(distance2(luts[0].getX()[i], q), distance2(luts[0].getX()[floatLut.getKdTree().getIndex(p)], q),
+                         1.0E-5);
+        }
+        assertEquals(-1, floatLut.getKdTree().nearest(new float[]{Float.NaN, 0.0f, 0.0f, 0.0f}));
+    }
+
+    // fills the buffers read by the single precision engine from the double ones, as read by the operator
+    static void addFloatSamples(OlciHarmonisationKernel.SourceSamples src) {
+        src.szaF = toFloat(src.sza);
+        src.ozaF = toFloat(src.oza);
+        src.amfF = toFloat(src.amf);
+        src.altitudeF = toFloat(src.altitude);
+        src.slpF = toFloat(src.slp);
+        for (int k = 0; k < 5; k++) {
+            src.radianceF[k] = toFloat(src.radiance[k]);
+        }
+    }
+
+    private static float[] toFloat(double[] values) {
+        if (values == null) {
+            return null;
+        }
+        final float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (float) values[i];
+        }
+        return result;
+    }
+
+    private static double distance2(double[] x, double[] q) {
+        double d2 = 0.0;
+        for (int k = 0; k < 4; k++) {
+            d2 += (x[k] - q[k]) * (x[k] - q[k]);
+        }
+        return d2;
+    }
+
+    // as in OLCI L1b: the spectral characterisation is a function of the detector index
+    static void makeSpectralCharacterisationPerDetector(OlciHarmonisationKernel.SourceSamples src) {
+        final int numDetectors = 40;
+        for (int i = 0; i < src.detectorIndex.length; i++) {
+            src.detectorIndex[i] = (int) src.detectorIndex[i] % numDetectors;
+            final int first = firstIndexOfDetector(src.detectorIndex, src.detectorIndex[i]);
+            for (int k = 0; k < 5; k++) {
+                src.cwl[k][i] = src.cwl[k][first];
+                src.fwhm[k][i] = src.fwhm[k][first];
+                src.solarFlux[k][i] = src.solarFlux[k][first];
+            }
+        }
+    }
+
+    private static int firstIndexOfDetector(float[] detectorIndex, float detector) {
+        int i = 0;
+        while (detectorIndex[i] != detector) {
+            i++;
+        }
+        return i;
+    }
+
+    private OlciHarmonisationKernel.SourceSamples createSourceSamples(Random random, boolean withDem) {
+        final double[] cwlRef = {753.4, 761.7, 764.8, 767.9, 778.4};
+        final OlciHarmonisationKernel.SourceSamples src = new OlciHarmonisationKernel.SourceSamples();
+        src.qualityFlags = new int[NUM_SAMPLES];
+        src.sza = new double[NUM_SAMPLES];
+        src.oza = new double[NUM_SAMPLES];
+        src.altitude = new double[NUM_SAMPLES];
+        src.slp = new double[NUM_SAMPLES];
+        src.detectorIndex = new float[NUM_SAMPLES];
+        if (withDem) {
+            src.demAltitude = new double[NUM_SAMPLES];
+            src.collocationFlags = new int[NUM_SAMPLES];
+        }
+        for (int k = 0; k < 5; k++) {
+            src.radiance[k] = new double[NUM_SAMPLES];
+            src.cwl[k] = new double[NUM_SAMPLES];
+            src.fwhm[k] = new double[NUM_SAMPLES];
+            src.solarFlux[k] = new double[NUM_SAMPLES];
+        }
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            src.qualityFlags[i] = random.nextInt(10) == 0 ? 1 << OlciHarmonisationConstants.OLCI_INVALID_BIT : 0;
+            src.sza[i] = 20.0 + 50.0 * random.nextDouble();
+            src.oza[i] = 45.0 * random.nextDouble();
+            src.altitude[i] = 3000.0 * random.nextDouble();
+            src.slp[i] = 990.0 + 40.0 * random.nextDouble();
+            src.detectorIndex[i] = i % 20 == 0 ? 5 : random.nextInt(3700);
+            if (withDem) {
+                src.demAltitude[i] = 3000.0 * random.nextDouble();
+                src.collocationFlags[i] = random.nextInt(2);
+            }
+            for (int k = 0; k < 5; k++) {
+                src.radiance[k][i] = (float) (20.0 + 80.0 * random.nextDouble());
+                src.cwl[k][i] = (float) (cwlRef[k] + 0.5 * random.nextDouble());
+                src.fwhm[k][i] = (float) (2.5 + 0.3 * random.nextDouble());
+                src.solarFlux[k][i] = (float) (1200.0 + 100.0 * random.nextDouble());
+            }
+            if (i % 50 == 0) {
+                // degenerate spectral sampling, gives NaN transmissions
+                src.cwl[4][i] = src.cwl[0][i];
+            }
+        }
+        return src;
+    }
+
+    private static OlciHarmonisationKernel.TargetSamples createTargetSamples(boolean allOutputs) {
+        final OlciHarmonisationKernel.TargetSamples tgt = new OlciHarmonisationKernel.TargetSamples(3);
+        for (int b = 0; b < 3; b++) {
+            tgt.trans[b] = new float[NUM_SAMPLES];
+            tgt.surface[b] = new float[NUM_SAMPLES];
+            if (allOutputs) {
+                tgt.press[b] = new float[NUM_SAMPLES];
+                tgt.radiance[b] = new float[NUM_SAMPLES];
+            }
+        }
+        return tgt;
+    }
+
+    private static void assertBitIdentical(double expected, float actual) {
+        assertEquals(Float.floatToIntBits((float) expected), Float.floatToIntBits(actual));
+    }
+
+    // relative tolerance, absolute for values near zero
+    private static void assertWithinTolerance(float[] expected, float[] actual, double tolerance) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], tolerance * Math.max(1.0, Math.abs(expected[i])));
+        }
+    }
+
+    private static void assertBitIdentical(double expected, double actual) {
+        assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+
+    // the pixel-by-pixel computation as originally done in OlciHarmonisationOp.computeTile()
+    private double computeReference(OlciHarmonisationKernel.SourceSamples src, int idx, int bandIndex, String output) {
+        if ((src.qualityFlags[idx] & (1 << OlciHarmonisationConstants.OLCI_INVALID_BIT)) != 0) {
+            return Float.NaN;
+        }
+        final double sza = src.sza[idx];
+        final double oza = src.oza[idx];
+        double altitude = src.altitude[idx];
+        if (src.demAltitude != null && src.collocationFlags != null && src.collocationFlags[idx] == 1) {
+            altitude = src.demAltitude[idx];
+        }
+        final double slp = src.slp[idx];
+        double surfacePress = OlciHarmonisationAlgorithm.height2press(altitude, slp);
+        final float detectorIndex = src.detectorIndex[idx];
+
+        final double amf = (1.0 / Math.cos(sza * MathUtils.DTOR) + 1.0 / Math.cos(oza * MathUtils.DTOR));
+
+        double[] radiance = new double[5];
+        double[] r = new double[5];
+        double[] cwl = new double[5];
+        double[] fwhm = new double[5];
+        double[] solarFlux = new double[5];
+        for (int i = 0; i < 5; i++) {
+            radiance[i] = src.radiance[i][idx];
+            cwl[i] = src.cwl[i][idx];
+            fwhm[i] = src.fwhm[i][idx];
+            solarFlux[i] = src.solarFlux[i][idx];
+            r[i] = radiance[i] / solarFlux[i];
+        }
+
+        final double dlam = cwl[4] - cwl[0];
+        final double drad = r[4] - r[0];
+        double[] trans = new double[5];
+        double[] radianceAbsFree = new double[5];
+        for (int i = 0; i < 3; i++) {
+            if (dlam > 0.0001) {
+                final double grad = drad / dlam;
+                radianceAbsFree[i + 1] = r[0] + grad * (cwl[i + 1] - cwl[0]);
+            } else {
+                radianceAbsFree[i + 1] = Float.NaN;
+            }
+            trans[i + 1] = r[i + 1] / radianceAbsFree[i + 1];
+            cwl[i + 1] += OlciHarmonisationAlgorithm.overcorrectLambda(detectorIndex,
+                                                                       OlciHarmonisationConstants.DWL_CORR_OFFSET[i]);
+        }
+
+        final double dwl = cwl[bandIndex + 1] - OlciHarmonisationConstants.cwvl[bandIndex];
+        final double transDesmiled = desmileTransmissionReference(dwl, fwhm[bandIndex + 1],
+                                                                  amf,
+                                                                  trans[bandIndex + 1],
+                                                                  smileTrees[bandIndex],
+                                                                  luts[bandIndex]);
+        final double transDesmiledRectified =
+                OlciHarmonisationAlgorithm.rectifyDesmiledTransmission(transDesmiled, amf, bandIndex + 13);
+
+        switch (output) {
+            case "trans":
+                return transDesmiledRectified;
+            case "press":
+                return OlciHarmonisationAlgorithm.trans2Press(transDesmiledRectified, bandIndex + 13);
+            case "surface":
+                return OlciHarmonisationAlgorithm.press2Trans(surfacePress, bandIndex + 13);
+            default:
+                return radianceAbsFree[bandIndex + 1] * solarFlux[bandIndex + 1] * transDesmiledRectified;
+        }
+    }
+
+    // the desmile as originally done with the smile KD tree
+    private static double desmileTransmissionReference(double dwl, double fwhm, double amf, double trans,
+                                                       KDTree<double[]> tree, DesmileLut lut) {
+
+        double[] x = new double[]{dwl, fwhm, trans, amf};
+        final double[] wo = new double[lut.getVARI().length];
+        for (int i = 0; i < lut.getVARI().length; i++) {
+            wo[i] = (x[i] - lut.getMEAN()[i]) / lut.getVARI()[i];
+        }
+
+        final int nNearest = 1;
+        final Neighbor<double[], double[]>[] neighbors = tree.knn(wo, nNearest);
+        final double[] distances = new double[neighbors.length];
+        final int[] indices = new int[neighbors.length];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = neighbors[i].distance;
+            indices[distances.length - i - 1] = neighbors[i].index;
+        }
+
+        double[] weight = new double[distances.length];
+        double norm = 0.0;
+        for (int i = 0; i < weight.length; i++) {
+            weight[i] = Double.isInfinite(distances[i]) ? 0.0 : 1.0;
+            norm += weight[i];
+        }
+
+        double temp = 0.0;
+        for (int j = 0; j < nNearest; j++) {
+            final boolean valid = !Double.isInfinite(distances[j]);
+            if (valid) {
+                double dxCrossJaco = 0.0;
+                for (int k = 0; k < wo.length; k++) {
+                    final double dx = (wo[k] - lut.getX()[indices[j]][k]) * lut.getVARI()[k];
+                    final double jaco = lut.getJACO()[indices[j]][0][k];
+                    dxCrossJaco += (dx * jaco);
+                }
+                temp += (lut.getY()[indices[j]][0] + dxCrossJaco * weight[j]);
+            }
+        }
+
+        double kdInterpolResult = temp / norm;
+
+        return trans / kdInterpolResult;
+    }
+}
@@ -1,13 +1,22 @@
 package org.esa.s3tbx.olci.harmonisation;
 
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.datamodel.TiePointGrid;
 import org.esa.snap.core.gpf.GPF;
 import org.esa.snap.core.gpf.OperatorSpi;
 import org.esa.snap.core.gpf.OperatorSpiRegistry;
 import org.junit.Test;
 
+import java.awt.Rectangle;
+import java.util.Arrays;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class OlciHarmonisationOpTest {
 
@@ -21,4 +30,119 @@ public class OlciHarmonisationOpTest {
         assertSame(operatorSpi.getOperatorClass(), operatorSpi.getOperatorDescriptor().getOperatorClass());
     }
 
+    @Test
+    public void testCreateAmfTiePointGrid_withinTolerance() {
+        // OLCI FR like geometry: 4865 x 4091 pixels, tie points every 64 pixels, SZA 60..80 deg
+        final int gridWidth = 77;
+        final int gridHeight = 65;
+        final float[] sza = new float[gridWidth * gridHeight];
+        final float[] oza = new float[gridWidth * gridHeight];
+        for (int j = 0; j < gridHeight; j++) {
+            for (int i = 0; i < gridWidth; i++) {
+                final double x = i * 64.0;
+                final double y = j * 64.0;
+                sza[j * gridWidth + i] = (float) (60.0 + 15.0 * y / 4096.0 + 5.0 * x / 4864.0);
+                // view zenith across track, nadir at about pixel 3700
+                oza[j * gridWidth + i] = (float) Math.toDegrees(Math.abs(Math.atan((x - 3700.0) / 4200.0)));
+            }
+        }
+        final TiePointGrid szaGrid = new TiePointGrid("SZA", gridWidth, gridHeight, 0.5, 0.5, 64.0, 64.0, sza);
+        final TiePointGrid ozaGrid = new TiePointGrid("OZA", gridWidth, gridHeight, 0.5, 0.5, 64.0, 64.0, oza);
+
+        final TiePointGrid amfGrid = OlciHarmonisationOp.createAmfTiePointGrid(szaGrid, ozaGrid);
+        assertEquals("amf", amfGrid.getName());
+        assertEquals(gridWidth, amfGrid.getGridWidth());
+        assertEquals(gridHeight, amfGrid.getGridHeight());
+
+        double maxRelativeDeviation = 0.0;
+        for (int y = 0; y < 4091; y += 7) {
+            for (int x = 0; x < 4865; x += 3) {
+                final double exact = OlciHarmonisationAlgorithm.computeAmf(szaGrid.getPixelDouble(x + 0.5, y + 0.5),
+                                                                           ozaGrid.getPixelDouble(x + 0.5, y + 0.5));
+                final double interpolated = amfGrid.getPixelDouble(x + 0.5, y + 0.5);
+                maxRelativeDeviation = Math.max(maxRelativeDeviation, Math.abs(interpolated - exact) / exact);
+            }
+        }
+        assertTrue("max relative deviation: " + maxRelativeDeviation, maxRelativeDeviation < 1.0E-3);
+    }
+
+    @Test
+    public void testComputeAmf() {
+        assertEquals(2.0, OlciHarmonisationAlgorithm.computeAmf(0.0, 0.0), 1.0E-12);
+        assertEquals(3.0, OlciHarmonisationAlgorithm.computeAmf(60.0, 0.0), 1.0E-12);
+        assertEquals(4.0, OlciHarmonisationAlgorithm.computeAmf(60.0, 60.0), 1.0E-12);
+    }
+
+    @Test
+    public void testGetValidRowsRectangle() {
+        final int invalid = 1 << OlciHarmonisationConstants.OLCI_INVALID_BIT;
+        final Rectangle targetRectangle = new Rectangle(10, 20, 3, 4);
+        final int[] qualityFlags = new int[12];
+
+        assertEquals(targetRectangle, OlciHarmonisationOp.getValidRowsRectangle(qualityFlags, targetRectangle));
+
+        Arrays.fill(qualityFlags, invalid);
+        assertNull(OlciHarmonisationOp.getValidRowsRectangle(qualityFlags, targetRectangle));
+
+        // valid pixels only in rows 1 and 2
+        qualityFlags[5] = 0;
+        qualityFlags[6] = invalid | 1;
+        qualityFlags[7] = 1;
+        assertEquals(new Rectangle(10, 21, 3, 2), OlciHarmonisationOp.getValidRowsRectangle(qualityFlags, targetRectangle));
+
+        // a single valid pixel in the last row
+        Arrays.fill(qualityFlags, invalid);
+        qualityFlags[11] = 0;
+        assertEquals(new Rectangle(10, 23, 3, 1), OlciHarmonisationOp.getValidRowsRectangle(qualityFlags, targetRectangle));
+    }
+
+    @Test
+    public void testCreateSubset() {
+        final Product product = new Product("test_OL_1_EFR", "OL_1_EFR", 100, 60);
+        final float[] samples = new float[100 * 60];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = i;
+        }
+        product.addBand("altitude", ProductData.TYPE_FLOAT32).setRasterData(ProductData.createInstance(samples));
+
+        final Product subset = OlciHarmonisationOp.createSubset(product, new Rectangle(10, 20, 40, 30), 2);
+
+        assertEquals(20, subset.getSceneRasterWidth());
+        assertEquals(15, subset.getSceneRasterHeight());
+        assertEquals("OL_1_EFR", subset.getProductType());
+        // pixel (1,1) of the subset is pixel (12,22) of the source
+        assertEquals(22 * 100 + 12, subset.getBand("altitude").getSourceImage().getData().getSampleFloat(1, 1, 0), 0.0f);
+    }
+
+    @Test
+    public void testStatistics_bandsComputedOneByOne_pixelsAndTilesAreCountedOnce() throws Exception {
+        final DesmileAuxdataRegistry registry = DesmileAuxdataRegistry.getInstance();
+        registry.setAuxdataPath(OlciTestProducts.createAuxdataPath());
+        final Product l1bProduct = OlciTestProducts.createL1bProduct(24, 16);
+        try {
+            final OlciHarmonisationOp operator = new OlciHarmonisationOp();
+            operator.setParameterDefaultValues();
+            operator.setSourceProduct("l1bProduct", l1bProduct);
+            operator.setParameter("computeAllBandsInOnePass", false);
+            operator.setParameter("writeHarmonisedRadiances", false);
+            operator.setParameter("collectStatistics", true);
+            final Product targetProduct = operator.getTargetProduct();
+            // every band is computed on its own, so every tile rectangle is computed three times
+            assertEquals(3, targetProduct.getNumBands());
+            for (Band band : targetProduct.getBands()) {
+                band.getSourceImage().getData();
+            }
+
+            final OlciHarmonisationStatistics statistics = operator.getStatistics();
+            assertEquals(24L * 16L, statistics.getPixelCount());
+            assertEquals(OlciTestProducts.countInvalidPixels(l1bProduct), statistics.getInvalidPixelCount());
+            // the tiles are counted once as well, whatever the tile size
+            assertEquals(statistics.getTileCount(), operator.getNumComputedTiles());
+            assertEquals(0, operator.getNumInvalidTiles());
+            targetProduct.dispose();
+        } finally {
+            l1bProduct.dispose();
+            registry.setAuxdataPath(null);
+        }
+    }
 }
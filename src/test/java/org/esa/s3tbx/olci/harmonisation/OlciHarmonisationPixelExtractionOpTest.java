@@ -0,0 +1,145 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.gpf.GPF;
+import org.esa.snap.core.gpf.OperatorSpi;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OlciHarmonisationPixelExtractionOpTest {
+
+    @Test
+    public void testOperatorSpiIsLoaded() {
+        OperatorSpi operatorSpi = GPF.getDefaultInstance().getOperatorSpiRegistry().getOperatorSpi("OlciHarmonisationPixelExtraction");
+        assertNotNull(operatorSpi);
+        assertEquals(OlciHarmonisationPixelExtractionOp.class, operatorSpi.getOperatorClass());
+    }
+
+    @Test
+    public void testReadCoordinates_geographic() throws IOException {
+        final String csv = "# match-ups\n" +
+                "name,lat,lon,comment\n" +
+                "site_a, 53.5, 10.25 ,x\n" +
+                "\n" +
+                "site_b,-12.0,170.0,y\n";
+        final List<OlciHarmonisationPixelExtractionOp.Coordinate> coordinates =
+                OlciHarmonisationPixelExtractionOp.readCoordinates(new StringReader(csv));
+
+        assertEquals(2, coordinates.size());
+        assertEquals("site_a", coordinates.get(0).name);
+        assertTrue(coordinates.get(0).geographic);
+        assertEquals(53.5, coordinates.get(0).lat, 0.0);
+        assertEquals(10.25, coordinates.get(0).lon, 0.0);
+        assertEquals("site_b", coordinates.get(1).name);
+        assertEquals(-12.0, coordinates.get(1).lat, 0.0);
+        assertEquals(-1, coordinates.get(1).x);
+    }
+
+    @Test
+    public void testReadCoordinates_pixelWithTabsAndWithoutName() throws IOException {
+        final String csv = "X\tY\n" +
+                "10.5\t20.5\n" +
+                "0\t3\n";
+        final List<OlciHarmonisationPixelExtractionOp.Coordinate> coordinates =
+                OlciHarmonisationPixelExtractionOp.readCoordinates(new StringReader(csv));
+
+        assertEquals(2, coordinates.size());
+        assertEquals("1", coordinates.get(0).name);
+        assertFalse(coordinates.get(0).geographic);
+        assertEquals(10.5, coordinates.get(0).pixelX, 0.0);
+        assertEquals(20.5, coordinates.get(0).pixelY, 0.0);
+        assertEquals("2", coordinates.get(1).name);
+    }
+
+    @Test
+    public void testReadCoordinates_invalid() {
+        try {
+            OlciHarmonisationPixelExtractionOp.readCoordinates(new StringReader("name;latitude\na;1.0\n"));
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("Header must contain"));
+        }
+        try {
+            OlciHarmonisationPixelExtractionOp.readCoordinates(new StringReader("lat;lon\n1.0;abc\n"));
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("Invalid coordinate in line 2"));
+        }
+    }
+
+    @Test
+    public void testLocatePixelCoordinates() throws IOException {
+        final Product product = new Product("test", "test", 100, 50);
+        final List<OlciHarmonisationPixelExtractionOp.Coordinate> coordinates =
+                OlciHarmonisationPixelExtractionOp.readCoordinates(new StringReader("x,y\n10.5,20.5\n99.9,0\n100.0,3\n-1,2\n"));
+
+        OlciHarmonisationPixelExtractionOp.locate(coordinates, product);
+
+        assertEquals(10, coordinates.get(0).x);
+        assertEquals(20, coordinates.get(0).y);
+        assertEquals(99, coordinates.get(1).x);
+        assertEquals(0, coordinates.get(1).y);
+        // outside of the product
+        assertEquals(-1, coordinates.get(2).x);
+        assertEquals(-1, coordinates.get(3).x);
+    }
+
+    @Test
+    public void testGetHarmonisationBandsAndWriteCsv() throws IOException {
+        final Product product = new Product("test", "test", 10, 10);
+        product.addBand("trans_13", ProductData.TYPE_FLOAT32);
+        product.addBand("Oa13_radiance", ProductData.TYPE_FLOAT32);
+        product.addBand("press_13", ProductData.TYPE_FLOAT32);
+        product.addBand("radiance_13", ProductData.TYPE_FLOAT32);
+        final Band[] bands = OlciHarmonisationPixelExtractionOp.getHarmonisationBands(product);
+        assertEquals(3, bands.length);
+        assertEquals("trans_13", bands[0].getName());
+        assertEquals("press_13", bands[1].getName());
+        assertEquals("radiance_13", bands[2].getName());
+
+        final List<OlciHarmonisationPixelExtractionOp.Coordinate> coordinates =
+                OlciHarmonisationPixelExtractionOp.readCoordinates(new StringReader("name,x,y\np1,2.5,3.5\nsite \"B\",20,3\n"));
+        OlciHarmonisationPixelExtractionOp.locate(coordinates, product);
+        final float[][] values = {{0.5f, 1000.25f, 42.0f}, {Float.NaN, Float.NaN, Float.NaN}};
+        final StringWriter writer = new StringWriter();
+        OlciHarmonisationPixelExtractionOp.writeCsv(writer, coordinates, bands, values);
+
+        assertEquals(Arrays.asList("name,lat,lon,pixel_x,pixel_y,trans_13,press_13,radiance_13",
+                                   "\"p1\",NaN,NaN,2,3,0.5,1000.25,42.0",
+                                   "\"site \"\"B\"\"\",NaN,NaN,-1,-1,NaN,NaN,NaN"),
+                     Arrays.asList(writer.toString().split("\n")));
+    }
+
+    @Test
+    public void testWriteCsvAndReadCoordinates_roundTrip() throws IOException {
+        final Product product = new Product("test", "test", 10, 10);
+        final Band[] bands = {product.addBand("trans_13", ProductData.TYPE_FLOAT32)};
+        final List<OlciHarmonisationPixelExtractionOp.Coordinate> coordinates =
+                OlciHarmonisationPixelExtractionOp.readCoordinates(
+                        new StringReader("name,x,y\np1,2.5,3.5\n\"site \"\"B\"\", north\",4,5\n\"a;b\",6,7\n"));
+        assertEquals("site \"B\", north", coordinates.get(1).name);
+        OlciHarmonisationPixelExtractionOp.locate(coordinates, product);
+        final StringWriter writer = new StringWriter();
+        OlciHarmonisationPixelExtractionOp.writeCsv(writer, coordinates, bands, new float[][]{{0.5f}, {0.25f}, {0.125f}});
+
+        final List<OlciHarmonisationPixelExtractionOp.Coordinate> readCoordinates =
+                OlciHarmonisationPixelExtractionOp.readCoordinates(new StringReader(writer.toString()));
+        assertEquals(3, readCoordinates.size());
+        for (int c = 0; c < 3; c++) {
+            assertEquals(coordinates.get(c).name, readCoordinates.get(c).name);
+        }
+    }
+}
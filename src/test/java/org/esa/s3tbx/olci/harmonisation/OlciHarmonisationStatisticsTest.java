@@ -0,0 +1,86 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.MetadataElement;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OlciHarmonisationStatisticsTest {
+
+    @Test
+    public void testAccumulatorsOfAllThreadsAreMerged() throws Exception {
+        final OlciHarmonisationStatistics statistics = new OlciHarmonisationStatistics();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                final OlciHarmonisationStatistics.Accumulator accumulator = statistics.getAccumulator();
+                for (int i = 0; i < 1000; i++) {
+                    accumulator.count(OlciHarmonisationStatistics.Counter.PIXELS, 10);
+                    accumulator.count(OlciHarmonisationStatistics.Counter.TILES, 1);
+                    accumulator.add(OlciHarmonisationStatistics.Stage.KERNEL, 2000);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        statistics.recordTileInterval(1000L, 1000L + 1000000000L);
+
+        assertEquals(40000L, statistics.getPixelCount());
+        assertEquals(4000L, statistics.getTileCount());
+        assertEquals(0L, statistics.getInvalidPixelCount());
+        assertEquals(8.0, statistics.getKernelMillis(), 1.0E-9);
+        assertEquals(40000.0, statistics.getPixelsPerSecond(), 1.0E-6);
+        assertTrue(statistics.getReport().contains("KERNEL"));
+    }
+
+    @Test
+    public void testAddSince() {
+        final OlciHarmonisationStatistics statistics = new OlciHarmonisationStatistics();
+        final long startTime = System.nanoTime() - 5000000L;
+        final long now = statistics.getAccumulator().addSince(OlciHarmonisationStatistics.Stage.DESMILE, startTime);
+        assertEquals(now - startTime, statistics.getNanos(OlciHarmonisationStatistics.Stage.DESMILE));
+        assertTrue(statistics.getDesmileMillis() >= 5.0);
+        assertEquals(0.0, statistics.getPixelsPerSecond(), 0.0);
+    }
+
+    @Test
+    public void testWriteMetadata_replacesElement() {
+        final OlciHarmonisationStatistics statistics = new OlciHarmonisationStatistics();
+        final MetadataElement root = new MetadataElement("metadata");
+        statistics.getAccumulator().count(OlciHarmonisationStatistics.Counter.NAN_OUTPUTS, 7);
+        statistics.writeMetadata(root);
+        statistics.getAccumulator().count(OlciHarmonisationStatistics.Counter.NAN_OUTPUTS, 5);
+        statistics.writeMetadata(root);
+
+        assertEquals(1, root.getElements().length);
+        final MetadataElement element = root.getElement(OlciHarmonisationStatistics.METADATA_ELEMENT_NAME);
+        assertNotNull(element);
+        assertEquals(12.0, element.getAttributeDouble("nan_outputs", -1.0), 0.0);
+        assertEquals(0.0, element.getAttributeDouble("kd_tree_build_ms", -1.0), 0.0);
+    }
+
+    @Test
+    public void testRegisterMBean() throws Exception {
+        final OlciHarmonisationStatistics statistics = new OlciHarmonisationStatistics();
+        statistics.getAccumulator().count(OlciHarmonisationStatistics.Counter.KD_QUERIES, 42);
+        statistics.registerMBean("S3A_OL_1_EFR");
+        final ObjectName objectName = statistics.getObjectName();
+        assertNotNull(objectName);
+        try {
+            assertEquals(42L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "KdQueryCount"));
+        } finally {
+            statistics.unregisterMBean();
+        }
+        assertNull(statistics.getObjectName());
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    }
+}
@@ -0,0 +1,113 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.datamodel.TiePointGrid;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Provides small synthetic OLCI L1b products and an auxdata directory with the small test LUT for tests
+ * running the complete operator.
+ *
+ * @author olafd
+ */
+class OlciTestProducts {
+
+    static final int INVALID = 1 << OlciHarmonisationConstants.OLCI_INVALID_BIT;
+
+    private OlciTestProducts() {
+    }
+
+    /**
+     * @return a temporary auxdata directory with the small test LUT as desmile LUT of bands 13..15
+     * @throws IOException -
+     */
+    static Path createAuxdataPath() throws IOException {
+        final Path installAuxdataPath = OlciHarmonisationIO.installAuxdata();
+        final Path auxdataPath = Files.createTempDirectory("harmonisation");
+        for (int band = 13; band <= 15; band++) {
+            Files.copy(installAuxdataPath.resolve("O2_desmile_lut_SMALL_TEST.json"),
+                       auxdataPath.resolve(OlciHarmonisationIO.DESMILE_LUT_FILE_PREFIX + band +
+                                                   OlciHarmonisationIO.DESMILE_LUT_JSON_EXTENSION));
+        }
+        return auxdataPath;
+    }
+
+    /**
+     * Creates an in-memory OLCI L1b product with the nodes used by the harmonisation. The first row is invalid,
+     * and every 7th pixel of the other rows.
+     *
+     * @param width  - the scene width
+     * @param height - the scene height
+     * @return the product
+     */
+    static Product createL1bProduct(int width, int height) {
+        final int numPixels = width * height;
+        final Random random = new Random(4711);
+        final Product product = new Product("test_OL_1_EFR", "OL_1_EFR", width, height);
+
+        final int[] qualityFlags = new int[numPixels];
+        final float[] altitude = new float[numPixels];
+        final short[] detectorIndex = new short[numPixels];
+        for (int i = 0; i < numPixels; i++) {
+            qualityFlags[i] = i < width || i % 7 == 0 ? INVALID : 0;
+            altitude[i] = (float) (3000.0 * random.nextDouble());
+            detectorIndex[i] = (short) random.nextInt(3700);
+        }
+        product.addBand("quality_flags", ProductData.TYPE_INT32).setRasterData(ProductData.createInstance(qualityFlags));
+        product.addBand("altitude", ProductData.TYPE_FLOAT32).setRasterData(ProductData.createInstance(altitude));
+        product.addBand("detector_index", ProductData.TYPE_INT16).setRasterData(ProductData.createInstance(detectorIndex));
+        addBand(product, "Oa01_radiance", numPixels, 0.0f, 0.0f).setUnit("mW.m-2.sr-1.nm-1");
+        final float[] cwlRef = {753.4f, 761.7f, 764.8f, 767.9f, 778.4f};
+        for (int k = 0; k < 5; k++) {
+            addBand(product, "Oa" + (k + 12) + "_radiance", numPixels, k == 0 || k == 4 ? 80.0f : 30.0f, 20.0f);
+            addBand(product, "lambda0_band_" + (k + 12), numPixels, cwlRef[k], 0.5f);
+            addBand(product, "FWHM_band_" + (k + 12), numPixels, 2.6f, 0.0f);
+            addBand(product, "solar_flux_band_" + (k + 12), numPixels, 1250.0f, 0.0f);
+        }
+
+        final int gridWidth = (width - 1) / 8 + 2;
+        final int gridHeight = (height - 1) / 8 + 2;
+        final float[] sza = new float[gridWidth * gridHeight];
+        final float[] oza = new float[gridWidth * gridHeight];
+        final float[] slp = new float[gridWidth * gridHeight];
+        for (int i = 0; i < sza.length; i++) {
+            sza[i] = 30.0f + 0.5f * i;
+            oza[i] = 0.3f * i;
+            slp[i] = 1013.0f;
+        }
+        product.addTiePointGrid(new TiePointGrid("SZA", gridWidth, gridHeight, 0.5, 0.5, 8.0, 8.0, sza));
+        product.addTiePointGrid(new TiePointGrid("OZA", gridWidth, gridHeight, 0.5, 0.5, 8.0, 8.0, oza));
+        product.addTiePointGrid(new TiePointGrid("sea_level_pressure", gridWidth, gridHeight, 0.5, 0.5, 8.0, 8.0, slp));
+        return product;
+    }
+
+    /**
+     * @param product - a product created by {@link #createL1bProduct(int, int)}
+     * @return the number of invalid pixels of the product
+     */
+    static int countInvalidPixels(Product product) {
+        final int[] qualityFlags = (int[]) product.getBand("quality_flags").getRasterData().getElems();
+        int numInvalid = 0;
+        for (int flags : qualityFlags) {
+            numInvalid += (flags & INVALID) != 0 ? 1 : 0;
+        }
+        return numInvalid;
+    }
+
+    private static Band addBand(Product product, String name, int numPixels, float offset, float range) {
+        final Random random = new Random(name.hashCode());
+        final float[] samples = new float[numPixels];
+        for (int i = 0; i < numPixels; i++) {
+            samples[i] = offset + range * random.nextFloat();
+        }
+        final Band band = product.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setRasterData(ProductData.createInstance(samples));
+        return band;
+    }
+}
@@ -0,0 +1,81 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Test;
+
+import javax.media.jai.TileCache;
+import java.awt.image.RenderedImage;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripeWriterTest {
+
+    @Test
+    public void testComputeStripeHeight() {
+        assertEquals(368, StripeWriter.getBytesPerPixel(false));
+        assertEquals(476, StripeWriter.getBytesPerPixel(true));
+        // full-orbit ERR product
+        assertEquals(74, StripeWriter.computeStripeHeight(1217, 15000, 368, 32L << 20));
+        assertEquals(57, StripeWriter.computeStripeHeight(1217, 15000, 476, 32L << 20));
+        assertEquals(15000, StripeWriter.computeStripeHeight(1217, 15000, 368, 16L << 30));
+        assertEquals(1, StripeWriter.computeStripeHeight(1217, 15000, 368, 1000));
+    }
+
+    @Test
+    public void testRemoveTiles() {
+        // 2 x 4 tiles of 64 x 64 pixels
+        final RenderedImage image = createImage(128, 250, 64);
+        final List<String> removed = new ArrayList<>();
+        final TileCache tileCache = (TileCache) Proxy.newProxyInstance(
+                TileCache.class.getClassLoader(), new Class<?>[]{TileCache.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("removeTile")) {
+                        assertEquals(image, args[0]);
+                        removed.add(args[1] + "/" + args[2]);
+                    }
+                    return null;
+                });
+        final List<RenderedImage> images = Collections.singletonList(image);
+
+        // the second tile row is still needed for the next stripe
+        StripeWriter.removeTiles(tileCache, images, 0, 100);
+        assertEquals(Arrays.asList("0/0", "1/0"), removed);
+        removed.clear();
+        StripeWriter.removeTiles(tileCache, images, 100, 200);
+        assertEquals(Arrays.asList("0/1", "1/1", "0/2", "1/2"), removed);
+        removed.clear();
+        StripeWriter.removeTiles(tileCache, images, 200, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("0/3", "1/3"), removed);
+    }
+
+    private static RenderedImage createImage(int width, int height, int tileSize) {
+        return (RenderedImage) Proxy.newProxyInstance(
+                RenderedImage.class.getClassLoader(), new Class<?>[]{RenderedImage.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMinTileX":
+                        case "getMinTileY":
+                        case "getTileGridXOffset":
+                        case "getTileGridYOffset":
+                            return 0;
+                        case "getTileWidth":
+                        case "getTileHeight":
+                            return tileSize;
+                        case "getNumXTiles":
+                            return (width + tileSize - 1) / tileSize;
+                        case "getNumYTiles":
+                            return (height + tileSize - 1) / tileSize;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "image";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
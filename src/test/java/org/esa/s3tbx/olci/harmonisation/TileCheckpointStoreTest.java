@@ -0,0 +1,62 @@
+package org.esa.s3tbx.olci.harmonisation;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TileCheckpointStoreTest {
+
+    private static final String MANIFEST = "operator=OlciHarmonisation 1.1\nl1bProduct=S3A_OL_1_ERR 1217x15000\n";
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        final Path checkpointDir = Files.createTempDirectory("harmonisation");
+        final TileCheckpointStore store = new TileCheckpointStore(checkpointDir, "S3A_OL_1_ERR", MANIFEST);
+        final Rectangle rectangle = new Rectangle(512, 256, 3, 2);
+        final float[] samples = {0.5f, Float.NaN, 1013.25f, -1.0f, 0.0f, Float.MAX_VALUE};
+
+        assertFalse(store.read("trans_13", rectangle, new float[6]));
+        store.write("trans_13", rectangle, samples);
+        final float[] restored = new float[6];
+        assertTrue(store.read("trans_13", rectangle, restored));
+        assertArrayEquals(samples, restored, 0.0f);
+        assertEquals(1, store.getNumWritten());
+        assertEquals(1, store.getNumRead());
+
+        // other band, other rectangle or size
+        assertFalse(store.read("press_13", rectangle, new float[6]));
+        assertFalse(store.read("trans_13", new Rectangle(512, 256, 2, 3), new float[6]));
+        assertFalse(store.read("trans_13", rectangle, new float[5]));
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        final Path checkpointDir = Files.createTempDirectory("harmonisation");
+        final Rectangle rectangle = new Rectangle(0, 0, 2, 2);
+        final TileCheckpointStore store = new TileCheckpointStore(checkpointDir, "S3A_OL_1_ERR", MANIFEST);
+        store.write("surface_13", rectangle, new float[]{1.0f, 2.0f, 3.0f, 4.0f});
+        assertEquals(MANIFEST, new String(Files.readAllBytes(
+                store.getStoreDir().resolve(TileCheckpointStore.MANIFEST_FILE_NAME)), StandardCharsets.UTF_8));
+
+        // same product and parameters
+        final TileCheckpointStore resumedStore = new TileCheckpointStore(checkpointDir, "S3A_OL_1_ERR", MANIFEST);
+        assertEquals(store.getStoreDir(), resumedStore.getStoreDir());
+        assertTrue(resumedStore.read("surface_13", rectangle, new float[4]));
+
+        // other parameters
+        final TileCheckpointStore otherStore =
+                new TileCheckpointStore(checkpointDir, "S3A_OL_1_ERR", MANIFEST + "processOnlyBand13=false\n");
+        assertNotEquals(store.getStoreDir(), otherStore.getStoreDir());
+        assertFalse(otherStore.read("surface_13", rectangle, new float[4]));
+    }
+}